@@ -0,0 +1,85 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * BlobBenchmark Class
+ *
+ * Downloads the same bodies under several urls from a StubOriginServer,
+ * like an object mirrored on several hosts or paths, and reports the bytes
+ * the urls hold against the bytes the BlobStore keeps on disk. Then fetches
+ * the first url of each body again; every request gets a 200 with the body
+ * unchanged, which the store compares with its copy instead of writing, and
+ * the report gives the time per request against that of the first
+ * downloads.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out BlobBenchmark [bodies] [urls per body] [size bytes]
+ *
+ * @author James MacIsaac
+ */
+public class BlobBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int bodies = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int mirrors = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 1 << 20;
+        PrintStream console = System.out;
+        File dir = Files.createTempDirectory("urlcache-blobs").toFile();
+        try (StubOriginServer server = new StubOriginServer()) {
+            server.setLastModified(StubOriginServer.LastModified.CHANGING); // every request gets a 200
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            UrlCache cache = new UrlCache(dir);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < bodies; i++) {
+                cache.getObject(server.url(size + i, "body-" + i)); // the size picks the body
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < bodies; i++) {
+                for (int m = 1; m < mirrors; m++) {
+                    cache.getObject(server.url(size + i, "mirror-" + m + "/body-" + i));
+                }
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < bodies; i++) {
+                cache.getObject(server.url(size + i, "body-" + i));
+            }
+            long t3 = System.nanoTime();
+            BlobStore blobs = cache.getBlobStore();
+
+            console.printf("%d bodies of %d bytes, %d urls each%n", bodies, size, mirrors);
+            console.printf("%-24s %14d%n", "bytes under urls", (long) bodies * mirrors * size);
+            console.printf("%-24s %14d%n", "bytes on disk", du(new File(dir, "Blobs")));
+            console.printf("%-24s %14d%n", "saved (BlobStore)", blobs.getSavedBytes());
+            console.printf("%-24s %14.2f%n", "first download ms", (t1 - t0) / 1e6 / bodies);
+            console.printf("%-24s %14.2f%n", "mirror download ms", (t2 - t1) / 1e6 / (bodies * (mirrors - 1)));
+            console.printf("%-24s %14.2f%n", "unchanged 200 ms", (t3 - t2) / 1e6 / bodies);
+            console.printf("%-24s %14d%n", "bytes not rewritten", blobs.getUnchangedBytes());
+            cache.close();
+        } finally {
+            System.setOut(console);
+            delete(dir);
+        }
+    }
+
+    private static long du(File dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,272 @@
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * CacheSimulator Class
+ *
+ * Estimates, without sockets or files, how a cache of a given size and
+ * replacement policy does on a Workload: the share of requests and of
+ * bytes it serves, and the 200s and 304s it needs from the origin. Runs
+ * every size and policy asked for over the same trace, millions of requests
+ * a second, so the cache can be sized and the policies compared before
+ * LoadGenerator measures one configuration for real.
+ *
+ * The model follows UrlCache. Requests arrive rate a second of simulated
+ * time. A copy is fresh for maxAge seconds after it is fetched or
+ * revalidated; a request for a fresh copy is a hit, one for a stale copy
+ * is revalidated, a 304 if the object has not changed since and a 200 if it
+ * has, and one for an object not cached is a 200. An object changes every
+ * changeEvery ms, each at a time of its own as in StubOriginServer's
+ * PERIODIC mode, or never. When the cached bytes pass the cache size,
+ * objects are evicted until they are down to LOW_WATER of it, as DiskQuota
+ * does; an object bigger than the whole cache is not kept.
+ *
+ * Policies: lru evicts the least recently used object first, which is what
+ * DiskQuota does; fifo the one cached first; lfu the one used least often
+ * since it was cached.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out CacheSimulator [name=value...]
+ *
+ * Options, with their defaults:
+ *   trace=FILE        a recorded trace ("key [size]" per line)
+ *   objects=100000 requests=1000000 alpha=0.8
+ *                     or a synthetic Zipf trace
+ *   size=16k spread=1 seed=1
+ *                     median and log spread of the object sizes
+ *   cache=1%,5%,10%,25%
+ *                     cache sizes, in bytes (k, m, g) or as a share of the
+ *                     bytes of all the objects
+ *   policy=lru,fifo,lfu
+ *   maxAge=60         s a copy is fresh for, -1 for never fresh
+ *   changeEvery=0     ms between changes of an object, 0 for never
+ *   rate=1000         requests per second of simulated time
+ *
+ * @author James MacIsaac
+ */
+public class CacheSimulator {
+
+    private static final double LOW_WATER = 0.9; // share of the size eviction stops at, as in DiskQuota
+
+    /**
+     * Orders the cached objects for eviction
+     */
+    private interface Policy {
+
+        /** Starts tracking an object just cached */
+        void add(int object);
+
+        /** Notes a request for a cached object */
+        void used(int object);
+
+        /** Stops tracking the object to evict next and returns it */
+        int evict();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = Workload.options(args, "trace", "objects", "requests", "alpha", "size",
+                "spread", "seed", "cache", "policy", "maxAge", "changeEvery", "rate");
+        if (!options.containsKey("trace")) {
+            options.putIfAbsent("objects", "100000");
+        }
+        long t0 = System.nanoTime();
+        Workload workload = Workload.fromOptions(options, 1000000);
+        long loaded = System.nanoTime() - t0;
+        long maxAge = Long.parseLong(options.getOrDefault("maxAge", "60"));
+        long changeEvery = Long.parseLong(options.getOrDefault("changeEvery", "0"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "1000"));
+        String[] policies = options.getOrDefault("policy", "lru,fifo,lfu").split(",");
+        String[] caches = options.getOrDefault("cache", "1%,5%,10%,25%").split(",");
+
+        long objectBytes = workload.getObjectBytes();
+        System.out.printf("%d requests for %d objects (%.1f MB, %.1f MB requested), trace ready in %.2f s%n",
+                workload.getRequests(), workload.getObjects(), objectBytes / 1048576.0,
+                workload.getRequestBytes() / 1048576.0, loaded / 1e9);
+        System.out.printf("max-age %d s, changes every %s, %.0f requests/s%n", maxAge,
+                changeEvery > 0 ? changeEvery + " ms" : "never", rate);
+        System.out.printf("%-6s %12s %8s %8s %10s %10s %10s %14s %10s %12s%n", "policy", "cache bytes",
+                "hits", "bytes", "fresh", "304s", "200s", "origin bytes", "evictions", "requests/s");
+        for (String c : caches) {
+            c = c.trim();
+            long capacity = c.endsWith("%")
+                    ? (long) (objectBytes * Double.parseDouble(c.substring(0, c.length() - 1)) / 100)
+                    : Workload.parseBytes(c);
+            for (String p : policies) {
+                simulate(workload, p.trim(), capacity, maxAge, changeEvery, rate);
+            }
+        }
+    }
+
+    /**
+     * Runs the trace through one cache and prints a line of results
+     */
+    private static void simulate(Workload workload, String policyName, long capacity, long maxAge,
+            long changeEvery, double rate) {
+        int objects = workload.getObjects();
+        Policy policy = policy(policyName, objects);
+        boolean[] cached = new boolean[objects];
+        long[] freshUntil = new long[objects]; // simulated ms
+        long[] version = new long[objects]; // of the cached copy
+        long[] offset = new long[objects]; // when in its interval each object changes
+        if (changeEvery > 0) {
+            for (int o = 0; o < objects; o++) {
+                offset[o] = Math.floorMod(Integer.hashCode(o) * 0x9E3779B97F4A7C15L, changeEvery);
+            }
+        }
+        long used = 0;
+        long fresh = 0, notModified = 0, downloads = 0, hitBytes = 0, originBytes = 0, evictions = 0;
+        long low = (long) (capacity * LOW_WATER);
+
+        long t0 = System.nanoTime();
+        int requests = workload.getRequests();
+        for (int r = 0; r < requests; r++) {
+            int o = workload.getObject(r);
+            int size = workload.getSize(o);
+            long now = (long) (r * 1000 / rate);
+            long current = changeEvery > 0 ? (now + offset[o]) / changeEvery : 0;
+            if (cached[o]) {
+                policy.used(o);
+                if (now < freshUntil[o]) {
+                    fresh++;
+                    hitBytes += size;
+                } else if (version[o] == current) {
+                    notModified++;
+                    hitBytes += size;
+                    freshUntil[o] = now + maxAge * 1000;
+                } else {
+                    downloads++;
+                    originBytes += size;
+                    version[o] = current;
+                    freshUntil[o] = now + maxAge * 1000;
+                }
+                continue;
+            }
+            downloads++;
+            originBytes += size;
+            if (size > capacity) {
+                continue;
+            }
+            cached[o] = true;
+            version[o] = current;
+            freshUntil[o] = now + maxAge * 1000;
+            policy.add(o);
+            used += size;
+            if (used > capacity) {
+                while (used > low) {
+                    int victim = policy.evict();
+                    cached[victim] = false;
+                    used -= workload.getSize(victim);
+                    evictions++;
+                }
+            }
+        }
+        long elapsed = Math.max(1, System.nanoTime() - t0);
+
+        long requestBytes = workload.getRequestBytes();
+        System.out.printf("%-6s %12d %8.3f %8.3f %10d %10d %10d %14d %10d %12.0f%n", policyName, capacity,
+                requests == 0 ? 0 : (double) (fresh + notModified) / requests,
+                requestBytes == 0 ? 0 : (double) hitBytes / requestBytes, fresh, notModified, downloads,
+                originBytes, evictions, requests / (elapsed / 1e9));
+    }
+
+    private static Policy policy(String name, int objects) {
+        switch (name) {
+            case "lru":
+                return new ListPolicy(objects, true);
+            case "fifo":
+                return new ListPolicy(objects, false);
+            case "lfu":
+                return new LfuPolicy(objects);
+            default:
+                throw new IllegalArgumentException("Unknown policy " + name + ", expected lru, fifo or lfu");
+        }
+    }
+
+    /**
+     * LRU or FIFO: a doubly linked list through arrays indexed by object,
+     * oldest first, with a use moving the object to the end for LRU
+     */
+    private static final class ListPolicy implements Policy {
+
+        private final int[] prev;
+        private final int[] next;
+        private final int head; // sentinel
+        private final boolean moveOnUse;
+
+        ListPolicy(int objects, boolean moveOnUse) {
+            this.prev = new int[objects + 1];
+            this.next = new int[objects + 1];
+            this.head = objects;
+            this.moveOnUse = moveOnUse;
+            prev[head] = head;
+            next[head] = head;
+        }
+
+        @Override
+        public void add(int object) {
+            int last = prev[head];
+            next[last] = object;
+            prev[object] = last;
+            next[object] = head;
+            prev[head] = object;
+        }
+
+        @Override
+        public void used(int object) {
+            if (moveOnUse && prev[head] != object) {
+                unlink(object);
+                add(object);
+            }
+        }
+
+        @Override
+        public int evict() {
+            int oldest = next[head];
+            unlink(oldest);
+            return oldest;
+        }
+
+        private void unlink(int object) {
+            next[prev[object]] = next[object];
+            prev[next[object]] = prev[object];
+        }
+    }
+
+    /**
+     * LFU: the cached objects ordered by uses since they were cached, then
+     * by object number
+     */
+    private static final class LfuPolicy implements Policy {
+
+        private final int[] uses;
+        private final TreeSet<Long> order = new TreeSet<Long>(); // uses << 32 | object
+
+        LfuPolicy(int objects) {
+            this.uses = new int[objects];
+        }
+
+        @Override
+        public void add(int object) {
+            uses[object] = 1;
+            order.add(key(object));
+        }
+
+        @Override
+        public void used(int object) {
+            order.remove(key(object));
+            uses[object]++;
+            order.add(key(object));
+        }
+
+        @Override
+        public int evict() {
+            return (int) (order.pollFirst() & 0xffffffffL);
+        }
+
+        private long key(int object) {
+            return (long) uses[object] << 32 | object;
+        }
+    }
+}
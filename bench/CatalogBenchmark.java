@@ -0,0 +1,134 @@
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CatalogBenchmark Class
+ *
+ * Measures CatalogStore on catalogs of growing size: the time load() takes
+ * on the mapped catalog.idx, the time it takes on the text catalog.dat of
+ * older versions (which it reads in full and converts), and the time of a
+ * get() and a getLastModified() lookup on the loaded catalog.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out CatalogBenchmark [entries...]
+ *
+ * @author James MacIsaac
+ */
+public class CatalogBenchmark {
+
+    private static final int LOOKUPS = 1000000; // lookups per measurement
+    private static final int LOADS = 5; // loads per measurement, fastest kept
+
+    static volatile long blackhole; // keeps results alive so lookups are not optimised away
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {10000, 100000, 1000000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        File root = new File(System.getProperty("java.io.tmpdir"), "CatalogBenchmark-" + System.nanoTime());
+        System.out.printf("%10s %14s %14s %12s %16s%n", "entries", "idx load ms", "dat load ms", "get ns/op",
+                "lastMod ns/op");
+        try {
+            for (int n : sizes) {
+                run(new File(root, String.valueOf(n)), n);
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void run(File dir, int n) throws Exception {
+        String[] urls = new String[n];
+        for (int i = 0; i < n; i++) {
+            urls[i] = "www.example.com:80/objects/" + (i % 97) + "/object-" + i + ".html";
+        }
+        CatalogStore store = new CatalogStore(dir);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            store.put(urls[i], new CatalogEntry(now - i * 1000L, 4096, now));
+        }
+        store.close();
+
+        double idxLoad = Double.MAX_VALUE;
+        for (int i = 0; i < LOADS; i++) {
+            long t0 = System.nanoTime();
+            store = new CatalogStore(dir);
+            store.load();
+            idxLoad = Math.min(idxLoad, (System.nanoTime() - t0) / 1e6);
+            store.close();
+        }
+
+        store = new CatalogStore(dir);
+        store.load();
+        long sink = 0;
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            sink += lookups(store, urls, false);
+            sink += lookups(store, urls, true);
+        }
+        long t0 = System.nanoTime();
+        sink += lookups(store, urls, false);
+        long t1 = System.nanoTime();
+        sink += lookups(store, urls, true);
+        long t2 = System.nanoTime();
+        store.close();
+
+        long t3 = System.nanoTime();
+        writeLegacy(dir, urls, now);
+        store = new CatalogStore(dir);
+        store.load();
+        long t4 = System.nanoTime();
+        store.close();
+        blackhole = sink;
+        System.out.printf("%10d %14.2f %14.2f %12.1f %16.1f%n", n, idxLoad, (t4 - t3) / 1e6,
+                (t1 - t0) / (double) LOOKUPS, (t2 - t1) / (double) LOOKUPS);
+    }
+
+    private static long lookups(CatalogStore store, String[] urls, boolean lastModified) {
+        long sink = 0;
+        int step = 7919; // a prime, so lookups jump around the file
+        for (int i = 0; i < LOOKUPS; i++) {
+            String url = urls[(int) ((long) i * step % urls.length)];
+            sink += lastModified ? store.getLastModified(url) : store.get(url).getSize();
+        }
+        return sink;
+    }
+
+    /**
+     * Replaces the catalog with a text catalog.dat as older versions wrote
+     * it, with Last-Modified as the header value
+     */
+    private static void writeLegacy(File dir, String[] urls, long now) throws Exception {
+        for (String name : new String[] {"catalog.idx", "catalog.journal", "catalog.journal.old"}) {
+            new File(dir, name).delete();
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dir, "catalog.dat")), StandardCharsets.UTF_8));
+        try {
+            for (int i = 0; i < urls.length; i++) {
+                out.write(urls[i] + CatalogEntry.SEPARATOR + HttpDate.format(now - i * 1000L)
+                        + CatalogEntry.SEPARATOR + "size=4096" + CatalogEntry.SEPARATOR + "atime=" + now + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
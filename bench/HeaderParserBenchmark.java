@@ -0,0 +1,208 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Stack;
+
+/**
+ * HeaderParserBenchmark Class
+ *
+ * Compares HeaderParser with the byte-at-a-time parser UrlCache used before
+ * it, on small, typical and large response headers. Each case is warmed up
+ * and then timed over several iterations; the report gives the mean time
+ * and the bytes allocated per parsed header.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out HeaderParserBenchmark
+ *
+ * @author James MacIsaac
+ */
+public class HeaderParserBenchmark {
+
+    private static final int WARMUP = 5; // iterations before measuring
+    private static final int MEASURE = 10; // measured iterations
+    private static final int OPS = 20000; // parses per iteration
+
+    static volatile long blackhole; // keeps results alive so parsing is not optimised away
+
+    public static void main(String[] args) throws Exception {
+        String[][] cases = {
+            {"small", smallHeader()},
+            {"typical", typicalHeader()},
+            {"large", largeHeader()}};
+
+        System.out.printf("%-8s %6s  %-8s %12s %14s%n", "header", "bytes", "parser", "ns/op", "alloc B/op");
+        for (String[] c : cases) {
+            byte[] raw = c[1].getBytes(StandardCharsets.ISO_8859_1);
+            run(c[0], raw, "legacy", true);
+            run(c[0], raw, "buffered", false);
+        }
+    }
+
+    private static void run(String name, byte[] raw, String label, boolean legacy) throws Exception {
+        HeaderParser parser = new HeaderParser();
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += iteration(raw, parser, legacy);
+        }
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long alloc0 = mx.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < MEASURE; i++) {
+            sink += iteration(raw, parser, legacy);
+        }
+        long t1 = System.nanoTime();
+        long alloc1 = mx.getThreadAllocatedBytes(tid);
+        long ops = (long) MEASURE * OPS;
+        blackhole = sink;
+        System.out.printf("%-8s %6d  %-8s %12.1f %14d%n", name, raw.length, label,
+                (t1 - t0) / (double) ops, (alloc1 - alloc0) / ops);
+    }
+
+    private static long iteration(byte[] raw, HeaderParser parser, boolean legacy) throws Exception {
+        long sink = 0;
+        Replay in = new Replay(raw);
+        for (int i = 0; i < OPS; i++) {
+            in.rewind();
+            if (legacy) {
+                sink += legacyParse(in).length;
+            } else {
+                sink += parser.parse(in).size();
+            }
+        }
+        return sink;
+    }
+
+    /**
+     * The header parser UrlCache used before HeaderParser, kept here as the
+     * baseline
+     */
+    private static String[] legacyParse(InputStream i) throws Exception {
+        byte lastFour[] = new byte[5];
+        lastFour[0] = 0;lastFour[1] = 0;lastFour[2] = 0;lastFour[3]=0;
+        ByteArrayOutputStream bb = new ByteArrayOutputStream();
+        String finish = "\r\n\r\n";
+        int runCount = 0;
+        while (true){
+            int next = i.read();
+            if (next == -1) {
+                throw new Exception("Connection closed by server");
+            }
+            lastFour[4] = (byte)next;
+
+            if(runCount == 0){
+                lastFour[3] = lastFour[4];
+            } else if (runCount == 1){
+                lastFour[2] = lastFour[3];
+                lastFour[3] = lastFour[4];
+            } else if (runCount == 2){
+                lastFour[1] = lastFour[2];
+                lastFour[2] = lastFour[3];
+                lastFour[3] = lastFour[4];
+            } else if (runCount == 3){
+                lastFour[0] = lastFour[1];
+                lastFour[1] = lastFour[2];
+                lastFour[2] = lastFour[3];
+                lastFour[3] = lastFour[4];
+            } else {
+                bb.write(lastFour[0]);
+                lastFour[0] = lastFour[1];
+                lastFour[1] = lastFour[2];
+                lastFour[2] = lastFour[3];
+                lastFour[3] = lastFour[4];
+                String tmp = "" + (char)lastFour[0] + (char)lastFour[1] + (char)lastFour[2] + (char)lastFour[3];
+                if(tmp.compareTo(finish) == 0){
+                    bb.write(lastFour[0]);
+                    bb.write(lastFour[1]);
+                    bb.write(lastFour[2]);
+                    bb.write(lastFour[3]);
+                    break;
+                }
+            }
+            runCount++;
+        }
+        bb.flush();
+
+        byte header[] = bb.toByteArray();
+        Stack<String> hStack = new Stack<String>();
+        String hLine = "";
+        for(int j = 0; j < header.length-2; j++){
+            hLine += (char)header[j];
+            if(hLine.charAt(hLine.length()-1) == '\n' && hLine.charAt(hLine.length()-2) == '\r'){
+                hLine = hLine.substring(0, hLine.length()-2);
+                hStack.push(hLine);
+                hLine = "";
+            }
+        }
+
+        String[] headerContent = new String[hStack.size()];
+        for (int j = 0; j < headerContent.length; j++) {
+            headerContent[headerContent.length - j - 1] = hStack.pop();
+        }
+        return headerContent;
+    }
+
+    /**
+     * In-memory stream that supports mark/reset like the buffered stream of
+     * a pooled connection and can be rewound without allocating
+     */
+    private static class Replay extends ByteArrayInputStream {
+
+        Replay(byte[] buf) {
+            super(buf);
+        }
+
+        void rewind() {
+            pos = 0;
+            mark = 0;
+        }
+    }
+
+    private static String smallHeader() {
+        return "HTTP/1.1 304 Not Modified\r\n"
+                + "Date: Mon, 03 Oct 2016 18:22:31 GMT\r\n"
+                + "Server: Apache\r\n"
+                + "Connection: keep-alive\r\n"
+                + "ETag: \"2b60-53e0f2b6c1a40\"\r\n"
+                + "\r\n";
+    }
+
+    private static String typicalHeader() {
+        return "HTTP/1.1 200 OK\r\n"
+                + "Date: Mon, 03 Oct 2016 18:22:31 GMT\r\n"
+                + "Server: Apache/2.4.6 (Red Hat Enterprise Linux) OpenSSL/1.0.1e-fips\r\n"
+                + "Last-Modified: Thu, 29 Sep 2016 21:10:04 GMT\r\n"
+                + "ETag: \"2b60-53e0f2b6c1a40\"\r\n"
+                + "Accept-Ranges: bytes\r\n"
+                + "Content-Length: 11104\r\n"
+                + "Cache-Control: max-age=3600, public\r\n"
+                + "Expires: Mon, 03 Oct 2016 19:22:31 GMT\r\n"
+                + "Vary: Accept-Encoding,User-Agent\r\n"
+                + "Keep-Alive: timeout=5, max=100\r\n"
+                + "Connection: Keep-Alive\r\n"
+                + "Content-Type: text/html; charset=UTF-8\r\n"
+                + "X-Frame-Options: SAMEORIGIN\r\n"
+                + "\r\n";
+    }
+
+    private static String largeHeader() {
+        StringBuilder sb = new StringBuilder(typicalHeader());
+        sb.setLength(sb.length() - 2); // drop the terminating empty line
+        sb.append("Content-Security-Policy: default-src 'self'; script-src 'self' 'unsafe-inline' "
+                + "https://www.google-analytics.com https://ajax.googleapis.com; img-src 'self' data: "
+                + "https://s3.amazonaws.com; style-src 'self' 'unsafe-inline' https://fonts.googleapis.com\r\n");
+        sb.append("Strict-Transport-Security: max-age=31536000; includeSubDomains; preload\r\n");
+        for (int i = 0; i < 8; i++) {
+            sb.append("Set-Cookie: session").append(i)
+                    .append("=9f8a7b6c5d4e3f2a1b0c9d8e7f6a5b4c3d2e1f0a9b8c7d6e5f4a3b2c1d0e9f8a; ")
+                    .append("Path=/; Domain=.ucalgary.ca; Expires=Tue, 03 Oct 2017 18:22:31 GMT; HttpOnly\r\n");
+        }
+        sb.append("X-Amz-Request-Id: 4442587FB7D0A2F9\r\n");
+        sb.append("X-Amz-Id-2: vlR7PnpV2Ce81l0PRw6jlUpck7Jo5ZsQjryTjKlc5aLWGVHPZLj5NeC6qMa0emYBDXOo6QBU0Wo=\r\n");
+        sb.append("\r\n");
+        return sb.toString();
+    }
+}
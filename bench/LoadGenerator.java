@@ -0,0 +1,171 @@
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadGenerator Class
+ *
+ * Replays a Workload through a UrlCache against a StubOriginServer, from
+ * several threads at once, and reports what a cache of that configuration
+ * does under that load: throughput, the latency of getObject at the 50th,
+ * 99th and 99.9th percentiles, the hit ratio, the bytes the origin sent
+ * against the bytes asked for, and the time spent writing the catalog.
+ * Latencies are kept one per request and sorted, as Histogram's
+ * power-of-two buckets are too coarse to tell p99 from p999.
+ *
+ * The objects change at the origin every changeEvery ms, each at a time of
+ * its own, so revalidations find some of them changed; with changeEvery=0
+ * they never change. The cache may be limited to quota bytes, to see the
+ * hit ratio a given size gets; CacheSimulator estimates the same without
+ * sockets, for many sizes at once.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out LoadGenerator [name=value...]
+ *
+ * Options, with their defaults:
+ *   trace=FILE        replay a recorded trace ("key [size]" per line)
+ *   objects=10000 requests=100000 alpha=0.8
+ *                     or draw a synthetic Zipf trace
+ *   size=16k spread=1 seed=1
+ *                     median and log spread of the object sizes
+ *   threads=8         callers at once
+ *   latency=5         ms the origin takes to answer
+ *   maxAge=60         s objects are fresh for, -1 to send no max-age
+ *   changeEvery=0     ms between changes of an object, 0 for never
+ *   quota=0           disk quota in bytes (k, m, g), 0 for none
+ *   nio=0             NIO event loops, 0 for blocking sockets
+ *   swr=false         serve stale copies while revalidating
+ *   save=FILE         write the trace replayed, to replay it again
+ *
+ * @author James MacIsaac
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = Workload.options(args, "trace", "objects", "requests", "alpha", "size",
+                "spread", "seed", "threads", "latency", "maxAge", "changeEvery", "quota", "nio", "swr", "save");
+        Workload workload = Workload.fromOptions(options, 100000);
+        int threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+        long latency = Long.parseLong(options.getOrDefault("latency", "5"));
+        long maxAge = Long.parseLong(options.getOrDefault("maxAge", "60"));
+        long changeEvery = Long.parseLong(options.getOrDefault("changeEvery", "0"));
+        long quota = Workload.parseBytes(options.getOrDefault("quota", "0"));
+        int nio = Integer.parseInt(options.getOrDefault("nio", "0"));
+        boolean swr = Boolean.parseBoolean(options.getOrDefault("swr", "false"));
+        if (options.containsKey("save")) {
+            workload.write(new File(options.get("save")));
+        }
+
+        PrintStream console = System.out;
+        File root = Files.createTempDirectory("urlcache-load").toFile();
+        try (StubOriginServer server = new StubOriginServer()) {
+            server.setLatency(latency);
+            server.setMaxAge(maxAge);
+            if (changeEvery > 0) {
+                server.setLastModified(StubOriginServer.LastModified.PERIODIC);
+                server.setChangeInterval(changeEvery);
+            }
+            String[] urls = new String[workload.getObjects()];
+            for (int o = 0; o < urls.length; o++) {
+                urls[o] = server.url(workload.getSize(o), "obj-" + o);
+            }
+            console.printf("%d requests for %d objects (%.1f MB), %d threads, latency %d ms, max-age %d s, "
+                    + "changes every %s, quota %s%n", workload.getRequests(), workload.getObjects(),
+                    workload.getObjectBytes() / 1048576.0, threads, latency, maxAge,
+                    changeEvery > 0 ? changeEvery + " ms" : "never", quota > 0 ? quota + " bytes" : "none");
+
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            final UrlCache cache = new UrlCache(root);
+            if (quota > 0) {
+                cache.setDiskQuota(quota);
+            }
+            if (nio > 0) {
+                cache.setNioEngine(nio);
+            }
+            cache.setStaleWhileRevalidate(swr);
+
+            final long[] latencies = new long[workload.getRequests()];
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicLong errors = new AtomicLong();
+            Thread[] callers = new Thread[threads];
+            long t0 = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                callers[t] = new Thread(() -> {
+                    int i;
+                    while ((i = next.getAndIncrement()) < latencies.length) {
+                        long start = System.nanoTime();
+                        try {
+                            cache.getObject(urls[workload.getObject(i)]);
+                        } catch (UrlCacheException e) {
+                            errors.incrementAndGet();
+                        }
+                        latencies[i] = System.nanoTime() - start;
+                    }
+                }, "load-" + t);
+                callers[t].start();
+            }
+            for (Thread t : callers) {
+                t.join();
+            }
+            long wall = System.nanoTime() - t0;
+            System.setOut(console);
+
+            FetchMetrics metrics = cache.getMetrics();
+            Histogram writes = metrics.getCatalogWriteTimes();
+            int n = latencies.length;
+            Arrays.sort(latencies);
+            console.printf("throughput     %10.0f requests/s over %.2f s%n", n / (wall / 1e9), wall / 1e9);
+            console.printf("latency ms     %10s p50 %.3f  p99 %.3f  p999 %.3f  max %.3f%n", "",
+                    percentile(latencies, 0.5) / 1e6, percentile(latencies, 0.99) / 1e6,
+                    percentile(latencies, 0.999) / 1e6, n == 0 ? 0 : latencies[n - 1] / 1e6);
+            console.printf("hit ratio      %10.3f fresh %d, 304 %d, 200 %d%n", metrics.getHitRatio(),
+                    metrics.getFreshHits(), metrics.getNotModified(), metrics.getDownloads());
+            long asked = workload.getRequestBytes();
+            console.printf("origin bytes   %10d of %d asked for (%.1f%%)%n", server.getBodyBytes(), asked,
+                    asked == 0 ? 0 : 100.0 * server.getBodyBytes() / asked);
+            console.printf("catalog writes %10d mean %.1f us, max %.1f us, %.1f per 1000 requests%n",
+                    writes.getCount(), writes.getMean(), (double) writes.getMax(),
+                    n == 0 ? 0 : 1000.0 * writes.getCount() / n);
+            if (quota > 0) {
+                DiskQuota diskQuota = cache.getDiskQuota();
+                console.printf("evictions      %10d %d bytes%n", diskQuota.getEvictions(),
+                        diskQuota.getEvictedBytes());
+            }
+            console.printf("errors         %10d%n", errors.get());
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            cache.close();
+        } finally {
+            System.setOut(console);
+            delete(root);
+        }
+    }
+
+    /**
+     * @param sorted latencies in ascending order
+     * @param p between 0 and 1
+     * @return the latency p of the requests took at most
+     */
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
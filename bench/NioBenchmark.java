@@ -0,0 +1,110 @@
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * NioBenchmark Class
+ *
+ * Fetches many objects at once from a slow StubOriginServer with UrlCache in
+ * NIO mode, so that every request is waiting on the server at the same time,
+ * and reports how many connections each event-loop thread carried and how
+ * much heap each open connection cost. The server runs in a separate JVM so
+ * its thread-per-connection design stays out of the numbers.
+ *
+ * Memory per connection is the heap in use (after a GC) while all the
+ * connections are open, less the heap in use before the batch started,
+ * divided by the connections open.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out NioBenchmark [connections] [latency ms] [size bytes] [event loops]
+ *
+ * @author James MacIsaac
+ */
+public class NioBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 3000;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+        int loops = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process stub = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "StubOriginServer", String.valueOf(latency)).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        PrintStream console = System.out;
+        try {
+            int port = Integer.parseInt(new BufferedReader(new InputStreamReader(stub.getInputStream())).readLine().trim());
+            final ArrayList<String> urls = new ArrayList<String>();
+            for (int i = 0; i < connections; i++) {
+                urls.add("127.0.0.1:" + port + "/" + size + "/slow-" + i);
+            }
+
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            final UrlCache cache = new UrlCache(Files.createTempDirectory("urlcache-nio").toFile());
+            cache.setNioEngine(loops);
+            NioEngine engine = cache.getNioEngine();
+            MemoryMXBean mx = ManagementFactory.getMemoryMXBean();
+
+            System.gc();
+            long heap0 = mx.getHeapMemoryUsage().getUsed();
+            final BatchResult[] result = new BatchResult[1];
+            final Exception[] error = new Exception[1];
+            Thread batch = new Thread(() -> {
+                try {
+                    result[0] = cache.getObjects(urls, connections, connections);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }, "batch");
+            long t0 = System.nanoTime();
+            batch.start();
+
+            // wait for every request to be on the wire, or for the first
+            // responses to start coming back
+            long deadline = t0 + latency * 1000000L * 3 / 4;
+            while (engine.getOpenConnections() < connections && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            int open = engine.getOpenConnections();
+            System.gc();
+            long heap = mx.getHeapMemoryUsage().getUsed() - heap0;
+            int threads = 0;
+            for (Thread t : Thread.getAllStackTraces().keySet()) {
+                if (t.getName().startsWith("UrlCache-")) {
+                    threads++;
+                }
+            }
+
+            batch.join();
+            long elapsed = System.nanoTime() - t0;
+            System.setOut(console);
+            if (error[0] != null) {
+                throw error[0];
+            }
+
+            console.printf("%d objects of %d bytes, latency %d ms, %d event loops%n", connections, size, latency, loops);
+            console.printf("%-28s %12s%n", "fetched", result[0].getResults().size());
+            console.printf("%-28s %12s%n", "failed", result[0].getFailures().size());
+            console.printf("%-28s %12.1f%n", "batch ms", elapsed / 1e6);
+            console.printf("%-28s %12d%n", "open connections (sampled)", open);
+            console.printf("%-28s %12d%n", "peak connections", engine.getPeakConnections());
+            console.printf("%-28s %12d%n", "UrlCache threads", threads);
+            console.printf("%-28s %12.1f%n", "connections per thread", open / (double) Math.max(1, threads));
+            console.printf("%-28s %12d%n", "heap B per connection", open == 0 ? 0 : heap / open);
+            if (!result[0].isSuccess()) {
+                console.println("first failure: " + result[0].getFailures().values().iterator().next().getMessage());
+            }
+            cache.close();
+        } finally {
+            System.setOut(console);
+            stub.destroy();
+        }
+    }
+}
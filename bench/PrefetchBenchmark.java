@@ -0,0 +1,114 @@
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PrefetchBenchmark Class
+ *
+ * Browses a small site on a StubOriginServer the way a browser would: gets
+ * a page, waits a moment as if parsing it, then gets the stylesheet,
+ * script and images it links to one after another, and moves on to the
+ * next page, which the page also links to. Each page links to a download
+ * the browser never gets and to a script on another host, neither of
+ * which should pay off. Runs the walk with prefetching off and at depths 1
+ * and 2, each in a fresh cache, and reports the time per page, the
+ * requests the server answered, and the Prefetcher's hits, hit rate and
+ * bytes.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out PrefetchBenchmark [pages] [images per page] [image bytes] [latency ms] [think ms]
+ *
+ * @author James MacIsaac
+ */
+public class PrefetchBenchmark {
+
+    private static final long BUDGET = 64L << 20; // prefetch byte budget
+    private static final int PER_HOST = 4; // prefetches per host at once
+    private static final int UNUSED_SIZE = 262144; // the download no one gets
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int images = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 32768;
+        long latency = args.length > 3 ? Long.parseLong(args[3]) : 20;
+        long think = args.length > 4 ? Long.parseLong(args[4]) : 50;
+        PrintStream console = System.out;
+        File root = Files.createTempDirectory("urlcache-prefetch").toFile();
+        try (StubOriginServer server = new StubOriginServer()) {
+            server.setLatency(latency);
+            List<String> pageUrls = new ArrayList<String>();
+            List<List<String>> resources = new ArrayList<List<String>>();
+            for (int p = 0; p < pages; p++) {
+                List<String> used = new ArrayList<String>();
+                StringBuilder html = new StringBuilder("<!DOCTYPE html>\n<html><head>\n");
+                html.append("<link rel=\"stylesheet\" href=\"/4096/site-").append(p).append(".css\">\n");
+                html.append("<script src=\"http://127.0.0.1:").append(server.getPort()).append("/8192/app-")
+                        .append(p).append(".js\"></script>\n");
+                html.append("<script src=\"http://cdn.example.com/lib.js\"></script>\n");
+                html.append("<!-- <img src=\"/1/commented-out.png\"> -->\n</head><body>\n");
+                used.add(server.url(4096, "site-" + p + ".css"));
+                used.add(server.url(8192, "app-" + p + ".js"));
+                for (int i = 0; i < images; i++) {
+                    html.append("<p>Figure ").append(i).append("<img alt=x src=").append(size).append("/img-")
+                            .append(p).append('-').append(i).append(".png></p>\n");
+                    used.add(server.url(size, "img-" + p + "-" + i + ".png"));
+                }
+                html.append("<a href=\"/").append(UNUSED_SIZE).append("/download-").append(p)
+                        .append(".zip\">download</a>\n");
+                html.append("<a href='page-").append(p + 1).append(".html#top'>next</a>\n</body></html>\n");
+                pageUrls.add(server.setPage("page-" + p + ".html", html.toString()));
+                resources.add(used);
+            }
+            console.printf("%d pages, %d images of %d bytes each, latency %d ms, think %d ms%n", pages, images,
+                    size, latency, think);
+            console.printf("%-8s %10s %10s %10s %8s %8s %8s %14s %14s%n", "depth", "ms/page", "requests",
+                    "prefetched", "hits", "late", "hitRate", "prefetch bytes", "unused bytes");
+            for (int depth = 0; depth <= 2; depth++) {
+                File dir = new File(root, "depth-" + depth);
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+                UrlCache cache = new UrlCache(dir);
+                cache.setPrefetch(depth, BUDGET, PER_HOST);
+                long requests = server.getRequests();
+                long t0 = System.nanoTime();
+                for (int p = 0; p < pages; p++) {
+                    cache.getObject(pageUrls.get(p));
+                    Thread.sleep(think);
+                    for (String url : resources.get(p)) {
+                        cache.getObject(url);
+                    }
+                }
+                long t1 = System.nanoTime();
+                Prefetcher prefetcher = cache.getPrefetcher();
+                Thread.sleep(200); // for prefetches still in flight to land in the counts
+                requests = server.getRequests() - requests;
+                System.setOut(console);
+                if (prefetcher == null) {
+                    console.printf("%-8s %10.1f %10d%n", "off", (t1 - t0) / 1e6 / pages, requests);
+                } else {
+                    console.printf("%-8d %10.1f %10d %10d %8d %8d %8.2f %14d %14d%n", depth,
+                            (t1 - t0) / 1e6 / pages, requests, prefetcher.getPrefetched(), prefetcher.getHits(),
+                            prefetcher.getLateHits(), prefetcher.getHitRate(), prefetcher.getPrefetchedBytes(),
+                            prefetcher.getOutstandingBytes());
+                }
+                cache.close();
+            }
+        } finally {
+            System.setOut(console);
+            delete(root);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,430 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ProtocolCheck Class
+ *
+ * Checks how UrlCache handles responses that are legal but unusual, or
+ * malformed, which StubOriginServer never sends: each case is a response
+ * written byte for byte by a small server of its own, fetched with the
+ * blocking engine and then with the NIO engine, each in a fresh cache.
+ * Prints a line per case and engine and exits with status 1 if any fails.
+ * Also checks that a ConnectionPool socket keeps its read timeout when it
+ * is reused, against a server that accepts connections and never answers,
+ * and that a batch whose origin stops answering on a reused connection
+ * finishes with that url failed once the read times out; this last check
+ * takes a minute or so, as it waits for the cache's own read timeout.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out ProtocolCheck
+ *
+ * @author James MacIsaac
+ */
+public class ProtocolCheck {
+
+    private static final String LM = "Last-Modified: Mon, 03 Oct 2016 18:22:31 GMT\r\n";
+    private static final int READ_TIMEOUT = 500; // ms, for the pool whose timeouts are checked
+    private static final long BATCH_LIMIT = 100000; // ms a batch may take to fail a stalled url, two read timeouts and more
+    private static final byte[] STALL = new byte[0]; // response of a path the server never answers
+
+    private static final ConcurrentHashMap<String, byte[]> responses = new ConcurrentHashMap<String, byte[]>(); // path -> response
+    private static final Set<String> keepAlive = ConcurrentHashMap.newKeySet(); // paths answered without closing
+    private static final Set<Socket> stalled = ConcurrentHashMap.newKeySet(); // connections left unanswered
+    private static final ConcurrentHashMap<String, Integer> pauses = new ConcurrentHashMap<String, Integer>(); // path -> bytes sent before a pause
+    private static int failures;
+
+    /**
+     * A check of the cache after it got one object
+     */
+    private interface Check {
+
+        /**
+         * @param cache
+         * @param url of the object
+         * @return null if the cache behaved, or what it did wrong
+         * @throws UrlCacheException if getting the object failed
+         */
+        String run(UrlCache cache, String url) throws UrlCacheException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrintStream console = System.out;
+        File root = Files.createTempDirectory("urlcache-check").toFile();
+        try (ServerSocket server = new ServerSocket(0, 64, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> accept(server), "check-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            String base = "127.0.0.1:" + server.getLocalPort() + "/";
+            for (int nio = 0; nio <= 1; nio++) {
+                String engine = nio == 0 ? "blocking" : "nio";
+                System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+                serve("negative-length", "HTTP/1.1 200 OK\r\n" + LM + "Content-Length: -5\r\n\r\nhello");
+                fails(console, engine, root, base + "negative-length", "Content-Length: -5 is refused",
+                        "Invalid Content-Length");
+
+                serve("padded-length", "HTTP/1.1 200 OK\r\n" + LM + "Content-Length:  5 \t\r\n\r\nhello");
+                check(console, engine, root, base + "padded-length", "Content-Length: \" 5 \\t\" is trimmed",
+                        (cache, url) -> {
+                            cache.getObject(url);
+                            String body = text(cache.readObject(url));
+                            return body.equals("hello") ? null : "cached \"" + body + "\"";
+                        });
+
+                StringBuilder longHeader = new StringBuilder("HTTP/1.1 200 OK\r\n" + LM + "X-Padding: ");
+                while (longHeader.length() < 6000) {
+                    longHeader.append('x');
+                }
+                char[] longBody = new char[70000];
+                Arrays.fill(longBody, 'b');
+                serve("long-header", longHeader + "\r\nContent-Length: 70000\r\n\r\n" + new String(longBody));
+                pauses.put("/long-header", 4500);
+                check(console, engine, root, base + "long-header",
+                        "A 6000 byte header arriving in two reads is not taken for too large", (cache, url) -> {
+                            cache.getObject(url);
+                            int length = cache.readObject(url).remaining();
+                            return length == longBody.length ? null : "cached " + length + " bytes";
+                        });
+
+                serve("split-cache-control", "HTTP/1.1 200 OK\r\n" + LM + "Cache-Control: max-age=600\r\n"
+                        + "Content-Length: 5\r\nCache-Control: no-store\r\n\r\nhello");
+                check(console, engine, root, base + "split-cache-control",
+                        "Cache-Control fields max-age=600 and no-store are combined", (cache, url) -> {
+                            cache.getObject(url);
+                            cache.getObject(url);
+                            long fresh = cache.getMetrics().getFreshHits();
+                            return fresh == 0 ? null : "served " + fresh + " fresh hits of a no-store response";
+                        });
+
+                serve("kept", "HTTP/1.1 200 OK\r\n" + LM + "Content-Length: 5\r\n\r\nhello");
+                keepAlive.add("/kept");
+                responses.put("/stalled", STALL);
+                check(console, engine, root, base + "stalled",
+                        "A batch whose origin stalls on a reused connection finishes", (cache, url) -> {
+                            BatchResult first = cache.getObjects(Collections.singletonList(base + "kept"));
+                            if (!first.isSuccess()) {
+                                return "the first batch failed: " + first.getFailures();
+                            }
+                            long hits = cache.getConnectionPool().getHits();
+                            BatchResult second = stalledBatch(cache, url);
+                            if (second == null) {
+                                return "the batch was still waiting after " + BATCH_LIMIT + " ms";
+                            }
+                            if (!second.getFailures().containsKey(url)) {
+                                return "the stalled url did not fail: " + second;
+                            }
+                            if (engine.equals("blocking") && cache.getConnectionPool().getHits() == hits) {
+                                return "the stalled request went on a new connection, not a reused one";
+                            }
+                            return null;
+                        });
+            }
+        } finally {
+            System.setOut(console);
+            delete(root);
+        }
+        readTimeouts(console);
+        console.println(failures == 0 ? "all checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Runs a check in a fresh cache on the given engine and prints its
+     * outcome
+     */
+    private static void check(PrintStream console, String engine, File root, String url, String name, Check check) {
+        String problem;
+        UrlCache cache = null;
+        try {
+            cache = new UrlCache(new File(root, engine + "-" + url.substring(url.lastIndexOf('/') + 1)));
+            if (engine.equals("nio")) {
+                cache.setNioEngine(1);
+            }
+            problem = check.run(cache, url);
+        } catch (UrlCacheException e) {
+            problem = "UrlCacheException: " + e.getMessage();
+        } catch (RuntimeException e) {
+            problem = e.toString();
+        } finally {
+            if (cache != null) {
+                try {
+                    cache.close();
+                } catch (UrlCacheException e) {
+                    // the check is what matters
+                }
+            }
+        }
+        report(console, engine, name, problem);
+    }
+
+    /**
+     * Prints the outcome of a check
+     *
+     * @param problem null if it passed, or what went wrong
+     */
+    private static void report(PrintStream console, String engine, String name, String problem) {
+        if (problem != null) {
+            failures++;
+        }
+        console.printf("%-4s %-9s %s%s%n", problem == null ? "ok" : "FAIL", engine, name,
+                problem == null ? "" : ": " + problem);
+    }
+
+    /**
+     * Checks that a read on a connection taken from the idle pool still
+     * times out after the pool's read timeout, as one on a new connection
+     * does, rather than waiting forever for a server that never answers
+     */
+    private static void readTimeouts(PrintStream console) throws IOException {
+        String problem;
+        ArrayList<Socket> held = new ArrayList<Socket>();
+        try (ServerSocket silent = new ServerSocket(0, 8, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> {
+                while (!silent.isClosed()) {
+                    try {
+                        Socket s = silent.accept();
+                        synchronized (held) {
+                            held.add(s);
+                        }
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }, "check-silent");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            ConnectionPool pool = new ConnectionPool(1, 30000, 30000, 1000, READ_TIMEOUT, new DnsCache());
+            ConnectionPool.Connection c = null;
+            try {
+                c = pool.acquire("127.0.0.1", silent.getLocalPort());
+                pool.release(c, true);
+                c = pool.acquire("127.0.0.1", silent.getLocalPort());
+                problem = c.isReused() ? readTimesOut(c) : "the idle connection was not reused";
+            } catch (UrlCacheException e) {
+                problem = "UrlCacheException: " + e.getMessage();
+            } finally {
+                if (c != null) {
+                    pool.release(c, false);
+                }
+            }
+        } finally {
+            synchronized (held) {
+                for (Socket s : held) {
+                    s.close();
+                }
+            }
+        }
+        report(console, "pool", "A reused connection keeps its " + READ_TIMEOUT + " ms read timeout", problem);
+    }
+
+    /**
+     * Reads from a connection the server never writes to, closing it after
+     * ten read timeouts if the read has not timed out by then
+     *
+     * @return null if the read timed out, or what it did instead
+     */
+    private static String readTimesOut(ConnectionPool.Connection c) {
+        Thread watchdog = new Thread(() -> {
+            try {
+                Thread.sleep(10 * READ_TIMEOUT);
+                c.closeQuietly();
+            } catch (InterruptedException e) {
+                // the read finished
+            }
+        }, "check-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+        long start = System.nanoTime();
+        try {
+            int b = c.getInputStream().read();
+            return "read returned " + b;
+        } catch (SocketTimeoutException e) {
+            return null;
+        } catch (IOException e) {
+            return "read was still waiting after " + (System.nanoTime() - start) / 1000000 + " ms";
+        } finally {
+            watchdog.interrupt();
+        }
+    }
+
+    /**
+     * Checks that getting the object fails with a UrlCacheException whose
+     * message starts with expected, and leaves nothing cached
+     */
+    private static void fails(PrintStream console, String engine, File root, String url, String name,
+            String expected) {
+        check(console, engine, root, url, name, (cache, u) -> {
+            try {
+                cache.getObject(u);
+            } catch (UrlCacheException e) {
+                if (e.getMessage() == null || !e.getMessage().startsWith(expected)) {
+                    return "failed with \"" + e.getMessage() + "\", expected \"" + expected + "\"";
+                }
+                try {
+                    cache.readObject(u);
+                    return "failed with \"" + e.getMessage() + "\" but left a copy cached";
+                } catch (UrlCacheException notCached) {
+                    return null;
+                }
+            }
+            return "getObject succeeded";
+        });
+    }
+
+    /**
+     * Fetches a url the server never answers in a batch of its own
+     *
+     * @return the batch's result, or null if it had not finished within
+     * BATCH_LIMIT, in which case the connections are closed to end it
+     */
+    private static BatchResult stalledBatch(UrlCache cache, String url) {
+        BatchResult[] result = new BatchResult[1];
+        Thread batch = new Thread(() -> {
+            try {
+                result[0] = cache.getObjects(Collections.singletonList(url));
+            } catch (UrlCacheException e) {
+                // the catalog could not be written; the result stays null
+            }
+        }, "check-batch");
+        batch.start();
+        try {
+            batch.join(BATCH_LIMIT);
+            if (batch.isAlive()) {
+                for (Socket s : stalled) {
+                    s.close();
+                }
+                batch.join();
+                return null;
+            }
+        } catch (InterruptedException | IOException e) {
+            return null;
+        }
+        return result[0];
+    }
+
+    private static void serve(String path, String response) {
+        responses.put("/" + path, response.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String text(ByteBuffer b) {
+        byte[] bytes = new byte[b.remaining()];
+        b.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void accept(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                final Socket s = server.accept();
+                Thread t = new Thread(() -> respond(s), "check-conn");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Answers requests with the canned response for their path, or 404,
+     * and closes the connection after the first whose path is not kept
+     * alive. A request for a stalled path is never answered, and the
+     * response to one with a pause is sent in two parts.
+     */
+    private static void respond(Socket s) {
+        try (Socket socket = s) {
+            InputStream in = socket.getInputStream();
+            while (true) {
+                String path = readRequest(in);
+                if (path == null) {
+                    return;
+                }
+                byte[] response = responses.get(path);
+                if (response == STALL) {
+                    stalled.add(socket);
+                    break;
+                }
+                if (response == null) {
+                    response = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                            .getBytes(StandardCharsets.ISO_8859_1);
+                }
+                Integer pause = pauses.get(path);
+                if (pause != null) {
+                    socket.getOutputStream().write(response, 0, pause);
+                    socket.getOutputStream().flush();
+                    try {
+                        Thread.sleep(200); // so the client reads the first part on its own
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    socket.getOutputStream().write(response, pause, response.length - pause);
+                } else {
+                    socket.getOutputStream().write(response);
+                }
+                socket.getOutputStream().flush();
+                if (!keepAlive.contains(path)) {
+                    socket.shutdownOutput();
+                    break;
+                }
+            }
+            while (in.read() != -1) {
+                // let the client close first
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            stalled.remove(s);
+        }
+    }
+
+    /**
+     * Reads a request header up to the blank line ending it
+     *
+     * @return the path asked for, "" if there is none, or null if the
+     * client closed the connection first
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int c, lineStart = 0;
+        while ((c = in.read()) != -1) {
+            head.append((char) c);
+            if (c == '\n') {
+                if (head.substring(lineStart).trim().isEmpty()) {
+                    break; // the blank line ending the header
+                }
+                lineStart = head.length();
+            }
+        }
+        if (c == -1) {
+            return null;
+        }
+        String[] line = head.toString().split(" ", 3);
+        return line.length < 2 ? "" : line[1];
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
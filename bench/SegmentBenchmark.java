@@ -0,0 +1,81 @@
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+/**
+ * SegmentBenchmark Class
+ *
+ * Downloads a large object from a StubOriginServer that throttles every
+ * connection to the same rate, as a single stream and then in more and
+ * more Range segments, and reports the time and throughput of each. With a
+ * per-connection limit the throughput should grow with the segments until
+ * the loopback interface, the disk or the connection pool's limit per
+ * host becomes the limit. The last line cuts the connections off a quarter
+ * of the way through each segment, fetches again, and reports how long the
+ * resumed download took.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out SegmentBenchmark [size MB] [MB/s per connection]
+ *
+ * @author James MacIsaac
+ */
+public class SegmentBenchmark {
+
+    private static final int[] SEGMENTS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 64) << 20;
+        long rate = (args.length > 1 ? Long.parseLong(args[1]) : 16) << 20;
+        PrintStream console = System.out;
+        File dir = Files.createTempDirectory("urlcache-segments").toFile();
+        try (StubOriginServer server = new StubOriginServer()) {
+            server.setThrottle(rate);
+            System.out.printf("object %d MB, %d MB/s per connection%n", size >> 20, rate >> 20);
+            System.out.printf("%-10s %10s %10s %12s%n", "segments", "ms", "MB/s", "ranges");
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            UrlCache cache = new UrlCache(dir);
+            for (int n : SEGMENTS) {
+                cache.setSegmentedDownloads(n, 1 << 20);
+                long ranges0 = server.getRangeRequests();
+                long t0 = System.nanoTime();
+                cache.getObject(server.url(size, "segments-" + n));
+                long t1 = System.nanoTime();
+                console.printf("%-10d %10.0f %10.1f %12d%n", n, (t1 - t0) / 1e6,
+                        size / 1048576.0 / ((t1 - t0) / 1e9), server.getRangeRequests() - ranges0);
+            }
+
+            // resume: cut every connection at a quarter of its segment
+            int n = SEGMENTS[SEGMENTS.length - 1];
+            cache.setSegmentedDownloads(n, 1 << 20);
+            String url = server.url(size, "resume");
+            server.setDropAfter(size / n / 4);
+            try {
+                cache.getObject(url);
+            } catch (UrlCacheException e) {
+                // expected
+            }
+            server.setDropAfter(-1);
+            long t0 = System.nanoTime();
+            cache.getObject(url);
+            long t1 = System.nanoTime();
+            console.printf("resumed %d segments in %.0f ms (%d resumed downloads)%n", n, (t1 - t0) / 1e6,
+                    cache.getResumedDownloads());
+            cache.close();
+        } finally {
+            System.setOut(console);
+            delete(dir);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
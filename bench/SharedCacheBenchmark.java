@@ -0,0 +1,151 @@
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SharedCacheBenchmark Class
+ *
+ * Starts several JVMs at the same moment, each opening a UrlCache and
+ * getting the same objects from a slow StubOriginServer, first with every
+ * process in the same cache directory and then with each in a directory of
+ * its own. Reports the objects the processes asked for, the 200s the server
+ * sent, and so the downloads the shared directory saved over separate ones;
+ * with the directory shared, a process that finds another one fetching an
+ * object waits for it and takes its copy. Then opens the shared directory
+ * once more and checks that every object is in its catalog.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out SharedCacheBenchmark [processes] [objects] [size bytes] [latency ms]
+ *
+ * @author James MacIsaac
+ */
+public class SharedCacheBenchmark {
+
+    private static final long START_DELAY = 2000; // ms for the workers to start before they begin together
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("worker")) {
+            worker(args);
+            return;
+        }
+        int processes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int objects = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 65536;
+        long latency = args.length > 3 ? Long.parseLong(args[3]) : 20;
+        PrintStream console = System.out;
+        File root = Files.createTempDirectory("urlcache-shared").toFile();
+        try (StubOriginServer server = new StubOriginServer()) {
+            server.setLatency(latency);
+            console.printf("%d processes, %d objects of %d bytes, latency %d ms%n", processes, objects, size,
+                    latency);
+            console.printf("%-10s %10s %10s %10s %10s %10s%n", "dirs", "asked", "200s", "304s", "waited",
+                    "wall ms");
+            long[] shared = run(console, server, root, "shared", processes, objects, size);
+            long[] separate = run(console, server, root, "separate", processes, objects, size);
+            console.printf("redundant downloads avoided: %d of %d%n", separate[0] - shared[0],
+                    separate[0] - objects);
+
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            UrlCache check = new UrlCache(new File(root, "shared"));
+            int missing = 0;
+            for (int i = 0; i < objects; i++) {
+                if (check.getLastModified(server.url(size, "object-" + i)) <= 0) {
+                    missing++;
+                }
+            }
+            check.close();
+            System.setOut(console);
+            console.printf("entries in the shared catalog after reopening: %d of %d%n", objects - missing, objects);
+        } finally {
+            System.setOut(console);
+            delete(root);
+        }
+    }
+
+    /**
+     * Runs the workers and prints a line of the report
+     *
+     * @return 200s and 304s the server sent to them
+     */
+    private static long[] run(PrintStream console, StubOriginServer server, File root, String mode,
+            int processes, int objects, int size) throws Exception {
+        long requests = server.getRequests();
+        long notModified = server.getNotModified();
+        long startAt = System.currentTimeMillis() + START_DELAY;
+        String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        List<Process> workers = new ArrayList<Process>();
+        for (int p = 0; p < processes; p++) {
+            File dir = new File(root, mode.equals("shared") ? "shared" : "separate-" + p);
+            workers.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    SharedCacheBenchmark.class.getName(), "worker", String.valueOf(server.getPort()),
+                    dir.getPath(), String.valueOf(objects), String.valueOf(size), String.valueOf(startAt))
+                    .redirectErrorStream(true).start());
+        }
+        long waited = 0;
+        long end = startAt;
+        for (Process w : workers) {
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(w.getInputStream()))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    if (line.startsWith("result ")) {
+                        String[] f = line.split(" ");
+                        waited += Long.parseLong(f[1]);
+                        end = Math.max(end, Long.parseLong(f[2]));
+                    } else {
+                        console.println(line);
+                    }
+                }
+            }
+            if (w.waitFor() != 0) {
+                throw new Exception("Worker exited with " + w.exitValue());
+            }
+        }
+        long ok = server.getRequests() - requests - (server.getNotModified() - notModified);
+        long nm = server.getNotModified() - notModified;
+        console.printf("%-10s %10d %10d %10d %10d %10d%n", mode, (long) processes * objects, ok, nm, waited,
+                end - startAt);
+        return new long[] {ok, nm};
+    }
+
+    /**
+     * Gets every object once, starting at the given time, and prints the
+     * fetches it took from another process and when it finished
+     */
+    private static void worker(String[] args) throws Exception {
+        int port = Integer.parseInt(args[1]);
+        File dir = new File(args[2]);
+        int objects = Integer.parseInt(args[3]);
+        int size = Integer.parseInt(args[4]);
+        long startAt = Long.parseLong(args[5]);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        UrlCache cache = new UrlCache(dir);
+        long pause = startAt - System.currentTimeMillis();
+        if (pause > 0) {
+            Thread.sleep(pause);
+        }
+        for (int i = 0; i < objects; i++) {
+            cache.getObject("127.0.0.1:" + port + "/" + size + "/object-" + i);
+        }
+        long end = System.currentTimeMillis();
+        long waited = cache.getRemoteCoalescedFetches();
+        cache.close();
+        console.println("result " + waited + " " + end);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
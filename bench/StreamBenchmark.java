@@ -0,0 +1,132 @@
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+/**
+ * StreamBenchmark Class
+ *
+ * Downloads objects of several sizes from a StubOriginServer that throttles
+ * each connection, once with getObject followed by openObject and once by
+ * subscribing to streamObject, and reports for each the time until the
+ * consumer has the first byte of the body and until it has all of it. With
+ * getObject the first byte waits for the whole download; streamObject hands
+ * the body on as it arrives, so its first byte should come after about one
+ * round trip whatever the size, while the total stays the same.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out StreamBenchmark [MB/s per connection] [sizes KB...]
+ *
+ * @author James MacIsaac
+ */
+public class StreamBenchmark {
+
+    private static final int[] SIZES = {64, 1024, 4096, 16384}; // KB
+
+    public static void main(String[] args) throws Exception {
+        long rate = (args.length > 0 ? Long.parseLong(args[0]) : 8) << 20;
+        int[] sizes = SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        PrintStream console = System.out;
+        File dir = Files.createTempDirectory("urlcache-stream").toFile();
+        try (StubOriginServer server = new StubOriginServer()) {
+            server.setThrottle(rate);
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            UrlCache cache = new UrlCache(dir);
+            cache.setSegmentedDownloads(1, 1 << 20); // one connection for both, at the throttled rate
+            console.printf("%d MB/s per connection%n", rate >> 20);
+            console.printf("%-10s %-14s %14s %14s%n", "size KB", "api", "first byte ms", "all ms");
+            cache.getObject(server.url(1024, "warm-up")); // class loading and the first connection
+            for (int kb : sizes) {
+                int size = kb << 10;
+
+                long t0 = System.nanoTime();
+                cache.getObject(server.url(size, "blocking-" + kb));
+                InputStream in = cache.openObject(server.url(size, "blocking-" + kb));
+                in.read();
+                long first = System.nanoTime();
+                byte[] buf = new byte[65536];
+                while (in.read(buf) != -1) {
+                    // consume
+                }
+                in.close();
+                long t1 = System.nanoTime();
+                console.printf("%-10d %-14s %14.1f %14.1f%n", kb, "getObject", (first - t0) / 1e6, (t1 - t0) / 1e6);
+
+                Consumer c = new Consumer();
+                t0 = System.nanoTime();
+                cache.streamObject(server.url(size, "stream-" + kb)).subscribe(c);
+                c.done.await();
+                if (c.error != null) {
+                    throw new Exception(c.error);
+                }
+                console.printf("%-10d %-14s %14.1f %14.1f%n", kb, "streamObject", (c.first - t0) / 1e6,
+                        (c.last - t0) / 1e6);
+            }
+            cache.close();
+        } finally {
+            System.setOut(console);
+            delete(dir);
+        }
+    }
+
+    /**
+     * Asks for one buffer at a time and notes when the first arrives and
+     * when the stream ends
+     */
+    private static class Consumer implements Flow.Subscriber<ByteBuffer> {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        Flow.Subscription subscription;
+        volatile long first;
+        volatile long last;
+        volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+            s.request(1);
+        }
+
+        @Override
+        public void onNext(ByteBuffer b) {
+            if (first == 0) {
+                first = System.nanoTime();
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            last = System.nanoTime();
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            last = System.nanoTime();
+            done.countDown();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
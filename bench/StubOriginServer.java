@@ -0,0 +1,567 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StubOriginServer Class
+ *
+ * A small HTTP/1.1 origin server for benchmarks, so UrlCache can be measured
+ * offline and without the noise of a real network. Every path of the form
+ * /SIZE/anything is an object of SIZE bytes; connections are kept alive
+ * until the client closes them or asks to, or until a set number of requests
+ * has been answered. Each response can be sent a fixed latency after its
+ * request arrived, like a network round trip, and the server can send a
+ * fixed Last-Modified time and ETag (so a
+ * conditional request gets a 304), no Last-Modified at all, a new one on
+ * every response (so every request gets a 200), or one that changes
+ * periodically for each object. Bodies can be sent gzip
+ * encoded and with any Content-Type. HTML pages can be added at paths of
+ * their own, for benchmarks that follow links.
+ *
+ * Bodies that are not gzipped are served in byte ranges (a single
+ * Range: bytes=A-B, honouring If-Range) unless turned off. Each connection
+ * can be throttled to a number of bytes per second, like a TCP flow limited
+ * by its window, and a response can be cut off after a number of body bytes
+ * to simulate an interrupted download.
+ *
+ * UrlCache needs a host name with a dot in it, so point the cache at
+ * 127.0.0.1:getPort().
+ *
+ * @author James MacIsaac
+ */
+public class StubOriginServer implements AutoCloseable {
+
+    /**
+     * How the server sets Last-Modified
+     */
+    public enum LastModified {
+        FIXED, // always the same time; If-Modified-Since gets a 304
+        NONE, // never sent; every request gets a 200
+        CHANGING, // the time of the response; every request gets a 200
+        PERIODIC // each object changes once per change interval, at a time of its own
+    }
+
+    private static final String FIXED_LM = "Mon, 03 Oct 2016 18:22:31 GMT";
+    private static final int MAX_HEADER = 65536;
+    private static final byte[] BLOCK = new byte[8192]; // body content, repeated
+
+    static {
+        for (int i = 0; i < BLOCK.length; i++) {
+            BLOCK[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    private final ServerSocket server;
+    private final Thread acceptor;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong rangeRequests = new AtomicLong();
+    private volatile long latency; // ms between a request arriving and its response
+    private volatile LastModified lastModified = LastModified.FIXED;
+    private volatile boolean chunked; // send bodies chunked instead of with a length
+    private volatile boolean gzip; // send bodies with Content-Encoding: gzip
+    private volatile String contentType = "application/octet-stream";
+    private volatile int maxRequests = Integer.MAX_VALUE; // per connection, then it is closed
+    private volatile long maxAge = -1; // Cache-Control max-age sent, -1 for none
+    private volatile boolean ranges = true; // advertise and serve byte ranges
+    private volatile long throttle; // max body bytes per second per connection, 0 for no limit
+    private volatile long dropAfter = -1; // body bytes of a response sent before the connection is cut, -1 for never
+    private volatile long changeInterval = 60000; // ms between changes of an object in PERIODIC mode
+    private final AtomicLong bodyBytes = new AtomicLong();
+    private final ConcurrentHashMap<String, byte[]> pages = new ConcurrentHashMap<String, byte[]>(); // path -> HTML
+
+    /**
+     * Starts a server on a free port of the loopback interface
+     *
+     * @throws IOException if the socket cannot be opened
+     */
+    public StubOriginServer() throws IOException {
+        server = new ServerSocket(0, 4096, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::acceptLoop, "stub-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Runs a server on its own until standard input is closed, printing its
+     * port on the first line of standard output, so a benchmark can keep the
+     * server's threads out of its own measurements
+     *
+     * Run with: java -cp out StubOriginServer [latency ms]
+     */
+    public static void main(String[] args) throws IOException {
+        try (StubOriginServer server = new StubOriginServer()) {
+            server.setLatency(args.length > 0 ? Long.parseLong(args[0]) : 0);
+            System.out.println(server.getPort());
+            System.out.flush();
+            while (System.in.read() != -1) {
+                // wait for the parent to go away
+            }
+        }
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @param size object size in bytes
+     * @param name distinguishes objects of the same size
+     * @return a url for the object, in the form UrlCache accepts
+     */
+    public String url(int size, String name) {
+        return "127.0.0.1:" + getPort() + "/" + size + "/" + name;
+    }
+
+    /**
+     * Serves an HTML page at /name as text/html, gzipped if bodies are,
+     * and without ranges or throttling
+     *
+     * @param name path of the page, without the leading '/'
+     * @param html the page
+     * @return a url for the page, in the form UrlCache accepts
+     */
+    public String setPage(String name, String html) {
+        pages.put("/" + name, html.getBytes(StandardCharsets.UTF_8));
+        return "127.0.0.1:" + getPort() + "/" + name;
+    }
+
+    public void setLatency(long ms) {
+        latency = ms;
+    }
+
+    public void setLastModified(LastModified mode) {
+        lastModified = mode;
+    }
+
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @param seconds Cache-Control max-age to send with every response, or
+     * -1 to send no Cache-Control
+     */
+    public void setMaxAge(long seconds) {
+        maxAge = seconds;
+    }
+
+    /**
+     * @param n requests answered on a connection before the server sends
+     * Connection: close and closes it, leaving any further pipelined
+     * requests unanswered
+     */
+    public void setMaxRequestsPerConnection(int n) {
+        maxRequests = n;
+    }
+
+    /**
+     * @param ranges false to ignore Range headers and not send Accept-Ranges
+     */
+    public void setRanges(boolean ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * @param bytesPerSecond max body bytes per second on each connection, 0
+     * for no limit
+     */
+    public void setThrottle(long bytesPerSecond) {
+        throttle = bytesPerSecond;
+    }
+
+    /**
+     * @param bytes body bytes of each response to send before closing the
+     * connection, -1 to send whole bodies
+     */
+    public void setDropAfter(long bytes) {
+        dropAfter = bytes;
+    }
+
+    /**
+     * @param ms time between changes of each object in PERIODIC mode; the
+     * objects change at different times within it
+     */
+    public void setChangeInterval(long ms) {
+        if (ms < 1) {
+            throw new IllegalArgumentException("interval must be at least 1 ms");
+        }
+        changeInterval = ms;
+    }
+
+    /**
+     * @return body bytes sent so far, as sent on the wire
+     */
+    public long getBodyBytes() {
+        return bodyBytes.get();
+    }
+
+    /**
+     * @return requests served so far
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return requests answered with 304 so far
+     */
+    public long getNotModified() {
+        return notModified.get();
+    }
+
+    /**
+     * @return requests answered with 206 so far
+     */
+    public long getRangeRequests() {
+        return rangeRequests.get();
+    }
+
+    /**
+     * @return connections accepted so far
+     */
+    public long getConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                final Socket s = server.accept();
+                connections.incrementAndGet();
+                Thread t = new Thread(() -> serve(s), "stub-conn");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Answers requests on one connection until the client closes it. A
+     * separate thread reads the requests and notes when each arrived, so
+     * pipelined requests wait out the latency together, as they would on a
+     * real network, rather than one after another.
+     */
+    private void serve(final Socket s) {
+        final LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>();
+        Thread reader = new Thread(() -> {
+            try {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                String[] head;
+                while ((head = readHeader(in)) != null) {
+                    queue.add(new Object[]{head, System.nanoTime()});
+                }
+            } catch (IOException e) {
+                // client went away
+            }
+            queue.add(new Object[0]); // end of requests
+        }, "stub-read");
+        reader.setDaemon(true);
+        try {
+            s.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 65536);
+            reader.start();
+            int served = 0;
+            while (true) {
+                Object[] req = queue.take();
+                if (req.length == 0) {
+                    break;
+                }
+                long due = (Long) req[1] + latency * 1000000L;
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                }
+                requests.incrementAndGet();
+                boolean last = ++served >= maxRequests;
+                boolean close = respond((String[]) req[0], out, last) || last;
+                if (queue.isEmpty() || close) {
+                    out.flush();
+                }
+                if (close) {
+                    break;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // client went away
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Writes the response to one request
+     *
+     * @param last true to tell the client the connection will be closed
+     * @return true if the connection is to be closed afterwards
+     */
+    private boolean respond(String[] head, OutputStream out, boolean last) throws IOException {
+        String[] line = head[0].split(" ");
+        String ims = null, inm = null, range = null, ifRange = null;
+        boolean close = false;
+        String extra = last ? "Connection: close\r\n" : ""; // headers sent with every response
+        long age = maxAge;
+        if (age >= 0) {
+            extra += "Cache-Control: max-age=" + age + "\r\n";
+        }
+        for (int i = 1; i < head.length; i++) {
+            String h = head[i].toLowerCase();
+            if (h.startsWith("if-modified-since:")) {
+                ims = head[i].substring(head[i].indexOf(':') + 1).trim();
+            } else if (h.startsWith("if-none-match:")) {
+                inm = head[i].substring(head[i].indexOf(':') + 1).trim();
+            } else if (h.startsWith("range:")) {
+                range = head[i].substring(head[i].indexOf(':') + 1).trim();
+            } else if (h.startsWith("if-range:")) {
+                ifRange = head[i].substring(head[i].indexOf(':') + 1).trim();
+            } else if (h.startsWith("connection:") && h.contains("close")) {
+                close = true;
+            }
+        }
+        byte[] page = line.length == 3 && line[0].equals("GET") ? pages.get(line[1]) : null;
+        if (page != null) {
+            return respondPage(page, out, extra, ims, inm) || close;
+        }
+        int size = -1;
+        if (line.length == 3 && line[0].equals("GET")) {
+            String path = line[1];
+            int slash = path.indexOf('/', 1);
+            try {
+                size = Integer.parseInt(slash == -1 ? path.substring(1) : path.substring(1, slash));
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+        }
+        if (size < 0) {
+            write(out, "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n" + extra + "\r\n");
+            return close;
+        }
+        LastModified mode = lastModified;
+        String lm = null; // validators, null unless FIXED or PERIODIC
+        String etag = null;
+        if (mode == LastModified.FIXED) {
+            lm = FIXED_LM;
+            etag = "\"" + size + "-fixed\"";
+        } else if (mode == LastModified.PERIODIC) {
+            long interval = changeInterval;
+            long offset = (line[1].hashCode() & 0x7fffffffL) % interval;
+            long version = (System.currentTimeMillis() + offset) / interval;
+            lm = httpDate(version * interval - offset);
+            etag = "\"" + size + "-" + version + "\"";
+        }
+        if (etag != null && (inm != null ? inm.equals(etag) : lm.equals(ims))) {
+            notModified.incrementAndGet();
+            write(out, "HTTP/1.1 304 Not Modified\r\nLast-Modified: " + lm + "\r\nETag: " + etag + "\r\n"
+                    + extra + "\r\n");
+            return close;
+        }
+        boolean rangeable = ranges && !gzip;
+        long[] span = rangeable ? parseRange(range, size) : null;
+        if (span != null && ifRange != null && !(etag != null && (ifRange.equals(etag) || ifRange.equals(lm)))) {
+            span = null; // the client's copy is not the current one, send it all
+        }
+        StringBuilder sb = new StringBuilder(span == null ? "HTTP/1.1 200 OK\r\n" : "HTTP/1.1 206 Partial Content\r\n");
+        sb.append("Content-Type: ").append(contentType).append("\r\n").append(extra);
+        if (rangeable) {
+            sb.append("Accept-Ranges: bytes\r\n");
+        }
+        if (etag != null) {
+            sb.append("Last-Modified: ").append(lm).append("\r\n");
+            sb.append("ETag: ").append(etag).append("\r\n");
+        } else if (mode == LastModified.CHANGING) {
+            sb.append("Last-Modified: ").append(httpDate(System.currentTimeMillis())).append("\r\n");
+        }
+        boolean useChunks = chunked && span == null;
+        byte[] encoded = null;
+        if (gzip) {
+            encoded = gzipBody(size);
+            sb.append("Content-Encoding: gzip\r\n");
+        }
+        long start = 0;
+        long length = encoded == null ? size : encoded.length;
+        if (span != null) {
+            rangeRequests.incrementAndGet();
+            start = span[0];
+            length = span[1] - span[0] + 1;
+            sb.append("Content-Range: bytes ").append(span[0]).append('-').append(span[1]).append('/').append(size).append("\r\n");
+        }
+        sb.append(useChunks ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + length + "\r\n");
+        sb.append("\r\n");
+        write(out, sb.toString());
+        long rate = throttle;
+        long drop = dropAfter;
+        long began = System.nanoTime();
+        long sent = 0;
+        while (sent < length) {
+            long pos = start + sent;
+            int off = (int) (pos % BLOCK.length);
+            int n = (int) Math.min(length - sent, encoded == null ? BLOCK.length - off : BLOCK.length);
+            boolean cut = drop >= 0 && sent + n > drop;
+            if (cut) {
+                n = (int) (drop - sent);
+            }
+            if (useChunks) {
+                write(out, Integer.toHexString(n) + "\r\n");
+            }
+            if (encoded == null) {
+                out.write(BLOCK, off, n);
+            } else {
+                out.write(encoded, (int) pos, n);
+            }
+            bodyBytes.addAndGet(n);
+            if (cut) {
+                out.flush();
+                throw new IOException("dropped"); // closes the connection
+            }
+            if (useChunks) {
+                write(out, "\r\n");
+            }
+            sent += n;
+            if (rate > 0) {
+                out.flush();
+                long wait = began + sent * 1000000000L / rate - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted");
+                    }
+                }
+            }
+        }
+        if (useChunks) {
+            write(out, "0\r\n\r\n");
+        }
+        return close;
+    }
+
+    /**
+     * Writes the response to a request for one of the pages
+     *
+     * @return false, the connection stays open
+     */
+    private boolean respondPage(byte[] page, OutputStream out, String extra, String ims, String inm)
+            throws IOException {
+        LastModified mode = lastModified;
+        String etag = "\"page-" + Integer.toHexString(java.util.Arrays.hashCode(page)) + "\"";
+        if (mode == LastModified.FIXED && (inm != null ? inm.equals(etag) : FIXED_LM.equals(ims))) {
+            notModified.incrementAndGet();
+            write(out, "HTTP/1.1 304 Not Modified\r\nLast-Modified: " + FIXED_LM + "\r\nETag: " + etag + "\r\n"
+                    + extra + "\r\n");
+            return false;
+        }
+        StringBuilder sb = new StringBuilder("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n").append(extra);
+        if (mode == LastModified.FIXED) {
+            sb.append("Last-Modified: ").append(FIXED_LM).append("\r\n");
+            sb.append("ETag: ").append(etag).append("\r\n");
+        }
+        if (gzip) {
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            try (java.util.zip.GZIPOutputStream gz = new java.util.zip.GZIPOutputStream(bytes)) {
+                gz.write(page);
+            }
+            page = bytes.toByteArray();
+            sb.append("Content-Encoding: gzip\r\n");
+        }
+        sb.append("Content-Length: ").append(page.length).append("\r\n\r\n");
+        write(out, sb.toString());
+        out.write(page);
+        bodyBytes.addAndGet(page.length);
+        return false;
+    }
+
+    /**
+     * @param range Range header value, may be null
+     * @param size object size
+     * @return first and last byte of a single satisfiable byte range, or
+     * null to send the whole object
+     */
+    private static long[] parseRange(String range, long size) {
+        if (range == null || !range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        int dash = range.indexOf('-');
+        try {
+            long first = Long.parseLong(range.substring(6, dash).trim());
+            String last = range.substring(dash + 1).trim();
+            long end = last.isEmpty() ? size - 1 : Math.min(size - 1, Long.parseLong(last));
+            return first <= end ? new long[]{first, end} : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads one request header. Lines may end in CRLF or, as PrintWriter
+     * writes them on some platforms, in a bare LF.
+     *
+     * @return its lines, or null if the client closed the connection
+     */
+    private static String[] readHeader(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c, last = -1;
+        while ((c = in.read()) != -1) {
+            if (c == '\r') {
+                continue;
+            }
+            if (c == '\n' && last == '\n') {
+                return sb.toString().split("\n");
+            }
+            sb.append((char) c);
+            if (sb.length() > MAX_HEADER) {
+                throw new IOException("request header too large");
+            }
+            last = c;
+        }
+        return null;
+    }
+
+    private static byte[] gzipBody(int size) throws IOException {
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        java.util.zip.GZIPOutputStream gz = new java.util.zip.GZIPOutputStream(bytes);
+        for (int left = size; left > 0; left -= BLOCK.length) {
+            gz.write(BLOCK, 0, Math.min(left, BLOCK.length));
+        }
+        gz.close();
+        return bytes.toByteArray();
+    }
+
+    private static String httpDate(long millis) {
+        return java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(java.time.Instant.ofEpochMilli(millis).atZone(java.time.ZoneOffset.UTC));
+    }
+
+    private static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,63 @@
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StubResolver Class
+ *
+ * A HostResolver for benchmarks that answers every name with the loopback
+ * address after a fixed delay, like a round trip to a name server, so host
+ * names other than 127.0.0.1 can be pointed at a StubOriginServer without
+ * any DNS set up. Names can be made to fail, and the lookups are counted.
+ *
+ * @author James MacIsaac
+ */
+public class StubResolver implements HostResolver {
+
+    private final Set<String> failing;
+    private final AtomicLong lookups;
+    private volatile long latency; // ms per lookup
+
+    public StubResolver() {
+        failing = ConcurrentHashMap.newKeySet();
+        lookups = new AtomicLong();
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        lookups.incrementAndGet();
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnknownHostException(host + ": interrupted");
+            }
+        }
+        if (failing.contains(host)) {
+            throw new UnknownHostException(host);
+        }
+        return new InetAddress[] {InetAddress.getLoopbackAddress()};
+    }
+
+    public void setLatency(long ms) {
+        latency = ms;
+    }
+
+    /**
+     * @param host a name that should not resolve from now on
+     */
+    public void fail(String host) {
+        failing.add(host);
+    }
+
+    /**
+     * @return lookups asked of this resolver
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+}
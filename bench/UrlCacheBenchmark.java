@@ -0,0 +1,298 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * UrlCacheBenchmark Class
+ *
+ * Measures the getObject paths of UrlCache against a StubOriginServer on the
+ * loopback interface: a cold miss (every request downloads a new object and
+ * gets a 200), a conditional revalidation (every request gets a 304), a
+ * fresh hit (max-age has not run out, so no request is made),
+ * revalidating a batch of objects on one host one request at a time and
+ * with pipelining, opening a cache with a populated catalog and looking up
+ * one Last-Modified time, and Last-Modified lookups on an open cache. Each
+ * case is warmed up and then timed over several iterations; the report gives the mean time and the
+ * bytes allocated per operation on the calling thread.
+ *
+ * UrlCache is quiet unless tracing is turned on, but System.out is still
+ * silenced while a case runs so that -Durlcache.trace=true does not swamp
+ * the report.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out UrlCacheBenchmark [size bytes] [latency ms] [chunked]
+ *
+ * @author James MacIsaac
+ */
+public class UrlCacheBenchmark {
+
+    private static final int WARMUP = 3; // iterations before measuring
+    private static final int MEASURE = 5; // measured iterations
+    private static final int OPS = 200; // requests per iteration
+    private static final int CATALOG_SIZE = 2000; // entries for the catalog load case
+    private static final int BATCH = 64; // objects per op in the batch revalidation cases
+    private static final int BATCH_OPS = 10; // ops per iteration in the batch revalidation cases
+
+    static volatile long blackhole; // keeps results alive so work is not optimised away
+
+    /**
+     * One benchmarked operation, run a fixed number of times per iteration
+     */
+    private interface Case {
+
+        /**
+         * Called before each iteration, outside the timed section
+         */
+        void setup(int iteration) throws Exception;
+
+        long op(int i) throws Exception;
+
+        /**
+         * Called after each iteration, outside the timed section
+         */
+        void teardown() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int size = args.length > 0 ? Integer.parseInt(args[0]) : 16384;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        boolean chunked = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+        PrintStream console = System.out;
+        try (StubOriginServer server = new StubOriginServer()) {
+            server.setLatency(latency);
+            server.setChunked(chunked);
+            final File root = Files.createTempDirectory("urlcache-bench").toFile();
+
+            console.printf("object %d bytes, latency %d ms, %s%n", size, latency, chunked ? "chunked" : "content-length");
+            console.printf("%-12s %12s %14s %10s%n", "case", "us/op", "alloc B/op", "requests");
+
+            server.setLastModified(StubOriginServer.LastModified.CHANGING);
+            run(console, server, "cold-200", new Case() {
+                private UrlCache cache;
+                private int iteration;
+
+                public void setup(int iteration) throws Exception {
+                    this.iteration = iteration;
+                    cache = new UrlCache(freshDir(root, "cold"));
+                }
+
+                public long op(int i) throws Exception {
+                    String url = server.url(size, "cold-" + iteration + "-" + i);
+                    cache.getObject(url);
+                    return cache.getLastModified(url);
+                }
+
+                public void teardown() throws Exception {
+                    cache.close();
+                }
+            });
+
+            server.setLastModified(StubOriginServer.LastModified.FIXED);
+            final File warmDir = freshDir(root, "warm");
+            final UrlCache[] holder = new UrlCache[1];
+            final String hot = server.url(size, "hot");
+            withoutConsole(() -> {
+                holder[0] = new UrlCache(warmDir);
+                holder[0].getObject(hot);
+            });
+            final UrlCache warm = holder[0];
+            run(console, server, "revalidate", new Case() {
+                public void setup(int iteration) {
+                }
+
+                public long op(int i) throws Exception {
+                    warm.getObject(hot);
+                    return warm.getLastModified(hot);
+                }
+
+                public void teardown() {
+                }
+            });
+
+            server.setMaxAge(3600);
+            final String fresh = server.url(size, "fresh");
+            withoutConsole(() -> warm.getObject(fresh));
+            run(console, server, "fresh-hit", new Case() {
+                public void setup(int iteration) {
+                }
+
+                public long op(int i) throws Exception {
+                    warm.getObject(fresh);
+                    return warm.getLastModified(fresh);
+                }
+
+                public void teardown() {
+                }
+            });
+            server.setMaxAge(-1);
+            warm.close();
+
+            final File batchDir = freshDir(root, "batch");
+            final ArrayList<String> batch = new ArrayList<String>();
+            for (int i = 0; i < BATCH; i++) {
+                batch.add(server.url(size, "batch-" + i));
+            }
+            withoutConsole(() -> {
+                holder[0] = new UrlCache(batchDir);
+                holder[0].getObjects(batch);
+            });
+            final UrlCache batchCache = holder[0];
+            run(console, server, "batch-serial", BATCH_OPS, new Case() {
+                public void setup(int iteration) {
+                }
+
+                public long op(int i) throws Exception {
+                    for (String url : batch) {
+                        batchCache.getObject(url);
+                    }
+                    return batch.size();
+                }
+
+                public void teardown() {
+                }
+            });
+            run(console, server, "batch-pipe", BATCH_OPS, new Case() {
+                public void setup(int iteration) {
+                }
+
+                public long op(int i) throws Exception {
+                    return batchCache.revalidateObjects(batch).getResults().size();
+                }
+
+                public void teardown() {
+                }
+            });
+            batchCache.close();
+
+            final File populated = freshDir(root, "catalog");
+            final String[] entries = new String[CATALOG_SIZE];
+            for (int i = 0; i < CATALOG_SIZE; i++) {
+                entries[i] = server.url(64, "entry-" + i);
+            }
+            withoutConsole(() -> {
+                UrlCache c = new UrlCache(populated);
+                for (String url : entries) {
+                    c.getObject(url);
+                }
+                c.close();
+            });
+            run(console, server, "catalog-load", new Case() {
+                public void setup(int iteration) {
+                }
+
+                public long op(int i) throws Exception {
+                    UrlCache c = new UrlCache(populated);
+                    long n = c.getLastModified(entries[i % CATALOG_SIZE]);
+                    c.close();
+                    return n;
+                }
+
+                public void teardown() {
+                }
+            });
+
+            final UrlCache lookupCache = new UrlCache(populated);
+            run(console, server, "last-modified", new Case() {
+                public void setup(int iteration) {
+                }
+
+                public long op(int i) throws Exception {
+                    return lookupCache.getLastModified(entries[i % CATALOG_SIZE]);
+                }
+
+                public void teardown() {
+                }
+            });
+            lookupCache.close();
+
+            delete(root);
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private static void run(PrintStream console, StubOriginServer server, String name, Case c) throws Exception {
+        run(console, server, name, OPS, c);
+    }
+
+    private static void run(PrintStream console, StubOriginServer server, String name, int opsPerIteration, Case c) throws Exception {
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += iteration(c, i, opsPerIteration)[2];
+        }
+        long requests0 = server.getRequests();
+        long time = 0;
+        long alloc = 0;
+        for (int i = 0; i < MEASURE; i++) {
+            long[] r = iteration(c, WARMUP + i, opsPerIteration);
+            time += r[0];
+            alloc += r[1];
+            sink += r[2];
+        }
+        long ops = (long) MEASURE * opsPerIteration;
+        blackhole = sink;
+        console.printf("%-12s %12.1f %14d %10d%n", name, time / 1000.0 / ops, alloc / ops,
+                server.getRequests() - requests0);
+    }
+
+    /**
+     * @return the time and bytes allocated for the iteration, and its result
+     */
+    private static long[] iteration(Case c, int n, int ops) throws Exception {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long[] r = new long[3];
+        withoutConsole(() -> {
+            c.setup(n);
+            long alloc0 = mx.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                r[2] += c.op(i);
+            }
+            r[0] = System.nanoTime() - t0;
+            r[1] = mx.getThreadAllocatedBytes(tid) - alloc0;
+            c.teardown();
+        });
+        return r;
+    }
+
+    private interface Task {
+
+        void run() throws Exception;
+    }
+
+    private static void withoutConsole(Task t) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            t.run();
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private static File freshDir(File root, String name) throws IOException {
+        File dir = new File(root, name);
+        delete(dir);
+        if (!dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,89 @@
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+/**
+ * WarmUpBenchmark Class
+ *
+ * Measures the first request to each host after a UrlCache is opened on a
+ * populated catalog, with and without UrlCache.warmUp beforehand. The hosts
+ * are names a StubResolver answers after a set delay, all pointing at one
+ * StubOriginServer, and every request is a revalidation that gets a 304, so
+ * the time is mostly the name lookup, the connect and one round trip. The
+ * report gives the mean first request and the mean resolve and connect
+ * times from the metrics; for the warmed case the time warmUp took is shown
+ * separately, as it is meant to run before the requests arrive.
+ *
+ * Run with: javac -d out src/*.java bench/*.java
+ *           java -cp out WarmUpBenchmark [hosts] [lookup ms] [rounds]
+ *
+ * @author James MacIsaac
+ */
+public class WarmUpBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int hosts = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long lookup = args.length > 1 ? Long.parseLong(args[1]) : 20;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        PrintStream console = System.out;
+        File dir = Files.createTempDirectory("urlcache-warmup").toFile();
+        StubResolver resolver = new StubResolver();
+        resolver.setLatency(lookup);
+        try (StubOriginServer server = new StubOriginServer()) {
+            server.setLastModified(StubOriginServer.LastModified.FIXED);
+            String[] urls = new String[hosts];
+            for (int i = 0; i < hosts; i++) {
+                urls[i] = server.url(4096, "object").replace("127.0.0.1", "host-" + i + ".test");
+            }
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            UrlCache cache = new UrlCache(dir);
+            cache.setHostResolver(resolver);
+            for (String url : urls) {
+                cache.getObject(url);
+            }
+            cache.close();
+
+            console.printf("%d hosts, %d ms per lookup, %d rounds%n", hosts, lookup, rounds);
+            console.printf("%-8s %12s %14s %14s %14s%n", "case", "warmUp ms", "first req ms", "resolve us", "connect us");
+            for (boolean warm : new boolean[] {false, true, false, true}) {
+                double warmUp = 0, first = 0, resolve = 0, connect = 0;
+                for (int r = 0; r < rounds; r++) {
+                    cache = new UrlCache(dir);
+                    cache.setHostResolver(resolver);
+                    long t0 = System.nanoTime();
+                    if (warm) {
+                        cache.warmUp(hosts, 1);
+                    }
+                    long t1 = System.nanoTime();
+                    for (String url : urls) {
+                        cache.getObject(url);
+                    }
+                    long t2 = System.nanoTime();
+                    HostMetrics totals = cache.getMetrics().getTotals();
+                    warmUp += (t1 - t0) / 1e6;
+                    first += (t2 - t1) / 1e6 / hosts;
+                    resolve += totals.getResolveTimes().getMean();
+                    connect += totals.getConnectTimes().getMean();
+                    cache.close();
+                }
+                console.printf("%-8s %12.1f %14.2f %14.1f %14.1f%n", warm ? "warmed" : "cold", warmUp / rounds,
+                        first / rounds, resolve / rounds, connect / rounds);
+            }
+        } finally {
+            System.setOut(console);
+            delete(dir);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
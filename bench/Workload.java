@@ -0,0 +1,260 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Workload Class
+ *
+ * A trace of requests for LoadGenerator and CacheSimulator: a sequence of
+ * object numbers, and the size of each object. A synthetic trace draws its
+ * requests from a Zipf distribution, object 0 being the most popular; a
+ * recorded one is read from a text file with a request per line, a key
+ * (a url or any other name for the object) optionally followed by the
+ * object's size in bytes. Objects without a recorded size get one drawn
+ * from a log-normal distribution around a median, the same for the same
+ * seed, as real object sizes are heavy-tailed.
+ *
+ * @author James MacIsaac
+ */
+public class Workload {
+
+    private static final int MAX_SIZE = 64 << 20; // largest object size drawn
+
+    private final int[] requests; // object number of each request
+    private final int[] sizes; // bytes of each object
+    private final String[] names; // key of each object in a recorded trace, null for a synthetic one
+
+    private Workload(int[] requests, int[] sizes, String[] names) {
+        this.requests = requests;
+        this.sizes = sizes;
+        this.names = names;
+    }
+
+    /**
+     * Splits "name=value" arguments
+     *
+     * @param args
+     * @param known the names accepted
+     * @return name -> value
+     */
+    public static Map<String, String> options(String[] args, String... known) {
+        HashMap<String, String> options = new HashMap<String, String>();
+        List<String> names = Arrays.asList(known);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 1 || !names.contains(arg.substring(0, eq))) {
+                throw new IllegalArgumentException("Expected one of " + names + " as name=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Makes the trace the options describe: the recorded one in trace=FILE,
+     * or else a synthetic one of requests= requests over objects= objects
+     * with Zipf exponent alpha=. Sizes are drawn around size= bytes with
+     * spread=, from seed=.
+     *
+     * @param options see options()
+     * @param requests default number of requests
+     * @return Workload
+     * @throws IOException if the trace cannot be read
+     */
+    public static Workload fromOptions(Map<String, String> options, int requests) throws IOException {
+        int size = (int) parseBytes(options.getOrDefault("size", "16k"));
+        double spread = Double.parseDouble(options.getOrDefault("spread", "1"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        if (options.containsKey("trace")) {
+            return read(new File(options.get("trace")), size, spread, seed);
+        }
+        return zipf(Integer.parseInt(options.getOrDefault("objects", "10000")),
+                (int) parseBytes(options.getOrDefault("requests", String.valueOf(requests))),
+                Double.parseDouble(options.getOrDefault("alpha", "0.8")), size, spread, seed);
+    }
+
+    /**
+     * @param s a number with an optional k, m or g suffix (powers of 1024)
+     * @return the number
+     */
+    public static long parseBytes(String s) {
+        s = s.trim().toLowerCase();
+        int shift = s.endsWith("k") ? 10 : s.endsWith("m") ? 20 : s.endsWith("g") ? 30 : 0;
+        return Long.parseLong(shift == 0 ? s : s.substring(0, s.length() - 1)) << shift;
+    }
+
+    /**
+     * Draws a synthetic trace
+     *
+     * @param objects distinct objects
+     * @param requests requests in the trace
+     * @param alpha Zipf exponent; 0 is uniform, about 0.6 to 1 is typical
+     * of web caches
+     * @param medianSize median object size in bytes
+     * @param spread standard deviation of the log of the size, 0 for every
+     * object at the median
+     * @param seed
+     * @return Workload
+     */
+    public static Workload zipf(int objects, int requests, double alpha, int medianSize, double spread, long seed) {
+        if (objects < 1 || requests < 0 || alpha < 0) {
+            throw new IllegalArgumentException("need at least 1 object and a non-negative alpha");
+        }
+        double[] cdf = new double[objects];
+        double sum = 0;
+        for (int i = 0; i < objects; i++) {
+            sum += 1 / Math.pow(i + 1, alpha);
+            cdf[i] = sum;
+        }
+        Random random = new Random(seed);
+        int[] trace = new int[requests];
+        for (int r = 0; r < requests; r++) {
+            int i = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            trace[r] = Math.min(i < 0 ? -i - 1 : i, objects - 1);
+        }
+        return new Workload(trace, drawSizes(objects, medianSize, spread, seed), null);
+    }
+
+    /**
+     * Reads a recorded trace
+     *
+     * @param file a request per line, "key [size]"; blank lines and lines
+     * starting with '#' are skipped
+     * @param medianSize median size drawn for objects without one
+     * @param spread see zipf
+     * @param seed
+     * @return Workload
+     * @throws IOException
+     */
+    public static Workload read(File file, int medianSize, double spread, long seed) throws IOException {
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        int[] trace = new int[1024];
+        int n = 0;
+        int[] recorded = new int[1024]; // size per object, -1 if none
+        String[] keys = new String[1024];
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] f = line.split("\\s+");
+                Integer id = ids.get(f[0]);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(f[0], id);
+                    if (id == recorded.length) {
+                        recorded = Arrays.copyOf(recorded, id * 2);
+                        keys = Arrays.copyOf(keys, id * 2);
+                    }
+                    recorded[id] = -1;
+                    keys[id] = f[0];
+                }
+                if (f.length > 1 && recorded[id] < 0) {
+                    try {
+                        recorded[id] = (int) Math.min(Long.parseLong(f[1]), Integer.MAX_VALUE);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Bad size on line " + (n + 1) + ": " + f[1]);
+                    }
+                }
+                if (n == trace.length) {
+                    trace = Arrays.copyOf(trace, n * 2);
+                }
+                trace[n++] = id;
+            }
+        }
+        int objects = ids.size();
+        int[] sizes = drawSizes(objects, medianSize, spread, seed);
+        for (int i = 0; i < objects; i++) {
+            if (recorded[i] >= 0) {
+                sizes[i] = recorded[i];
+            }
+        }
+        return new Workload(Arrays.copyOf(trace, n), sizes, Arrays.copyOf(keys, objects));
+    }
+
+    /**
+     * Writes the trace in the form read() reads, with every object's size
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            for (int o : requests) {
+                out.println((names != null ? names[o] : "obj-" + o) + " " + sizes[o]);
+            }
+        }
+    }
+
+    /**
+     * @return requests in the trace
+     */
+    public int getRequests() {
+        return requests.length;
+    }
+
+    /**
+     * @param i
+     * @return object number of request i
+     */
+    public int getObject(int i) {
+        return requests[i];
+    }
+
+    /**
+     * @return distinct objects
+     */
+    public int getObjects() {
+        return sizes.length;
+    }
+
+    /**
+     * @param object
+     * @return size of the object in bytes
+     */
+    public int getSize(int object) {
+        return sizes[object];
+    }
+
+    /**
+     * @return bytes of all the distinct objects, the most a cache could
+     * hold of this trace
+     */
+    public long getObjectBytes() {
+        long total = 0;
+        for (int s : sizes) {
+            total += s;
+        }
+        return total;
+    }
+
+    /**
+     * @return bytes of all the requests
+     */
+    public long getRequestBytes() {
+        long total = 0;
+        for (int o : requests) {
+            total += sizes[o];
+        }
+        return total;
+    }
+
+    private static int[] drawSizes(int objects, int median, double spread, long seed) {
+        Random random = new Random(seed ^ 0x5DEECE66DL);
+        int[] sizes = new int[objects];
+        for (int i = 0; i < objects; i++) {
+            double s = median * Math.exp(spread * random.nextGaussian());
+            sizes[i] = (int) Math.max(1, Math.min(MAX_SIZE, Math.round(s)));
+        }
+        return sizes;
+    }
+}
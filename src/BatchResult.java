@@ -0,0 +1,58 @@
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BatchResult Class
+ *
+ * Outcome of UrlCache.getObjects(): the status of every url that was fetched
+ * and the exception of every url that failed. One failing url does not stop
+ * the others.
+ *
+ * @author James MacIsaac
+ */
+public class BatchResult {
+
+    private final Map<String, FetchStatus> results;
+    private final Map<String, UrlCacheException> failures;
+
+    BatchResult() {
+        results = new LinkedHashMap<String, FetchStatus>();
+        failures = new LinkedHashMap<String, UrlCacheException>();
+    }
+
+    synchronized void succeeded(String url, FetchStatus status) {
+        results.put(url, status);
+    }
+
+    synchronized void failed(String url, UrlCacheException e) {
+        failures.put(url, e);
+    }
+
+    /**
+     * @return url -> status for every url fetched successfully
+     */
+    public synchronized Map<String, FetchStatus> getResults() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, FetchStatus>(results));
+    }
+
+    /**
+     * @return url -> exception for every url that could not be fetched
+     */
+    public synchronized Map<String, UrlCacheException> getFailures() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, UrlCacheException>(failures));
+    }
+
+    /**
+     * @return true if every url was fetched
+     */
+    public synchronized boolean isSuccess() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BatchResult[fetched=" + results.size() + ", failed=" + failures.size() + "]";
+    }
+}
@@ -0,0 +1,561 @@
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * BlobStore Class
+ *
+ * Content-addressed storage for the bodies of cached objects. Each body is
+ * kept once, in Blobs/XX/HASH where HASH is the SHA-256 of the stored bytes
+ * in hex and XX its first two digits, however many urls it was downloaded
+ * under; the catalog maps each url to its blob. A Writer hashes a body as
+ * it streams in. Given the blob the url had before, it compares the body
+ * with it on the way and writes nothing while they match, so a 200 that
+ * resends an unchanged body costs a read instead of a write. A body whose
+ * blob is already stored under another url is dropped once hashed, and
+ * only the catalog entry is added.
+ *
+ * Blobs are reference counted: retain() when a catalog entry starts to
+ * point at a blob and release() when one stops, and a blob nobody points
+ * at is deleted. The counts are not stored; like the disk quota they are
+ * worked out from the catalog the first time a blob is released, so opening
+ * a cache does not read every entry. Changes to the catalog that retain or
+ * release a blob must be made while holding the store's lock, so that
+ * working out the counts never sees half of one, and the catalog's main
+ * lock until they are flushed, so that no other process deletes a blob
+ * between its being added and the catalog pointing at it.
+ * collectGarbage() also removes blobs and temporary files left behind by
+ * a crash.
+ *
+ * The counts only cover the changes this process knows of. Once the
+ * catalog has seen a change made by another process sharing the
+ * directory, a blob whose count drops to nothing is left for
+ * collectGarbage, which counts again from the whole catalog under the main
+ * lock before deleting anything.
+ *
+ * @author James MacIsaac
+ */
+public class BlobStore {
+
+    private static final String ALGORITHM = "SHA-256";
+    private static final int BUFFER = 65536; // bytes compared or copied at a time
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final long TEMP_GRACE = 60 * 60 * 1000; // ms a temporary file is left unwritten before it counts as abandoned
+
+    private final File dir;
+    private final CatalogStore catalog;
+    private final HashMap<String, Integer> counts; // hash -> catalog entries pointing at it
+    private final HashSet<File> writing; // temporary files of Writers not yet added
+    private boolean counted; // counts hold every blob in the catalog
+    private long shared; // bodies dropped as already stored under another url
+    private long sharedBytes;
+    private long unchanged; // bodies that matched the url's blob, so were not written
+    private long unchangedBytes;
+    private long deleted; // blobs deleted as no longer used
+    private long deletedBytes;
+
+    /**
+     * @param dir directory holding the blobs
+     * @param catalog where the references to blobs are recorded
+     */
+    public BlobStore(File dir, CatalogStore catalog) {
+        this.dir = dir;
+        this.catalog = catalog;
+        this.counts = new HashMap<String, Integer>();
+        this.writing = new HashSet<File>();
+    }
+
+    /**
+     * @param hash
+     * @return the file of the blob with that hash, which may not exist
+     */
+    public File file(String hash) {
+        return new File(dir, hash.substring(0, 2) + File.separator + hash);
+    }
+
+    /**
+     * Starts a body
+     *
+     * @author James MacIsaac
+     * @param same the url's current copy, compared with the body as it is
+     * written; null if there is none to compare with
+     * @return Writer
+     */
+    public Writer newWriter(File same) {
+        return new Writer(same);
+    }
+
+    /**
+     * Moves a finished body into the store under its hash, unless a blob
+     * with that hash is already there, in which case the file is deleted.
+     * Must hold the lock and the catalog's main lock, and retain the hash
+     * once the catalog points at it.
+     *
+     * @author James MacIsaac
+     * @param tmp the body, on the same file system as the store
+     * @param hash its hash, from a Writer or from hash(tmp)
+     * @throws IOException
+     */
+    public synchronized void add(File tmp, String hash) throws IOException {
+        File file = file(hash);
+        if (file.isFile() && file.length() == tmp.length()) {
+            shared++;
+            sharedBytes += tmp.length();
+            if (!tmp.delete() && tmp.exists()) {
+                throw new IOException("Could not delete " + tmp);
+            }
+        } else {
+            file.getParentFile().mkdirs();
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        writing.remove(tmp);
+    }
+
+    /**
+     * Records a body that matched the url's blob and so was not written
+     *
+     * @author James MacIsaac
+     * @param bytes size of the body
+     */
+    public synchronized void recordUnchanged(long bytes) {
+        unchanged++;
+        unchangedBytes += bytes;
+    }
+
+    /**
+     * Counts a catalog entry that has started to point at a blob. Must hold
+     * the lock from changing the catalog until this returns.
+     *
+     * @author James MacIsaac
+     * @param hash
+     */
+    public synchronized void retain(String hash) {
+        if (counted && hash != null) {
+            counts.merge(hash, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Uncounts a catalog entry that has stopped pointing at a blob, and
+     * deletes the blob if no entry points at it any more, unless other
+     * processes use the catalog too. Must hold the lock from changing the
+     * catalog until this returns, and the catalog's main lock.
+     *
+     * @author James MacIsaac
+     * @param hash may be null
+     * @throws IOException if the blob could not be deleted
+     */
+    public synchronized void release(String hash) throws IOException {
+        if (hash == null) {
+            return;
+        }
+        if (!counted) {
+            count(); // the catalog already lacks this reference
+        } else {
+            counts.merge(hash, -1, Integer::sum);
+        }
+        Integer n = counts.get(hash);
+        if (n == null || n <= 0) {
+            counts.remove(hash);
+            if (!catalog.isShared()) {
+                delete(file(hash));
+            }
+        }
+    }
+
+    /**
+     * Deletes every blob no catalog entry points at, and every temporary
+     * file no Writer is using, e.g. after a crash between writing a blob and
+     * recording it in the catalog. Holds the catalog's main lock throughout,
+     * after reading other processes' changes. A temporary file written to
+     * in the last hour is kept, since another process may be writing it.
+     *
+     * @author James MacIsaac
+     * @return blobs and temporary files deleted
+     * @throws IOException if a file could not be deleted
+     */
+    public synchronized int collectGarbage() throws IOException {
+        try {
+            catalog.lock();
+        } catch (UrlCacheException e) {
+            throw new IOException(e.getMessage());
+        }
+        try {
+            catalog.refresh();
+            if (!counted || catalog.isShared()) {
+                count();
+            }
+            int n = 0;
+            File[] subdirs = dir.listFiles();
+            if (subdirs == null) {
+                return 0;
+            }
+            long abandoned = System.currentTimeMillis() - TEMP_GRACE;
+            for (File sub : subdirs) {
+                if (sub.isFile()) {
+                    if (!writing.contains(sub) && sub.lastModified() < abandoned) { // a temporary file
+                        delete(sub);
+                        n++;
+                    }
+                    continue;
+                }
+                File[] blobs = sub.listFiles();
+                for (File blob : blobs == null ? new File[0] : blobs) {
+                    if (!counts.containsKey(blob.getName())) {
+                        delete(blob);
+                        n++;
+                    }
+                }
+                sub.delete(); // only if now empty
+            }
+            return n;
+        } catch (UrlCacheException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            catalog.unlock();
+        }
+    }
+
+    /**
+     * Hashes a file the way a Writer hashes the bytes written to it, for
+     * bodies not written through one
+     *
+     * @author James MacIsaac
+     * @param file
+     * @return the hash in hex
+     * @throws IOException
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buf = new byte[BUFFER];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                digest.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * @return blobs with more than one url pointing at them times the
+     * extra urls, in bytes: what storing a copy per url would add. Works
+     * out the counts if they are not known yet.
+     */
+    public synchronized long getSavedBytes() {
+        if (!counted) {
+            count();
+        }
+        long saved = 0;
+        for (Map.Entry<String, Integer> me : counts.entrySet()) {
+            if (me.getValue() > 1) {
+                saved += (me.getValue() - 1) * file(me.getKey()).length();
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * @return bodies not kept because an identical one was already stored
+     */
+    public synchronized long getShared() {
+        return shared;
+    }
+
+    public synchronized long getSharedBytes() {
+        return sharedBytes;
+    }
+
+    /**
+     * @return bodies not written because they matched the url's blob
+     */
+    public synchronized long getUnchanged() {
+        return unchanged;
+    }
+
+    public synchronized long getUnchangedBytes() {
+        return unchangedBytes;
+    }
+
+    /**
+     * @return blobs deleted because no url pointed at them any more
+     */
+    public synchronized long getDeleted() {
+        return deleted;
+    }
+
+    public synchronized long getDeletedBytes() {
+        return deletedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BlobStore[shared=" + shared + "/" + sharedBytes + "B, unchanged=" + unchanged + "/"
+                + unchangedBytes + "B, deleted=" + deleted + "/" + deletedBytes + "B]";
+    }
+
+    /**
+     * Works out the counts from the catalog. Must hold the lock.
+     */
+    private void count() {
+        counts.clear();
+        catalog.forEach((url, e) -> {
+            if (e.getBlob() != null) {
+                counts.merge(e.getBlob(), 1, Integer::sum);
+            }
+        });
+        counted = true;
+    }
+
+    /**
+     * Deletes a file, counting it if it was a blob. Must hold the lock.
+     */
+    private void delete(File file) throws IOException {
+        long size = file.length();
+        if (file.delete()) {
+            if (!file.getName().endsWith(".part")) {
+                deleted++;
+                deletedBytes += size;
+            }
+        } else if (file.exists()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e); // every JVM has it
+        }
+    }
+
+    private static String hex(byte[] b) {
+        char[] c = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            c[2 * i] = HEX[(b[i] >> 4) & 0xf];
+            c[2 * i + 1] = HEX[b[i] & 0xf];
+        }
+        return new String(c);
+    }
+
+    /**
+     * Takes one body, hashing it as it is written. While the body matches
+     * the url's current copy nothing is written; at the first difference
+     * the matching part is copied from the copy into a temporary file and
+     * the rest of the body follows it there. A body that matched to the end
+     * is isUnchanged() and has no file.
+     */
+    public final class Writer extends OutputStream {
+
+        private final MessageDigest digest;
+        private InputStream same; // the current copy being compared with, null once the body differs
+        private final File sameFile;
+        private final byte[] compare; // bytes read from same
+        private File tmp;
+        private FileChannel out;
+        private long size; // bytes written so far
+        private String hash; // set by finish()
+
+        private Writer(File same) {
+            this.digest = newDigest();
+            this.sameFile = same;
+            this.compare = same == null ? null : new byte[BUFFER];
+            if (same != null) {
+                try {
+                    this.same = new FileInputStream(same);
+                } catch (IOException e) {
+                    this.same = null; // nothing to compare with
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            digest.update(b, off, len);
+            if (same != null) {
+                int matched = 0;
+                while (matched < len) {
+                    int n = same.read(compare, 0, Math.min(compare.length, len - matched));
+                    if (n == -1 || !Arrays.equals(compare, 0, n, b, off + matched, off + matched + n)) {
+                        break;
+                    }
+                    matched += n;
+                }
+                size += matched;
+                if (matched == len) {
+                    return;
+                }
+                diverge();
+                off += matched;
+                len -= matched;
+            } else if (out == null) {
+                diverge(); // nothing to compare with
+            }
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            size += len;
+        }
+
+        /**
+         * Writes the bytes between the buffer's position and limit, as they
+         * come from a socket channel
+         *
+         * @param data
+         * @throws IOException
+         */
+        public void write(ByteBuffer data) throws IOException {
+            if (data.hasArray()) {
+                write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+                return;
+            }
+            byte[] buf = new byte[Math.min(BUFFER, data.remaining())];
+            while (data.hasRemaining()) {
+                int n = Math.min(buf.length, data.remaining());
+                data.get(buf, 0, n);
+                write(buf, 0, n);
+            }
+        }
+
+        /**
+         * Ends the body, which differs from the current copy if it is
+         * shorter
+         *
+         * @author James MacIsaac
+         * @return the hash of the body in hex
+         * @throws IOException
+         */
+        public String finish() throws IOException {
+            if (tmp == null && (same == null || same.read() != -1)) {
+                diverge(); // an empty body, or one shorter than the current copy
+            }
+            closeSame();
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            hash = hex(digest.digest());
+            return hash;
+        }
+
+        /**
+         * Deletes the temporary file of a body that will not be added
+         *
+         * @author James MacIsaac
+         */
+        public void abort() {
+            closeSame();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // deleted below
+                }
+                out = null;
+            }
+            if (tmp != null) {
+                tmp.delete();
+                synchronized (BlobStore.this) {
+                    writing.remove(tmp);
+                }
+            }
+        }
+
+        /**
+         * @return true if the body matched the current copy to the end, so
+         * nothing was written
+         */
+        public boolean isUnchanged() {
+            return tmp == null;
+        }
+
+        /**
+         * @return the temporary file holding the body, or null if it is
+         * unchanged
+         */
+        public File getFile() {
+            return tmp;
+        }
+
+        /**
+         * @return bytes in the body so far
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the hash, once finished
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Starts the temporary file with the part of the body that matched
+         * the current copy
+         */
+        private void diverge() throws IOException {
+            closeSame();
+            dir.mkdirs();
+            tmp = File.createTempFile(".blob.", ".part", dir);
+            synchronized (BlobStore.this) {
+                writing.add(tmp);
+            }
+            out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+            if (size > 0) {
+                FileChannel in = FileChannel.open(sameFile.toPath(), StandardOpenOption.READ);
+                try {
+                    long pos = 0;
+                    while (pos < size) {
+                        pos += in.transferTo(pos, size - pos, out);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        private void closeSame() {
+            if (same != null) {
+                try {
+                    same.close();
+                } catch (IOException e) {
+                    // only read from
+                }
+                same = null;
+            }
+        }
+    }
+}
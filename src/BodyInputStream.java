@@ -0,0 +1,228 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * BodyInputStream Class
+ *
+ * Reads exactly one HTTP message body from a connection's input stream and
+ * reports end of stream as soon as the message ends, so the connection can
+ * be reused for the next request. Bodies can be framed by Content-Length,
+ * by chunked transfer coding (trailers are read and kept), or delimited by
+ * the server closing the connection.
+ *
+ * Closing this stream does not close the underlying connection stream.
+ *
+ * @author James MacIsaac
+ */
+public class BodyInputStream extends InputStream {
+
+    private static final int MAX_LINE = 8192; // longest chunk-size/trailer line accepted
+
+    private final InputStream in;
+    private final boolean chunked;
+    private final boolean closeDelimited;
+    private long remaining; // bytes left in the body (or in the current chunk)
+    private long bytesRead; // body bytes returned so far
+    private boolean complete; // the end of the message has been reached
+    private ArrayList<String> trailers;
+
+    private BodyInputStream(InputStream in, long length, boolean chunked, boolean closeDelimited) {
+        this.in = in;
+        this.remaining = length;
+        this.chunked = chunked;
+        this.closeDelimited = closeDelimited;
+        this.complete = !chunked && !closeDelimited && length == 0;
+        this.trailers = new ArrayList<String>();
+    }
+
+    /**
+     * @param in connection stream positioned at the start of the body
+     * @param length value of the Content-Length header
+     * @return a stream that ends after length bytes
+     * @throws IllegalArgumentException if length is negative
+     */
+    public static BodyInputStream withLength(InputStream in, long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length must not be negative");
+        }
+        return new BodyInputStream(in, length, false, false);
+    }
+
+    /**
+     * @param in connection stream positioned at the start of the body
+     * @return a stream that decodes the chunked transfer coding
+     */
+    public static BodyInputStream chunked(InputStream in) {
+        return new BodyInputStream(in, 0, true, false);
+    }
+
+    /**
+     * @param in connection stream positioned at the start of the body
+     * @return a stream that ends when the server closes the connection
+     */
+    public static BodyInputStream untilClose(InputStream in) {
+        return new BodyInputStream(in, 0, false, true);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (complete) {
+            return -1;
+        }
+        if (closeDelimited) {
+            int n = in.read(b, off, len);
+            if (n == -1) {
+                complete = true;
+            } else {
+                bytesRead += n;
+            }
+            return n;
+        }
+        if (chunked && remaining == 0) {
+            nextChunk();
+            if (complete) {
+                return -1;
+            }
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) {
+            throw new IOException("Connection closed before end of body");
+        }
+        remaining -= n;
+        bytesRead += n;
+        if (remaining == 0) {
+            if (chunked) {
+                readCrlf();
+            } else {
+                complete = true;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (complete) {
+            return 0;
+        }
+        int n = in.available();
+        return closeDelimited ? n : (int) Math.min(n, remaining);
+    }
+
+    /**
+     * @return body bytes read so far, not counting chunk framing
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Skips whatever is left of the body so the connection is positioned at
+     * the next response. Only sensible for framed bodies.
+     *
+     * @author James MacIsaac
+     * @throws IOException
+     */
+    public void drain() throws IOException {
+        byte[] buf = new byte[4096];
+        while (read(buf, 0, buf.length) != -1) {
+            // discard
+        }
+    }
+
+    /**
+     * Does not close the connection stream; the connection is handed back to
+     * the pool (or closed) by its owner.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return true once every byte of the body has been read
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return true if the body ends only when the server closes the
+     * connection, which makes the connection unusable afterwards
+     */
+    public boolean isCloseDelimited() {
+        return closeDelimited;
+    }
+
+    /**
+     * @return trailer fields sent after the last chunk, if any
+     */
+    public String[] getTrailers() {
+        return trailers.toArray(new String[trailers.size()]);
+    }
+
+    /**
+     * Reads the next chunk-size line. A size of zero ends the body, after
+     * which the trailer section is read up to its terminating empty line.
+     */
+    private void nextChunk() throws IOException {
+        String line = readLine();
+        int ext = line.indexOf(';'); // ignore chunk extensions
+        if (ext != -1) {
+            line = line.substring(0, ext);
+        }
+        try {
+            remaining = Long.parseLong(line.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad chunk size: " + line);
+        }
+        if (remaining < 0) {
+            throw new IOException("Bad chunk size: " + line);
+        }
+        if (remaining == 0) {
+            while ((line = readLine()).length() > 0) {
+                trailers.add(line);
+            }
+            complete = true;
+        }
+    }
+
+    private void readCrlf() throws IOException {
+        if (readLine().length() != 0) {
+            throw new IOException("Missing CRLF after chunk data");
+        }
+    }
+
+    /**
+     * Reads a line terminated by LF (the CR before it is dropped)
+     */
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new IOException("Connection closed inside chunked body");
+            }
+            if (sb.length() >= MAX_LINE) {
+                throw new IOException("Chunk header line too long");
+            }
+            sb.append((char) c);
+        }
+        int len = sb.length();
+        if (len > 0 && sb.charAt(len - 1) == '\r') {
+            sb.setLength(len - 1);
+        }
+        return sb.toString();
+    }
+}
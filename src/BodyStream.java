@@ -0,0 +1,208 @@
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Flow;
+
+/**
+ * BodyStream Class
+ *
+ * The subscription behind one subscriber of UrlCache.streamObject. A single
+ * thread fetches or reads the object and hands it on in chunks, each a
+ * ByteBuffer of its own, only as far as the subscriber has asked for:
+ * while there is no demand the thread waits, so a body being downloaded is
+ * not read from the socket and TCP flow control slows the server down.
+ *
+ * A body arriving from the server is teed: the stream returned by tee
+ * gives the bytes to the cache as they are read and hands the same bytes
+ * to the subscriber. Cancelling only stops the chunks; the download
+ * carries on into the cache, since other requests may be waiting for it.
+ *
+ * request and cancel may be called from any thread; every signal to the
+ * subscriber after onSubscribe comes from the thread doing the work.
+ *
+ * @author James MacIsaac
+ */
+public final class BodyStream implements Flow.Subscription {
+
+    private static final int CHUNK = 65536; // bytes per chunk read from a cached copy
+
+    private final Flow.Subscriber<? super ByteBuffer> subscriber;
+    private long demand; // chunks asked for and not yet sent
+    private boolean cancelled; // the subscriber wants no more signals
+    private IllegalArgumentException badRequest; // a request(n) with n <= 0, to be signalled
+    private boolean done; // onComplete or onError has been sent
+    private volatile boolean teed; // the body is being handed on as it arrives
+    private volatile long firstByte; // nanoTime the first chunk was sent, 0 if none yet
+
+    BodyStream(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        this.subscriber = subscriber;
+    }
+
+    @Override
+    public synchronized void request(long n) {
+        if (n <= 0) {
+            if (badRequest == null) {
+                badRequest = new IllegalArgumentException("request must be positive, was " + n);
+            }
+        } else {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n; // unbounded from Long.MAX_VALUE on
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * @return true if the body has been handed on as it arrived, so it must
+     * not be read again from the cache
+     */
+    boolean isTeed() {
+        return teed;
+    }
+
+    /**
+     * @return nanoTime the first chunk was sent to the subscriber, 0 if none
+     * has been
+     */
+    public long getFirstByteTime() {
+        return firstByte;
+    }
+
+    /**
+     * Wraps a body being read into the cache, so that what is read is sent
+     * to the subscriber too. Reading blocks while the subscriber has no
+     * demand, and goes on at full speed once it has cancelled.
+     *
+     * @param body
+     * @return InputStream
+     */
+    InputStream tee(InputStream body) {
+        teed = true;
+        return new FilterInputStream(body) {
+            private boolean live = true; // false once the subscriber has gone
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (live && !awaitDemand()) {
+                    live = false;
+                }
+                int n = in.read(b, off, len);
+                if (live && n > 0) {
+                    live = send(b, off, n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Sends the whole of a stream to the subscriber, a chunk per request,
+     * stopping early if it cancels
+     *
+     * @param in
+     * @throws IOException
+     */
+    void publish(InputStream in) throws IOException {
+        byte[] buf = new byte[CHUNK];
+        while (awaitDemand()) {
+            int n = in.read(buf);
+            if (n == -1 || !send(buf, 0, n)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ends the stream with onComplete, or with onError if the subscriber
+     * made a bad request
+     */
+    void complete() {
+        IllegalArgumentException bad;
+        synchronized (this) {
+            if (done || cancelled) {
+                return;
+            }
+            done = true;
+            bad = badRequest;
+        }
+        if (bad != null) {
+            subscriber.onError(bad);
+        } else {
+            subscriber.onComplete();
+        }
+    }
+
+    /**
+     * Ends the stream with onError
+     *
+     * @param error
+     */
+    void fail(Throwable error) {
+        synchronized (this) {
+            if (done || cancelled) {
+                return;
+            }
+            done = true;
+        }
+        subscriber.onError(badRequest != null ? badRequest : error);
+    }
+
+    /**
+     * Waits until the subscriber wants a chunk
+     *
+     * @return false if it has cancelled or made a bad request, in which case
+     * nothing more is sent but complete
+     * @throws InterruptedIOException
+     */
+    private synchronized boolean awaitDemand() throws InterruptedIOException {
+        while (demand == 0 && !cancelled && badRequest == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the subscriber");
+            }
+        }
+        return !cancelled && badRequest == null;
+    }
+
+    /**
+     * Sends one chunk, which the caller has waited for demand for
+     *
+     * @return false if the subscriber has gone
+     */
+    private boolean send(byte[] b, int off, int len) {
+        synchronized (this) {
+            if (cancelled || badRequest != null) {
+                return false;
+            }
+            if (demand != Long.MAX_VALUE) {
+                demand--;
+            }
+        }
+        if (firstByte == 0) {
+            firstByte = System.nanoTime();
+        }
+        try {
+            subscriber.onNext(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+        } catch (RuntimeException e) {
+            cancel(); // a subscriber that throws is treated as having cancelled
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,84 @@
+
+/**
+ * CacheControl Class
+ *
+ * The directives of a response's Cache-Control header that matter to a
+ * private cache (RFC 7234 section 5.2.2): no-store, no-cache and max-age.
+ * A response with no Cache-Control but "Pragma: no-cache" is treated as
+ * no-cache, as HTTP/1.0 servers intend.
+ *
+ * @author James MacIsaac
+ */
+public final class CacheControl {
+
+    private final boolean noStore;
+    private final boolean noCache;
+    private final long maxAge; // seconds, -1 if not given
+
+    private CacheControl(boolean noStore, boolean noCache, long maxAge) {
+        this.noStore = noStore;
+        this.noCache = noCache;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Parses the header values of a response
+     *
+     * @author James MacIsaac
+     * @param cacheControl values of the Cache-Control fields, joined with
+     * commas if there are several, may be null
+     * @param pragma values of the Pragma fields, joined the same way, may be
+     * null
+     * @return CacheControl
+     */
+    public static CacheControl parse(String cacheControl, String pragma) {
+        boolean noStore = false, noCache = false;
+        long maxAge = -1;
+        if (cacheControl == null) {
+            noCache = pragma != null && pragma.toLowerCase().contains("no-cache");
+            return new CacheControl(false, noCache, -1);
+        }
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            int eq = directive.indexOf('=');
+            String name = (eq == -1 ? directive : directive.substring(0, eq)).trim().toLowerCase();
+            if (name.equals("no-store")) {
+                noStore = true;
+            } else if (name.equals("no-cache")) {
+                noCache = true; // a field list still forbids reuse without revalidation
+            } else if (name.equals("max-age") && eq != -1) {
+                String value = directive.substring(eq + 1).trim();
+                if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                try {
+                    maxAge = Math.max(0, Long.parseLong(value));
+                } catch (NumberFormatException e) {
+                    maxAge = 0; // an invalid max-age makes the response stale
+                }
+            }
+        }
+        return new CacheControl(noStore, noCache, maxAge);
+    }
+
+    /**
+     * @return true if the response must not be stored
+     */
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    /**
+     * @return true if the response must be revalidated before every use
+     */
+    public boolean isNoCache() {
+        return noCache;
+    }
+
+    /**
+     * @return the max-age in seconds, or -1 if the header did not give one
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+}
@@ -0,0 +1,305 @@
+
+import java.util.regex.Pattern;
+
+/**
+ * CatalogEntry Class
+ *
+ * What the catalog knows about one cached object: the Last-Modified time
+ * the server sent with it (in ms since epoch, parsed once on arrival), the
+ * size of its file, when it was last used and, for an object stored
+ * compressed, its content coding and decoded size.
+ * For HTTP caching it also keeps the ETag, the time until which the copy is
+ * fresh (from Cache-Control max-age or Expires) and whether the server said
+ * no-store, and how many times the object has been used. The body itself
+ * is kept in the BlobStore under the blob hash recorded here; entries
+ * written before there was a blob store have none and the body is in a
+ * file of its own under Files. Entries are immutable; a change makes a new
+ * entry.
+ *
+ * In the catalog journal an entry is written after the url as
+ * LASTMODIFIED(*%*)size=N(*%*)atime=N, followed by (*%*)enc=CODING(*%*)length=N
+ * for a compressed object and by etag=, fresh=, nostore=, hits= and blob=
+ * fields when they are set. LASTMODIFIED is in ms since epoch, or empty if the
+ * server sent none; older catalogs hold the header value itself, which is
+ * parsed when read. Lines from the oldest catalogs hold only the
+ * Last-Modified time; the other fields then read as unknown (-1/0), the
+ * object as uncompressed and the copy as needing revalidation.
+ *
+ * @author James MacIsaac
+ */
+public final class CatalogEntry {
+
+    static final String SEPARATOR = "(*%*)"; // field separator in catalog lines
+
+    private final long lastModified; // ms since epoch, -1 if the server sent none
+    private final long size; // bytes in the cache file, -1 if unknown
+    private final long lastAccess; // ms since epoch, 0 if unknown
+    private final String encoding; // content coding of the file, null if none
+    private final long length; // bytes of the object decoded, -1 if unknown
+    private final String etag; // entity tag as sent by the server, may be null
+    private final long freshUntil; // ms since epoch, 0 if it must be revalidated
+    private final boolean noStore; // server sent Cache-Control: no-store
+    private final long hits; // times used, 0 if unknown
+    private final String blob; // hash of the body in the BlobStore, null if it is in a file under Files
+
+    /**
+     * @param lastModified Last-Modified time in ms since epoch, or -1 if none
+     * @param size bytes in the cache file, -1 if unknown
+     * @param lastAccess time of last use in ms since epoch
+     */
+    public CatalogEntry(long lastModified, long size, long lastAccess) {
+        this(lastModified, size, lastAccess, null, size);
+    }
+
+    /**
+     * @param lastModified Last-Modified time in ms since epoch, or -1 if none
+     * @param size bytes in the cache file, -1 if unknown
+     * @param lastAccess time of last use in ms since epoch
+     * @param encoding content coding the file is stored in, null if none
+     * @param length bytes of the object decoded, -1 if unknown
+     */
+    public CatalogEntry(long lastModified, long size, long lastAccess, String encoding, long length) {
+        this(lastModified, size, lastAccess, encoding, length, null, 0, false, 0, null);
+    }
+
+    /**
+     * Constructor taking every field, for CatalogIndex
+     */
+    CatalogEntry(long lastModified, long size, long lastAccess, String encoding, long length,
+            String etag, long freshUntil, boolean noStore, long hits, String blob) {
+        this.lastModified = lastModified;
+        this.size = size;
+        this.lastAccess = lastAccess;
+        this.encoding = encoding;
+        this.length = encoding == null ? size : length;
+        this.etag = etag;
+        this.freshUntil = noStore ? 0 : freshUntil;
+        this.noStore = noStore;
+        this.hits = hits;
+        this.blob = blob;
+    }
+
+    /**
+     * @return the Last-Modified time in ms since epoch, or -1 if the server
+     * sent none
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return bytes in the cache file, -1 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return time of last use in ms since epoch, 0 if unknown
+     */
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * @return the content coding the file is stored in, or null if it holds
+     * the object as is
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return bytes of the object decoded, -1 if unknown
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the ETag header value, or null if the server sent none
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return time in ms since epoch until which the copy may be used
+     * without asking the server, 0 if it must always be revalidated
+     */
+    public long getFreshUntil() {
+        return freshUntil;
+    }
+
+    /**
+     * @return true if the server said the object must not be stored, so the
+     * copy is never used without fetching it again in full
+     */
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    /**
+     * @return times the object has been used, 0 if unknown
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return hash of the body in the BlobStore, or null if the body is in
+     * a file of its own under Files
+     */
+    public String getBlob() {
+        return blob;
+    }
+
+    /**
+     * @param now time in ms since epoch
+     * @return true if the copy may be used at that time without asking the
+     * server
+     */
+    public boolean isFresh(long now) {
+        return now < freshUntil;
+    }
+
+    /**
+     * @param time time of use in ms since epoch
+     * @return a copy of this entry last used at the given time
+     */
+    public CatalogEntry withLastAccess(long time) {
+        return new CatalogEntry(lastModified, size, time, encoding, length, etag, freshUntil, noStore, hits, blob);
+    }
+
+    /**
+     * @param time time of use in ms since epoch
+     * @return a copy of this entry last used at the given time, with one
+     * more hit
+     */
+    public CatalogEntry withUse(long time) {
+        return new CatalogEntry(lastModified, size, time, encoding, length, etag, freshUntil, noStore, hits + 1, blob);
+    }
+
+    /**
+     * @param bytes size of the cache file
+     * @return a copy of this entry with the given size
+     */
+    public CatalogEntry withSize(long bytes) {
+        return new CatalogEntry(lastModified, bytes, lastAccess, encoding, encoding == null ? bytes : length,
+                etag, freshUntil, noStore, hits, blob);
+    }
+
+    /**
+     * @param tag ETag header value, or null if none
+     * @param until time in ms since epoch until which the copy is fresh
+     * @param store false if the server said no-store
+     * @return a copy of this entry with the given caching information
+     */
+    public CatalogEntry withFreshness(String tag, long until, boolean store) {
+        return new CatalogEntry(lastModified, size, lastAccess, encoding, length, tag, until, !store, hits, blob);
+    }
+
+    /**
+     * @param hash hash of the body in the BlobStore
+     * @return a copy of this entry whose body is that blob
+     */
+    public CatalogEntry withBlob(String hash) {
+        return new CatalogEntry(lastModified, size, lastAccess, encoding, length, etag, freshUntil, noStore, hits, hash);
+    }
+
+    /**
+     * Reads an entry from the part of a catalog line after the url
+     *
+     * @author James MacIsaac
+     * @param text
+     * @return CatalogEntry
+     */
+    public static CatalogEntry parse(String text) {
+        String[] fields = text.split(Pattern.quote(SEPARATOR));
+        long lm = -1;
+        if (!fields[0].isEmpty()) {
+            try {
+                lm = Long.parseLong(fields[0]);
+            } catch (NumberFormatException e) {
+                lm = HttpDate.parse(fields[0]); // written by an older version
+            }
+        }
+        long size = -1, atime = 0, length = -1, fresh = 0, hits = 0;
+        String enc = null, etag = null, blob = null;
+        boolean noStore = false;
+        for (int i = 1; i < fields.length; i++) {
+            int eq = fields[i].indexOf('=');
+            if (eq == -1) {
+                continue;
+            }
+            String name = fields[i].substring(0, eq), value = fields[i].substring(eq + 1);
+            try {
+                if (name.equals("size")) {
+                    size = Long.parseLong(value);
+                } else if (name.equals("atime")) {
+                    atime = Long.parseLong(value);
+                } else if (name.equals("enc")) {
+                    enc = value.isEmpty() ? null : value;
+                } else if (name.equals("length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equals("etag")) {
+                    etag = value.isEmpty() ? null : value;
+                } else if (name.equals("fresh")) {
+                    fresh = Long.parseLong(value);
+                } else if (name.equals("nostore")) {
+                    noStore = value.equals("1");
+                } else if (name.equals("hits")) {
+                    hits = Long.parseLong(value);
+                } else if (name.equals("blob")) {
+                    blob = value.isEmpty() ? null : value;
+                } // fields from newer versions are ignored
+            } catch (NumberFormatException e) {
+                // leave the field unknown
+            }
+        }
+        return new CatalogEntry(lm, size, atime, enc, length, etag, fresh, noStore, hits, blob);
+    }
+
+    /**
+     * @return the entry as written after the url in a catalog line
+     */
+    public String toCatalogString() {
+        return (lastModified < 0 ? "" : String.valueOf(lastModified))
+                + SEPARATOR + "size=" + size
+                + SEPARATOR + "atime=" + lastAccess
+                + (encoding == null ? "" : SEPARATOR + "enc=" + encoding + SEPARATOR + "length=" + length)
+                + (etag == null ? "" : SEPARATOR + "etag=" + etag)
+                + (freshUntil == 0 ? "" : SEPARATOR + "fresh=" + freshUntil)
+                + (noStore ? SEPARATOR + "nostore=1" : "")
+                + (hits == 0 ? "" : SEPARATOR + "hits=" + hits)
+                + (blob == null ? "" : SEPARATOR + "blob=" + blob);
+    }
+
+    /**
+     * Two entries are equal if they describe the same version of the object
+     * with the same caching information; the last access time and hit count
+     * are not compared
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CatalogEntry)) {
+            return false;
+        }
+        CatalogEntry e = (CatalogEntry) o;
+        return size == e.size && length == e.length && lastModified == e.lastModified
+                && (encoding == null ? e.encoding == null : encoding.equals(e.encoding))
+                && (etag == null ? e.etag == null : etag.equals(e.etag))
+                && freshUntil == e.freshUntil && noStore == e.noStore
+                && (blob == null ? e.blob == null : blob.equals(e.blob));
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(lastModified) * 31 + Long.hashCode(size);
+    }
+
+    @Override
+    public String toString() {
+        return toCatalogString();
+    }
+}
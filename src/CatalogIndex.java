@@ -0,0 +1,352 @@
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * CatalogIndex Class
+ *
+ * A catalog snapshot in a binary file that is memory-mapped and read in
+ * place, so opening it costs the same however many entries it holds and
+ * only the pages actually looked at are read from disk. Entries are found
+ * through an open-addressing hash table (linear probing, at most half
+ * full) keyed by String.hashCode() of the url, whose slots point at the
+ * entry records.
+ *
+ * Layout, big-endian:
+ *
+ * header - magic "UCAT", version, entry count, table capacity (a power of
+ * two), offset of the table
+ * table - capacity slots of (int hash, int record offset), offset 0 for an
+ * empty slot
+ * records - int url length, url (UTF-8), long lastModified, size,
+ * lastAccess, length, freshUntil, hits, byte flags (1 = no-store), then
+ * short length and UTF-8 bytes of the encoding, of the ETag and of the
+ * blob hash (-1 for none); version 1 files, written before the blob store,
+ * have no blob hash and are still read
+ *
+ * Files are written once by write() and never changed, so any number of
+ * threads may read an index at the same time. Offsets are ints, which
+ * limits a snapshot to 2 GB.
+ *
+ * @author James MacIsaac
+ */
+public final class CatalogIndex implements Iterable<Map.Entry<String, CatalogEntry>> {
+
+    private static final int MAGIC = 0x55434154; // "UCAT"
+    private static final int VERSION = 2;
+    private static final int HEADER = 24; // magic, version, count, capacity, table offset, pad
+    private static final int SLOT = 8;
+    private static final int FIXED = 6 * 8 + 1; // record fields after the url, before the strings
+    private static final int NO_STRING = -1;
+
+    private final MappedByteBuffer buf;
+    private final int count;
+    private final int mask; // capacity - 1
+    private final int table; // offset of the table
+    private final int records; // offset of the first record
+    private final int strings; // strings at the end of each record, 2 in version 1
+
+    private CatalogIndex(MappedByteBuffer buf, int version, int count, int capacity, int table) {
+        this.buf = buf;
+        this.strings = version == 1 ? 2 : 3;
+        this.count = count;
+        this.mask = capacity - 1;
+        this.table = table;
+        this.records = table + capacity * SLOT;
+    }
+
+    /**
+     * Maps an index file
+     *
+     * @author James MacIsaac
+     * @param file
+     * @return CatalogIndex
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static CatalogIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            if (ch.size() < HEADER || ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a catalog index: " + file);
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            int count = buf.getInt(8);
+            int capacity = buf.getInt(12);
+            int table = buf.getInt(16);
+            int version = buf.getInt(4);
+            if (buf.getInt(0) != MAGIC || version < 1 || version > VERSION || capacity <= 0
+                    || Integer.bitCount(capacity) != 1 || count < 0 || count > capacity / 2
+                    || table < HEADER || (long) table + (long) capacity * SLOT > buf.capacity()) {
+                throw new IOException("Not a catalog index: " + file);
+            }
+            return new CatalogIndex(buf, version, count, capacity, table);
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+    }
+
+    /**
+     * Writes an index file holding the given entries
+     *
+     * @author James MacIsaac
+     * @param file
+     * @param maxCount at least the number of entries the iterator returns
+     * @param entries url -> entry, urls not repeated
+     * @throws IOException
+     */
+    public static void write(File file, int maxCount, Iterator<Map.Entry<String, CatalogEntry>> entries) throws IOException {
+        if (maxCount > 1 << 29) {
+            throw new IOException("Too many catalog entries");
+        }
+        int capacity = Integer.highestOneBit(Math.max(1, maxCount) * 2 - 1) << 1; // at most half full
+        int[] hashes = new int[capacity];
+        int[] offsets = new int[capacity];
+        long pos = HEADER + (long) capacity * SLOT;
+        FileOutputStream fos = new FileOutputStream(file, false);
+        try {
+            FileChannel ch = fos.getChannel();
+            ch.position(pos);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            int written = 0;
+            while (entries.hasNext()) {
+                Map.Entry<String, CatalogEntry> me = entries.next();
+                if (written == maxCount) {
+                    throw new IOException("More catalog entries than counted");
+                }
+                if (pos > Integer.MAX_VALUE) {
+                    throw new IOException("Catalog index larger than 2 GB");
+                }
+                int hash = me.getKey().hashCode();
+                int i = mix(hash) & (capacity - 1);
+                while (offsets[i] != 0) {
+                    i = (i + 1) & (capacity - 1);
+                }
+                hashes[i] = hash;
+                offsets[i] = (int) pos;
+                pos += writeRecord(out, me.getKey(), me.getValue());
+                written++;
+            }
+            out.flush();
+            ByteBuffer head = ByteBuffer.allocate(HEADER);
+            head.putInt(MAGIC).putInt(VERSION).putInt(written).putInt(capacity).putInt(HEADER).putInt(0);
+            head.flip();
+            ch.write(head, 0);
+            ByteBuffer slots = ByteBuffer.allocate(Math.min(capacity, 8192) * SLOT);
+            long at = HEADER;
+            for (int i = 0; i < capacity; i++) {
+                slots.putInt(hashes[i]).putInt(offsets[i]);
+                if (!slots.hasRemaining() || i == capacity - 1) {
+                    slots.flip();
+                    while (slots.hasRemaining()) {
+                        at += ch.write(slots, at);
+                    }
+                    slots.clear();
+                }
+            }
+            ch.force(false);
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param url catalog key
+     * @return the entry for url, or null if the index does not hold it
+     */
+    public CatalogEntry get(String url) {
+        int rec = find(url);
+        return rec == 0 ? null : readEntry(rec);
+    }
+
+    /**
+     * Reads the Last-Modified time of an entry in place, without building
+     * the entry
+     *
+     * @param url catalog key
+     * @return the time in ms since epoch, -1 if the entry has none, or
+     * Long.MIN_VALUE if the index does not hold url
+     */
+    public long getLastModified(String url) {
+        int rec = find(url);
+        return rec == 0 ? Long.MIN_VALUE : buf.getLong(rec + 4 + buf.getInt(rec));
+    }
+
+    /**
+     * @return the urls and entries in file order, each entry read as it is
+     * reached
+     */
+    @Override
+    public Iterator<Map.Entry<String, CatalogEntry>> iterator() {
+        return new Iterator<Map.Entry<String, CatalogEntry>>() {
+            private int rec = records;
+            private int n;
+
+            @Override
+            public boolean hasNext() {
+                return n < count;
+            }
+
+            @Override
+            public Map.Entry<String, CatalogEntry> next() {
+                if (n == count) {
+                    throw new NoSuchElementException();
+                }
+                String url = readString(rec + 4, buf.getInt(rec));
+                Map.Entry<String, CatalogEntry> me = new AbstractMap.SimpleImmutableEntry<String, CatalogEntry>(url, readEntry(rec));
+                rec = CatalogIndex.this.next(rec);
+                n++;
+                return me;
+            }
+        };
+    }
+
+    /**
+     * Offset of the record for url, or 0 if there is none. Only the cached
+     * hash of url and the bytes of candidate records are looked at; a url
+     * that is not plain ASCII is encoded to compare it.
+     */
+    private int find(String url) {
+        int hash = url.hashCode();
+        int i = mix(hash) & mask;
+        while (true) {
+            int slot = table + i * SLOT;
+            int rec = buf.getInt(slot + 4);
+            if (rec == 0) {
+                return 0;
+            }
+            if (buf.getInt(slot) == hash && keyEquals(rec, url)) {
+                return rec;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(int rec, String url) {
+        int keyLen = buf.getInt(rec);
+        int n = url.length();
+        if (keyLen == n) { // equal lengths: equal if every char is ASCII and matches
+            int p = rec + 4;
+            int i = 0;
+            while (i < n) {
+                char c = url.charAt(i);
+                if (c >= 0x80 || buf.get(p + i) != c) {
+                    break;
+                }
+                i++;
+            }
+            if (i == n) {
+                return true;
+            }
+            if (url.charAt(i) < 0x80) {
+                return false; // an ASCII mismatch
+            }
+        } else if (keyLen < n) {
+            return false; // UTF-8 is never shorter than the char count
+        }
+        return readString(rec + 4, keyLen).equals(url);
+    }
+
+    private CatalogEntry readEntry(int rec) {
+        int p = rec + 4 + buf.getInt(rec);
+        long lastModified = buf.getLong(p);
+        long size = buf.getLong(p + 8);
+        long lastAccess = buf.getLong(p + 16);
+        long length = buf.getLong(p + 24);
+        long freshUntil = buf.getLong(p + 32);
+        long hits = buf.getLong(p + 40);
+        boolean noStore = (buf.get(p + 48) & 1) != 0;
+        p += FIXED;
+        short encLen = buf.getShort(p);
+        String enc = encLen == NO_STRING ? null : readString(p + 2, encLen);
+        p += 2 + Math.max(0, encLen);
+        short etagLen = buf.getShort(p);
+        String etag = etagLen == NO_STRING ? null : readString(p + 2, etagLen);
+        String blob = null;
+        if (strings > 2) {
+            p += 2 + Math.max(0, etagLen);
+            short blobLen = buf.getShort(p);
+            blob = blobLen == NO_STRING ? null : readString(p + 2, blobLen);
+        }
+        return new CatalogEntry(lastModified, size, lastAccess, enc, length, etag, freshUntil, noStore, hits, blob);
+    }
+
+    /**
+     * Offset of the record after the one at rec
+     */
+    private int next(int rec) {
+        int p = rec + 4 + buf.getInt(rec) + FIXED;
+        for (int i = 0; i < strings; i++) {
+            p += 2 + Math.max(0, buf.getShort(p));
+        }
+        return p;
+    }
+
+    private String readString(int p, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = buf.get(p + i);
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return bytes written
+     */
+    private static int writeRecord(DataOutputStream out, String url, CatalogEntry e) throws IOException {
+        byte[] key = url.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeLong(e.getLastModified());
+        out.writeLong(e.getSize());
+        out.writeLong(e.getLastAccess());
+        out.writeLong(e.getLength());
+        out.writeLong(e.getFreshUntil());
+        out.writeLong(e.getHits());
+        out.writeByte(e.isNoStore() ? 1 : 0);
+        return 4 + key.length + FIXED + writeString(out, e.getEncoding()) + writeString(out, e.getETag())
+                + writeString(out, e.getBlob());
+    }
+
+    private static int writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeShort(NO_STRING);
+            return 2;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > Short.MAX_VALUE) {
+            throw new IOException("Catalog field too long");
+        }
+        out.writeShort(b.length);
+        out.write(b);
+        return 2 + b.length;
+    }
+
+    /**
+     * Spreads the bits of String.hashCode(), whose low bits are weak for
+     * urls differing only near the end
+     */
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,900 @@
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * CatalogStore Class
+ *
+ * Holds the catalog (url -> CatalogEntry) and persists it as a
+ * snapshot file plus an append-only journal of changes. Each change costs
+ * one appended line instead of a rewrite of the whole catalog. Once the
+ * journal grows past a threshold a background thread folds it into a fresh
+ * snapshot, which replaces the old one with an atomic rename.
+ *
+ * The snapshot is a CatalogIndex, memory-mapped and read in place, so
+ * loading takes the same time however large the catalog is; only the
+ * entries changed since the snapshot (the overlay) are held in a map.
+ * Compaction writes the snapshot plus the overlay to a new index and then
+ * drops from the overlay what the new index holds.
+ *
+ * Several processes may use the same directory. Appending to the journal,
+ * rotating it and putting a new snapshot in place are done holding the
+ * main lock of catalog.lock (see LockFile), and before appending, each
+ * process reads the records the others have appended since it last looked,
+ * so the journal stays in one order that every process agrees on, and
+ * changes made elsewhere are seen at the next flush() or refresh(). A
+ * process that finds the journal rotated finishes reading the old one, or
+ * loads the catalog again if it is gone. Only one process compacts at a
+ * time. catalog.lock also holds a lock per object for fetches (lockObject).
+ *
+ * Files, all in the cache directory:
+ * catalog.idx - snapshot, see CatalogIndex
+ * catalog.journal - changes since the snapshot, "+url(*%*)entry" or "-url"
+ * catalog.journal.old - journal being compacted, replayed if a compaction
+ * was interrupted
+ * catalog.dat - text snapshot of older versions, one url(*%*)entry per
+ * line; converted to catalog.idx by the first load() and then deleted
+ * catalog.lock - locks shared by the processes using the directory
+ *
+ * Lookups read the overlay and the index without locking; changes are
+ * serialized so that the journal records them in the order they were
+ * applied. Access times and hit counts are only updated in memory and
+ * reach the disk with the next change to the entry or the next compaction.
+ * The main lock is always taken before this object's monitor.
+ *
+ * @author James MacIsaac
+ */
+public class CatalogStore {
+
+    private static final String SEPARATOR = CatalogEntry.SEPARATOR; // url/entry separator
+    private static final int COMPACT_THRESHOLD = 1000; // journal records before compacting
+    private static final int SPILL = 65536; // bytes of buffered records that are flushed without waiting for flush()
+    private static final long COMPACT_LOCK = 1; // position in catalog.lock held while compacting
+    private static final long OBJECT_LOCKS = 2; // first position in catalog.lock of the object locks
+    private static final long POLL_INTERVAL = 20_000_000L; // ns between the refreshes poll() makes
+
+    private static final CatalogEntry REMOVED = new CatalogEntry(-1, -1, 0); // overlay mark for a removed url
+
+    private final File snapshot;
+    private final File journal;
+    private final File rotated;
+    private final File legacy;
+    private final LockFile locks;
+    private final ConcurrentHashMap<String, CatalogEntry> overlay; // changes since base, REMOVED if removed
+    private volatile CatalogIndex base; // snapshot, null if there is none
+    private final ExecutorService compactor;
+    private final Histogram writeTimes; // journal flushes and snapshot writes
+    private final ByteArrayOutputStream pending; // records not yet appended to the journal
+    private final HashSet<String> pendingUrls; // urls with a record in pending
+    private int pendingRecords;
+    private FileChannel journalOut; // the journal being read, open for appending
+    private Object journalKey; // file key of the journal read up to journalOffset, null if none
+    private long journalOffset; // bytes of the journal read or written by this process
+    private Object snapshotKey; // file key of the mapped snapshot
+    private int journalRecords; // records in the current journal
+    private boolean compacting;
+    private boolean compactPending; // a background compaction is queued
+    private volatile boolean shared; // another process has changed the catalog since load()
+    private volatile Consumer<String> listener; // told of urls another process changed
+    private volatile long lastRefresh; // nanoTime refresh() last started
+
+    /**
+     * Constructor for a catalog kept in the given cache directory. Nothing
+     * is read until load() is called.
+     *
+     * @param dir the cache directory
+     * @throws UrlCacheException if catalog.lock cannot be opened
+     */
+    public CatalogStore(File dir) throws UrlCacheException {
+        snapshot = new File(dir, "catalog.idx");
+        journal = new File(dir, "catalog.journal");
+        rotated = new File(dir, "catalog.journal.old");
+        legacy = new File(dir, "catalog.dat");
+        try {
+            locks = LockFile.open(new File(dir, "catalog.lock"));
+        } catch (IOException e) {
+            throw new UrlCacheException("Error opening catalog lock");
+        }
+        overlay = new ConcurrentHashMap<String, CatalogEntry>();
+        writeTimes = new Histogram();
+        pending = new ByteArrayOutputStream();
+        pendingUrls = new HashSet<String>();
+        compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "CatalogStore-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Maps the snapshot and then replays the journals on top of it. A
+     * journal left over from an interrupted compaction, or a text snapshot
+     * from an older version, is folded into a new snapshot straight away.
+     *
+     * @author James MacIsaac
+     * @return true if there was a catalog on disk
+     * @throws UrlCacheException
+     */
+    public boolean load() throws UrlCacheException {
+        boolean present;
+        boolean convert;
+        lock();
+        try {
+            synchronized (this) {
+                present = snapshot.exists() || legacy.exists() || journal.exists() || rotated.exists();
+                convert = !snapshot.exists() && legacy.exists();
+                reload();
+            }
+        } catch (IOException e) {
+            throw new UrlCacheException("Error reading catalog");
+        } finally {
+            unlock();
+        }
+        if (convert || rotated.exists()) {
+            compact(); // skipped if another process is compacting
+        }
+        if (legacy.exists() && snapshot.exists()) {
+            legacy.delete(); // catalog.idx holds everything in it
+        }
+        return present;
+    }
+
+    /**
+     * Reads the changes other processes have made since this one last
+     * looked. Costs a file stat if there are none: a compaction starts a
+     * new journal before it puts its snapshot in place, and a snapshot put
+     * in place after the journal was caught up with holds nothing the
+     * overlay lacks, so it is mapped by the next catch-up.
+     *
+     * @author James MacIsaac
+     * @throws UrlCacheException
+     */
+    public void refresh() throws UrlCacheException {
+        lastRefresh = System.nanoTime();
+        try {
+            synchronized (this) {
+                BasicFileAttributes j = attributes(journal);
+                if (Objects.equals(identity(j), journalKey) && (j == null || j.size() == journalOffset)) {
+                    return;
+                }
+            }
+            lock();
+            try {
+                synchronized (this) {
+                    catchUp();
+                }
+            } finally {
+                unlock();
+            }
+        } catch (IOException e) {
+            throw new UrlCacheException("Error reading catalog journal");
+        }
+    }
+
+    /**
+     * Calls refresh() unless it was called within the last 20 ms, for
+     * lookups that may see another process's change that much late
+     *
+     * @author James MacIsaac
+     * @throws UrlCacheException
+     */
+    public void poll() throws UrlCacheException {
+        if (System.nanoTime() - lastRefresh >= POLL_INTERVAL) {
+            refresh();
+        }
+    }
+
+    /**
+     * Takes the main lock of the directory, which every change to the
+     * files holds; see LockFile. Reentrant; each call must be matched by
+     * unlock(). Must not be called holding this object's monitor.
+     *
+     * @author James MacIsaac
+     * @throws UrlCacheException
+     */
+    public void lock() throws UrlCacheException {
+        try {
+            locks.lock();
+        } catch (IOException e) {
+            throw new UrlCacheException("Error locking catalog");
+        }
+    }
+
+    /**
+     * Releases the main lock taken by lock()
+     *
+     * @author James MacIsaac
+     */
+    public void unlock() {
+        locks.unlock();
+    }
+
+    /**
+     * Locks an object across processes, for the one fetching it. The lock
+     * is on a position in catalog.lock picked by a 62-bit hash of the url.
+     *
+     * @author James MacIsaac
+     * @param url catalog key
+     * @param wait true to wait while another process, or another cache in
+     * this JVM, holds it
+     * @return the lock, to be released once the fetch is in the catalog; or
+     * null if wait is false and another process or this JVM holds it
+     * @throws UrlCacheException
+     */
+    public FileLock lockObject(String url, boolean wait) throws UrlCacheException {
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        for (int i = 0; i < url.length(); i++) {
+            h = (h ^ url.charAt(i)) * 0x100000001b3L;
+        }
+        long position = OBJECT_LOCKS + (h >>> 2);
+        try {
+            return wait ? locks.lock(position) : locks.tryLock(position);
+        } catch (IOException e) {
+            throw new UrlCacheException("Error locking " + url);
+        }
+    }
+
+    /**
+     * @return true once a change made by another process has been read
+     * since load()
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * @param listener called with each url another process has changed as
+     * the change is read, while the main lock is held; null for none
+     */
+    public void setListener(Consumer<String> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param url catalog key
+     * @return the entry for url, or null if not cataloged
+     */
+    public CatalogEntry get(String url) {
+        CatalogEntry e = overlay.get(url);
+        if (e != null) {
+            return e == REMOVED ? null : e;
+        }
+        CatalogIndex index = base;
+        return index == null ? null : index.get(url);
+    }
+
+    /**
+     * Looks up the Last-Modified time of an entry; an entry that has not
+     * changed since the snapshot is read in place without being built
+     *
+     * @param url catalog key
+     * @return the time in ms since epoch, -1 if the server sent none, or
+     * Long.MIN_VALUE if url is not cataloged
+     */
+    public long getLastModified(String url) {
+        CatalogEntry e = overlay.get(url);
+        if (e != null) {
+            return e == REMOVED ? Long.MIN_VALUE : e.getLastModified();
+        }
+        CatalogIndex index = base;
+        return index == null ? Long.MIN_VALUE : index.getLastModified(url);
+    }
+
+    /**
+     * Calls action with every url and entry. Changes wait until it returns,
+     * so it sees the catalog as it was at one moment; entries are read as
+     * they are reached rather than copied first.
+     *
+     * @author James MacIsaac
+     * @param action
+     */
+    public synchronized void forEach(BiConsumer<String, CatalogEntry> action) {
+        CatalogIndex index = base;
+        if (index != null) {
+            for (Map.Entry<String, CatalogEntry> me : index) {
+                if (!overlay.containsKey(me.getKey())) {
+                    action.accept(me.getKey(), me.getValue());
+                }
+            }
+        }
+        for (Map.Entry<String, CatalogEntry> me : overlay.entrySet()) {
+            if (me.getValue() != REMOVED) {
+                action.accept(me.getKey(), me.getValue());
+            }
+        }
+    }
+
+    /**
+     * Records a new entry for url. Nothing is written if it describes the
+     * same version as the current entry. The change is buffered until
+     * flush(), or until enough changes are buffered.
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param entry
+     * @throws UrlCacheException
+     */
+    public void put(String url, CatalogEntry entry) throws UrlCacheException {
+        boolean spill;
+        synchronized (this) {
+            CatalogEntry old = get(url);
+            overlay.put(url, entry);
+            if (!entry.equals(old)) {
+                append("+" + makeCacheString(url, entry), url);
+            }
+            spill = pending.size() >= SPILL;
+        }
+        if (spill) {
+            flush();
+        }
+    }
+
+    /**
+     * Records that url was used at the given time, counting a hit. Only the
+     * in-memory entry changes, by copying it into the overlay; see the class
+     * comment.
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param time ms since epoch
+     */
+    public void touch(String url, long time) {
+        overlay.compute(url, (k, e) -> {
+            if (e == REMOVED) {
+                return e;
+            }
+            if (e == null) {
+                CatalogIndex index = base;
+                e = index == null ? null : index.get(url);
+            }
+            return e == null ? null : e.withUse(time);
+        });
+    }
+
+    /**
+     * Drops url from the catalog. The change is buffered until flush().
+     *
+     * @author James MacIsaac
+     * @param url
+     * @throws UrlCacheException
+     */
+    public void remove(String url) throws UrlCacheException {
+        boolean spill;
+        synchronized (this) {
+            if (get(url) == null) {
+                return;
+            }
+            overlay.put(url, REMOVED);
+            append("-" + url, url);
+            spill = pending.size() >= SPILL;
+        }
+        if (spill) {
+            flush();
+        }
+    }
+
+    /**
+     * Appends buffered records to the journal, after reading what other
+     * processes have appended, and starts a background compaction if the
+     * journal has grown past the threshold
+     *
+     * @author James MacIsaac
+     * @throws UrlCacheException
+     */
+    public void flush() throws UrlCacheException {
+        synchronized (this) {
+            if (pendingRecords == 0) {
+                return;
+            }
+        }
+        lock();
+        try {
+            synchronized (this) {
+                if (pendingRecords == 0) {
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    catchUp();
+                    writePending();
+                } catch (IOException e) {
+                    throw new UrlCacheException("Error writing catalog journal");
+                }
+                writeTimes.record(System.nanoTime() - start);
+                if (journalRecords >= COMPACT_THRESHOLD && !compacting && !compactPending) {
+                    compactPending = true;
+                    compactor.execute(() -> {
+                        try {
+                            compact();
+                        } catch (UrlCacheException e) {
+                            // the journal still holds every change, try again later
+                        } finally {
+                            synchronized (this) {
+                                compactPending = false;
+                            }
+                        }
+                    });
+                }
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Folds the journal into a new snapshot. The journal is rotated and the
+     * overlay copied under the lock so writers, here and in other
+     * processes, can carry on while the snapshot is written, and the rotated
+     * journal is only deleted once the snapshot has been renamed into place.
+     * Overlay entries changed since the copy stay in the overlay. Does
+     * nothing if another process is compacting.
+     *
+     * @author James MacIsaac
+     * @throws UrlCacheException
+     */
+    public void compact() throws UrlCacheException {
+        synchronized (this) {
+            if (compacting) {
+                return;
+            }
+            compacting = true;
+        }
+        FileLock compaction = null;
+        try {
+            try {
+                compaction = locks.tryLock(COMPACT_LOCK);
+            } catch (IOException e) {
+                throw new UrlCacheException("Error locking catalog");
+            }
+            if (compaction == null) {
+                return; // another process is compacting
+            }
+            HashMap<String, CatalogEntry> copy;
+            CatalogIndex old;
+            lock();
+            try {
+                synchronized (this) {
+                    try {
+                        catchUp();
+                        writePending();
+                        rotate();
+                    } catch (IOException e) {
+                        throw new UrlCacheException("Error rotating catalog journal");
+                    }
+                    copy = new HashMap<String, CatalogEntry>(overlay);
+                    old = base;
+                }
+            } finally {
+                unlock();
+            }
+            long start = System.nanoTime();
+            try {
+                File tmp = writeSnapshot(old, copy);
+                lock();
+                try {
+                    synchronized (this) {
+                        try {
+                            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                                    StandardCopyOption.REPLACE_EXISTING);
+                        } catch (AtomicMoveNotSupportedException e) {
+                            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        }
+                        base = CatalogIndex.open(snapshot);
+                        snapshotKey = fileKey(snapshot);
+                        for (Map.Entry<String, CatalogEntry> me : copy.entrySet()) {
+                            overlay.computeIfPresent(me.getKey(), (k, v) -> v == me.getValue() ? null : v);
+                        }
+                        rotated.delete();
+                    }
+                } finally {
+                    unlock();
+                }
+                writeTimes.record(System.nanoTime() - start);
+            } catch (IOException e) {
+                throw new UrlCacheException("Error writing catalog snapshot");
+            }
+        } finally {
+            if (compaction != null) {
+                try {
+                    compaction.release();
+                } catch (IOException e) {
+                    // released when the lock file closes
+                }
+            }
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Flushes the journal and, if it has records, compacts it so the next
+     * load only has to read the snapshot
+     *
+     * @author James MacIsaac
+     * @throws UrlCacheException
+     */
+    public void close() throws UrlCacheException {
+        flush();
+        boolean dirty;
+        synchronized (this) {
+            dirty = journalRecords > 0 || rotated.exists();
+        }
+        if (dirty) {
+            compact();
+        }
+        synchronized (this) {
+            try {
+                closeJournal();
+            } catch (IOException e) {
+                throw new UrlCacheException("Error closing catalog journal");
+            }
+        }
+        compactor.shutdown();
+        locks.close();
+    }
+
+    /**
+     * @return time taken by each journal flush and snapshot write
+     */
+    public Histogram getWriteTimes() {
+        return writeTimes;
+    }
+
+    /**
+     * Method to generate a string which is used to store a hashmap key/value
+     * pair in the catalog file
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param entry
+     * @return String
+     */
+    private String makeCacheString(String url, CatalogEntry entry) {
+        String ceStr = "";
+        // add url
+        ceStr += url;
+        //add url/entry separator
+        ceStr += SEPARATOR;
+        //add Last-Modified Timestamp and the other fields
+        ceStr += entry.toCatalogString();
+        return ceStr;
+    }
+
+    /**
+     * Buffers one record for the journal. Must hold the monitor.
+     */
+    private void append(String record, String url) {
+        byte[] b = (record + "\n").getBytes(StandardCharsets.UTF_8);
+        pending.write(b, 0, b.length);
+        pendingRecords++;
+        pendingUrls.add(url);
+    }
+
+    /**
+     * Appends the buffered records to the journal in one write. Must hold
+     * the main lock and the monitor, and have caught up first.
+     */
+    private void writePending() throws IOException {
+        if (pendingRecords == 0) {
+            return;
+        }
+        if (journalOut == null) {
+            journal.getParentFile().mkdirs();
+            journalOut = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            if (journalKey == null) {
+                journalKey = fileKey(journal); // created just now
+                journalOffset = 0;
+            }
+        }
+        ByteBuffer b = ByteBuffer.wrap(pending.toByteArray());
+        while (b.hasRemaining()) {
+            journalOut.write(b);
+        }
+        journalOffset += b.capacity();
+        journalRecords += pendingRecords;
+        pending.reset();
+        pendingRecords = 0;
+        pendingUrls.clear();
+    }
+
+    /**
+     * Renames the journal for compaction and starts a new one. Must hold
+     * the main lock and the monitor.
+     */
+    private void rotate() throws IOException {
+        closeJournal();
+        if (journal.exists()) {
+            if (rotated.exists()) {
+                // left by an interrupted compaction: keep both sets
+                // of records in the rotated file until the snapshot
+                // is in place
+                Files.write(rotated.toPath(), Files.readAllBytes(journal.toPath()), StandardOpenOption.APPEND);
+                journal.delete();
+            } else {
+                Files.move(journal.toPath(), rotated.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        journalOut = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        journalKey = fileKey(journal);
+        journalOffset = 0;
+        journalRecords = 0;
+    }
+
+    /**
+     * Reads the changes other processes have made: the rest of the journal,
+     * the rest of the rotated one if it was rotated since, and a new
+     * snapshot if one was put in place. Reloads everything if records may
+     * have been missed. Must hold the main lock and the monitor.
+     */
+    private void catchUp() throws IOException {
+        lastRefresh = System.nanoTime();
+        BasicFileAttributes j = attributes(journal);
+        Object key = identity(j);
+        if (!Objects.equals(key, journalKey)) {
+            BasicFileAttributes r = attributes(rotated);
+            if (journalKey != null && r != null && identity(r).equals(journalKey)) {
+                readJournal(rotated, journalOffset, true, false);
+            } else if (journalKey != null || r != null || !Objects.equals(fileKey(snapshot), snapshotKey)) {
+                shared = true;
+                reload();
+                return;
+            } // else the journal has been started since
+            closeJournal();
+            journalKey = key;
+            journalOffset = 0;
+            journalRecords = 0;
+            shared = true;
+        }
+        if (j != null && j.size() > journalOffset) {
+            journalOffset = readJournal(journal, journalOffset, true, true);
+        }
+        Object snap = fileKey(snapshot);
+        if (snap != null && !snap.equals(snapshotKey)) {
+            // compacted by another process: the overlay is as new as the
+            // snapshot for every url, so it stays on top of it
+            base = CatalogIndex.open(snapshot);
+            snapshotKey = snap;
+            shared = true;
+        }
+    }
+
+    /**
+     * Reads the catalog from the files again, keeping the changes not yet
+     * written to the journal. Must hold the main lock and the monitor.
+     */
+    private void reload() throws IOException {
+        lastRefresh = System.nanoTime();
+        HashMap<String, CatalogEntry> mine = new HashMap<String, CatalogEntry>();
+        for (String url : pendingUrls) {
+            mine.put(url, overlay.get(url));
+        }
+        HashSet<String> changed = new HashSet<String>(overlay.keySet());
+        overlay.clear();
+        base = null;
+        closeJournal();
+        snapshotKey = fileKey(snapshot);
+        if (snapshotKey != null) {
+            base = CatalogIndex.open(snapshot);
+        } else if (legacy.exists()) {
+            readFile(legacy);
+        }
+        if (rotated.exists()) {
+            repair(rotated);
+            readJournal(rotated, 0, false, false);
+        }
+        BasicFileAttributes j = attributes(journal);
+        journalKey = identity(j);
+        journalOffset = 0;
+        journalRecords = 0;
+        if (j != null && j.size() > 0) {
+            repair(journal);
+            journalOffset = readJournal(journal, 0, false, true);
+        }
+        overlay.putAll(mine);
+        Consumer<String> l = listener;
+        if (l != null) {
+            changed.addAll(overlay.keySet());
+            changed.forEach(l); // the urls that may differ from what was read before
+        }
+    }
+
+    private void closeJournal() throws IOException {
+        if (journalOut != null) {
+            journalOut.close();
+            journalOut = null;
+        }
+    }
+
+    /**
+     * Cuts off a last line without its newline, cut short by a crash. Must
+     * hold the main lock, so that no process is appending.
+     */
+    private void repair(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            long end = raf.length();
+            while (end > 0) {
+                raf.seek(end - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            raf.setLength(end);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Applies the records of a journal from an offset, up to the last whole
+     * line
+     *
+     * @param foreign true if the records are other processes' changes, which
+     * do not replace changes of this process not yet written, and are passed
+     * to the listener
+     * @param current true to count the records towards compaction
+     * @return offset after the last whole line
+     */
+    private long readJournal(File f, long from, boolean foreign, boolean current) throws IOException {
+        InputStream in = new FileInputStream(f);
+        long end = from;
+        try {
+            in.skip(from);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            byte[] buf = new byte[65536];
+            long pos = from;
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] == '\n') {
+                        line.write(buf, start, i - start);
+                        applyRecord(new String(line.toByteArray(), StandardCharsets.UTF_8), foreign, current);
+                        line.reset();
+                        start = i + 1;
+                        end = pos + i + 1;
+                    }
+                }
+                line.write(buf, start, n - start);
+                pos += n;
+            }
+        } finally {
+            in.close();
+        }
+        return end;
+    }
+
+    /**
+     * Applies one journal record to the overlay
+     */
+    private void applyRecord(String text, boolean foreign, boolean current) {
+        String url;
+        CatalogEntry entry;
+        if (text.startsWith("-")) {
+            url = text.substring(1);
+            entry = REMOVED;
+        } else {
+            if (text.startsWith("+")) {
+                text = text.substring(1);
+            }
+            // need to split line into url and entry
+            int sep = text.indexOf(SEPARATOR);
+            if (sep == -1) {
+                return;
+            }
+            url = text.substring(0, sep);
+            entry = CatalogEntry.parse(text.substring(sep + SEPARATOR.length()));
+        }
+        if (current) {
+            journalRecords++;
+        }
+        if (foreign) {
+            shared = true;
+            if (pendingUrls.contains(url)) {
+                return; // ours is newer, and will be written after it
+            }
+            overlay.put(url, entry);
+            Consumer<String> l = listener;
+            if (l != null) {
+                l.accept(url);
+            }
+        } else {
+            overlay.put(url, entry);
+        }
+    }
+
+    /**
+     * Applies the lines of a text snapshot of an older version to the
+     * overlay
+     */
+    private void readFile(File f) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
+        try {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                // need to split line into url and entry
+                int sep = text.indexOf(SEPARATOR);
+                if (sep != -1) {
+                    overlay.put(text.substring(0, sep), CatalogEntry.parse(text.substring(sep + SEPARATOR.length())));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the entries of old that are not in copy, then the entries of
+     * copy, to a temporary index, to be renamed over the snapshot
+     */
+    private File writeSnapshot(CatalogIndex old, Map<String, CatalogEntry> copy) throws IOException {
+        snapshot.getParentFile().mkdirs();
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        Stream<Map.Entry<String, CatalogEntry>> kept = old == null ? Stream.empty()
+                : StreamSupport.stream(old.spliterator(), false).filter(me -> !copy.containsKey(me.getKey()));
+        Stream<Map.Entry<String, CatalogEntry>> changed = copy.entrySet().stream().filter(me -> me.getValue() != REMOVED);
+        CatalogIndex.write(tmp, (old == null ? 0 : old.size()) + copy.size(), Stream.concat(kept, changed).iterator());
+        return tmp;
+    }
+
+    /**
+     * @return the file's attributes, or null if it does not exist
+     */
+    private static BasicFileAttributes attributes(File f) throws IOException {
+        try {
+            return Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return what identifies the file itself rather than its name, or null
+     * if it does not exist
+     */
+    private static Object fileKey(File f) throws IOException {
+        return identity(attributes(f));
+    }
+
+    /**
+     * @return the file key, or the creation time where the platform has no
+     * file keys; null for null
+     */
+    private static Object identity(BasicFileAttributes a) {
+        if (a == null) {
+            return null;
+        }
+        return a.fileKey() != null ? a.fileKey() : a.creationTime();
+    }
+}
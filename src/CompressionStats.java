@@ -0,0 +1,101 @@
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CompressionStats Class
+ *
+ * Per-host byte counts for downloaded objects: what came over the wire,
+ * what the objects decode to, and what was written to Cache/Files. From
+ * these it reports the bandwidth saved by compressed responses and the disk
+ * space saved by storing objects compressed. Hosts are keyed host:port.
+ *
+ * @author James MacIsaac
+ */
+public class CompressionStats {
+
+    private final TreeMap<String, long[]> hosts; // host key -> counters
+    private static final int RESPONSES = 0;
+    private static final int WIRE = 1; // body bytes received
+    private static final int DECODED = 2; // bytes the bodies decode to
+    private static final int DISK = 3; // bytes written to the cache files
+
+    public CompressionStats() {
+        hosts = new TreeMap<String, long[]>();
+    }
+
+    /**
+     * Records one downloaded object
+     *
+     * @author James MacIsaac
+     * @param hostKey host:port of the server
+     * @param wire body bytes received
+     * @param decoded size of the object decoded
+     * @param disk bytes written to its cache file
+     */
+    public synchronized void record(String hostKey, long wire, long decoded, long disk) {
+        long[] c = hosts.computeIfAbsent(hostKey, k -> new long[4]);
+        c[RESPONSES]++;
+        c[WIRE] += wire;
+        c[DECODED] += decoded;
+        c[DISK] += disk;
+    }
+
+    /**
+     * @param hostKey host:port of a server
+     * @return bytes not transferred thanks to compressed responses
+     */
+    public synchronized long getBandwidthSaved(String hostKey) {
+        long[] c = hosts.get(hostKey);
+        return c == null ? 0 : c[DECODED] - c[WIRE];
+    }
+
+    /**
+     * @param hostKey host:port of a server
+     * @return bytes not written to disk thanks to compressed storage
+     */
+    public synchronized long getDiskSaved(String hostKey) {
+        long[] c = hosts.get(hostKey);
+        return c == null ? 0 : c[DECODED] - c[DISK];
+    }
+
+    /**
+     * @return bandwidth saved across all hosts
+     */
+    public synchronized long getBandwidthSaved() {
+        long n = 0;
+        for (long[] c : hosts.values()) {
+            n += c[DECODED] - c[WIRE];
+        }
+        return n;
+    }
+
+    /**
+     * @return disk space saved across all hosts
+     */
+    public synchronized long getDiskSaved() {
+        long n = 0;
+        for (long[] c : hosts.values()) {
+            n += c[DECODED] - c[DISK];
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("CompressionStats[");
+        boolean first = true;
+        for (Map.Entry<String, long[]> me : hosts.entrySet()) {
+            long[] c = me.getValue();
+            if (!first) {
+                sb.append(", ");
+            }
+            first = false;
+            sb.append(me.getKey()).append(": responses=").append(c[RESPONSES])
+                    .append(" wire=").append(c[WIRE])
+                    .append(" decoded=").append(c[DECODED])
+                    .append(" disk=").append(c[DISK]);
+        }
+        return sb.append(']').toString();
+    }
+}
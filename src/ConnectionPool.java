@@ -0,0 +1,536 @@
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * ConnectionPool Class
+ *
+ * Keeps idle keep-alive sockets per host/port so that consecutive requests to
+ * the same origin can skip the TCP handshake. Connections are borrowed with
+ * acquire() and handed back with release(); a connection that is idle for
+ * longer than the idle timeout, or that the server has closed in the
+ * meantime, is discarded instead of being reused.
+ *
+ * Host names are resolved through a DnsCache, and each of a host's
+ * addresses is tried in turn until one accepts the connection. warm() opens
+ * connections ahead of the first request, so it finds one idle.
+ *
+ * Every socket has a connect timeout and a read timeout, so a stalled
+ * origin fails the request holding the socket with an exception instead of
+ * keeping the host's slot, and with it the other requests waiting for one,
+ * forever.
+ *
+ * @author James MacIsaac
+ */
+public class ConnectionPool {
+
+    private static final long VALIDATE_AFTER = 2000; // ms idle before a socket is probed on reuse
+    private static final int CONNECT_TIMEOUT = 10000; // default ms to wait for a connect
+    private static final int READ_TIMEOUT = 30000; // default ms to wait for the next bytes of a response
+
+    private final HashMap<String, HostEntry> hosts; // host:port -> pool state
+    private final int maxPerHost; // max open (idle + leased) sockets per host
+    private final long idleTimeout; // ms an idle socket may sit in the pool
+    private final long acquireTimeout; // ms to wait for a free slot on a host
+    private final int connectTimeout; // ms to wait for a connect
+    private final int readTimeout; // ms a read on a socket waits for data
+    private final DnsCache dns; // host name -> addresses
+    private long hits; // requests served by an already open socket
+    private long misses; // requests that had to open a new socket
+    private long staleDiscards; // idle sockets found closed or expired
+    private long warmed; // sockets opened by warm()
+
+    /**
+     * Default constructor: 6 connections per host, 30 second idle timeout,
+     * 10 second connect timeout and 30 second read timeout
+     */
+    public ConnectionPool() {
+        this(6, 30000, 30000);
+    }
+
+    /**
+     * Constructor with explicit limits
+     *
+     * @param maxPerHost max sockets (idle and in use) to a single host/port
+     * @param idleTimeout ms after which an idle socket is closed
+     * @param acquireTimeout ms to wait when a host is at its limit
+     */
+    public ConnectionPool(int maxPerHost, long idleTimeout, long acquireTimeout) {
+        this(maxPerHost, idleTimeout, acquireTimeout, new DnsCache());
+    }
+
+    /**
+     * Constructor with explicit limits and name resolution
+     *
+     * @param maxPerHost max sockets (idle and in use) to a single host/port
+     * @param idleTimeout ms after which an idle socket is closed
+     * @param acquireTimeout ms to wait when a host is at its limit
+     * @param dns resolves the host names connected to
+     */
+    public ConnectionPool(int maxPerHost, long idleTimeout, long acquireTimeout, DnsCache dns) {
+        this(maxPerHost, idleTimeout, acquireTimeout, CONNECT_TIMEOUT, READ_TIMEOUT, dns);
+    }
+
+    /**
+     * Constructor with explicit limits, socket timeouts and name resolution
+     *
+     * @param maxPerHost max sockets (idle and in use) to a single host/port
+     * @param idleTimeout ms after which an idle socket is closed
+     * @param acquireTimeout ms to wait when a host is at its limit
+     * @param connectTimeout ms to wait for each address to accept a connect
+     * @param readTimeout ms a read waits for data before the request fails
+     * @param dns resolves the host names connected to
+     */
+    public ConnectionPool(int maxPerHost, long idleTimeout, long acquireTimeout, int connectTimeout,
+            int readTimeout, DnsCache dns) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost must be at least 1");
+        }
+        if (connectTimeout < 1 || readTimeout < 1) {
+            throw new IllegalArgumentException("connect and read timeouts must be at least 1 ms");
+        }
+        this.hosts = new HashMap<String, HostEntry>();
+        this.maxPerHost = maxPerHost;
+        this.idleTimeout = idleTimeout;
+        this.acquireTimeout = acquireTimeout;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.dns = dns;
+    }
+
+    /**
+     * Borrows a connection to the given host and port, reusing an idle one
+     * if a live one is available and opening a new one otherwise.
+     *
+     * @author James MacIsaac
+     * @param host
+     * @param port
+     * @return Connection
+     * @throws UrlCacheException if no slot frees up in time or the connect
+     * fails
+     */
+    public Connection acquire(String host, int port) throws UrlCacheException {
+        return acquire(host, port, true);
+    }
+
+    /**
+     * Like acquire, but returns null at once rather than waiting if the host
+     * is at its limit and none of its connections is idle. For extra
+     * connections a caller could do without, so that a caller already
+     * holding one never waits for another.
+     *
+     * @author James MacIsaac
+     * @param host
+     * @param port
+     * @return Connection, or null if none is free
+     * @throws UrlCacheException if the connect fails
+     */
+    public Connection tryAcquire(String host, int port) throws UrlCacheException {
+        return acquire(host, port, false);
+    }
+
+    private Connection acquire(String host, int port, boolean wait) throws UrlCacheException {
+        String key = host + ":" + port;
+        long deadline = System.currentTimeMillis() + acquireTimeout;
+        while (true) {
+            Connection c = null;
+            synchronized (this) {
+                HostEntry entry = hosts.get(key);
+                if (entry == null) {
+                    entry = new HostEntry();
+                    hosts.put(key, entry);
+                }
+                while ((c = entry.idle.pollFirst()) == null && entry.open >= maxPerHost) {
+                    if (!wait) {
+                        return null;
+                    }
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        throw new UrlCacheException("Timed out waiting for a connection to " + key);
+                    }
+                    try {
+                        wait(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new UrlCacheException("Interrupted waiting for a connection to " + key);
+                    }
+                }
+                if (c == null) {
+                    entry.open++; // reserve the slot before connecting
+                    misses++;
+                }
+            }
+            if (c == null) {
+                break;
+            }
+            // the staleness check may block briefly, so it runs outside the lock
+            if (c.isReusable(idleTimeout)) {
+                synchronized (this) {
+                    hits++;
+                }
+                c.reused = true;
+                return c;
+            }
+            c.closeQuietly();
+            synchronized (this) {
+                staleDiscards++;
+                hosts.get(key).open--;
+                notifyAll();
+            }
+        }
+        // connect outside the lock so one slow host does not block the others
+        try {
+            return open(key, host, port);
+        } catch (UrlCacheException e) {
+            synchronized (this) {
+                hosts.get(key).open--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Opens connections to a host until it has count open (idle or in use)
+     * or is at its limit, and leaves them idle for the next acquires. Each
+     * connect is recorded in metrics if given.
+     *
+     * @author James MacIsaac
+     * @param host
+     * @param port
+     * @param count connections wanted
+     * @param metrics where to record the resolve and connect times, may be
+     * null
+     * @return connections opened
+     * @throws UrlCacheException if the host does not resolve or a connect
+     * fails; the connections opened before then are kept
+     */
+    public int warm(String host, int port, int count, HostMetrics metrics) throws UrlCacheException {
+        String key = host + ":" + port;
+        int opened = 0;
+        while (true) {
+            synchronized (this) {
+                HostEntry entry = hosts.get(key);
+                if (entry == null) {
+                    entry = new HostEntry();
+                    hosts.put(key, entry);
+                }
+                if (entry.open >= Math.min(count, maxPerHost)) {
+                    return opened;
+                }
+                entry.open++; // reserve the slot before connecting
+            }
+            Connection c;
+            try {
+                c = open(key, host, port);
+            } catch (UrlCacheException e) {
+                synchronized (this) {
+                    hosts.get(key).open--;
+                    notifyAll();
+                }
+                throw e;
+            }
+            if (metrics != null) {
+                metrics.recordResolve(c.resolveTime);
+                metrics.recordConnect(c.connectTime);
+            }
+            synchronized (this) {
+                warmed++;
+                hosts.get(key).idle.addLast(c); // behind connections that have been used
+                notifyAll();
+            }
+            opened++;
+        }
+    }
+
+    /**
+     * Resolves a host and connects to the first of its addresses that
+     * answers. If none does, the host's addresses are dropped from the
+     * DnsCache so the next connect looks them up again.
+     */
+    private Connection open(String key, String host, int port) throws UrlCacheException {
+        long start = System.nanoTime();
+        InetAddress[] addresses;
+        try {
+            addresses = dns.resolve(host);
+        } catch (IOException e) {
+            throw new UrlCacheException("Could not resolve " + host + ": " + e.getMessage());
+        }
+        long resolved = System.nanoTime();
+        IOException last = null;
+        for (InetAddress address : addresses) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address, port), connectTimeout);
+                socket.setSoTimeout(readTimeout);
+                Connection c = new Connection(key, socket);
+                c.resolveTime = resolved - start;
+                c.connectTime = System.nanoTime() - resolved;
+                return c;
+            } catch (IOException e) {
+                last = e;
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    // nothing to do
+                }
+            }
+        }
+        dns.invalidate(host);
+        throw new UrlCacheException("Could not connect to " + key + ": " + (last == null ? "no address" : last.getMessage()));
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. If reusable is false (the
+     * server asked to close, the body was read to EOF, or an error happened)
+     * the socket is closed instead.
+     *
+     * @author James MacIsaac
+     * @param c
+     * @param reusable
+     */
+    public void release(Connection c, boolean reusable) {
+        if (c == null) {
+            return;
+        }
+        synchronized (this) {
+            HostEntry entry = hosts.get(c.key);
+            if (reusable && !c.socket.isClosed()) {
+                c.lastUsed = System.currentTimeMillis();
+                entry.idle.addFirst(c); // most recently used is reused first
+            } else {
+                entry.open--;
+                c.closeQuietly();
+            }
+            evictExpired(entry);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes all idle sockets. Sockets currently in use are closed when they
+     * are released.
+     *
+     * @author James MacIsaac
+     */
+    public synchronized void close() {
+        for (HostEntry entry : hosts.values()) {
+            Connection c;
+            while ((c = entry.idle.pollFirst()) != null) {
+                entry.open--;
+                c.closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Closes idle sockets at the tail of the host's deque that have been idle
+     * for longer than the idle timeout. Must hold the pool lock.
+     */
+    private void evictExpired(HostEntry entry) {
+        long now = System.currentTimeMillis();
+        Iterator<Connection> it = entry.idle.descendingIterator();
+        while (it.hasNext()) {
+            Connection c = it.next();
+            if (now - c.lastUsed <= idleTimeout) {
+                break; // the rest were used more recently
+            }
+            it.remove();
+            entry.open--;
+            staleDiscards++;
+            c.closeQuietly();
+        }
+    }
+
+    /**
+     * @return number of acquires served by an already open socket
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of acquires that had to open a new socket
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of idle sockets discarded as expired or closed by the
+     * server
+     */
+    public synchronized long getStaleDiscards() {
+        return staleDiscards;
+    }
+
+    /**
+     * @return number of sockets opened ahead of use by warm()
+     */
+    public synchronized long getWarmed() {
+        return warmed;
+    }
+
+    /**
+     * @return the cache the pool resolves host names through
+     */
+    public DnsCache getDnsCache() {
+        return dns;
+    }
+
+    /**
+     * @return number of idle sockets currently held across all hosts
+     */
+    public synchronized int getIdleCount() {
+        int n = 0;
+        for (HostEntry entry : hosts.values()) {
+            n += entry.idle.size();
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectionPool[hits=" + hits + ", misses=" + misses
+                + ", stale=" + staleDiscards + ", warmed=" + warmed + ", idle=" + getIdleCount() + "]";
+    }
+
+    /**
+     * Per host/port bookkeeping: idle sockets (most recent first) and the
+     * number of sockets open in total.
+     */
+    private static class HostEntry {
+
+        final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+        int open;
+    }
+
+    /**
+     * A pooled socket together with its buffered streams. The input stream
+     * must be kept with the socket since it may hold bytes already read from
+     * the network.
+     */
+    public static class Connection {
+
+        private final String key;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final HeaderParser parser;
+        private long lastUsed;
+        private long resolveTime; // ns the host name lookup took
+        private long connectTime; // ns the TCP connect took
+        private boolean reused;
+
+        Connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+            this.parser = new HeaderParser();
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * @return the response header parser for this connection, whose
+         * buffer is reused for every response read from it
+         */
+        public HeaderParser getHeaderParser() {
+            return parser;
+        }
+
+        /**
+         * @return ns looking up the host name took, or 0 if this
+         * connection was reused
+         */
+        public long getResolveTime() {
+            return reused ? 0 : resolveTime;
+        }
+
+        /**
+         * @return ns the TCP connect took, or 0 if this connection was
+         * reused
+         */
+        public long getConnectTime() {
+            return reused ? 0 : connectTime;
+        }
+
+        /**
+         * @return true if this connection was taken from the idle pool rather
+         * than freshly opened
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Checks that an idle socket has not expired and has not been closed
+         * by the server. A server that closed its end makes a read return -1
+         * straight away, while a live idle socket has nothing to read and
+         * times out. That probe waits up to a millisecond, so it is skipped
+         * for sockets used within the last VALIDATE_AFTER ms; a request that
+         * fails on such a socket anyway is retried by the caller.
+         */
+        boolean isReusable(long idleTimeout) {
+            if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+                return false;
+            }
+            long idle = System.currentTimeMillis() - lastUsed;
+            if (idle > idleTimeout) {
+                return false;
+            }
+            int oldTimeout;
+            try {
+                if (in.available() > 0) {
+                    return false; // unsolicited data, the stream is out of sync
+                }
+                if (idle < VALIDATE_AFTER) {
+                    return true;
+                }
+                oldTimeout = socket.getSoTimeout(); // the read timeout, put back after the probe
+            } catch (IOException e) {
+                return false;
+            }
+            try {
+                socket.setSoTimeout(1);
+                in.read(); // either -1 (closed) or a byte we did not ask for
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true; // nothing to read: the connection is still open
+            } catch (IOException e) {
+                return false;
+            } finally {
+                try {
+                    socket.setSoTimeout(oldTimeout);
+                } catch (IOException e) {
+                    // socket is unusable anyway, it will be closed
+                }
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * ContentCoding Class
+ *
+ * The HTTP content codings the cache understands (RFC 7231 section 3.1.2):
+ * gzip and deflate. Objects are stored in the cache in one of these codings
+ * and decoded as a stream when they are read. Also decides which media
+ * types are worth compressing when the server sent them uncompressed.
+ *
+ * @author James MacIsaac
+ */
+public final class ContentCoding {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int BUFFER = 65536; // decoder input buffer
+
+    private ContentCoding() {
+    }
+
+    /**
+     * @param header value of a Content-Encoding header, may be null
+     * @return the coding in lower case, or null for identity
+     */
+    public static String normalize(String header) {
+        if (header == null) {
+            return null;
+        }
+        String enc = header.trim().toLowerCase();
+        if (enc.equals("x-gzip")) {
+            return GZIP;
+        }
+        return enc.isEmpty() || enc.equals("identity") ? null : enc;
+    }
+
+    /**
+     * @param enc a normalized coding
+     * @return true if the coding can be decoded
+     */
+    public static boolean isSupported(String enc) {
+        return enc == null || enc.equals(GZIP) || enc.equals(DEFLATE);
+    }
+
+    /**
+     * Wraps a stream of encoded bytes in a decoder. A deflate body may be
+     * zlib-wrapped, as the specification says, or raw deflate, as some
+     * servers send it; the first two bytes tell which.
+     *
+     * @author James MacIsaac
+     * @param in the encoded bytes
+     * @param enc a normalized coding
+     * @return a stream of the decoded bytes
+     * @throws IOException if the coding is not supported or the data is not
+     * in it
+     */
+    public static InputStream decode(InputStream in, String enc) throws IOException {
+        if (enc == null) {
+            return in;
+        }
+        if (enc.equals(GZIP)) {
+            return new GZIPInputStream(in, BUFFER);
+        }
+        if (enc.equals(DEFLATE)) {
+            BufferedInputStream b = new BufferedInputStream(in, BUFFER);
+            b.mark(2);
+            int cmf = b.read(), flg = b.read();
+            b.reset();
+            boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            return new InflaterInputStream(b, new Inflater(!zlib), BUFFER);
+        }
+        throw new IOException("Unsupported Content-Encoding: " + enc);
+    }
+
+    /**
+     * Works out the decoded size of an encoded file. For gzip this is read
+     * from the trailer (which holds it modulo 2^32, so files of 4 GB or more
+     * decoded are not supported); a deflate file is decoded to count it.
+     *
+     * @author James MacIsaac
+     * @param file the encoded file
+     * @param enc a normalized coding
+     * @return the decoded size, or -1 if it cannot be worked out
+     */
+    public static long decodedLength(File file, String enc) {
+        try {
+            if (enc == null) {
+                return file.length();
+            }
+            if (enc.equals(GZIP)) {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    if (raf.length() < 18) { // shorter than header + trailer
+                        return -1;
+                    }
+                    raf.seek(raf.length() - 4);
+                    return Integer.reverseBytes(raf.readInt()) & 0xffffffffL;
+                } finally {
+                    raf.close();
+                }
+            }
+            if (enc.equals(DEFLATE)) {
+                InputStream in = decode(new FileInputStream(file), enc);
+                try {
+                    long n = 0, r;
+                    byte[] buf = new byte[BUFFER];
+                    while ((r = in.read(buf)) != -1) {
+                        n += r;
+                    }
+                    return n;
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            // unknown
+        }
+        return -1;
+    }
+
+    /**
+     * Text-like media types compress well; images, audio, video and
+     * archives are usually compressed already
+     *
+     * @param contentType value of a Content-Type header, may be null
+     * @return true if objects of the type are worth storing compressed
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        int semi = type.indexOf(';');
+        if (semi != -1) {
+            type = type.substring(0, semi);
+        }
+        type = type.trim();
+        return type.startsWith("text/")
+                || type.endsWith("+xml")
+                || type.endsWith("+json")
+                || type.equals("application/json")
+                || type.equals("application/xml")
+                || type.equals("application/javascript")
+                || type.equals("application/x-javascript")
+                || type.equals("application/ecmascript")
+                || type.equals("application/postscript")
+                || type.equals("image/svg+xml")
+                || type.equals("image/bmp")
+                || type.equals("application/x-tar");
+    }
+}
@@ -0,0 +1,359 @@
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DiskQuota Class
+ *
+ * Keeps the cached bodies within a byte budget. The size of every
+ * cached object is tracked in an access-ordered map, so recording a download
+ * or a use and finding the least recently used object are constant-time and
+ * the directory tree is never scanned. When the total goes over the budget a
+ * background thread evicts least recently used objects until the total is
+ * back under LOW_WATER of the budget, so a burst of downloads does not
+ * trigger an eviction per file.
+ *
+ * Objects whose bodies are stored once in a shared blob (see BlobStore) are
+ * charged once per blob: the blob's bytes count against the budget when
+ * the first object using it is recorded and are credited back when the
+ * last one is evicted or removed. Evicting one of several objects that
+ * share a blob frees nothing, so eviction goes on down the LRU order until
+ * enough blobs have lost their last object.
+ *
+ * What an eviction does (deleting the file and the catalog entry) is left to
+ * the Evictor given to the constructor. An eviction that fails is counted
+ * and the object is no longer tracked; reporting the failure is left to the
+ * Evictor, as this class writes nothing to the console.
+ *
+ * @author James MacIsaac
+ */
+public class DiskQuota {
+
+    private static final double LOW_WATER = 0.9; // evict down to this share of the budget
+
+    /**
+     * Removes one object from the cache
+     */
+    public interface Evictor {
+
+        /**
+         * @param key cache key of the object
+         * @return false if the object cannot be evicted right now (e.g. it
+         * is being downloaded); it is then treated as just used
+         * @throws UrlCacheException if the object could not be removed
+         */
+        boolean evict(String key) throws UrlCacheException;
+    }
+
+    private final LinkedHashMap<String, Long> sizes; // cache key -> bytes, LRU -> MRU
+    private final HashMap<String, String> blobOf; // cache key -> blob, for objects kept in one
+    private final HashMap<String, Integer> refs; // blob -> tracked objects kept in it
+    private final Evictor evictor;
+    private long limit; // max total bytes, Long.MAX_VALUE if unlimited
+    private long used; // bytes charged, each blob once
+    private long evictions;
+    private long evictedBytes;
+    private long failures; // evictions that threw
+    private Thread worker;
+    private boolean closed;
+
+    /**
+     * @param limit max total bytes, Long.MAX_VALUE for no limit
+     * @param evictor removes the objects chosen for eviction
+     */
+    public DiskQuota(long limit, Evictor evictor) {
+        this.sizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        this.blobOf = new HashMap<String, String>();
+        this.refs = new HashMap<String, Integer>();
+        this.evictor = evictor;
+        this.limit = limit;
+    }
+
+    /**
+     * Records the size of a newly written object and marks it as just used
+     *
+     * @author James MacIsaac
+     * @param key cache key
+     * @param size bytes in the object's file
+     */
+    public synchronized void record(String key, long size) {
+        record(key, size, null);
+    }
+
+    /**
+     * Records the size of a newly written object kept in a blob, which is
+     * charged only if no other tracked object is kept in it, and marks the
+     * object as just used
+     *
+     * @author James MacIsaac
+     * @param key cache key
+     * @param size bytes in the blob
+     * @param blob hash of the blob, or null if the object has a file of its
+     * own
+     */
+    public synchronized void record(String key, long size, String blob) {
+        uncharge(key);
+        charge(key, size, blob);
+        checkLimit();
+    }
+
+    /**
+     * Adds objects that were cached before the quota started tracking, as
+     * less recently used than every object recorded since. Objects already
+     * tracked keep their size and place.
+     *
+     * @author James MacIsaac
+     * @param lruFirst cache key -> bytes, least recently used first
+     * @param blobs cache key -> blob, for the objects kept in one
+     */
+    public synchronized void preload(List<Map.Entry<String, Long>> lruFirst, Map<String, String> blobs) {
+        LinkedHashMap<String, Long> recent = new LinkedHashMap<String, Long>(sizes); // LRU -> MRU
+        HashMap<String, String> recentBlobs = new HashMap<String, String>(blobOf);
+        sizes.clear();
+        blobOf.clear();
+        refs.clear();
+        used = 0;
+        for (Map.Entry<String, Long> me : lruFirst) {
+            if (!recent.containsKey(me.getKey())) {
+                charge(me.getKey(), me.getValue(), blobs.get(me.getKey()));
+            }
+        }
+        for (Map.Entry<String, Long> me : recent.entrySet()) {
+            charge(me.getKey(), me.getValue(), recentBlobs.get(me.getKey()));
+        }
+        checkLimit();
+    }
+
+    /**
+     * Marks an object as just used
+     *
+     * @author James MacIsaac
+     * @param key cache key
+     */
+    public synchronized void touch(String key) {
+        sizes.get(key); // moves the key to the MRU end
+    }
+
+    /**
+     * Stops tracking an object that was removed from the cache
+     *
+     * @author James MacIsaac
+     * @param key cache key
+     */
+    public synchronized void remove(String key) {
+        uncharge(key);
+    }
+
+    /**
+     * Changes the budget, evicting in the background if the cache is now
+     * over it
+     *
+     * @author James MacIsaac
+     * @param limit max total bytes, Long.MAX_VALUE for no limit
+     */
+    public synchronized void setLimit(long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.limit = limit;
+        checkLimit();
+    }
+
+    /**
+     * Stops the eviction thread
+     *
+     * @author James MacIsaac
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return total bytes of the tracked objects, each shared blob counted
+     * once
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized int getCount() {
+        return sizes.size();
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    /**
+     * @return evictions that failed, whose objects are no longer tracked
+     */
+    public synchronized long getFailedEvictions() {
+        return failures;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiskQuota[objects=" + sizes.size() + ", bytes=" + used + "/"
+                + (limit == Long.MAX_VALUE ? "unlimited" : String.valueOf(limit))
+                + ", evictions=" + evictions + ", evictedBytes=" + evictedBytes + ", failed=" + failures + "]";
+    }
+
+    /**
+     * Wakes the eviction thread, starting it on first use, if the budget is
+     * exceeded. Must hold the lock.
+     */
+    private void checkLimit() {
+        if (used <= limit || closed) {
+            return;
+        }
+        if (worker == null) {
+            worker = new Thread(this::evictLoop, "UrlCache-evictor");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Body of the eviction thread. Victims are chosen under the lock but
+     * evicted outside it, so recording downloads never waits for a file to
+     * be deleted.
+     */
+    private void evictLoop() {
+        while (true) {
+            synchronized (this) {
+                while (!closed && used <= limit) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            // once over the budget, go on down to the low-water mark
+            int refused = 0; // victims in a row that could not be evicted
+            Victim victim;
+            while ((victim = nextVictim(refused)) != null) {
+                boolean evicted;
+                try {
+                    evicted = evictor.evict(victim.key);
+                } catch (UrlCacheException e) {
+                    synchronized (this) {
+                        failures++;
+                    }
+                    continue; // stop tracking it rather than retry forever
+                }
+                synchronized (this) {
+                    if (evicted) {
+                        evictions++;
+                        evictedBytes += victim.freed;
+                        refused = 0;
+                    } else {
+                        refused++;
+                        if (!sizes.containsKey(victim.key)) {
+                            charge(victim.key, victim.size, victim.blob);
+                        }
+                    }
+                }
+            }
+            if (refused > 0) {
+                try {
+                    Thread.sleep(1000); // everything left is busy, try again later
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the least recently used object out of the map, or returns null
+     * if the total is under the low-water mark or every object has been
+     * refused since the last successful eviction
+     */
+    private synchronized Victim nextVictim(int refused) {
+        if (closed || used <= (long) (limit * LOW_WATER) || sizes.isEmpty() || refused >= sizes.size()) {
+            return null;
+        }
+        Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+        Map.Entry<String, Long> lru = it.next();
+        String key = lru.getKey();
+        long size = lru.getValue();
+        String blob = blobOf.get(key);
+        return new Victim(key, size, blob, uncharge(key));
+    }
+
+    /**
+     * Starts tracking an object, charging its bytes unless its blob is
+     * charged already. Must hold the lock.
+     */
+    private void charge(String key, long size, String blob) {
+        sizes.put(key, size);
+        if (blob == null) {
+            used += size;
+        } else {
+            blobOf.put(key, blob);
+            if (refs.merge(blob, 1, Integer::sum) == 1) {
+                used += size;
+            }
+        }
+    }
+
+    /**
+     * Stops tracking an object, crediting its bytes back unless other
+     * tracked objects share its blob. Must hold the lock.
+     *
+     * @return bytes credited
+     */
+    private long uncharge(String key) {
+        Long size = sizes.remove(key);
+        if (size == null) {
+            return 0;
+        }
+        String blob = blobOf.remove(key);
+        if (blob != null) {
+            int left = refs.get(blob) - 1;
+            if (left > 0) {
+                refs.put(blob, left);
+                return 0;
+            }
+            refs.remove(blob);
+        }
+        used -= size;
+        return size;
+    }
+
+    /**
+     * An object taken out of the map to be evicted, with what it takes to
+     * put it back
+     */
+    private static final class Victim {
+
+        final String key;
+        final long size;
+        final String blob; // null if the object has a file of its own
+        final long freed; // bytes credited when it was taken out
+
+        Victim(String key, long size, String blob, long freed) {
+            this.key = key;
+            this.size = size;
+            this.blob = blob;
+            this.freed = freed;
+        }
+    }
+}
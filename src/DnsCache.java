@@ -0,0 +1,240 @@
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DnsCache Class
+ *
+ * Remembers what a HostResolver answered for each host name for a fixed
+ * time, so opening another connection to a host does not look its name up
+ * again. A name that failed to resolve is remembered for a shorter time, so
+ * a dead host does not send every request to the name server. Threads that
+ * want the same name while it is being looked up wait for that one lookup.
+ *
+ * The JVM keeps its own cache behind InetAddress, but with a policy set per
+ * process (networkaddress.cache.ttl); this one is per cache, can be cleared
+ * for one host after its addresses stop answering, and lets the resolver be
+ * replaced.
+ *
+ * @author James MacIsaac
+ */
+public class DnsCache {
+
+    private static final long TTL = 60000; // default ms an answer is kept
+    private static final long NEGATIVE_TTL = 10000; // default ms a failed lookup is kept
+
+    private final ConcurrentHashMap<String, Entry> entries; // host -> last answer
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> lookups; // host -> lookup in progress
+    private final AtomicLong hits; // names answered from the cache
+    private final AtomicLong misses; // names passed to the resolver
+    private final AtomicLong failures; // lookups that did not resolve
+    private volatile HostResolver resolver;
+    private volatile long ttl; // ns
+    private volatile long negativeTtl; // ns
+
+    /**
+     * Default constructor: the JVM's resolver, answers kept for a minute
+     */
+    public DnsCache() {
+        this(HostResolver.SYSTEM, TTL, NEGATIVE_TTL);
+    }
+
+    /**
+     * @param resolver where names not in the cache are looked up
+     * @param ttl ms an answer is kept, 0 to keep none
+     * @param negativeTtl ms a failed lookup is kept, 0 to keep none
+     */
+    public DnsCache(HostResolver resolver, long ttl, long negativeTtl) {
+        if (resolver == null) {
+            throw new IllegalArgumentException("resolver must not be null");
+        }
+        this.entries = new ConcurrentHashMap<String, Entry>();
+        this.lookups = new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.failures = new AtomicLong();
+        this.resolver = resolver;
+        setTtl(ttl, negativeTtl);
+    }
+
+    /**
+     * Returns the addresses of a host, from the cache if an answer has not
+     * yet expired and from the resolver otherwise
+     *
+     * @author James MacIsaac
+     * @param host
+     * @return the host's addresses, in the order to try them
+     * @throws UnknownHostException if the name does not resolve, now or
+     * when last looked up
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        Entry e = entries.get(host);
+        if (e != null && System.nanoTime() - e.expires < 0) {
+            hits.incrementAndGet();
+            return e.get(host);
+        }
+        CompletableFuture<Entry> mine = new CompletableFuture<Entry>();
+        CompletableFuture<Entry> other = lookups.putIfAbsent(host, mine);
+        if (other != null) {
+            hits.incrementAndGet(); // answered by the lookup already running
+            try {
+                return other.get().get(host);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new UnknownHostException(host + ": interrupted");
+            } catch (ExecutionException ex) {
+                throw new UnknownHostException(host + ": " + ex.getCause());
+            }
+        }
+        misses.incrementAndGet();
+        try {
+            long start = System.nanoTime();
+            try {
+                InetAddress[] addresses = resolver.resolve(host);
+                if (addresses == null || addresses.length == 0) {
+                    throw new UnknownHostException(host);
+                }
+                e = new Entry(addresses.clone(), null, start + ttl);
+            } catch (UnknownHostException ex) {
+                failures.incrementAndGet();
+                e = new Entry(null, ex.getMessage(), start + negativeTtl);
+            }
+            entries.put(host, e);
+            mine.complete(e);
+            return e.get(host);
+        } catch (RuntimeException ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            lookups.remove(host, mine);
+        }
+    }
+
+    /**
+     * Forgets the answer for one host, e.g. after none of its addresses
+     * could be connected to
+     *
+     * @author James MacIsaac
+     * @param host
+     */
+    public void invalidate(String host) {
+        entries.remove(host);
+    }
+
+    /**
+     * Forgets every answer
+     *
+     * @author James MacIsaac
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Replaces the resolver and forgets the answers of the old one
+     *
+     * @author James MacIsaac
+     * @param resolver
+     */
+    public void setResolver(HostResolver resolver) {
+        if (resolver == null) {
+            throw new IllegalArgumentException("resolver must not be null");
+        }
+        this.resolver = resolver;
+        clear();
+    }
+
+    public HostResolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * Changes how long answers are kept, from the next lookup on
+     *
+     * @author James MacIsaac
+     * @param ttl ms an answer is kept, 0 to keep none
+     * @param negativeTtl ms a failed lookup is kept, 0 to keep none
+     */
+    public void setTtl(long ttl, long negativeTtl) {
+        if (ttl < 0 || negativeTtl < 0) {
+            throw new IllegalArgumentException("ttl must not be negative");
+        }
+        this.ttl = ttl * 1000000L;
+        this.negativeTtl = negativeTtl * 1000000L;
+    }
+
+    /**
+     * @return ms an answer is kept
+     */
+    public long getTtl() {
+        return ttl / 1000000L;
+    }
+
+    /**
+     * @return ms a failed lookup is kept
+     */
+    public long getNegativeTtl() {
+        return negativeTtl / 1000000L;
+    }
+
+    /**
+     * @return names answered without asking the resolver
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return names passed to the resolver
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return lookups that did not resolve
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return hosts with an answer, expired or not
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DnsCache[hosts=" + entries.size() + ", hits=" + hits + ", misses=" + misses
+                + ", failures=" + failures + "]";
+    }
+
+    /**
+     * One answer: the addresses, or why there were none
+     */
+    private static class Entry {
+
+        final InetAddress[] addresses; // null if the lookup failed
+        final String failure;
+        final long expires; // System.nanoTime() after which the answer is looked up again
+
+        Entry(InetAddress[] addresses, String failure, long expires) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expires = expires;
+        }
+
+        InetAddress[] get(String host) throws UnknownHostException {
+            if (addresses == null) {
+                throw new UnknownHostException(failure != null ? failure : host);
+            }
+            return addresses.clone();
+        }
+    }
+}
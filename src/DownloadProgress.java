@@ -0,0 +1,243 @@
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * DownloadProgress Class
+ *
+ * How far a segmented download of one object has got: the object's length
+ * and validators, and for each segment the byte range it covers and how
+ * many of those bytes are already in the partial file. The record is saved
+ * next to the partial file so a download cut off by an error or a crash is
+ * resumed with Range requests rather than started again; the validator is
+ * sent in If-Range, so a server whose copy has changed since answers with
+ * the whole new object instead.
+ *
+ * Saved as text, one field per line:
+ * length=N, etag=TAG, lastModified=DATE (either may be missing) and one
+ * segment=START-END:DONE line per segment, END inclusive.
+ *
+ * The counts are updated by the threads downloading the segments, so the
+ * methods that read or change them are synchronized.
+ *
+ * @author James MacIsaac
+ */
+public final class DownloadProgress {
+
+    private final long length;
+    private final String etag; // may be null
+    private final String lastModified; // Last-Modified header value, may be null
+    private final long[] starts;
+    private final long[] ends; // inclusive
+    private final long[] done; // bytes of each segment in the partial file
+
+    private DownloadProgress(long length, String etag, String lastModified, long[] starts, long[] ends, long[] done) {
+        this.length = length;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.starts = starts;
+        this.ends = ends;
+        this.done = done;
+    }
+
+    /**
+     * Splits an object into segments of about equal size
+     *
+     * @author James MacIsaac
+     * @param length bytes in the object, at least 1
+     * @param etag ETag header value, may be null
+     * @param lastModified Last-Modified header value, may be null
+     * @param segments number of segments wanted
+     * @param minSegment smallest segment worth its own request
+     * @return DownloadProgress with nothing done
+     */
+    public static DownloadProgress plan(long length, String etag, String lastModified, int segments, long minSegment) {
+        int n = (int) Math.max(1, Math.min(segments, length / Math.max(1, minSegment)));
+        long[] starts = new long[n];
+        long[] ends = new long[n];
+        for (int i = 0; i < n; i++) {
+            starts[i] = length * i / n;
+            ends[i] = length * (i + 1) / n - 1;
+        }
+        return new DownloadProgress(length, etag, lastModified, starts, ends, new long[n]);
+    }
+
+    /**
+     * Reads a saved record
+     *
+     * @author James MacIsaac
+     * @param file
+     * @return DownloadProgress, or null if the file is missing or not a
+     * complete record
+     */
+    public static DownloadProgress load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        long length = -1;
+        String etag = null, lastModified = null;
+        long[] starts = new long[0], ends = new long[0], done = new long[0];
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int eq = line.indexOf('=');
+                if (eq == -1) {
+                    continue;
+                }
+                String name = line.substring(0, eq), value = line.substring(eq + 1);
+                if (name.equals("length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equals("etag")) {
+                    etag = value;
+                } else if (name.equals("lastModified")) {
+                    lastModified = value;
+                } else if (name.equals("segment")) {
+                    int dash = value.indexOf('-'), colon = value.indexOf(':');
+                    int n = starts.length;
+                    starts = Arrays.copyOf(starts, n + 1);
+                    ends = Arrays.copyOf(ends, n + 1);
+                    done = Arrays.copyOf(done, n + 1);
+                    starts[n] = Long.parseLong(value.substring(0, dash));
+                    ends[n] = Long.parseLong(value.substring(dash + 1, colon));
+                    done[n] = Long.parseLong(value.substring(colon + 1));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        // the segments must cover the object exactly, in order
+        long next = 0;
+        for (int i = 0; i < starts.length; i++) {
+            if (starts[i] != next || ends[i] < starts[i] || done[i] < 0 || done[i] > ends[i] - starts[i] + 1) {
+                return null;
+            }
+            next = ends[i] + 1;
+        }
+        DownloadProgress progress = new DownloadProgress(length, etag, lastModified, starts, ends, done);
+        return length <= 0 || next != length || progress.getIfRange() == null ? null : progress;
+    }
+
+    /**
+     * Writes the record to a temporary file and renames it over file, so a
+     * crash leaves either the old record or the new one
+     *
+     * @author James MacIsaac
+     * @param file
+     * @throws IOException
+     */
+    public synchronized void save(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("length=").append(length).append('\n');
+        if (etag != null) {
+            sb.append("etag=").append(etag).append('\n');
+        }
+        if (lastModified != null) {
+            sb.append("lastModified=").append(lastModified).append('\n');
+        }
+        for (int i = 0; i < starts.length; i++) {
+            sb.append("segment=").append(starts[i]).append('-').append(ends[i]).append(':').append(done[i]).append('\n');
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return bytes in the object
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the value to send in If-Range: the ETag if it is a strong
+     * one, otherwise the Last-Modified date
+     */
+    public String getIfRange() {
+        return etag != null && !etag.startsWith("W/") ? etag : lastModified;
+    }
+
+    public int getSegments() {
+        return starts.length;
+    }
+
+    /**
+     * @param i segment
+     * @return offset of the first byte of the segment not yet downloaded
+     */
+    public synchronized long getPosition(int i) {
+        return starts[i] + done[i];
+    }
+
+    /**
+     * @param i segment
+     * @return offset of the last byte of the segment
+     */
+    public long getEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * @param i segment
+     * @return bytes of the segment not yet downloaded
+     */
+    public synchronized long getRemaining(int i) {
+        return ends[i] - starts[i] + 1 - done[i];
+    }
+
+    /**
+     * Records bytes written to the partial file for a segment
+     *
+     * @param i segment
+     * @param bytes
+     */
+    public synchronized void advance(int i, long bytes) {
+        done[i] += bytes;
+    }
+
+    /**
+     * @return bytes of the object already downloaded
+     */
+    public synchronized long getDone() {
+        long total = 0;
+        for (long d : done) {
+            total += d;
+        }
+        return total;
+    }
+
+    /**
+     * @return true once every segment has been downloaded
+     */
+    public boolean isComplete() {
+        return getDone() == length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DownloadProgress[length=" + length + ", segments=" + starts.length + ", done=" + getDone() + "]";
+    }
+}
@@ -0,0 +1,216 @@
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FetchMetrics Class
+ *
+ * Where the time of a UrlCache goes: per-host timings and counts
+ * (HostMetrics), how each request was answered (FetchStatus), and how long
+ * catalog writes take. Recording is cheap and always on. snapshot() gives a
+ * consistent copy to report from; the live object can also be exposed over
+ * JMX with UrlCache.registerMBean().
+ *
+ * The hit ratio counts a 304 as a hit, since the object itself came from
+ * the cache.
+ *
+ * @author James MacIsaac
+ */
+public class FetchMetrics implements FetchMetricsMBean {
+
+    private final ConcurrentHashMap<String, HostMetrics> hosts; // host key -> metrics
+    private final EnumMap<FetchStatus, Long> outcomes;
+    private final Histogram catalogWrites;
+
+    /**
+     * @param catalogWrites the catalog's write times, shared rather than
+     * copied
+     */
+    public FetchMetrics(Histogram catalogWrites) {
+        this.hosts = new ConcurrentHashMap<String, HostMetrics>();
+        this.outcomes = new EnumMap<FetchStatus, Long>(FetchStatus.class);
+        this.catalogWrites = catalogWrites;
+    }
+
+    /**
+     * @param hostKey host:port of a server
+     * @return the live metrics of that host, created if needed
+     */
+    HostMetrics forHost(String hostKey) {
+        return hosts.computeIfAbsent(hostKey, k -> new HostMetrics());
+    }
+
+    /**
+     * @param status how a request was answered
+     */
+    synchronized void recordOutcome(FetchStatus status) {
+        outcomes.merge(status, 1L, Long::sum);
+    }
+
+    /**
+     * @return a copy that later recordings do not change
+     */
+    public FetchMetrics snapshot() {
+        FetchMetrics m = new FetchMetrics(catalogWrites.copy());
+        for (Map.Entry<String, HostMetrics> me : hosts.entrySet()) {
+            m.hosts.put(me.getKey(), me.getValue().copy());
+        }
+        synchronized (this) {
+            m.outcomes.putAll(outcomes);
+        }
+        return m;
+    }
+
+    /**
+     * @return host key -> metrics, sorted by host
+     */
+    public Map<String, HostMetrics> getHostMetrics() {
+        return Collections.unmodifiableMap(new TreeMap<String, HostMetrics>(hosts));
+    }
+
+    /**
+     * @return the metrics of every host added together
+     */
+    public HostMetrics getTotals() {
+        HostMetrics total = new HostMetrics();
+        for (HostMetrics h : hosts.values()) {
+            total.add(h);
+        }
+        return total;
+    }
+
+    /**
+     * @param status
+     * @return requests answered that way
+     */
+    public synchronized long getOutcomes(FetchStatus status) {
+        Long n = outcomes.get(status);
+        return n == null ? 0 : n;
+    }
+
+    /**
+     * @return time taken by each catalog flush and compaction
+     */
+    public Histogram getCatalogWriteTimes() {
+        return catalogWrites;
+    }
+
+    @Override
+    public synchronized double getHitRatio() {
+        long total = 0;
+        for (long n : outcomes.values()) {
+            total += n;
+        }
+        long hits = getOutcomes(FetchStatus.FRESH) + getOutcomes(FetchStatus.STALE) + getOutcomes(FetchStatus.NOT_MODIFIED);
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    @Override
+    public long getFreshHits() {
+        return getOutcomes(FetchStatus.FRESH);
+    }
+
+    @Override
+    public long getStaleHits() {
+        return getOutcomes(FetchStatus.STALE);
+    }
+
+    @Override
+    public long getNotModified() {
+        return getOutcomes(FetchStatus.NOT_MODIFIED);
+    }
+
+    @Override
+    public long getDownloads() {
+        return getOutcomes(FetchStatus.DOWNLOADED);
+    }
+
+    @Override
+    public long getResponses() {
+        return getTotals().getResponses();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return getTotals().getBytesReceived();
+    }
+
+    @Override
+    public String getStatusCounts() {
+        return getTotals().getStatusCounts().toString();
+    }
+
+    @Override
+    public double getMeanResolveTime() {
+        return getTotals().getResolveTimes().getMean();
+    }
+
+    @Override
+    public double getMeanConnectTime() {
+        return getTotals().getConnectTimes().getMean();
+    }
+
+    @Override
+    public double getMeanFirstByteTime() {
+        return getTotals().getFirstByteTimes().getMean();
+    }
+
+    @Override
+    public long getP99FirstByteTime() {
+        return getTotals().getFirstByteTimes().getPercentile(0.99);
+    }
+
+    @Override
+    public double getMeanHeaderParseTime() {
+        return getTotals().getHeaderParseTimes().getMean();
+    }
+
+    @Override
+    public double getMeanTransferTime() {
+        return getTotals().getTransferTimes().getMean();
+    }
+
+    @Override
+    public long getP99TransferTime() {
+        return getTotals().getTransferTimes().getPercentile(0.99);
+    }
+
+    @Override
+    public double getMeanCatalogWriteTime() {
+        return catalogWrites.getMean();
+    }
+
+    @Override
+    public long getMaxCatalogWriteTime() {
+        return catalogWrites.getMax();
+    }
+
+    @Override
+    public String[] getHosts() {
+        Map<String, HostMetrics> sorted = getHostMetrics();
+        String[] lines = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String, HostMetrics> me : sorted.entrySet()) {
+            lines[i++] = me.getKey() + ": " + me.getValue();
+        }
+        return lines;
+    }
+
+    @Override
+    public String toString() {
+        FetchMetrics m = snapshot();
+        StringBuilder sb = new StringBuilder("FetchMetrics[");
+        synchronized (m) {
+            sb.append("hitRatio=").append(String.format("%.3f", m.getHitRatio()))
+                    .append(" outcomes=").append(m.outcomes);
+        }
+        sb.append(" catalogWrites[").append(m.catalogWrites).append(']');
+        for (String line : m.getHosts()) {
+            sb.append(", ").append(line);
+        }
+        return sb.append(']').toString();
+    }
+}
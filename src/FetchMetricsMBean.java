@@ -0,0 +1,58 @@
+
+/**
+ * FetchMetricsMBean Interface
+ *
+ * The management interface of FetchMetrics, registered by
+ * UrlCache.registerMBean(). Times are in microseconds and cover all hosts;
+ * getHosts() gives one summary line per host.
+ *
+ * @author James MacIsaac
+ */
+public interface FetchMetricsMBean {
+
+    /**
+     * @return fraction of requests answered from the cache (fresh, stale or
+     * 304), 0 if there have been none
+     */
+    double getHitRatio();
+
+    long getFreshHits();
+
+    long getStaleHits();
+
+    long getNotModified();
+
+    long getDownloads();
+
+    long getResponses();
+
+    long getBytesReceived();
+
+    /**
+     * @return status code -> responses, e.g. "{200=10, 304=4}"
+     */
+    String getStatusCounts();
+
+    double getMeanResolveTime();
+
+    double getMeanConnectTime();
+
+    double getMeanFirstByteTime();
+
+    long getP99FirstByteTime();
+
+    double getMeanHeaderParseTime();
+
+    double getMeanTransferTime();
+
+    long getP99TransferTime();
+
+    double getMeanCatalogWriteTime();
+
+    long getMaxCatalogWriteTime();
+
+    /**
+     * @return "host:port: summary" for every host contacted
+     */
+    String[] getHosts();
+}
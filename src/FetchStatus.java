@@ -0,0 +1,28 @@
+
+/**
+ * FetchStatus Enum
+ *
+ * What a request for an object ended up doing
+ *
+ * @author James MacIsaac
+ */
+public enum FetchStatus {
+
+    /**
+     * The server sent a new copy (200), which replaced the cached file
+     */
+    DOWNLOADED,
+    /**
+     * The server confirmed the cached copy is current (304)
+     */
+    NOT_MODIFIED,
+    /**
+     * The cached copy was still fresh, so the server was not asked
+     */
+    FRESH,
+    /**
+     * The cached copy was used although it is stale, and queued for
+     * revalidation in the background (stale-while-revalidate mode)
+     */
+    STALE
+}
@@ -0,0 +1,263 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * HeaderParser Class
+ *
+ * Finds the end of an HTTP response header and splits it into the status
+ * line and header fields in a single pass over a byte buffer that is kept
+ * and reused from one response to the next. Bytes can be pushed in as they
+ * arrive with feed(), or pulled from a stream with parse(), which reads the
+ * stream in blocks and leaves it positioned at the first byte of the body.
+ *
+ * A parser holds the state of one header at a time and is not thread-safe;
+ * each connection keeps its own.
+ *
+ * @author James MacIsaac
+ */
+public class HeaderParser {
+
+    private static final int MAX_HEADER = 65536; // reject headers larger than this
+    private static final int BLOCK = 4096; // bytes read from the stream at a time
+
+    private byte[] buf; // header bytes received so far
+    private int len; // bytes of buf in use
+    private int[] lines; // start/end offset pairs of complete lines
+    private int lineCount;
+    private int lineStart; // offset of the line being received
+    private boolean complete;
+
+    public HeaderParser() {
+        buf = new byte[BLOCK];
+        lines = new int[64];
+    }
+
+    /**
+     * Forgets the previous header so the parser can take a new one. The
+     * buffers are kept.
+     *
+     * @author James MacIsaac
+     */
+    public void reset() {
+        len = 0;
+        lineCount = 0;
+        lineStart = 0;
+        complete = false;
+    }
+
+    /**
+     * @return true once the empty line ending the header has been seen
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return bytes of the header received so far, including the empty line
+     * once it is complete
+     */
+    public int getLength() {
+        return len;
+    }
+
+    /**
+     * Pushes received bytes into the parser. Stops at the end of the header;
+     * any bytes after it belong to the body and are not consumed. The bytes
+     * are taken a line at a time, so the body bytes that arrive with the end
+     * of the header are never buffered or counted against its size limit.
+     *
+     * @author James MacIsaac
+     * @param data
+     * @param off
+     * @param n
+     * @return number of bytes consumed
+     * @throws UrlCacheException if the header is too large
+     */
+    public int feed(byte[] data, int off, int n) throws UrlCacheException {
+        int used = 0;
+        while (used < n && !complete) {
+            int start = off + used;
+            int stop = off + n;
+            int end = start;
+            while (end < stop && data[end++] != '\n') {
+                // up to and including the next line end
+            }
+            ensureCapacity(end - start);
+            System.arraycopy(data, start, buf, len, end - start);
+            int from = len;
+            len += end - start;
+            scan(from);
+            used += end - start;
+        }
+        return used;
+    }
+
+    /**
+     * Reads a complete header from the stream. With a stream that supports
+     * mark/reset (such as a BufferedInputStream) the header is read in
+     * blocks and the stream is then rewound to the end of the header; other
+     * streams are read one byte at a time.
+     *
+     * @author James MacIsaac
+     * @param in
+     * @return HttpHeader
+     * @throws UrlCacheException if the stream ends early or the header is
+     * malformed
+     */
+    public HttpHeader parse(InputStream in) throws UrlCacheException {
+        reset();
+        try {
+            boolean blocks = in.markSupported();
+            while (!complete) {
+                int want = blocks ? BLOCK : 1;
+                ensureCapacity(want);
+                if (blocks) {
+                    in.mark(want);
+                }
+                int n = in.read(buf, len, want);
+                if (n == -1) { // connection closed before the header ended
+                    throw new UrlCacheException("Connection closed by server");
+                }
+                int from = len;
+                len += n;
+                int end = scan(from);
+                if (complete && blocks) {
+                    in.reset(); // give the body bytes back to the stream
+                    skipFully(in, end - from);
+                }
+            }
+        } catch (IOException e) {
+            throw new UrlCacheException("Error reading response header");
+        }
+        return getHeader();
+    }
+
+    /**
+     * Builds the parsed header. Field names and values are the only strings
+     * created.
+     *
+     * @author James MacIsaac
+     * @return HttpHeader
+     * @throws UrlCacheException if the header is incomplete or the status line
+     * is malformed
+     */
+    public HttpHeader getHeader() throws UrlCacheException {
+        if (!complete || lineCount == 0) {
+            throw new UrlCacheException("Response Header Error");
+        }
+        int s = lines[0], e = lines[1];
+        String statusLine = new String(buf, s, e - s, StandardCharsets.ISO_8859_1);
+        // HTTP/x.y SP 3DIGIT [SP reason]
+        int sp = indexOf((byte) ' ', s, e);
+        if (sp == -1 || sp + 4 > e || !isDigit(buf[sp + 1]) || !isDigit(buf[sp + 2]) || !isDigit(buf[sp + 3])) {
+            throw new UrlCacheException("Malformed status line: " + statusLine);
+        }
+        String version = new String(buf, s, sp - s, StandardCharsets.ISO_8859_1);
+        int code = (buf[sp + 1] - '0') * 100 + (buf[sp + 2] - '0') * 10 + (buf[sp + 3] - '0');
+
+        String[] names = new String[lineCount - 1];
+        String[] values = new String[lineCount - 1];
+        int size = 0;
+        for (int i = 1; i < lineCount; i++) {
+            s = lines[2 * i];
+            e = lines[2 * i + 1];
+            if ((buf[s] == ' ' || buf[s] == '\t') && size > 0) {
+                // obsolete line folding: continues the previous value
+                values[size - 1] = values[size - 1] + " " + trimmed(s, e);
+                continue;
+            }
+            int colon = indexOf((byte) ':', s, e);
+            if (colon == -1) {
+                continue; // not a field, ignore it
+            }
+            int ne = colon;
+            while (ne > s && buf[ne - 1] == ' ') {
+                ne--;
+            }
+            names[size] = new String(buf, s, ne - s, StandardCharsets.ISO_8859_1);
+            values[size] = trimmed(colon + 1, e);
+            size++;
+        }
+        return new HttpHeader(statusLine, version, code, names, values, size);
+    }
+
+    /**
+     * Looks for line ends in buf from the given offset, recording each
+     * complete line. Stops after the empty line that ends the header.
+     *
+     * @return offset just past the last byte consumed
+     */
+    private int scan(int from) throws UrlCacheException {
+        for (int i = from; i < len; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            int end = i;
+            if (end > lineStart && buf[end - 1] == '\r') {
+                end--;
+            }
+            if (end == lineStart) { // empty line
+                if (lineCount > 0) {
+                    complete = true;
+                    len = i + 1;
+                    return len;
+                }
+                lineStart = i + 1; // tolerate blank lines before the status line
+                continue;
+            }
+            if (2 * lineCount + 2 > lines.length) {
+                lines = Arrays.copyOf(lines, lines.length * 2);
+            }
+            lines[2 * lineCount] = lineStart;
+            lines[2 * lineCount + 1] = end;
+            lineCount++;
+            lineStart = i + 1;
+        }
+        return len;
+    }
+
+    private void ensureCapacity(int extra) throws UrlCacheException {
+        if (len + extra > buf.length) {
+            if (len + extra > MAX_HEADER + BLOCK) {
+                throw new UrlCacheException("Response header too large");
+            }
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String trimmed(int s, int e) {
+        while (s < e && (buf[s] == ' ' || buf[s] == '\t')) {
+            s++;
+        }
+        while (e > s && (buf[e - 1] == ' ' || buf[e - 1] == '\t')) {
+            e--;
+        }
+        return new String(buf, s, e - s, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("Could not skip past header");
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+
+/**
+ * Histogram Class
+ *
+ * A latency histogram with power-of-two buckets of microseconds: bucket 0
+ * holds 0 us and bucket i holds [2^(i-1), 2^i) us. Recording is a few
+ * arithmetic operations and the histogram never grows, so it can sit on the
+ * request path. Percentiles are reported as the upper bound of their bucket
+ * (capped at the largest value seen), so they are within a factor of two;
+ * the count, mean, min and max are exact.
+ *
+ * @author James MacIsaac
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final long[] counts;
+    private long count;
+    private long sum; // us
+    private long min; // us
+    private long max; // us
+
+    public Histogram() {
+        counts = new long[BUCKETS];
+        min = Long.MAX_VALUE;
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds; negative values count as 0
+     */
+    public synchronized void record(long nanos) {
+        long us = Math.max(0, nanos / 1000);
+        counts[BUCKETS - Long.numberOfLeadingZeros(us)]++;
+        count++;
+        sum += us;
+        min = Math.min(min, us);
+        max = Math.max(max, us);
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one
+     *
+     * @author James MacIsaac
+     * @param other
+     */
+    public void add(Histogram other) {
+        Histogram o = other.copy(); // never hold both locks
+        synchronized (this) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += o.counts[i];
+            }
+            count += o.count;
+            sum += o.sum;
+            min = Math.min(min, o.min);
+            max = Math.max(max, o.max);
+        }
+    }
+
+    /**
+     * @return a copy that later recordings do not change
+     */
+    public synchronized Histogram copy() {
+        Histogram h = new Histogram();
+        System.arraycopy(counts, 0, h.counts, 0, BUCKETS);
+        h.count = count;
+        h.sum = sum;
+        h.min = min;
+        h.max = max;
+        return h;
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean in microseconds, 0 if empty
+     */
+    public synchronized double getMean() {
+        return count == 0 ? 0 : sum / (double) count;
+    }
+
+    /**
+     * @return smallest value in microseconds, 0 if empty
+     */
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return largest value in microseconds, 0 if empty
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @param p a fraction between 0 and 1, e.g. 0.99
+     * @return the value in microseconds that fraction p of the values do not
+     * exceed, to within its bucket; 0 if empty
+     */
+    public synchronized long getPercentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long upper = i == 0 ? 0 : (1L << i) - 1;
+                return Math.min(Math.max(upper, min), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d mean=%.1fus p50=%dus p99=%dus max=%dus",
+                count, getMean(), getPercentile(0.5), getPercentile(0.99), max);
+    }
+}
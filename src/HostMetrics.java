@@ -0,0 +1,166 @@
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HostMetrics Class
+ *
+ * Timings and counts for the responses received from one host:
+ *
+ * resolve - host name lookup, for new connections only (close to nothing
+ *           when the DnsCache already has the name)
+ * connect - TCP connect time after the lookup, for new connections only
+ * first byte - from the request being sent to the first byte of its response
+ * header parse - from that first byte to the end of the header
+ * transfer - from the end of the header to the end of the body
+ *
+ * together with the bytes received (header and body) and the number of
+ * responses with each status code.
+ *
+ * @author James MacIsaac
+ */
+public class HostMetrics {
+
+    private final Histogram resolve;
+    private final Histogram connect;
+    private final Histogram firstByte;
+    private final Histogram headerParse;
+    private final Histogram transfer;
+    private final TreeMap<Integer, Long> statusCounts; // status code -> responses
+    private long responses;
+    private long bytesReceived;
+
+    public HostMetrics() {
+        resolve = new Histogram();
+        connect = new Histogram();
+        firstByte = new Histogram();
+        headerParse = new Histogram();
+        transfer = new Histogram();
+        statusCounts = new TreeMap<Integer, Long>();
+    }
+
+    /**
+     * @param nanos time looking up the host name of a new connection took
+     */
+    void recordResolve(long nanos) {
+        resolve.record(nanos);
+    }
+
+    /**
+     * @param nanos time a new connection took to open
+     */
+    void recordConnect(long nanos) {
+        connect.record(nanos);
+    }
+
+    /**
+     * Records one response
+     *
+     * @author James MacIsaac
+     * @param status status code
+     * @param firstByteNanos request sent to first byte of the response
+     * @param parseNanos first byte to end of header
+     * @param transferNanos end of header to end of body
+     * @param bytes bytes received
+     */
+    void recordResponse(int status, long firstByteNanos, long parseNanos, long transferNanos, long bytes) {
+        firstByte.record(firstByteNanos);
+        headerParse.record(parseNanos);
+        transfer.record(transferNanos);
+        synchronized (this) {
+            statusCounts.merge(status, 1L, Long::sum);
+            responses++;
+            bytesReceived += bytes;
+        }
+    }
+
+    /**
+     * Adds the timings and counts of another host, for totals
+     *
+     * @author James MacIsaac
+     * @param other
+     */
+    void add(HostMetrics other) {
+        HostMetrics o = other.copy();
+        resolve.add(o.resolve);
+        connect.add(o.connect);
+        firstByte.add(o.firstByte);
+        headerParse.add(o.headerParse);
+        transfer.add(o.transfer);
+        synchronized (this) {
+            for (Map.Entry<Integer, Long> me : o.statusCounts.entrySet()) {
+                statusCounts.merge(me.getKey(), me.getValue(), Long::sum);
+            }
+            responses += o.responses;
+            bytesReceived += o.bytesReceived;
+        }
+    }
+
+    /**
+     * @return a copy that later recordings do not change
+     */
+    public HostMetrics copy() {
+        HostMetrics h = new HostMetrics();
+        h.resolve.add(resolve);
+        h.connect.add(connect);
+        h.firstByte.add(firstByte);
+        h.headerParse.add(headerParse);
+        h.transfer.add(transfer);
+        synchronized (this) {
+            h.statusCounts.putAll(statusCounts);
+            h.responses = responses;
+            h.bytesReceived = bytesReceived;
+        }
+        return h;
+    }
+
+    public Histogram getResolveTimes() {
+        return resolve;
+    }
+
+    public Histogram getConnectTimes() {
+        return connect;
+    }
+
+    public Histogram getFirstByteTimes() {
+        return firstByte;
+    }
+
+    public Histogram getHeaderParseTimes() {
+        return headerParse;
+    }
+
+    public Histogram getTransferTimes() {
+        return transfer;
+    }
+
+    /**
+     * @return status code -> number of responses with it
+     */
+    public synchronized Map<Integer, Long> getStatusCounts() {
+        return Collections.unmodifiableMap(new TreeMap<Integer, Long>(statusCounts));
+    }
+
+    /**
+     * @return responses received
+     */
+    public synchronized long getResponses() {
+        return responses;
+    }
+
+    /**
+     * @return bytes received, headers and bodies
+     */
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public String toString() {
+        HostMetrics h = copy();
+        return "responses=" + h.responses + " bytes=" + h.bytesReceived + " status=" + h.statusCounts
+                + " resolve[" + h.resolve + "] connect[" + h.connect + "] firstByte[" + h.firstByte + "] headerParse[" + h.headerParse
+                + "] transfer[" + h.transfer + "]";
+    }
+}
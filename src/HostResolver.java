@@ -0,0 +1,28 @@
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * HostResolver Interface
+ *
+ * Turns a host name into the addresses to connect to. DnsCache keeps the
+ * answers for a while; the resolver is only asked when it has none. SYSTEM
+ * asks the JVM, which goes to the operating system's resolver; tests and
+ * benchmarks can plug in a stub so no name server is needed.
+ *
+ * @author James MacIsaac
+ */
+public interface HostResolver {
+
+    /**
+     * The JVM's own resolver, InetAddress.getAllByName
+     */
+    HostResolver SYSTEM = InetAddress::getAllByName;
+
+    /**
+     * @param host host name or literal address
+     * @return the host's addresses, in the order to try them, at least one
+     * @throws UnknownHostException if the name does not resolve
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
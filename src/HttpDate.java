@@ -0,0 +1,64 @@
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.Locale;
+
+/**
+ * HttpDate Class
+ *
+ * Converts HTTP dates (RFC 7231 section 7.1.1.1) to and from ms since
+ * epoch. The formatters are immutable and shared, so neither direction
+ * builds a formatter per call. Dates are written in the preferred
+ * IMF-fixdate form, e.g. "Mon, 03 Oct 2016 18:22:31 GMT"; the obsolete
+ * RFC 850 and asctime forms are accepted when parsing.
+ *
+ * @author James MacIsaac
+ */
+public final class HttpDate {
+
+    private static final DateTimeFormatter IMF_FIXDATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter RFC_850 = new DateTimeFormatterBuilder() // two digit years are 1970-2069
+            .appendPattern("EEEE, dd-MMM-").appendValueReduced(ChronoField.YEAR, 2, 2, 1970)
+            .appendPattern(" HH:mm:ss 'GMT'").toFormatter(Locale.US).withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter ASCTIME =
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter[] FORMATS = {
+        IMF_FIXDATE, DateTimeFormatter.RFC_1123_DATE_TIME, RFC_850, ASCTIME
+    };
+
+    private HttpDate() {
+    }
+
+    /**
+     * @param text an HTTP date, may be null
+     * @return the time in ms since epoch, or -1 if missing or invalid
+     */
+    public static long parse(String text) {
+        if (text == null) {
+            return -1;
+        }
+        text = text.trim();
+        for (DateTimeFormatter f : FORMATS) {
+            try {
+                return ZonedDateTime.parse(text, f).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // try the next form
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param millis time in ms since epoch
+     * @return the time as an IMF-fixdate
+     */
+    public static String format(long millis) {
+        return IMF_FIXDATE.format(Instant.ofEpochMilli(millis));
+    }
+}
@@ -0,0 +1,126 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * HttpHeader Class
+ *
+ * A parsed HTTP response header: the status line split into version, status
+ * code and reason, followed by the header fields in the order received.
+ * Field lookups ignore case, as field names in HTTP are case-insensitive.
+ *
+ * @author James MacIsaac
+ */
+public class HttpHeader {
+
+    private final String statusLine;
+    private final String version;
+    private final int statusCode;
+    private final String[] names;
+    private final String[] values;
+    private final int size;
+
+    HttpHeader(String statusLine, String version, int statusCode, String[] names, String[] values, int size) {
+        this.statusLine = statusLine;
+        this.version = version;
+        this.statusCode = statusCode;
+        this.names = names;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * @return the first line of the response, e.g. "HTTP/1.1 200 OK"
+     */
+    public String getStatusLine() {
+        return statusLine;
+    }
+
+    /**
+     * @return the protocol version, e.g. "HTTP/1.1"
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the three digit status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return number of header fields (not counting the status line)
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i field index
+     * @return name of the i-th field as sent by the server
+     */
+    public String getName(int i) {
+        return names[i];
+    }
+
+    /**
+     * @param i field index
+     * @return value of the i-th field, without surrounding whitespace
+     */
+    public String getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * Returns the value of the first field with the given name, ignoring
+     * case, or null if there is no such field
+     *
+     * @author James MacIsaac
+     * @param name
+     * @return String
+     */
+    public String get(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the values of every field with the given name, ignoring case
+     *
+     * @author James MacIsaac
+     * @param name
+     * @return String[]
+     */
+    public String[] getAll(String name) {
+        ArrayList<String> all = new ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                all.add(values[i]);
+            }
+        }
+        return all.toArray(new String[all.size()]);
+    }
+
+    /**
+     * @return the header as lines of text, status line first
+     */
+    public String[] getLines() {
+        String[] lines = new String[size + 1];
+        lines[0] = statusLine;
+        for (int i = 0; i < size; i++) {
+            lines[i + 1] = names[i] + ": " + values[i];
+        }
+        return lines;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(getLines());
+    }
+}
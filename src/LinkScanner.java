@@ -0,0 +1,243 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * LinkScanner Class
+ *
+ * Finds the values of src and href attributes in an HTML body while it is
+ * downloaded, fed the body in whatever pieces it arrives in, so the objects
+ * a page links to are known before the page is complete. A small state
+ * machine over the bytes, not a parser: it knows tags, quoted and unquoted
+ * attribute values and comments, which covers the links of ordinary pages,
+ * and it never fails on malformed markup, only misses links in it. Values
+ * are passed to the sink as written, with &amp;amp; decoded, to be resolved
+ * against the page's url.
+ *
+ * @author James MacIsaac
+ */
+public final class LinkScanner {
+
+    private static final int MAX_VALUE = 2048; // longest value kept; longer ones are skipped
+    private static final int MAX_NAME = 5; // attribute name characters kept, enough to tell "href" from longer names
+
+    private enum State {
+        TEXT, // outside tags
+        OPEN, // after '<'
+        BANG, // after "<!", counting dashes
+        COMMENT, // inside <!-- -->
+        TAG, // in the tag name, or another part of a tag that holds no attribute
+        ATTRS, // between attributes
+        NAME, // in an attribute name
+        AFTER_NAME, // after an attribute name, before any '='
+        BEFORE_VALUE, // after '='
+        VALUE // in an attribute value
+    }
+
+    private final Consumer<String> sink;
+    private final StringBuilder name;
+    private final byte[] value;
+    private State state;
+    private int length; // bytes in value
+    private byte quote; // closes the value, 0 if it is unquoted
+    private boolean wanted; // the value is of a src or href
+    private boolean overflow; // the value is longer than MAX_VALUE
+    private int dashes; // dashes just seen, in BANG and COMMENT
+
+    /**
+     * @param sink called with each src and href value found, on the thread
+     * feeding the body
+     */
+    public LinkScanner(Consumer<String> sink) {
+        this.sink = sink;
+        this.name = new StringBuilder(MAX_NAME);
+        this.value = new byte[MAX_VALUE];
+        this.state = State.TEXT;
+    }
+
+    /**
+     * Scans the next part of the body
+     *
+     * @author James MacIsaac
+     * @param b
+     * @param off
+     * @param len
+     */
+    public void feed(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            step(b[i]);
+        }
+    }
+
+    /**
+     * Scans the remaining bytes of a buffer without moving its position
+     *
+     * @author James MacIsaac
+     * @param data
+     */
+    public void feed(ByteBuffer data) {
+        for (int i = data.position(); i < data.limit(); i++) {
+            step(data.get(i));
+        }
+    }
+
+    /**
+     * Wraps a body being read so that what is read is scanned on the way
+     *
+     * @author James MacIsaac
+     * @param body
+     * @return InputStream
+     */
+    public InputStream scan(InputStream body) {
+        return new FilterInputStream(body) {
+            @Override
+            public int read() throws IOException {
+                int c = in.read();
+                if (c != -1) {
+                    step((byte) c);
+                }
+                return c;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    feed(b, off, n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Advances the state machine by one byte
+     */
+    private void step(byte c) {
+        switch (state) {
+            case TEXT:
+                if (c == '<') {
+                    state = State.OPEN;
+                }
+                break;
+            case OPEN:
+                if (c == '!') {
+                    state = State.BANG;
+                    dashes = 0;
+                } else if (isLetter(c) || c == '/' || c == '?') {
+                    state = State.TAG;
+                } else {
+                    state = c == '<' ? State.OPEN : State.TEXT; // "a < b" in text
+                }
+                break;
+            case BANG:
+                if (c == '-' && ++dashes == 2) {
+                    state = State.COMMENT;
+                    dashes = 0;
+                } else if (c != '-') {
+                    state = c == '>' ? State.TEXT : State.TAG; // a doctype or CDATA
+                }
+                break;
+            case COMMENT:
+                if (c == '>' && dashes >= 2) {
+                    state = State.TEXT;
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+                break;
+            case TAG:
+                if (c == '>') {
+                    state = State.TEXT;
+                } else if (isSpace(c)) {
+                    state = State.ATTRS;
+                }
+                break;
+            case ATTRS:
+            case AFTER_NAME:
+                if (c == '>') {
+                    state = State.TEXT;
+                } else if (c == '=' && state == State.AFTER_NAME) {
+                    state = State.BEFORE_VALUE;
+                } else if (!isSpace(c) && c != '/') {
+                    name.setLength(0);
+                    name.append(lower(c));
+                    state = State.NAME;
+                }
+                break;
+            case NAME:
+                if (c == '=') {
+                    state = State.BEFORE_VALUE;
+                } else if (c == '>') {
+                    state = State.TEXT;
+                } else if (isSpace(c)) {
+                    state = State.AFTER_NAME;
+                } else if (name.length() < MAX_NAME) {
+                    name.append(lower(c));
+                }
+                break;
+            case BEFORE_VALUE:
+                if (c == '>') {
+                    state = State.TEXT;
+                } else if (!isSpace(c)) {
+                    String n = name.toString();
+                    wanted = n.equals("src") || n.equals("href");
+                    length = 0;
+                    overflow = false;
+                    state = State.VALUE;
+                    if (c == '"' || c == '\'') {
+                        quote = c;
+                    } else {
+                        quote = 0;
+                        append(c);
+                    }
+                }
+                break;
+            case VALUE:
+                if (quote != 0 ? c == quote : isSpace(c) || c == '>') {
+                    emit();
+                    state = c == '>' ? State.TEXT : State.ATTRS;
+                } else {
+                    append(c);
+                }
+                break;
+        }
+    }
+
+    private void append(byte c) {
+        if (!wanted) {
+            return;
+        }
+        if (length == MAX_VALUE) {
+            overflow = true;
+        } else {
+            value[length++] = c;
+        }
+    }
+
+    /**
+     * Passes on the value just ended, if it is a link
+     */
+    private void emit() {
+        if (!wanted || overflow || length == 0) {
+            return;
+        }
+        String link = new String(value, 0, length, StandardCharsets.UTF_8).replace("&amp;", "&").trim();
+        if (!link.isEmpty()) {
+            sink.accept(link);
+        }
+    }
+
+    private static boolean isLetter(byte c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static char lower(byte c) {
+        return (char) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c & 0xff);
+    }
+}
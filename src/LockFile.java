@@ -0,0 +1,225 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockFile Class
+ *
+ * Locks shared by every process using a cache directory, taken on single
+ * bytes of one file with the operating system's advisory record locks, so
+ * a lock held by a process that dies is released with it. Byte 0 is the
+ * main lock, held by one thread of one process at a time; it is reentrant
+ * and threads of the same process queue for it in memory before the
+ * process takes the byte. The other bytes are locked by position, each by
+ * one holder at a time.
+ *
+ * Record locks belong to the whole JVM, so a position already locked in
+ * this JVM cannot be locked again until released: tryLock then returns
+ * null, and lock waits for the holder in this JVM as for one in another
+ * process, so a thread must not lock a position it holds. A FileChannel is closed by
+ * interrupting a thread blocked on it, which would drop every lock the JVM
+ * holds, so waiting is done by polling with tryLock and sleeping between
+ * tries, where an interrupt is harmless. open() returns the same
+ * LockFile to every caller in the JVM asking for the same file, so byte 0
+ * works however many caches in one JVM use the directory.
+ *
+ * @author James MacIsaac
+ */
+public final class LockFile {
+
+    private static final HashMap<String, LockFile> OPEN = new HashMap<String, LockFile>(); // canonical path -> open lock file
+    private static final long MAX_PAUSE = 20; // ms between tries while waiting
+
+    private final String path;
+    private FileChannel channel;
+    private final ReentrantLock main; // byte 0 within this JVM
+    private FileLock mainLock; // byte 0 across processes, held while main is
+    private int users; // open() calls not yet closed, guarded by OPEN
+
+    private LockFile(String path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+        this.main = new ReentrantLock();
+    }
+
+    /**
+     * Opens a lock file, creating it if needed, or returns the one this JVM
+     * already has open. Each call must be matched by a close().
+     *
+     * @author James MacIsaac
+     * @param file
+     * @return LockFile
+     * @throws IOException
+     */
+    public static LockFile open(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        String path = file.getCanonicalPath();
+        synchronized (OPEN) {
+            LockFile lf = OPEN.get(path);
+            if (lf == null) {
+                lf = new LockFile(path, FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE));
+                OPEN.put(path, lf);
+            }
+            lf.users++;
+            return lf;
+        }
+    }
+
+    /**
+     * Closes the file once every caller of open() has closed it, which
+     * releases any lock still held on it
+     *
+     * @author James MacIsaac
+     */
+    public void close() {
+        synchronized (OPEN) {
+            if (users == 0 || --users > 0) {
+                return;
+            }
+            OPEN.remove(path);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the locks go with the descriptor either way
+            }
+        }
+    }
+
+    /**
+     * Takes the main lock, waiting for any other thread or process holding
+     * it
+     *
+     * @author James MacIsaac
+     * @throws IOException
+     */
+    public void lock() throws IOException {
+        main.lock();
+        if (main.getHoldCount() > 1) {
+            return;
+        }
+        try {
+            mainLock = acquire(0, true);
+        } catch (IOException | RuntimeException e) {
+            main.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the main lock, to other processes once the outermost lock()
+     * of this thread is released
+     *
+     * @author James MacIsaac
+     */
+    public void unlock() {
+        try {
+            if (main.getHoldCount() == 1 && mainLock != null) {
+                mainLock.release();
+                mainLock = null;
+            }
+        } catch (IOException e) {
+            // the channel is closed, which released it
+            mainLock = null;
+        } finally {
+            main.unlock();
+        }
+    }
+
+    /**
+     * @return true if the calling thread holds the main lock
+     */
+    public boolean isHeldByCurrentThread() {
+        return main.isHeldByCurrentThread();
+    }
+
+    /**
+     * Locks the byte at a position other than 0 if no one holds it
+     *
+     * @author James MacIsaac
+     * @param position at least 1
+     * @return the lock, or null if another process holds it, or this JVM does
+     * @throws IOException
+     */
+    public FileLock tryLock(long position) throws IOException {
+        checkPosition(position);
+        try {
+            return acquire(position, false);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Locks the byte at a position other than 0, waiting for another
+     * process, or another thread of this JVM, holding it
+     *
+     * @author James MacIsaac
+     * @param position at least 1, not held by the calling thread
+     * @return the lock
+     * @throws IOException
+     */
+    public FileLock lock(long position) throws IOException {
+        checkPosition(position);
+        return acquire(position, true);
+    }
+
+    /**
+     * Locks one byte, trying again with growing pauses until it is free if
+     * wait is set
+     */
+    private FileLock acquire(long position, boolean wait) throws IOException {
+        long pause = 1;
+        while (true) {
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + path);
+            }
+            FileLock lock;
+            try {
+                lock = channel().tryLock(position, 1, false);
+            } catch (OverlappingFileLockException e) {
+                if (!wait) {
+                    throw e;
+                }
+                lock = null; // held in this JVM, released like any other
+            }
+            if (lock != null || !wait) {
+                return lock;
+            }
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + path);
+            }
+            pause = Math.min(pause * 2, MAX_PAUSE);
+        }
+    }
+
+    /**
+     * @return the channel, reopened if an interrupt closed it
+     */
+    private FileChannel channel() throws IOException {
+        synchronized (OPEN) {
+            if (!channel.isOpen() && users > 0) {
+                channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+    }
+
+    private static void checkPosition(long position) {
+        if (position < 1) {
+            throw new IllegalArgumentException("position 0 is the main lock");
+        }
+    }
+}
@@ -0,0 +1,229 @@
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MemoryTier Class
+ *
+ * In-memory copy of recently read objects, bounded by their total size, in
+ * front of the files under Cache/Files. Eviction is segmented LRU: objects
+ * enter a probation segment and are promoted to a protected segment (80% of
+ * the capacity) when read again, so a one-off scan over many objects only
+ * churns the probation segment and leaves the frequently read ones in place.
+ * Objects larger than the per-object limit are never held.
+ *
+ * @author James MacIsaac
+ */
+public class MemoryTier {
+
+    private static final double PROTECTED_SHARE = 0.8; // of the capacity
+
+    // both in LRU -> MRU order
+    private final LinkedHashMap<String, ByteBuffer> probation;
+    private final LinkedHashMap<String, ByteBuffer> protectedSeg;
+    private long capacity; // max total bytes held
+    private long maxObject; // larger objects bypass the tier
+    private long probationBytes;
+    private long protectedBytes;
+    private long stamp; // bumped by every invalidation
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long bypasses;
+
+    /**
+     * @param capacity max total bytes held
+     * @param maxObject max size of a single object held
+     */
+    public MemoryTier(long capacity, long maxObject) {
+        probation = new LinkedHashMap<String, ByteBuffer>();
+        protectedSeg = new LinkedHashMap<String, ByteBuffer>();
+        this.capacity = capacity;
+        this.maxObject = maxObject;
+    }
+
+    /**
+     * Looks up an object, promoting it to the protected segment on a second
+     * access
+     *
+     * @author James MacIsaac
+     * @param key cache key
+     * @return a read-only view of the object, or null on a miss
+     */
+    public synchronized ByteBuffer get(String key) {
+        ByteBuffer b = protectedSeg.remove(key);
+        if (b != null) {
+            protectedSeg.put(key, b); // move to MRU
+        } else if ((b = probation.remove(key)) != null) {
+            probationBytes -= b.capacity();
+            protectedSeg.put(key, b);
+            protectedBytes += b.capacity();
+            demote();
+        } else {
+            misses++;
+            return null;
+        }
+        hits++;
+        return b.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a token to pass to put(), taken before the object is read from
+     * disk
+     */
+    public synchronized long stamp() {
+        return stamp;
+    }
+
+    /**
+     * Adds an object read from disk. Ignored if the object is over the size
+     * limit, or if any object was invalidated since stamp was taken (the
+     * bytes read may then be out of date).
+     *
+     * @author James MacIsaac
+     * @param key cache key
+     * @param b object contents
+     * @param stamp value of stamp() from before the read
+     * @return true if the object is now held
+     */
+    public synchronized boolean put(String key, ByteBuffer b, long stamp) {
+        if (!admits(b.capacity())) {
+            bypasses++;
+            return false;
+        }
+        if (stamp != this.stamp) {
+            return false;
+        }
+        remove(key);
+        probation.put(key, b);
+        probationBytes += b.capacity();
+        evict();
+        return true;
+    }
+
+    /**
+     * Drops an object whose file has been replaced or deleted
+     *
+     * @author James MacIsaac
+     * @param key cache key
+     */
+    public synchronized void invalidate(String key) {
+        stamp++;
+        remove(key);
+    }
+
+    /**
+     * @param size object size in bytes
+     * @return false if an object of this size is too large to be held
+     */
+    public synchronized boolean admits(long size) {
+        return size <= maxObject && size <= capacity;
+    }
+
+    /**
+     * Counts an object that was served without going through the tier
+     * because it is too large
+     *
+     * @author James MacIsaac
+     */
+    public synchronized void recordBypass() {
+        bypasses++;
+    }
+
+    /**
+     * Changes the limits, evicting objects if the tier is now over capacity
+     *
+     * @author James MacIsaac
+     * @param capacity max total bytes held
+     * @param maxObject max size of a single object held
+     */
+    public synchronized void setLimits(long capacity, long maxObject) {
+        this.capacity = capacity;
+        this.maxObject = maxObject;
+        demote();
+        evict();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of objects not held because they were too large
+     */
+    public synchronized long getBypasses() {
+        return bypasses;
+    }
+
+    /**
+     * @return total bytes currently held
+     */
+    public synchronized long getSize() {
+        return probationBytes + protectedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryTier[hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", bypasses=" + bypasses + ", bytes=" + getSize() + "/" + capacity + "]";
+    }
+
+    private void remove(String key) {
+        ByteBuffer old = probation.remove(key);
+        if (old != null) {
+            probationBytes -= old.capacity();
+        }
+        old = protectedSeg.remove(key);
+        if (old != null) {
+            protectedBytes -= old.capacity();
+        }
+    }
+
+    /**
+     * Moves the least recently used protected objects back to probation while
+     * the protected segment is over its share
+     */
+    private void demote() {
+        long limit = (long) (capacity * PROTECTED_SHARE);
+        Iterator<Map.Entry<String, ByteBuffer>> it = protectedSeg.entrySet().iterator();
+        while (protectedBytes > limit && it.hasNext()) {
+            Map.Entry<String, ByteBuffer> e = it.next();
+            it.remove();
+            protectedBytes -= e.getValue().capacity();
+            probation.put(e.getKey(), e.getValue());
+            probationBytes += e.getValue().capacity();
+        }
+    }
+
+    /**
+     * Evicts from the probation LRU end (then protected, if probation is
+     * empty) until the tier is within capacity
+     */
+    private void evict() {
+        while (probationBytes + protectedBytes > capacity) {
+            LinkedHashMap<String, ByteBuffer> seg = probation.isEmpty() ? protectedSeg : probation;
+            Iterator<Map.Entry<String, ByteBuffer>> it = seg.entrySet().iterator();
+            if (!it.hasNext()) {
+                break;
+            }
+            ByteBuffer b = it.next().getValue();
+            it.remove();
+            if (seg == probation) {
+                probationBytes -= b.capacity();
+            } else {
+                protectedBytes -= b.capacity();
+            }
+            evictions++;
+        }
+    }
+}
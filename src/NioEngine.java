@@ -0,0 +1,766 @@
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NioEngine Class
+ *
+ * Runs HTTP/1.1 exchanges on non-blocking socket channels driven by a small,
+ * fixed number of event-loop threads, each with its own Selector, so the
+ * number of requests in flight is not tied to the number of threads. Each
+ * exchange writes a request and then parses the response as bytes arrive:
+ * the header with the connection's HeaderParser, the body by its framing
+ * (Content-Length, chunked, or until the server closes). Decoded body bytes
+ * are pushed to the exchange's Handler on the loop thread.
+ *
+ * Connections left open by the server are kept idle, per host, for reuse by
+ * any loop. An exchange that fails on a reused connection before any of the
+ * response arrived is retried once on a new one, as the server may have
+ * closed the idle connection in the meantime.
+ *
+ * An exchange that waits longer than CONNECT_TIMEOUT for its connect, or
+ * READ_TIMEOUT for the next bytes of its response, fails with "Timed out",
+ * found by the same sweep that closes expired idle connections, so a
+ * stalled server cannot hold an exchange open forever.
+ *
+ * Handlers run on a loop thread and must not block for long; writing to a
+ * local file is fine, waiting for another exchange is not.
+ *
+ * Host names are resolved through a DnsCache, which can be shared with a
+ * ConnectionPool; only the first address of a host is used. If given a
+ * FetchMetrics, the engine records each name lookup and connect for a new
+ * connection and the timings of each response that got as far as a header.
+ *
+ * @author James MacIsaac
+ */
+public class NioEngine {
+
+    private static final int READ_BUFFER = 65536; // per loop, shared by its connections
+    private static final long IDLE_TIMEOUT = 30000; // ms an idle connection is kept
+    private static final long SELECT_TIMEOUT = 1000; // ms between sweeps for idle and stalled connections
+    private static final long CONNECT_TIMEOUT = 10000; // ms an exchange waits for its connect
+    private static final long READ_TIMEOUT = 30000; // ms an exchange waits for the server to take or send bytes
+    private static final int MAX_LINE = 8192; // longest chunk-size/trailer line accepted
+
+    /**
+     * Receives the response to one exchange. Exactly one of onComplete and
+     * onError is called last. A handler that throws from onHeader, onBody
+     * or onComplete, a RuntimeException included, ends the exchange, closes
+     * the connection and gets onError with the exception; one that throws
+     * from onError is ignored. Either way the loop goes on with its other
+     * exchanges.
+     */
+    public interface Handler {
+
+        /**
+         * @param header the response header
+         * @throws UrlCacheException to abandon the exchange
+         */
+        void onHeader(HttpHeader header) throws UrlCacheException;
+
+        /**
+         * @param data the next body bytes, valid only during the call
+         * @throws UrlCacheException to abandon the exchange
+         */
+        void onBody(ByteBuffer data) throws UrlCacheException;
+
+        /**
+         * Called once the whole response has been received
+         *
+         * @throws UrlCacheException to fail the exchange
+         */
+        void onComplete() throws UrlCacheException;
+
+        /**
+         * @param e why the exchange failed
+         */
+        void onError(UrlCacheException e);
+    }
+
+    private final Loop[] loops;
+    private final FetchMetrics metrics; // may be null
+    private final DnsCache dns; // host name -> addresses
+    private final ConcurrentHashMap<String, ConcurrentLinkedDeque<Conn>> idle; // host key -> idle connections
+    private final AtomicInteger next; // round-robin loop choice
+    private final AtomicInteger open; // connections open
+    private final AtomicInteger peak; // most connections open at once
+    private final AtomicLong exchanges; // exchanges completed
+    private final AtomicLong reuses; // exchanges run on an idle connection
+    private volatile boolean closed;
+
+    /**
+     * Starts the event loops
+     *
+     * @param threads number of event-loop threads
+     * @throws UrlCacheException if a selector cannot be opened
+     */
+    public NioEngine(int threads) throws UrlCacheException {
+        this(threads, null);
+    }
+
+    /**
+     * Starts the event loops, recording timings to metrics
+     *
+     * @param threads number of event-loop threads
+     * @param metrics where to record timings, may be null
+     * @throws UrlCacheException if a selector cannot be opened
+     */
+    public NioEngine(int threads, FetchMetrics metrics) throws UrlCacheException {
+        this(threads, metrics, new DnsCache());
+    }
+
+    /**
+     * Starts the event loops, recording timings to metrics and resolving
+     * host names through dns
+     *
+     * @param threads number of event-loop threads
+     * @param metrics where to record timings, may be null
+     * @param dns resolves the host names connected to
+     * @throws UrlCacheException if a selector cannot be opened
+     */
+    public NioEngine(int threads, FetchMetrics metrics, DnsCache dns) throws UrlCacheException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.metrics = metrics;
+        this.dns = dns;
+        idle = new ConcurrentHashMap<String, ConcurrentLinkedDeque<Conn>>();
+        next = new AtomicInteger();
+        open = new AtomicInteger();
+        peak = new AtomicInteger();
+        exchanges = new AtomicLong();
+        reuses = new AtomicLong();
+        loops = new Loop[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new Loop(i);
+            }
+        } catch (IOException e) {
+            close();
+            throw new UrlCacheException("Could not open selector");
+        }
+        for (Loop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Starts an exchange. Returns at once; the outcome is reported to the
+     * handler. The host name is resolved on the calling thread, which only
+     * waits for the lookup when the DnsCache does not have the name.
+     *
+     * @author James MacIsaac
+     * @param host
+     * @param port
+     * @param request the complete request bytes
+     * @param handler
+     */
+    public void submit(String host, int port, byte[] request, Handler handler) {
+        if (closed) {
+            handler.onError(new UrlCacheException("Engine closed"));
+            return;
+        }
+        long start = System.nanoTime();
+        InetAddress[] addresses;
+        try {
+            addresses = dns.resolve(host);
+        } catch (UnknownHostException e) {
+            handler.onError(new UrlCacheException("Could not resolve " + host + ": " + e.getMessage()));
+            return;
+        }
+        long resolveTime = System.nanoTime() - start;
+        Exchange ex = new Exchange(host + ":" + port, new InetSocketAddress(addresses[0], port), request, handler);
+        ConcurrentLinkedDeque<Conn> hostIdle = idle.get(ex.hostKey);
+        final Conn c = hostIdle == null ? null : hostIdle.pollFirst();
+        if (c != null) {
+            reuses.incrementAndGet();
+            c.loop.execute(() -> c.loop.start(c, ex));
+        } else {
+            if (metrics != null) {
+                metrics.forHost(ex.hostKey).recordResolve(resolveTime);
+            }
+            final Loop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+            loop.execute(() -> loop.connect(ex));
+        }
+    }
+
+    /**
+     * Stops the event loops and closes every connection. Exchanges in
+     * progress fail.
+     *
+     * @author James MacIsaac
+     */
+    public void close() {
+        closed = true;
+        for (Loop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * @return number of event-loop threads
+     */
+    public int getThreads() {
+        return loops.length;
+    }
+
+    /**
+     * @return connections currently open, idle or in use
+     */
+    public int getOpenConnections() {
+        return open.get();
+    }
+
+    /**
+     * @return most connections open at the same time
+     */
+    public int getPeakConnections() {
+        return peak.get();
+    }
+
+    /**
+     * @return exchanges completed successfully
+     */
+    public long getExchanges() {
+        return exchanges.get();
+    }
+
+    /**
+     * @return exchanges that reused an idle connection
+     */
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NioEngine[threads=" + loops.length + ", open=" + open.get() + ", peak=" + peak.get()
+                + ", exchanges=" + exchanges.get() + ", reuses=" + reuses.get() + "]";
+    }
+
+    /**
+     * One event-loop thread and its selector. Connections registered with
+     * the selector are only touched by this thread.
+     */
+    private final class Loop implements Runnable {
+
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<Runnable> tasks; // from other threads
+        final ByteBuffer readBuffer; // heap buffer, so the header parser can read its array
+
+        Loop(int id) throws IOException {
+            selector = Selector.open();
+            tasks = new ConcurrentLinkedQueue<Runnable>();
+            readBuffer = ByteBuffer.allocate(READ_BUFFER);
+            thread = new Thread(this, "UrlCache-nio-" + id);
+            thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            try {
+                while (!closed) {
+                    selector.select(SELECT_TIMEOUT);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Conn c = (Conn) key.attachment();
+                        try {
+                            if (key.isConnectable()) {
+                                finishConnect(c);
+                            } else if (key.isWritable()) {
+                                write(c);
+                            } else if (key.isReadable()) {
+                                read(c);
+                            }
+                        } catch (CancelledKeyException e) {
+                            // closed while handling an earlier event
+                        } catch (RuntimeException e) {
+                            fail(c, new UrlCacheException(e.toString())); // only this exchange
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= SELECT_TIMEOUT) {
+                        sweep(now);
+                        lastSweep = now;
+                    }
+                }
+            } catch (IOException e) {
+                // selector failed, fall through and close everything
+            } finally {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run(); // fails the exchanges, since closed is set
+                }
+                for (SelectionKey key : selector.keys()) {
+                    fail((Conn) key.attachment(), new UrlCacheException("Engine closed"));
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+
+        /**
+         * Opens a new connection for an exchange
+         */
+        void connect(Exchange ex) {
+            if (closed) {
+                notifyError(ex, new UrlCacheException("Engine closed"));
+                return;
+            }
+            SocketChannel ch = null;
+            try {
+                ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                Conn c = new Conn(this, ch, ex.hostKey);
+                int n = open.incrementAndGet();
+                peak.accumulateAndGet(n, Math::max);
+                c.ex = ex;
+                c.connectStart = System.nanoTime();
+                ex.deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+                if (ch.connect(ex.address)) {
+                    recordConnect(c);
+                    ex.deadline = System.currentTimeMillis() + READ_TIMEOUT;
+                    c.key = ch.register(selector, SelectionKey.OP_WRITE, c);
+                } else {
+                    c.key = ch.register(selector, SelectionKey.OP_CONNECT, c);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (ch != null) {
+                    try {
+                        ch.close();
+                    } catch (IOException e2) {
+                        // nothing to do
+                    }
+                    open.decrementAndGet();
+                }
+                notifyError(ex, new UrlCacheException("Could not connect to " + ex.hostKey + ": " + e.getMessage()));
+            }
+        }
+
+        /**
+         * Runs an exchange on an idle connection of this loop
+         */
+        void start(Conn c, Exchange ex) {
+            if (closed || !c.ch.isOpen()) {
+                close(c);
+                connect(ex);
+                return;
+            }
+            c.ex = ex;
+            c.reused = true;
+            ex.deadline = System.currentTimeMillis() + READ_TIMEOUT;
+            c.key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void finishConnect(Conn c) {
+            try {
+                c.ch.finishConnect();
+                recordConnect(c);
+                c.ex.deadline = System.currentTimeMillis() + READ_TIMEOUT;
+                c.key.interestOps(SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                fail(c, new UrlCacheException("Could not connect to " + c.hostKey + ": " + e.getMessage()));
+            }
+        }
+
+        void write(Conn c) {
+            try {
+                if (c.ch.write(c.ex.request) > 0) {
+                    c.ex.deadline = System.currentTimeMillis() + READ_TIMEOUT;
+                }
+                if (!c.ex.request.hasRemaining()) {
+                    c.ex.sent = System.nanoTime();
+                    c.parser.reset();
+                    c.key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                retryOrFail(c, new UrlCacheException("Error writing request"));
+            }
+        }
+
+        void read(Conn c) {
+            Exchange ex = c.ex;
+            ByteBuffer buf = readBuffer;
+            buf.clear();
+            int n;
+            try {
+                n = c.ch.read(buf);
+            } catch (IOException e) {
+                if (ex == null) {
+                    dropIdle(c);
+                } else {
+                    retryOrFail(c, new UrlCacheException("Error reading response"));
+                }
+                return;
+            }
+            if (ex == null) {
+                // an idle connection is readable only if the server closed
+                // it or sent something unasked for; either way it is done
+                dropIdle(c);
+                return;
+            }
+            if (n == -1) {
+                if (ex.framing != null && ex.framing.closeDelimited) {
+                    complete(c, false);
+                } else {
+                    retryOrFail(c, new UrlCacheException("Connection closed by server"));
+                }
+                return;
+            }
+            buf.flip();
+            if (buf.hasRemaining()) {
+                ex.deadline = System.currentTimeMillis() + READ_TIMEOUT;
+            }
+            if (buf.hasRemaining() && !ex.received) {
+                ex.received = true;
+                ex.firstByte = System.nanoTime();
+            }
+            ex.bytes += buf.remaining();
+            try {
+                if (ex.header == null) {
+                    int used = c.parser.feed(buf.array(), buf.position(), buf.remaining());
+                    buf.position(buf.position() + used);
+                    if (!c.parser.isComplete()) {
+                        return;
+                    }
+                    ex.header = c.parser.getHeader();
+                    ex.headerDone = System.nanoTime();
+                    ex.framing = Framing.of(ex.header);
+                    ex.handler.onHeader(ex.header);
+                }
+                if (ex.framing.feed(buf, ex.handler)) {
+                    // bytes after the end of the response were not asked for
+                    complete(c, !buf.hasRemaining() && isKeepAlive(ex.header));
+                }
+            } catch (UrlCacheException e) {
+                fail(c, e);
+            } catch (RuntimeException e) {
+                fail(c, new UrlCacheException(e.toString()));
+            }
+        }
+
+        /**
+         * Ends an exchange successfully, keeping the connection for reuse
+         * if it is still in step
+         */
+        void complete(Conn c, boolean reusable) {
+            Exchange ex = c.ex;
+            c.ex = null;
+            recordResponse(ex);
+            try {
+                ex.handler.onComplete();
+                exchanges.incrementAndGet();
+            } catch (UrlCacheException e) {
+                notifyError(ex, e);
+            } catch (RuntimeException e) {
+                notifyError(ex, new UrlCacheException(e.toString()));
+            }
+            if (!reusable || closed) {
+                close(c);
+                return;
+            }
+            c.idleSince = System.currentTimeMillis();
+            c.key.interestOps(SelectionKey.OP_READ); // to notice the server closing it
+            idle.computeIfAbsent(c.hostKey, k -> new ConcurrentLinkedDeque<Conn>()).addFirst(c);
+        }
+
+        /**
+         * Retries an exchange on a new connection if it failed on a reused
+         * one before any of the response arrived; fails it otherwise
+         */
+        void retryOrFail(Conn c, UrlCacheException e) {
+            Exchange ex = c.ex;
+            if (c.reused && !ex.received && !ex.retried && !closed) {
+                c.ex = null;
+                close(c);
+                ex.retried = true;
+                ex.request.rewind();
+                connect(ex);
+                return;
+            }
+            fail(c, e);
+        }
+
+        void fail(Conn c, UrlCacheException e) {
+            Exchange ex = c.ex;
+            c.ex = null;
+            close(c);
+            if (ex != null) {
+                if (ex.header != null) {
+                    recordResponse(ex);
+                }
+                notifyError(ex, e);
+            }
+        }
+
+        /**
+         * Tells an exchange's handler it failed; a handler that throws
+         * cannot stop the loop
+         */
+        void notifyError(Exchange ex, UrlCacheException e) {
+            try {
+                ex.handler.onError(e);
+            } catch (RuntimeException e2) {
+                // the exchange has ended either way
+            }
+        }
+
+        void recordConnect(Conn c) {
+            if (metrics != null) {
+                metrics.forHost(c.hostKey).recordConnect(System.nanoTime() - c.connectStart);
+            }
+        }
+
+        void recordResponse(Exchange ex) {
+            if (metrics != null) {
+                metrics.forHost(ex.hostKey).recordResponse(ex.header.getStatusCode(), ex.firstByte - ex.sent,
+                        ex.headerDone - ex.firstByte, System.nanoTime() - ex.headerDone, ex.bytes);
+            }
+        }
+
+        /**
+         * Closes an idle connection unless submit() has just taken it, in
+         * which case the exchange finds out when it uses it
+         */
+        void dropIdle(Conn c) {
+            ConcurrentLinkedDeque<Conn> hostIdle = idle.get(c.hostKey);
+            if (hostIdle != null && hostIdle.remove(c)) {
+                close(c);
+            } else {
+                c.key.interestOps(0);
+            }
+        }
+
+        /**
+         * Closes connections idle for longer than IDLE_TIMEOUT and fails the
+         * exchanges past their connect or read deadline
+         */
+        void sweep(long now) {
+            ArrayList<Conn> stalled = new ArrayList<Conn>();
+            for (SelectionKey key : selector.keys()) {
+                Conn c = (Conn) key.attachment();
+                if (c.ex == null) {
+                    if (now - c.idleSince > IDLE_TIMEOUT) {
+                        dropIdle(c);
+                    }
+                } else if (now > c.ex.deadline) {
+                    stalled.add(c);
+                }
+            }
+            for (Conn c : stalled) {
+                fail(c, new UrlCacheException("Timed out waiting for " + c.hostKey));
+            }
+        }
+
+        void close(Conn c) {
+            if (c.key != null) {
+                c.key.cancel();
+            }
+            try {
+                c.ch.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            if (!c.closed) {
+                c.closed = true;
+                open.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The connection may be kept open unless the server sent
+     * "Connection: close" or answered with HTTP/1.0 without asking for
+     * keep-alive
+     */
+    private static boolean isKeepAlive(HttpHeader header) {
+        String connection = header.get("Connection");
+        if (connection != null) {
+            connection = connection.toLowerCase();
+        }
+        if (header.getVersion().equals("HTTP/1.0")) {
+            return "keep-alive".equals(connection);
+        }
+        return !"close".equals(connection);
+    }
+
+    /**
+     * A connection and the exchange running on it, if any
+     */
+    private static final class Conn {
+
+        final Loop loop;
+        final SocketChannel ch;
+        final String hostKey;
+        final HeaderParser parser; // reused for every response on this connection
+        SelectionKey key;
+        Exchange ex; // null while idle
+        long idleSince;
+        long connectStart; // nanoTime
+        boolean reused;
+        boolean closed;
+
+        Conn(Loop loop, SocketChannel ch, String hostKey) {
+            this.loop = loop;
+            this.ch = ch;
+            this.hostKey = hostKey;
+            this.parser = new HeaderParser();
+        }
+    }
+
+    /**
+     * One request and the state of its response
+     */
+    private static final class Exchange {
+
+        final String hostKey;
+        final InetSocketAddress address;
+        final ByteBuffer request;
+        final Handler handler;
+        HttpHeader header;
+        Framing framing;
+        boolean received; // some of the response has arrived
+        boolean retried;
+        long deadline; // currentTimeMillis after which the exchange fails, pushed back by each step forward
+        long sent; // nanoTime the request was fully written
+        long firstByte; // nanoTime the first response byte was read
+        long headerDone; // nanoTime the header was complete
+        long bytes; // response bytes read
+
+        Exchange(String hostKey, InetSocketAddress address, byte[] request, Handler handler) {
+            this.hostKey = hostKey;
+            this.address = address;
+            this.request = ByteBuffer.wrap(request);
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Incremental decoder for the framing of a response body (RFC 7230
+     * section 3.3.3): a fixed length, the chunked transfer coding (trailers
+     * are read and dropped), or everything until the server closes
+     */
+    private static final class Framing {
+
+        private static final int DATA = 0, SIZE = 1, DATA_END = 2, TRAILER = 3, DONE = 4;
+
+        final boolean chunked;
+        final boolean closeDelimited;
+        long remaining; // bytes left in the body or the current chunk
+        int state;
+        final StringBuilder line = new StringBuilder();
+
+        private Framing(long length, boolean chunked, boolean closeDelimited) {
+            this.remaining = length;
+            this.chunked = chunked;
+            this.closeDelimited = closeDelimited;
+            this.state = chunked ? SIZE : (closeDelimited || length > 0 ? DATA : DONE);
+        }
+
+        static Framing of(HttpHeader header) throws UrlCacheException {
+            int code = header.getStatusCode();
+            if (code < 200 || code == 204 || code == 304) {
+                return new Framing(0, false, false); // never has a body
+            }
+            String te = header.get("Transfer-Encoding");
+            if (te != null) {
+                if (te.toLowerCase().endsWith("chunked")) {
+                    return new Framing(0, true, false);
+                }
+                return new Framing(0, false, true);
+            }
+            String cl = header.get("Content-Length");
+            if (cl != null) {
+                try {
+                    long n = Long.parseLong(cl.trim());
+                    if (n < 0) {
+                        throw new NumberFormatException();
+                    }
+                    return new Framing(n, false, false);
+                } catch (NumberFormatException e) {
+                    throw new UrlCacheException("Invalid Content-Length: " + cl);
+                }
+            }
+            return new Framing(0, false, true);
+        }
+
+        /**
+         * Consumes body bytes from buf, passing the decoded ones on
+         *
+         * @return true once the body has ended; buf is then positioned just
+         * past it
+         */
+        boolean feed(ByteBuffer buf, Handler handler) throws UrlCacheException {
+            while (state != DONE && buf.hasRemaining()) {
+                if (state == DATA) {
+                    int n = closeDelimited ? buf.remaining() : (int) Math.min(remaining, buf.remaining());
+                    ByteBuffer slice = buf.slice();
+                    slice.limit(n);
+                    buf.position(buf.position() + n);
+                    handler.onBody(slice);
+                    if (!closeDelimited && (remaining -= n) == 0) {
+                        state = chunked ? DATA_END : DONE;
+                    }
+                    continue;
+                }
+                char ch = (char) (buf.get() & 0xff);
+                if (ch != '\n') {
+                    if (line.length() >= MAX_LINE) {
+                        throw new UrlCacheException("Chunk line too long");
+                    }
+                    line.append(ch);
+                    continue;
+                }
+                String text = line.toString().trim();
+                line.setLength(0);
+                if (state == DATA_END) {
+                    state = SIZE; // the CRLF after a chunk's data
+                } else if (state == SIZE) {
+                    int semi = text.indexOf(';');
+                    try {
+                        remaining = Long.parseLong(semi == -1 ? text : text.substring(0, semi).trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new UrlCacheException("Invalid chunk size: " + text);
+                    }
+                    state = remaining == 0 ? TRAILER : DATA;
+                } else if (text.isEmpty()) { // end of the trailers
+                    state = DONE;
+                }
+            }
+            return state == DONE;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ParsedUrl Class
+ *
+ * An immutable, already-split URL: host, port, path and query, plus the key
+ * the object is cataloged under. URLs are split in one pass without regular
+ * expressions, and up to RECENT_SIZE recently parsed ones are remembered so
+ * parsing the same URL again is a map lookup. The map is concurrent, so
+ * threads parsing at once do not wait for each other; once it is full, an
+ * arbitrary entry makes way for each new one.
+ *
+ * Accepted form: [scheme://]host[:port][/path][?query][#fragment]
+ * The scheme is ignored (requests are always plain HTTP) and the fragment is
+ * dropped.
+ *
+ * @author James MacIsaac
+ */
+public final class ParsedUrl {
+
+    private static final int DEFAULT_PORT = 80;
+    private static final int RECENT_SIZE = 256; // parsed urls remembered
+    private static final String DIRECTORY_FILE = "%index.html"; // file of a path ending in '/'; a '%' not followed by "25" never comes from a path
+
+    private static final ConcurrentHashMap<String, ParsedUrl> recent = new ConcurrentHashMap<String, ParsedUrl>(2 * RECENT_SIZE);
+
+    private final String host;
+    private final int port;
+    private final String path; // without the leading '/', may be empty
+    private final String query; // without the '?', null if there is none
+    private final String cacheKey;
+    private final int hash;
+
+    private ParsedUrl(String host, int port, String path, String query) {
+        this.host = host;
+        this.port = port;
+        this.path = path;
+        this.query = query;
+        StringBuilder sb = new StringBuilder(host.length() + path.length() + 8);
+        sb.append(host);
+        if (port != DEFAULT_PORT) {
+            sb.append(':').append(port);
+        }
+        sb.append('/').append(path);
+        if (query != null) {
+            sb.append('?').append(query);
+        }
+        this.cacheKey = sb.toString();
+        this.hash = cacheKey.hashCode();
+    }
+
+    /**
+     * Parses a url string, returning the remembered result if the same
+     * string was parsed recently
+     *
+     * @author James MacIsaac
+     * @param url
+     * @return ParsedUrl
+     * @throws UrlCacheException if the url is malformed
+     */
+    public static ParsedUrl parse(String url) throws UrlCacheException {
+        if (url == null) {
+            throw new UrlCacheException("Invalid Url");
+        }
+        ParsedUrl u = recent.get(url);
+        if (u != null) {
+            return u;
+        }
+        u = split(url);
+        ParsedUrl raced = recent.putIfAbsent(url, u);
+        if (raced != null) {
+            return raced;
+        }
+        if (recent.size() > RECENT_SIZE) {
+            Iterator<String> it = recent.keySet().iterator();
+            if (it.hasNext()) {
+                recent.remove(it.next());
+            }
+        }
+        return u;
+    }
+
+    /**
+     * Splits the url in a single left-to-right pass
+     */
+    private static ParsedUrl split(String url) throws UrlCacheException {
+        int n = url.length();
+        int i = 0;
+
+        // skip a scheme ("http://")
+        int s = url.indexOf("://");
+        if (s > 0) {
+            for (int j = 0; j < s; j++) {
+                if (!isLetter(url.charAt(j))) {
+                    throw new UrlCacheException("Invalid Url");
+                }
+            }
+            i = s + 3;
+        }
+
+        // host
+        int hostStart = i;
+        boolean dot = false;
+        while (i < n) {
+            char c = url.charAt(i);
+            if (c == ':' || c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            if (!(isLetter(c) || (c >= '0' && c <= '9') || c == '-' || c == '.')) {
+                throw new UrlCacheException("Invalid Url");
+            }
+            dot |= c == '.';
+            i++;
+        }
+        if (i == hostStart || !dot || url.charAt(i - 1) == '.' || url.charAt(hostStart) == '.') {
+            throw new UrlCacheException("Invalid Url");
+        }
+        String host = url.substring(hostStart, i).toLowerCase();
+
+        // port
+        int port = DEFAULT_PORT;
+        if (i < n && url.charAt(i) == ':') {
+            i++;
+            int portStart = i;
+            port = 0;
+            while (i < n && url.charAt(i) >= '0' && url.charAt(i) <= '9') {
+                port = port * 10 + (url.charAt(i) - '0');
+                if (port > 65535) {
+                    throw new UrlCacheException("Invalid Url");
+                }
+                i++;
+            }
+            if (i == portStart || port == 0) {
+                throw new UrlCacheException("Invalid Url");
+            }
+        }
+
+        // path, query, fragment
+        String path = "";
+        String query = null;
+        if (i < n && url.charAt(i) == '/') {
+            i++;
+        } else if (i < n && url.charAt(i) != '?' && url.charAt(i) != '#') {
+            throw new UrlCacheException("Invalid Url");
+        }
+        int pathStart = i, queryStart = -1;
+        while (i < n) {
+            char c = url.charAt(i);
+            if (c <= ' ' || c >= 0x7f) {
+                throw new UrlCacheException("Invalid Url"); // must be percent-encoded
+            }
+            if (c == '#') {
+                break;
+            }
+            if (c == '?' && queryStart == -1) {
+                path = url.substring(pathStart, i);
+                queryStart = i + 1;
+            }
+            i++;
+        }
+        if (queryStart == -1) {
+            path = url.substring(pathStart, i);
+        } else {
+            query = url.substring(queryStart, i);
+        }
+        String segments = "/" + path + "/";
+        if (segments.contains("/../") || segments.contains("/./") || path.contains("//")) {
+            throw new UrlCacheException("Invalid Url"); // would escape or alias the cache directory
+        }
+        return new ParsedUrl(host, port, path, query);
+    }
+
+    /**
+     * Resolves a reference found in this object, such as the value of an
+     * href, against this url (RFC 3986 section 5.2), dropping "." and ".."
+     * segments and the fragment
+     *
+     * @author James MacIsaac
+     * @param ref absolute, protocol-relative or relative reference
+     * @return the url it refers to, or null if it has a scheme other than
+     * http or is not a url the cache accepts
+     */
+    public ParsedUrl resolve(String ref) {
+        int fragment = ref.indexOf('#');
+        if (fragment >= 0) {
+            ref = ref.substring(0, fragment);
+        }
+        ref = ref.trim();
+        String authority = getHostHeader();
+        String rest; // path and query, from the '/'
+        if (hasScheme(ref)) {
+            if (!ref.regionMatches(true, 0, "http://", 0, 7)) {
+                return null; // https, mailto, javascript, data...
+            }
+            ref = ref.substring(5);
+        }
+        if (ref.startsWith("//")) {
+            int end = 2;
+            while (end < ref.length() && ref.charAt(end) != '/' && ref.charAt(end) != '?') {
+                end++;
+            }
+            authority = ref.substring(2, end);
+            rest = end == ref.length() || ref.charAt(end) == '?' ? "/" + ref.substring(end) : ref.substring(end);
+        } else if (ref.startsWith("/")) {
+            rest = ref;
+        } else if (ref.isEmpty()) {
+            rest = getRequestTarget();
+        } else if (ref.startsWith("?")) {
+            rest = "/" + path + ref;
+        } else {
+            rest = "/" + path.substring(0, path.lastIndexOf('/') + 1) + ref;
+        }
+        int q = rest.indexOf('?');
+        String p = q == -1 ? rest : rest.substring(0, q);
+        String tail = q == -1 ? "" : rest.substring(q);
+        try {
+            return split(authority + removeDotSegments(p) + tail);
+        } catch (UrlCacheException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if ref starts with a scheme and a colon
+     */
+    private static boolean hasScheme(String ref) {
+        for (int i = 0; i < ref.length(); i++) {
+            char c = ref.charAt(i);
+            if (c == ':') {
+                return i > 0;
+            }
+            if (!(isLetter(c) || (i > 0 && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.')))) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes "." and ".." segments from an absolute path; ".." at the root
+     * stays at the root
+     */
+    private static String removeDotSegments(String path) {
+        String[] in = path.split("/", -1);
+        ArrayList<String> out = new ArrayList<String>();
+        for (int i = 1; i < in.length; i++) {
+            String s = in[i];
+            boolean last = i == in.length - 1;
+            if (s.equals(".") || s.equals("..")) {
+                if (s.equals("..") && !out.isEmpty()) {
+                    out.remove(out.size() - 1);
+                }
+                if (last) {
+                    out.add(""); // "a/.." is the directory "/"
+                }
+            } else {
+                out.add(s);
+            }
+        }
+        return "/" + String.join("/", out);
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * @return host name, lower case
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return port number, 80 unless the url gave one
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return path without the leading '/', empty for the root
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return query string without the '?', or null
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return "host:port", the key connections are pooled under
+     */
+    public String getHostKey() {
+        return host + ":" + port;
+    }
+
+    /**
+     * @return value for the Host request header
+     */
+    public String getHostHeader() {
+        return port == DEFAULT_PORT ? host : host + ":" + port;
+    }
+
+    /**
+     * @return the request target sent in the request line, e.g. "/a/b?c"
+     */
+    public String getRequestTarget() {
+        return query == null ? "/" + path : "/" + path + "?" + query;
+    }
+
+    /**
+     * @return the key the object is cataloged under: host[:port]/path[?query]
+     * (the port only when it is not 80)
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * Returns where the object is stored under Cache/Files: host/path, with
+     * DIRECTORY_FILE added for directory paths and the query string encoded
+     * into the file name. '%' is escaped as "%25" in the path and the
+     * query, so the "%3F" before the query and the '%' of DIRECTORY_FILE
+     * cannot come from the url itself and no two cache keys share a file.
+     *
+     * @author James MacIsaac
+     * @return String
+     */
+    public String getFilePath() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(host);
+        if (port != DEFAULT_PORT) {
+            sb.append('_').append(port);
+        }
+        sb.append('/').append(path.replace("%", "%25"));
+        if (path.isEmpty() || path.endsWith("/")) {
+            sb.append(DIRECTORY_FILE);
+        }
+        if (query != null) {
+            sb.append("%3F").append(query.replace("%", "%25").replace("/", "%2F"));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ParsedUrl)) {
+            return false;
+        }
+        ParsedUrl other = (ParsedUrl) o;
+        return hash == other.hash && cacheKey.equals(other.cacheKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return cacheKey;
+    }
+}
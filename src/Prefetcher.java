@@ -0,0 +1,328 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetcher Class
+ *
+ * Speculatively fetches the objects an HTML page links to, for the
+ * prefetch mode of UrlCache, so they are cached by the time the caller asks
+ * for them. The links of a page are handed over by a LinkScanner while the
+ * page downloads; those on the page's own host and port that have no
+ * cached copy are queued on a Refresher, which fetches them in the
+ * background, links nearer the page first, with at most maxPerHost at a
+ * time against one host.
+ *
+ * Three limits keep the speculation in check. A page the caller asked for
+ * is at depth 0 and the objects it links to at depth 1; a prefetched page
+ * is scanned in turn only while its links would be no deeper than
+ * maxDepth; one that is not is scanned once the caller uses it, from its
+ * cached copy, as it is then a page the caller asked for. Prefetched objects the caller has not asked for yet may hold
+ * at most budget bytes between them; while they do, queued links are
+ * dropped rather than fetched. An object counts against the budget until
+ * it is used or evicted, so speculation that does not pay off stops
+ * itself.
+ *
+ * A prefetched copy was fetched on the caller's behalf, so its first use
+ * within REUSE_WINDOW of the prefetch needs no revalidation, whatever its
+ * freshness; see isFresh. The caller's uses of prefetched objects are
+ * counted as hits; a use while
+ * the prefetch is still in progress is a late hit, which saved only part
+ * of the wait. getHitRate() gives both as a share of the objects
+ * prefetched. What fetching an object does is left to the Loader given to
+ * the constructor.
+ *
+ * @author James MacIsaac
+ */
+public class Prefetcher {
+
+    private static final int LATE = -1; // depth of a prefetch in progress the caller has asked for
+    private static final long REUSE_WINDOW = 300000; // ms a prefetched copy may be used without revalidation
+
+    /**
+     * Fetches objects for the prefetcher
+     */
+    public interface Loader {
+
+        /**
+         * @param key cache key of the object
+         * @return true if there is a cached copy, which is not prefetched
+         */
+        boolean isCached(String key);
+
+        /**
+         * Brings an object into the cache
+         *
+         * @param key cache key of the object
+         * @return bytes of the copy downloaded, or -1 if none was
+         * @throws UrlCacheException if the object could not be fetched
+         */
+        long fetch(String key) throws UrlCacheException;
+
+        /**
+         * Feeds the cached copy of an object to a scanner
+         *
+         * @param key cache key of the object
+         * @param links
+         */
+        void scan(String key, LinkScanner links);
+    }
+
+    private final Loader loader;
+    private final int maxDepth;
+    private final long budget;
+    private final Refresher queue;
+    private final ConcurrentHashMap<String, Integer> depths; // queued or in progress -> depth, LATE once asked for
+    private final ConcurrentHashMap<String, Long> unused; // prefetched and not asked for -> bytes
+    private final ConcurrentHashMap<String, Long> fetchedAt; // unused -> time prefetched, ms
+    private final Set<String> unscanned; // prefetched pages whose links were too deep to follow
+    private final AtomicLong outstanding; // bytes in unused
+    private final AtomicLong scheduled;
+    private final AtomicLong prefetched;
+    private final AtomicLong prefetchedBytes;
+    private final AtomicLong hits;
+    private final AtomicLong lateHits;
+    private final AtomicLong hitBytes;
+    private final AtomicLong dropped; // queued links not fetched because the budget was spent
+    private final AtomicLong wasted; // prefetched objects evicted before they were used
+
+    /**
+     * @param loader fetches the linked objects
+     * @param maxDepth deepest link followed, at least 1
+     * @param budget max bytes of prefetched objects not yet used
+     * @param maxConcurrent max prefetches in progress in total
+     * @param maxPerHost max prefetches in progress against one host
+     */
+    public Prefetcher(Loader loader, int maxDepth, long budget, int maxConcurrent, int maxPerHost) {
+        if (maxDepth < 1 || budget < 1) {
+            throw new IllegalArgumentException("depth and budget must be at least 1");
+        }
+        this.loader = loader;
+        this.maxDepth = maxDepth;
+        this.budget = budget;
+        this.queue = new Refresher(this::prefetch, maxConcurrent, maxPerHost);
+        this.depths = new ConcurrentHashMap<String, Integer>();
+        this.unused = new ConcurrentHashMap<String, Long>();
+        this.fetchedAt = new ConcurrentHashMap<String, Long>();
+        this.unscanned = ConcurrentHashMap.newKeySet();
+        this.outstanding = new AtomicLong();
+        this.scheduled = new AtomicLong();
+        this.prefetched = new AtomicLong();
+        this.prefetchedBytes = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.lateHits = new AtomicLong();
+        this.hitBytes = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.wasted = new AtomicLong();
+    }
+
+    /**
+     * Returns a scanner for a page being downloaded that queues the page's
+     * links, or null if they would be deeper than maxDepth
+     *
+     * @author James MacIsaac
+     * @param page url of the page
+     * @return LinkScanner, or null
+     */
+    public LinkScanner scanner(final ParsedUrl page) {
+        Integer d = depths.get(page.getCacheKey());
+        final int depth = d == null || d == LATE ? 1 : d + 1; // a page the caller asked for is at depth 0
+        if (depth > maxDepth) {
+            unscanned.add(page.getCacheKey());
+            return null;
+        }
+        return new LinkScanner(link -> found(page, link, depth));
+    }
+
+    /**
+     * @param key cache key of an object
+     * @return true if it was prefetched less than REUSE_WINDOW ago and has
+     * not been used since, so its copy may be used without asking the
+     * server
+     */
+    public boolean isFresh(String key) {
+        Long t = fetchedAt.get(key);
+        return t != null && System.currentTimeMillis() - t < REUSE_WINDOW;
+    }
+
+    /**
+     * Records that the caller used an object, counting a hit if it was
+     * prefetched
+     *
+     * @author James MacIsaac
+     * @param key cache key of the object
+     */
+    public void used(String key) {
+        Long bytes = unused.remove(key);
+        if (bytes != null) {
+            fetchedAt.remove(key);
+            outstanding.addAndGet(-bytes);
+            hits.incrementAndGet();
+            hitBytes.addAndGet(bytes);
+            scanUsed(key);
+            return;
+        }
+        Integer d = depths.get(key);
+        if (d != null && d != LATE) {
+            depths.replace(key, d, LATE);
+        }
+    }
+
+    /**
+     * Records that an object was evicted, so a prefetched copy that was
+     * never used stops counting against the budget
+     *
+     * @author James MacIsaac
+     * @param key cache key of the object
+     */
+    public void evicted(String key) {
+        Long bytes = unused.remove(key);
+        if (bytes != null) {
+            fetchedAt.remove(key);
+            outstanding.addAndGet(-bytes);
+            wasted.incrementAndGet();
+        }
+        unscanned.remove(key);
+    }
+
+    /**
+     * Drops the queued links and stops the background fetches
+     *
+     * @author James MacIsaac
+     */
+    public void close() {
+        queue.close();
+    }
+
+    /**
+     * @return links queued for prefetching
+     */
+    public long getScheduled() {
+        return scheduled.get();
+    }
+
+    /**
+     * @return objects downloaded by prefetching
+     */
+    public long getPrefetched() {
+        return prefetched.get();
+    }
+
+    /**
+     * @return bytes downloaded by prefetching
+     */
+    public long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
+    /**
+     * @return prefetched objects the caller used after they were cached
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return prefetched objects the caller asked for while they were
+     * being prefetched
+     */
+    public long getLateHits() {
+        return lateHits.get();
+    }
+
+    /**
+     * @return bytes of the prefetched objects the caller used
+     */
+    public long getHitBytes() {
+        return hitBytes.get();
+    }
+
+    /**
+     * @return bytes of prefetched objects not used yet
+     */
+    public long getOutstandingBytes() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return share of the prefetched objects the caller has used, late or
+     * not, 0 if none has been prefetched
+     */
+    public double getHitRate() {
+        long n = prefetched.get();
+        return n == 0 ? 0 : (double) (hits.get() + lateHits.get()) / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Prefetcher[scheduled=%d, prefetched=%d, bytes=%d, hits=%d, late=%d, hitRate=%.2f, "
+                + "outstanding=%d/%d, dropped=%d, wasted=%d]", scheduled.get(), prefetched.get(),
+                prefetchedBytes.get(), hits.get(), lateHits.get(), getHitRate(), outstanding.get(), budget,
+                dropped.get(), wasted.get());
+    }
+
+    /**
+     * Queues a link found on a page, if it is on the page's host and
+     * neither cached nor queued already
+     */
+    private void found(ParsedUrl page, String link, int depth) {
+        ParsedUrl u = page.resolve(link);
+        if (u == null || u.equals(page) || !u.getHostKey().equals(page.getHostKey())) {
+            return;
+        }
+        String key = u.getCacheKey();
+        if (unused.containsKey(key) || loader.isCached(key) || depths.putIfAbsent(key, depth) != null) {
+            return;
+        }
+        if (queue.schedule(key, u.getHostKey(), -depth)) {
+            scheduled.incrementAndGet();
+        } else {
+            depths.remove(key, depth); // closed
+        }
+    }
+
+    /**
+     * Scans a prefetched page the caller has used, if its links were not
+     * followed when it was prefetched
+     */
+    private void scanUsed(String key) {
+        if (!unscanned.remove(key)) {
+            return;
+        }
+        try {
+            ParsedUrl page = ParsedUrl.parse(key);
+            loader.scan(key, new LinkScanner(link -> found(page, link, 1)));
+        } catch (UrlCacheException e) {
+            // not a url we can fetch
+        }
+    }
+
+    /**
+     * Called by the queue to prefetch one object
+     */
+    private void prefetch(String key) throws UrlCacheException {
+        try {
+            if (outstanding.get() >= budget) {
+                dropped.incrementAndGet();
+                return;
+            }
+            long bytes = loader.fetch(key);
+            if (bytes < 0) {
+                return; // cached in the meantime
+            }
+            prefetched.incrementAndGet();
+            prefetchedBytes.addAndGet(bytes);
+            Integer d = depths.get(key);
+            if (d != null && d == LATE) {
+                lateHits.incrementAndGet();
+                scanUsed(key);
+            } else {
+                fetchedAt.put(key, System.currentTimeMillis());
+                unused.put(key, bytes);
+                outstanding.addAndGet(bytes);
+            }
+        } finally {
+            depths.remove(key);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Refresher Class
+ *
+ * Revalidates stale cached objects in the background, for the
+ * stale-while-revalidate mode of UrlCache. Scheduled objects wait in a queue
+ * ordered by priority (the caller weighs how often an object is used
+ * against how long it has been stale) and are handed to a small pool of
+ * worker threads. At most maxPerHost revalidations run against any one
+ * host at a time, so a burst of stale hits cannot stampede an origin; an
+ * object whose host is busy waits while objects for other hosts go ahead.
+ * An object already queued or running is not queued again.
+ *
+ * What a revalidation does is left to the Revalidator given to the
+ * constructor.
+ *
+ * @author James MacIsaac
+ */
+public class Refresher {
+
+    private static final long CLOSE_WAIT = 10000; // ms close() waits for running revalidations
+
+    /**
+     * Revalidates one object
+     */
+    public interface Revalidator {
+
+        /**
+         * @param key cache key of the object
+         * @throws UrlCacheException if the object could not be revalidated
+         */
+        void revalidate(String key) throws UrlCacheException;
+    }
+
+    private final TreeSet<Task> queue; // highest priority first
+    private final HashSet<String> pending; // keys queued or running
+    private final HashMap<String, Integer> running; // host key -> revalidations in progress
+    private final Revalidator revalidator;
+    private final int maxConcurrent;
+    private final int maxPerHost;
+    private final ArrayList<Thread> workers;
+    private long sequence; // breaks ties in scheduling order
+    private long refreshed;
+    private long failures;
+    private boolean closed;
+
+    /**
+     * @param revalidator revalidates the scheduled objects
+     * @param maxConcurrent max revalidations in progress in total
+     * @param maxPerHost max revalidations in progress against one host
+     */
+    public Refresher(Revalidator revalidator, int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("limits must be at least 1");
+        }
+        this.queue = new TreeSet<Task>();
+        this.pending = new HashSet<String>();
+        this.running = new HashMap<String, Integer>();
+        this.revalidator = revalidator;
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+        this.workers = new ArrayList<Thread>();
+    }
+
+    /**
+     * Queues an object for revalidation unless it is already queued or
+     * being revalidated
+     *
+     * @author James MacIsaac
+     * @param key cache key of the object
+     * @param hostKey host:port of its server
+     * @param priority higher is revalidated sooner
+     * @return true if the object was queued
+     */
+    public synchronized boolean schedule(String key, String hostKey, double priority) {
+        if (closed || !pending.add(key)) {
+            return false;
+        }
+        queue.add(new Task(key, hostKey, priority, sequence++));
+        if (workers.size() < maxConcurrent && workers.size() < queue.size() + active()) {
+            Thread t = new Thread(this::workLoop, "UrlCache-refresher");
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Drops the queued objects and stops the worker threads, waiting a
+     * little while for revalidations already in progress to finish
+     *
+     * @author James MacIsaac
+     */
+    public synchronized void close() {
+        closed = true;
+        for (Task t : queue) {
+            pending.remove(t.key);
+        }
+        queue.clear();
+        notifyAll();
+        long deadline = System.currentTimeMillis() + CLOSE_WAIT;
+        long wait;
+        while (active() > 0 && (wait = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return objects waiting to be revalidated
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return revalidations finished without error
+     */
+    public synchronized long getRefreshed() {
+        return refreshed;
+    }
+
+    /**
+     * @return revalidations that failed
+     */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Refresher[queued=" + queue.size() + ", running=" + active()
+                + ", refreshed=" + refreshed + ", failures=" + failures + "]";
+    }
+
+    /**
+     * Revalidations in progress. Must hold the lock.
+     */
+    private int active() {
+        return pending.size() - queue.size();
+    }
+
+    /**
+     * Body of a worker thread. Tasks are taken under the lock but run
+     * outside it.
+     */
+    private void workLoop() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                while ((task = next()) == null) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            boolean ok;
+            try {
+                revalidator.revalidate(task.key);
+                ok = true;
+            } catch (UrlCacheException | RuntimeException e) {
+                ok = false; // the stale copy stays in use until the next try
+            }
+            synchronized (this) {
+                if (ok) {
+                    refreshed++;
+                } else {
+                    failures++;
+                }
+                pending.remove(task.key);
+                int n = running.get(task.hostKey) - 1;
+                if (n == 0) {
+                    running.remove(task.hostKey);
+                } else {
+                    running.put(task.hostKey, n);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes the highest priority task whose host is below its limit, or
+     * returns null if there is none. Must hold the lock.
+     */
+    private Task next() {
+        if (closed) {
+            return null;
+        }
+        Iterator<Task> it = queue.iterator();
+        while (it.hasNext()) {
+            Task t = it.next();
+            Integer n = running.get(t.hostKey);
+            if (n == null || n < maxPerHost) {
+                it.remove();
+                running.put(t.hostKey, n == null ? 1 : n + 1);
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A queued revalidation
+     */
+    private static class Task implements Comparable<Task> {
+
+        final String key;
+        final String hostKey;
+        final double priority;
+        final long seq;
+
+        Task(String key, String hostKey, double priority, long seq) {
+            this.key = key;
+            this.hostKey = hostKey;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            int c = Double.compare(o.priority, priority);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -33,6 +33,8 @@ public class Tester {
 			System.out.println("Last-Modified for " + url[0] + " is: " + cache.getLastModified(url[0]));
 			cache.getObject(url[0]);
 			System.out.println("Last-Modified for " + url[0] + " is: " + cache.getLastModified(url[0]));
+			System.out.println("Connection pool: " + cache.getConnectionPool());
+			cache.close();
 		}
 		catch (UrlCacheException e) {
 			System.err.println("There was a problem: " + e.getMessage());
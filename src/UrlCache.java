@@ -1,35 +1,159 @@
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.Socket;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Set;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.Stack;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * UrlCache Class
  *
+ * A single instance may be shared by several threads. Concurrent requests
+ * for the same object are served by one fetch.
+ *
+ * Objects the server sends gzip or deflate encoded are stored as received,
+ * and uncompressed text-like objects are gzipped on their way to disk. The
+ * catalog records the coding and readObject/openObject decode on the fly.
+ *
+ * Bodies are kept in a BlobStore under the hash of their bytes, so a body
+ * served under several urls is stored once, and a 200 that resends the
+ * body already cached is compared with it instead of being written again.
+ * The disk quota charges such a body once, however many urls share it, and
+ * credits it back when the last of them is evicted (see DiskQuota).
+ *
+ * The catalog also keeps each object's ETag and how long the server said it
+ * stays fresh (Cache-Control max-age, or Expires). A fresh copy is used
+ * without contacting the server; a stale one is revalidated with
+ * If-None-Match and If-Modified-Since.
+ *
+ * In the opt-in stale-while-revalidate mode a stale copy is used straight
+ * away too, and revalidated later by a background Refresher.
+ *
+ * In the opt-in prefetch mode the HTML pages downloaded are scanned for
+ * links as they arrive, and the objects they link to on the same host are
+ * fetched in the background by a Prefetcher before they are asked for.
+ *
+ * A large object from a server that accepts Range requests is downloaded
+ * in segments over several connections at once, each written straight into
+ * its place in the file. A download that fails part way is resumed from
+ * its saved DownloadProgress the next time the object is fetched.
+ *
+ * Fetches normally use one blocking socket per request in flight. With
+ * setNioEngine they run on a NioEngine instead, where a few event-loop
+ * threads drive any number of non-blocking connections; getObjects then
+ * dispatches a batch without a thread per request.
+ *
+ * getObjectAsync and streamObject do the same work without the caller
+ * waiting: the first completes a CompletableFuture, the second publishes
+ * the body with Flow backpressure while teeing it into the cache.
+ *
+ * Several processes may share a cache directory. The catalog is kept
+ * consistent between them by CatalogStore, which also sees the entries the
+ * others add, and a fetch takes a lock on its object in catalog.lock, so a
+ * process about to fetch an object another process is fetching waits and
+ * then uses the copy that one stored; so does a cache sharing the
+ * directory with another in the same JVM.
+ *
+ * Host names are looked up through a DnsCache shared by both, whose
+ * resolver can be replaced (setHostResolver), and warmUp opens connections
+ * to the hosts in the catalog before the first request needs them.
+ *
+ * Timings and counts of every fetch are kept in a FetchMetrics (see
+ * getMetrics and registerMBean). Echoing requests and responses to the
+ * console is off unless turned on with setTrace or -Durlcache.trace=true.
+ *
  * @author Majid Ghaderi
  * @version	1.1, Sep 30, 2016
  *
  */
 public class UrlCache {
 
-    private HashMap<String, String> catMap; // this is the catalog 
+    private final CatalogStore catalog; // this is the catalog 
     //containing the url -> last-modified time values
+    private final ConnectionPool pool; // keep-alive sockets shared across requests
+    private final ConcurrentHashMap<String, CompletableFuture<FetchStatus>> inFlight; // cache key -> fetch in progress
+    private final AtomicLong coalesced; // requests that waited for another thread's fetch
+    private final AtomicLong remoteCoalesced; // fetches answered by another process's fetch
+    private final AtomicLong pipelined; // responses read from a pipelined window
+    private final AtomicLong pipelineFallbacks; // pipelined requests retried one at a time
+    private final AtomicLong freshHits; // requests answered from a fresh copy without the network
+    private final AtomicLong revalidations; // requests the server answered with 304
+    private final AtomicLong misses; // requests the server answered with a new copy
+    private final AtomicLong staleHits; // requests answered from a stale copy, refreshed later
+    private final AtomicLong segmented; // downloads split into Range requests
+    private final AtomicLong resumed; // segmented downloads carried on from a saved DownloadProgress
+    private final AtomicLong rangeFallbacks; // segmented downloads redone as one stream
+    private volatile int segments = SEGMENTS; // max Range requests per large object, 1 for none
+    private volatile long segmentMin = SEGMENT_MIN; // smallest segment worth a request
+    private final Refresher refresher; // background revalidation for stale-while-revalidate
+    private volatile boolean staleWhileRevalidate; // use stale copies without waiting for the server
+    private volatile Prefetcher prefetcher; // fetches objects linked from HTML pages, null if off
+    private final MemoryTier memory; // recently read objects, in front of the cached files
+    private final DiskQuota quota; // byte budget for the cached bodies, LRU eviction
+    private boolean quotaLoaded; // quota holds the objects cataloged before this instance
+    private final File cacheDir; // holds the catalog and the Blobs and Files directories
+    private final BlobStore blobs; // bodies by content hash, each kept once
+    private final CompressionStats compression; // bytes saved by compression, per host
+    private volatile NioEngine nio; // non-blocking fetch engine, null to use blocking sockets
+    private final FetchMetrics metrics; // timings and counts of every fetch
+    private final ExecutorService async; // runs getObjectAsync and streamObject off the caller's thread
+    private ObjectName mbeanName; // metrics as registered over JMX, null if not
+    private volatile boolean trace = Boolean.getBoolean("urlcache.trace"); // echo requests and responses
+    private static final int BATCH_CONCURRENCY = 32; // default max requests in flight per batch
+    private static final int BATCH_PER_HOST = 6; // default max requests per host per batch
+    private static final int PIPELINE_DEPTH = 16; // default max pipelined requests per connection
+    private static final int REFRESH_CONCURRENCY = 4; // max background revalidations in total
+    private static final int REFRESH_PER_HOST = 2; // max background revalidations per host
+    private static final int PREFETCH_CONCURRENCY = 4; // max prefetches in total
+    private static final long MEMORY_CAPACITY = 64L << 20; // default memory tier size
+    private static final long MEMORY_MAX_OBJECT = 1L << 20; // default largest object held in memory
+    private static final long COMPRESS_MIN = 1024; // smaller uncompressed objects are stored as is
+    private static final int COPY_BUFFER = 65536; // buffer for copies that cannot use a channel transfer
+    private static final int SEGMENTS = 4; // default max segments per large object
+    private static final long SEGMENT_MIN = 4L << 20; // default smallest segment; smaller objects are one stream
+    private static final long PROGRESS_INTERVAL = 4L << 20; // bytes of a segment between saves of its progress
+    private static final int WARM_HOSTS = 16; // default most hosts warmed by warmUp
+    private static final int WARM_PER_HOST = 2; // default connections warmUp opens per host
 
     /**
      * Default constructor to initialize data structures used for caching/etc If
@@ -39,33 +163,102 @@ public class UrlCache {
      * @throws UrlCacheException if encounters any errors/exceptions
      */
     public UrlCache() throws UrlCacheException {
-        try {
+        this(new File(System.getProperty("user.dir") + "/Cache"));
+    }
 
-            File catalog = new File(System.getProperty("user.dir") + "/Cache/catalog.dat");
-            catMap = new HashMap();
-            if (catalog.exists()) {
-                System.out.println("Catalog present - fetching contents...");
-                BufferedReader reader = new BufferedReader(new FileReader(catalog));
-                String text = null;
-
-                int i = 0;
-                while ((text = reader.readLine()) != null) {
-                    // need to split line into url and Last-Modified
-                    String url = text.substring(0, text.indexOf('('));
-                    System.out.println(i + 1 + ") " + url);
-                    i++;
-                    String lastMod = text.substring(text.lastIndexOf(')') + 1);
-                    catMap.put(url, lastMod);
-                }
-                System.out.println("Contents loaded.");
-                reader.close();
-            } else {
-                System.out.println("No catalog present.");
+    /**
+     * Constructor for a cache kept in the given directory instead of Cache
+     * under the working directory
+     *
+     * @param cacheDir directory holding the catalog and the cached files
+     * @throws UrlCacheException if encounters any errors/exceptions
+     */
+    public UrlCache(File cacheDir) throws UrlCacheException {
+        this.cacheDir = cacheDir;
+        pool = new ConnectionPool();
+        inFlight = new ConcurrentHashMap<String, CompletableFuture<FetchStatus>>();
+        coalesced = new AtomicLong();
+        remoteCoalesced = new AtomicLong();
+        pipelined = new AtomicLong();
+        pipelineFallbacks = new AtomicLong();
+        freshHits = new AtomicLong();
+        revalidations = new AtomicLong();
+        misses = new AtomicLong();
+        staleHits = new AtomicLong();
+        segmented = new AtomicLong();
+        resumed = new AtomicLong();
+        rangeFallbacks = new AtomicLong();
+        refresher = new Refresher(this::refreshObject, REFRESH_CONCURRENCY, REFRESH_PER_HOST);
+        memory = new MemoryTier(MEMORY_CAPACITY, MEMORY_MAX_OBJECT);
+        quota = new DiskQuota(Long.MAX_VALUE, key -> {
+            try {
+                return evictObject(key);
+            } catch (UrlCacheException e) {
+                trace("Could not evict " + key + ": " + e.getMessage()); // counted by the quota
+                throw e;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        });
+        compression = new CompressionStats();
+        catalog = new CatalogStore(cacheDir);
+        blobs = new BlobStore(new File(cacheDir, "Blobs"), catalog);
+        catalog.setListener(memory::invalidate); // changed by another process
+        metrics = new FetchMetrics(catalog.getWriteTimes());
+        async = newBatchExecutor(BATCH_CONCURRENCY);
+        if (catalog.load()) {
+            trace("Catalog present - fetching contents...");
+            if (trace) {
+                int[] i = {0};
+                catalog.forEach((url, e) -> trace(++i[0] + ") " + url));
+            }
+            trace("Contents loaded.");
+        } else {
+            trace("No catalog present.");
         }
+    }
 
+    /**
+     * Method to fill the disk quota from the catalog, least recently used
+     * first, the first time the quota is needed. Reading every entry is what
+     * makes this slow for a large catalog, so the constructor leaves it
+     * until a quota is set or inspected; objects downloaded before then are
+     * already tracked and count as the most recently used. Entries written
+     * before sizes were cataloged have their file measured once and the
+     * size recorded.
+     *
+     * @author James MacIsaac
+     */
+    private synchronized void loadQuota() {
+        if (quotaLoaded) {
+            return;
+        }
+        quotaLoaded = true;
+        ArrayList<Map.Entry<String, CatalogEntry>> list = new ArrayList<Map.Entry<String, CatalogEntry>>();
+        catalog.forEach((url, e) -> list.add(new AbstractMap.SimpleImmutableEntry<String, CatalogEntry>(url, e)));
+        list.sort((a, b) -> Long.compare(a.getValue().getLastAccess(), b.getValue().getLastAccess()));
+        ArrayList<Map.Entry<String, Long>> sizes = new ArrayList<Map.Entry<String, Long>>(list.size());
+        HashMap<String, String> blobOf = new HashMap<String, String>();
+        for (Map.Entry<String, CatalogEntry> me : list) {
+            CatalogEntry e = me.getValue();
+            if (e.getSize() < 0) {
+                try {
+                    File file = cachedFile(ParsedUrl.parse(me.getKey()), e);
+                    e = e.withSize(file.length()); // 0 if the file is gone
+                    catalog.put(me.getKey(), e);
+                } catch (UrlCacheException ex) {
+                    e = e.withSize(0); // not a url we can map to a file; measured again next time
+                }
+            }
+            sizes.add(new AbstractMap.SimpleImmutableEntry<String, Long>(me.getKey(), e.getSize()));
+            if (e.getBlob() != null) {
+                blobOf.put(me.getKey(), e.getBlob());
+            }
+        }
+        quota.preload(sizes, blobOf);
+        try {
+            catalog.flush();
+        } catch (UrlCacheException e) {
+            // the measured sizes are only an optimization for the next load
+        }
     }
 
     /**
@@ -77,508 +270,3117 @@ public class UrlCache {
      * @throws UrlCacheException if encounters any errors/exceptions
      */
     public void getObject(String url) throws UrlCacheException {
-        // needs caching
-        String[] urlTokens = parseUrl(url);
-        if (urlTokens == null) {
-            throw new UrlCacheException("Invalid Url");
-        }
-        String host = urlTokens[0], path = urlTokens[2];
-        int port = 80;
-        if (urlTokens[1] != null) {
-            port = Integer.parseInt(urlTokens[1]); // use default port
-        }
-        fetchTCPObject(host, port, path);
-        writeCatalog();
+        fetchObject(url);
+        touch(ParsedUrl.parse(url).getCacheKey());
+        catalog.flush();
     }
 
     /**
-     * Method to parse the contents of a url string and split them into host,
-     * port, and path
+     * Like getObject, but returns straight away. On the NIO engine the fetch
+     * runs there; otherwise it runs on a thread of the cache's own, up to
+     * BATCH_CONCURRENCY at once where there are no virtual threads.
      *
      * @author James MacIsaac
-     * @param url
-     * @return String[]
-     * @throws UrlCacheException
+     * @param url URL of the object to be downloaded
+     * @return completed with how the object was brought up to date, or
+     * exceptionally with a UrlCacheException
      */
-    private String[] parseUrl(String url) throws UrlCacheException {
-
-// URL matching regex
-        String urlRegex = "([a-z]+(:\\/\\/))?(([a-zA-Z0-9\\-]+\\.)+[a-z]+)(:[0-9]+)?\\/([a-zA-Z0-9+&@#%?=~_!-]+\\/)*[a-zA-Z0-9+&@#%?=~_!-]+(\\.[a-zA-Z0-9]+){1,1}";
-        Pattern patt = Pattern.compile(urlRegex);
-        Matcher matcher = patt.matcher(url);
-
-        if (!matcher.matches()) {
-            throw new UrlCacheException("Invalid Url");
-        }
-
-        // ignore protocols
-        if (url.contains("://")) {
-            url = url.substring(url.indexOf("://") + 3);
+    public CompletableFuture<FetchStatus> getObjectAsync(String url) {
+        NioEngine engine = nio;
+        try {
+            if (engine != null) {
+                // the catalog is written off the event loop
+                return fetchObjectAsync(url, engine).thenApplyAsync(status -> {
+                    finishAsync(url);
+                    return status;
+                }, async);
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    FetchStatus status = fetchObject(url);
+                    finishAsync(url);
+                    return status;
+                } catch (UrlCacheException e) {
+                    throw new CompletionException(e);
+                }
+            }, async);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<FetchStatus> failed = new CompletableFuture<FetchStatus>();
+            failed.completeExceptionally(new UrlCacheException("Cache is closed"));
+            return failed;
         }
+    }
 
-        String host, port = null;
-        String path;
-
-        //get the host and port
-        if (url.contains(":")) {
-            host = url.substring(0, url.indexOf(':'));
-            port = url.substring(url.indexOf(':') + 1, url.indexOf('/'));
-        } else {
-            host = url.substring(0, url.indexOf('/'));
+    /**
+     * Method to record the use of an object fetched by getObjectAsync and
+     * write the catalog
+     *
+     * @author James MacIsaac
+     * @param url
+     */
+    private void finishAsync(String url) {
+        try {
+            touch(ParsedUrl.parse(url).getCacheKey());
+            catalog.flush();
+        } catch (UrlCacheException e) {
+            throw new CompletionException(e);
         }
-        //get the path
-        path = url.substring(url.indexOf('/') + 1, url.length());
-
-        String[] returnVal = new String[3];
-        returnVal[0] = host;
-        returnVal[1] = port;
-        returnVal[2] = path;
-        return returnVal;
     }
 
     /**
-     * Method to handle conditionally downloading the object after evaluating
-     * whether it has a stored version in the cache, then determining if the
-     * object has been changed
+     * Returns the object specified by the parameter url as a stream of
+     * buffers, brought up to date first like getObject. Each subscriber
+     * gets the whole object, decoded, in chunks sent only as it requests
+     * them. A body the server sends uncompressed is handed on as it arrives
+     * while it is written to the cache, so the first bytes reach the
+     * subscriber before the download has finished; a compressed one, a
+     * copy that is fresh or not modified, or a fetch another request
+     * started is read from the cache once it is there. The stream ends with
+     * onError(UrlCacheException) if the object cannot be fetched.
      *
-     * @param host
-     * @param port
-     * @param path
-     * @throws UrlCacheException
+     * A subscriber that stops requesting holds the download, and its
+     * connection, until it requests more or cancels; cancelling lets the
+     * download finish into the cache.
+     *
+     * @author James MacIsaac
+     * @param url URL of the object
+     * @return a publisher that fetches the object once per subscriber
      */
-    private void fetchTCPObject(String host, int port, String path) throws UrlCacheException {
-        InputStream iStream;
-        PrintWriter oStream;
-        Response response = null;
-        try {
-            Socket socket = new Socket(host, port);
-            //bind the socket
-            oStream = new PrintWriter(new DataOutputStream(socket.getOutputStream()));
-            //socket data writer
-            iStream = socket.getInputStream();
-            //socket data reader
-            System.out.println();
-            System.out.println("REQUESTING OBJECT [/" + path + "] AT HOST [" + host + "] ON PORT [" + port + "]");
-            System.out.println("%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%");
-            System.out.println("REQUEST HEADER:");
-            System.out.println("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@");
-            
-            if (path == null) {
-                oStream.println("GET / HTTP/1.1");
-                System.out.println("GET / HTTP/1.1");
-            } else {
-                oStream.println("GET /" + path + " HTTP/1.1");
-                System.out.println("GET /" + path + " HTTP/1.1");
+    public Flow.Publisher<ByteBuffer> streamObject(String url) {
+        return subscriber -> {
+            if (subscriber == null) {
+                throw new NullPointerException("subscriber");
             }
-            oStream.println("Host: " + host);
-            System.out.println("Host: " + host);
-
-            String lm = null;
-            if ((lm = getLMDateString(host + ":" + port + "/" + path)) != null) {
-                oStream.println("If-Modified-Since: " + lm);
-                System.out.println("If-Modified-Since: " + lm);
+            BodyStream stream = new BodyStream(subscriber);
+            subscriber.onSubscribe(stream);
+            try {
+                async.execute(() -> streamBody(url, stream));
+            } catch (RejectedExecutionException e) {
+                stream.fail(new UrlCacheException("Cache is closed"));
             }
+        };
+    }
 
-            oStream.println("Accept-Language: en-us");
-            System.out.println("Accept-Language: en-us");
-            oStream.println("Accept-Encoding: gzip, deflate");
-            System.out.println("Accept-Encoding: gzip, deflate");
-            oStream.println("Connection: keep-alive");
-            System.out.println("Connection: keep-alive");
-            oStream.println(); // empty line to terminate request
-            oStream.flush();
-            //make the request
-            System.out.println("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@");
-            System.out.println("SENT REQUEST TO SERVER");
-            System.out.println("AWAITING RESPONSE FROM SERVER...");
-            response = new Response(); // object to hold response contents
-            response.setHeader(getResponseHeader(iStream));
-            if (!response.hasHeader()) {
-                throw new Exception("Response Header Error");
-            }
-
-            System.out.println("RESPONSE HEADER:");
-            System.out.println("**********************************");
-            String[] respH = response.getHeader();
-            for (int i = 0; i < respH.length; i++) {
-                System.out.println(respH[i]);
-            }
-            System.out.println("**********************************");
-            System.out.println("%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%");
-            System.out.println();
-            int rStatus = response.checkStatus();
-            if (!(rStatus >= 200)) // response indicated a serious issue
-            {
-                throw new Exception("Uncommon Status Code! (< 200)");
-            }
-            if (rStatus >= 400) // fnf
-            {
-                throw new Exception("File Not Found or Server Error");
-            }
-            if(rStatus == 301){ // moved permanently - can't download
-                oStream.close();
-                iStream.close();
-                socket.close();
-                throw new UrlCacheException("File Moved Permanently - Cannot Download");
-            }
-            if(rStatus == 304){
-                // 304 - Not Modified - don't download
-                oStream.close();
-                iStream.close();
-                socket.close();
-                System.out.println("Cache version is up to date.");
-                return;
+    /**
+     * Method to bring an object up to date for a subscriber of
+     * streamObject and send it the body: as it is downloaded if teed,
+     * otherwise from the cache afterwards
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param stream
+     */
+    private void streamBody(String url, BodyStream stream) {
+        try {
+            ParsedUrl u = ParsedUrl.parse(url);
+            if (cachedStatus(u) == null) {
+                fetchShared(u, stream);
             }
-            if (rStatus == 200) { // 200 - download file
-                // if here, need to update cache file and value!
-                System.out.print("Downloading File...");
-                response.setContent(getResponseContent(iStream));
-                if (!response.hasContent()) {
-                    throw new Exception("Response Content Error");
-                }
-
-                saveFile(host, path, response); // save file
-                System.out.println("Done.");
-                //close connections gracefully
-                oStream.close();
-                iStream.close();
-                socket.close();
-            }else{ // unhandled status code
-                oStream.close();
-                iStream.close();
-                socket.close();
-                throw new UrlCacheException("Odd Status Code - Not Downloading");
+            touch(u.getCacheKey());
+            catalog.flush();
+            if (!stream.isTeed()) {
+                InputStream in = openObject(url);
+                try {
+                    stream.publish(in);
+                } finally {
+                    in.close();
+                }
             }
-        } catch (Exception e) {
-            throw new UrlCacheException(e.getMessage());
+            stream.complete();
+        } catch (UrlCacheException e) {
+            stream.fail(e);
+        } catch (IOException e) {
+            stream.fail(new UrlCacheException("Error reading cached object"));
+        } catch (RuntimeException e) {
+            stream.fail(new UrlCacheException(e.toString()));
         }
     }
 
     /**
-     * Method which parses the response header from a given buffered reader on
-     * an open TCP connection
+     * Returns the cached copy of the object specified by the parameter url,
+     * from memory if it was read recently and from the cache file otherwise.
+     * Objects up to the memory tier's size limit are kept in memory after
+     * being read; larger ones are mapped from the file each time, or decoded
+     * into a new buffer if stored compressed. Does not contact the server;
+     * call getObject first to bring the copy up to date.
      *
      * @author James MacIsaac
-     * @param b
-     * @return String[]
+     * @param url URL of the object
+     * @return a read-only buffer holding the object
+     * @throws UrlCacheException if the object is not in the cache or cannot
+     * be read
      */
-    private String[] getResponseHeader(InputStream i) throws UrlCacheException {
+    public ByteBuffer readObject(String url) throws UrlCacheException {
+        ParsedUrl u = ParsedUrl.parse(url);
+        ByteBuffer b = memory.get(u.getCacheKey());
+        if (b != null) {
+            touch(u.getCacheKey());
+            return b;
+        }
+        CatalogEntry entry = catalog.get(u.getCacheKey());
+        if (entry == null) {
+            catalog.refresh(); // another process may have added it
+            entry = catalog.get(u.getCacheKey());
+        }
+        if (entry == null) {
+            throw new UrlCacheException("Object not in cache");
+        }
+        touch(u.getCacheKey());
+        long stamp = memory.stamp();
         try {
-            byte lastFour[] = new byte[5];
-            lastFour[0] = 0;lastFour[1] = 0;lastFour[2] = 0;lastFour[3]=0;
-            ByteArrayOutputStream bb = new ByteArrayOutputStream();
-            String finish = "\r\n\r\n";
-            int runCount = 0;
-            while (true){
-                lastFour[4] = (byte)i.read();
-                
-                if(runCount == 0){
-                    lastFour[3] = lastFour[4];
-                } else if (runCount == 1){
-                    lastFour[2] = lastFour[3];
-                    lastFour[3] = lastFour[4];
-                } else if (runCount == 2){
-                    lastFour[1] = lastFour[2];
-                    lastFour[2] = lastFour[3];
-                    lastFour[3] = lastFour[4];
-                } else if (runCount == 3){
-                    lastFour[0] = lastFour[1];
-                    lastFour[1] = lastFour[2];
-                    lastFour[2] = lastFour[3];
-                    lastFour[3] = lastFour[4];
-                } else {
-                    bb.write(lastFour[0]);
-                    lastFour[0] = lastFour[1];
-                    lastFour[1] = lastFour[2];
-                    lastFour[2] = lastFour[3];
-                    lastFour[3] = lastFour[4];
-                    String tmp = "" + (char)lastFour[0] + (char)lastFour[1] + (char)lastFour[2] + (char)lastFour[3];
-                    if(tmp.compareTo(finish) == 0){
-                        bb.write(lastFour[0]);
-                        bb.write(lastFour[1]);
-                        bb.write(lastFour[2]);
-                        bb.write(lastFour[3]);
-                        break;
+            if (entry.getEncoding() != null) {
+                b = readDecoded(u, entry);
+                if (!memory.admits(b.capacity())) {
+                    memory.recordBypass();
+                    return b.asReadOnlyBuffer();
+                }
+            } else {
+                FileChannel in = FileChannel.open(cachedFile(u, entry).toPath(), StandardOpenOption.READ);
+                try {
+                    long size = in.size();
+                    if (!memory.admits(size)) {
+                        memory.recordBypass();
+                        return in.map(FileChannel.MapMode.READ_ONLY, 0, size);
                     }
+                    b = ByteBuffer.allocate((int) size);
+                    while (b.hasRemaining() && in.read(b) != -1) {
+                        // fill the buffer
+                    }
+                    b.flip();
+                } finally {
+                    in.close();
                 }
-                runCount++;
-            }
-            bb.flush();
-            
-            byte header[] = bb.toByteArray();
-            Stack<String> hStack = new Stack<String>();
-            String hLine = "";
-            for(int j = 0; j < header.length-2; j++){
-                hLine += (char)header[j];
-                if(hLine.charAt(hLine.length()-1) == '\n' && hLine.charAt(hLine.length()-2) == '\r'){
-                    hLine = hLine.substring(0, hLine.length()-2);
-                    hStack.push(hLine);
-                    hLine = "";
-                }
-                  
-            }
-            
-            String[] headerContent = new String[hStack.size()];
-            for (int j = 0; j < headerContent.length; j++) {
-                
-                headerContent[headerContent.length - j - 1] = hStack.pop();
-                }
-            return headerContent;
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new UrlCacheException("Error reading response header");
+            }
+        } catch (IOException e) {
+            throw new UrlCacheException("Error reading cached object");
         }
+        memory.put(u.getCacheKey(), b, stamp);
+        return b.asReadOnlyBuffer();
     }
 
     /**
-     * Method which parses the response content (file data) from a given 
-     * input stream on the open TCP connection
-     * 
+     * Method to decode a compressed cache file into a buffer, sized from the
+     * decoded length in the catalog when it is known
+     *
      * @author James MacIsaac
-     * @param iStream
-     * @return byte[]
-     * @throws UrlCacheException 
+     * @param url
+     * @param entry
+     * @return ByteBuffer
+     * @throws IOException
+     * @throws UrlCacheException if the object's coding is not supported
      */
-    private byte[] getResponseContent(InputStream iStream) throws UrlCacheException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-        byte[] data = new byte[16384];//build a buffer of 2^13 bytes
+    private ByteBuffer readDecoded(ParsedUrl url, CatalogEntry entry) throws IOException, UrlCacheException {
+        if (!ContentCoding.isSupported(entry.getEncoding())) {
+            throw new UrlCacheException("Unsupported Content-Encoding: " + entry.getEncoding());
+        }
+        long length = entry.getLength();
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new UrlCacheException("Object too large to read into memory, use openObject");
+        }
+        InputStream in = ContentCoding.decode(new FileInputStream(cachedFile(url, entry)), entry.getEncoding());
         try {
-            int nRead;
-            while ((nRead = iStream.read(data, 0, data.length)) != -1) {
-                buffer.write(data, 0, nRead);
+            byte[] buf = new byte[length >= 0 ? (int) length : COPY_BUFFER];
+            int pos = 0, n;
+            while (true) {
+                if (pos == buf.length) {
+                    if (buf.length >= Integer.MAX_VALUE - 8) {
+                        throw new UrlCacheException("Object too large to read into memory, use openObject");
+                    }
+                    // the catalog length may be unknown or stale
+                    buf = Arrays.copyOf(buf, (int) Math.min(Integer.MAX_VALUE - 8, buf.length * 2L + 1));
+                }
+                if ((n = in.read(buf, pos, buf.length - pos)) == -1) {
+                    break;
+                }
+                pos += n;
             }
-            buffer.flush();
-
-            return buffer.toByteArray();
-        } catch (Exception e) {
-            throw new UrlCacheException("Error reading response content");
+            return ByteBuffer.wrap(buf, 0, pos).slice();
+        } finally {
+            in.close();
         }
     }
 
     /**
-     * Method to save a downloaded file to the cache at it's specified location
-     * given the path.
-     * 
+     * Opens the cached copy of the object specified by the parameter url
+     * for reading. Like readObject, but a large object is streamed from its
+     * file instead of being mapped, and decoded as it is read if stored
+     * compressed.
+     *
      * @author James MacIsaac
-     * @param host
-     * @param path
-     * @param response
-     * @throws UrlCacheException 
+     * @param url URL of the object
+     * @return a stream over the object
+     * @throws UrlCacheException if the object is not in the cache or cannot
+     * be read
      */
-    private void saveFile(String host, String path, Response response) throws UrlCacheException {
-        try {
-            File file = new File(System.getProperty("user.dir") + "/Cache/Files/" + host + "/" + path);
-            if (!file.exists()) {
-                File fileFolder = new File(System.getProperty("user.dir") + "/Cache/Files/" + host + "/" + path.substring(0, path.lastIndexOf('/')));
-                fileFolder.mkdirs();
-                file = new File(System.getProperty("user.dir") + "/Cache/Files/" + host + "/" + path);
+    public InputStream openObject(String url) throws UrlCacheException {
+        ParsedUrl u = ParsedUrl.parse(url);
+        ByteBuffer b = memory.get(u.getCacheKey());
+        if (b == null) {
+            CatalogEntry entry = catalog.get(u.getCacheKey());
+            File file = entry == null ? null : cachedFile(u, entry);
+            if (entry == null || !file.isFile()) {
+                catalog.refresh(); // another process may have added or replaced it
+                entry = catalog.get(u.getCacheKey());
+                file = entry == null ? null : cachedFile(u, entry);
+            }
+            if (entry == null || !file.isFile()) {
+                throw new UrlCacheException("Object not in cache");
+            }
+            long length = entry.getEncoding() == null ? file.length() : entry.getLength();
+            if (length < 0 || !memory.admits(length)) {
+                memory.recordBypass();
+                touch(u.getCacheKey());
+                if (!ContentCoding.isSupported(entry.getEncoding())) {
+                    throw new UrlCacheException("Unsupported Content-Encoding: " + entry.getEncoding());
+                }
+                try {
+                    return ContentCoding.decode(new FileInputStream(file), entry.getEncoding());
+                } catch (IOException e) {
+                    throw new UrlCacheException("Error reading cached object");
+                }
+            }
+            b = readObject(url);
+        } else {
+            touch(u.getCacheKey());
+        }
+        final ByteBuffer buf = b;
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buf.hasRemaining() ? buf.get() & 0xff : -1;
             }
-            FileOutputStream fos = new FileOutputStream(file, false);
-            fos.write(response.getContent());
-            fos.close();
 
-            // make a catalog entry
-            updateCatalogEntry(host, path, response);
+            @Override
+            public int read(byte[] dst, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!buf.hasRemaining()) {
+                    return -1;
+                }
+                len = Math.min(len, buf.remaining());
+                buf.get(dst, off, len);
+                return len;
+            }
 
-        } catch (Exception e) {
-            throw new UrlCacheException("Error saving downloaded file");
-        }
+            @Override
+            public int available() {
+                return buf.remaining();
+            }
+        };
     }
 
     /**
-     * Method to generate a string which is used to store a hashmap key/value
-     * pair in the catalog file
-     * 
+     * Downloads every object in urls that is out of date, several at a time.
+     * Uses the default limits of BATCH_CONCURRENCY requests in total and
+     * BATCH_PER_HOST requests to any one host.
+     *
      * @author James MacIsaac
-     * @param url
-     * @param lm
-     * @return String
+     * @param urls URLs of the objects to be downloaded
+     * @return the status of each url fetched and the error of each that failed
+     * @throws UrlCacheException if the catalog cannot be written
      */
-    private String makeCacheString(String url, String lm) {
-        String ceStr = "";
-        // add url
-        ceStr += url;
-        //add url/Last-Modified separator
-        ceStr += "(*%*)";
-        //add Last-Modified Timestamp
-        ceStr += lm;
-        return ceStr;
+    public BatchResult getObjects(Collection<String> urls) throws UrlCacheException {
+        return getObjects(urls, BATCH_CONCURRENCY, BATCH_PER_HOST);
     }
 
     /**
-     * Method to update a last-modified time for a mapping in the catalog.
-     * This is run when an updated version of the file is downloaded from 
-     * the server
-     * 
+     * Downloads every object in urls that is out of date, with at most
+     * maxConcurrent requests in flight and at most maxPerHost to one host.
+     * A url that fails is recorded in the result rather than aborting the
+     * batch, and the catalog is written once when all are done.
+     *
      * @author James MacIsaac
-     * @param host
-     * @param path
-     * @param r 
+     * @param urls URLs of the objects to be downloaded
+     * @param maxConcurrent max requests in flight in total
+     * @param maxPerHost max requests in flight to a single host/port
+     * @return the status of each url fetched and the error of each that failed
+     * @throws UrlCacheException if the catalog cannot be written
      */
-    private void updateCatalogEntry(String host, String path, Response r) {
-        boolean changed = false;
-        Set s = catMap.entrySet();
-        if (catMap.containsKey(host + "/" + path)) { // entry already exists
-            catMap.replace(host + "/" + path, r.getRespLM());
-        } else {
-            catMap.put(host + "/" + path, r.getRespLM());
+    public BatchResult getObjects(Collection<String> urls, int maxConcurrent, int maxPerHost) throws UrlCacheException {
+        NioEngine engine = nio;
+        if (engine != null) {
+            return getObjectsNio(urls, maxConcurrent, maxPerHost, engine);
+        }
+        final BatchResult result = new BatchResult();
+        final Semaphore global = new Semaphore(maxConcurrent);
+        final HashMap<String, Semaphore> perHost = new HashMap<String, Semaphore>();
+        ExecutorService executor = newBatchExecutor(maxConcurrent);
+        try {
+            for (final String url : new LinkedHashSet<String>(urls)) { // skip duplicates
+                executor.execute(() -> {
+                    Semaphore hostLimit = null;
+                    try {
+                        String hostKey = ParsedUrl.parse(url).getHostKey();
+                        synchronized (perHost) {
+                            hostLimit = perHost.computeIfAbsent(hostKey, k -> new Semaphore(maxPerHost));
+                        }
+                        hostLimit.acquire();
+                        global.acquire();
+                        try {
+                            result.succeeded(url, fetchObject(url));
+                            touch(ParsedUrl.parse(url).getCacheKey());
+                        } finally {
+                            global.release();
+                        }
+                    } catch (UrlCacheException e) {
+                        result.failed(url, e);
+                    } catch (InterruptedException e) {
+                        result.failed(url, new UrlCacheException("Interrupted"));
+                    } catch (RuntimeException e) {
+                        result.failed(url, new UrlCacheException(e.toString()));
+                    } finally {
+                        if (hostLimit != null) {
+                            hostLimit.release();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting: every connect and read has a timeout (see ConnectionPool), so a
+                // stalled origin fails its own requests rather than holding up the batch forever
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new UrlCacheException("Interrupted while fetching batch");
         }
+        catalog.flush();
+        return result;
     }
 
     /**
-     * Method that writes the contents of the catalog hashmap to an 
-     * external file
-     * 
+     * Method to fetch a batch on the NIO engine. Requests are started as
+     * earlier ones finish, within the same limits as the threaded batch, and
+     * the calling thread only waits for the last one.
+     *
      * @author James MacIsaac
-     * @throws UrlCacheException 
+     * @param urls
+     * @param maxConcurrent
+     * @param maxPerHost
+     * @param engine
+     * @return BatchResult
+     * @throws UrlCacheException
      */
-    private void writeCatalog() throws UrlCacheException {
-
+    private BatchResult getObjectsNio(Collection<String> urls, int maxConcurrent, int maxPerHost, NioEngine engine) throws UrlCacheException {
+        BatchResult result = new BatchResult();
+        NioBatch batch = new NioBatch(new LinkedHashSet<String>(urls), maxConcurrent, maxPerHost, engine, result);
+        batch.pump();
         try {
-            File f = new File(System.getProperty("user.dir") + "/Cache/catalog.dat");
-
-            if (!f.exists()) {
-                f.getParentFile().mkdirs();
-                f.createNewFile();
-            }
-
-            FileOutputStream fStream = new FileOutputStream(f, false); // false overwrites the file
-            Set hm = catMap.entrySet();
-            Iterator i = hm.iterator();
-            while (i.hasNext()) {
-                Map.Entry me = (Map.Entry) i.next();
-                String key = me.getKey() + ""; // forcing the String type
-                String value = me.getValue() + "";
-                fStream.write(makeCacheString(key, value).getBytes());
-                fStream.write("\n".getBytes()); // need to seperate by line
-            }
-            fStream.close();
-        } catch (Exception e) {
-            throw new UrlCacheException("Error writing catalog to file");
+            batch.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UrlCacheException("Interrupted while fetching batch");
         }
+        catalog.flush();
+        return result;
     }
 
     /**
-     * Returns the Last-Modified time associated with the object specified by
-     * the parameter url.
+     * Method to create the executor for a batch. Uses a virtual thread per
+     * task when the JVM has them (Java 21+); otherwise a pool of maxThreads
+     * daemon threads, which the global limit would cap at anyway.
      *
      * @author James MacIsaac
-     * @param url URL of the object
-     * @return the Last-Modified time in millisecond as in Date.getTime()
-     * @throws UrlCacheException if the specified url is not in the cache, or
-     * there are other errors/exceptions
+     * @param maxThreads
+     * @return ExecutorService
      */
-    public long getLastModified(String url) throws UrlCacheException {
-        String[] urlTokens = parseUrl(url);
-        url = urlTokens[0] + "/" + urlTokens[2];
-
-        if (catMap.containsKey(url)) {
-            return dateStringToLong(catMap.get(url));
+    private static ExecutorService newBatchExecutor(int maxThreads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(maxThreads, r -> {
+                Thread t = new Thread(r, "UrlCache-batch");
+                t.setDaemon(true);
+                return t;
+            });
         }
-        throw new UrlCacheException("Error getting last modified time");
     }
 
     /**
-     * Method to fetch the Last-modified time for a given url in the catalog
-     * Similar to the getLastModified method but returns the value in the
-     * SimpleDateTime format instead of milliseconds
-     * 
+     * Method to fetch a single object without writing the catalog, so that
+     * callers fetching several objects can write it once at the end. A
+     * fresh copy is used as is, and so is a stale one in
+     * stale-while-revalidate mode, after queueing it for revalidation.
+     *
      * @author James MacIsaac
      * @param url
-     * @return String
-     * @throws UrlCacheException 
+     * @return FetchStatus
+     * @throws UrlCacheException
      */
-    private String getLMDateString(String url) throws UrlCacheException {
-        String[] urlTokens = parseUrl(url);
-        url = urlTokens[0] + "/" + urlTokens[2];
+    private FetchStatus fetchObject(String url) throws UrlCacheException {
+        ParsedUrl u = ParsedUrl.parse(url);
+        FetchStatus status = cachedStatus(u);
+        return status != null ? status : fetchShared(u);
+    }
+
+    /**
+     * Method to start fetching a single object on the NIO engine, like
+     * fetchObject but without waiting for the server
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param engine
+     * @return the outcome, once known
+     */
+    private CompletableFuture<FetchStatus> fetchObjectAsync(String url, NioEngine engine) {
+        try {
+            ParsedUrl u = ParsedUrl.parse(url);
+            FetchStatus status = cachedStatus(u);
+            return status != null ? CompletableFuture.completedFuture(status) : fetchSharedAsync(u, engine);
+        } catch (UrlCacheException e) {
+            CompletableFuture<FetchStatus> failed = new CompletableFuture<FetchStatus>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
 
-        if (catMap.containsKey(url)) {
-            return catMap.get(url);
+    /**
+     * Method to answer a request from the cache alone if it may be: a fresh
+     * copy is used as is, and so is a stale one in stale-while-revalidate
+     * mode, after queueing it for revalidation. A copy prefetched for the
+     * caller and not used yet counts as fresh. Changes other processes have
+     * made to the catalog are read first, if not read in the last few
+     * milliseconds.
+     *
+     * @author James MacIsaac
+     * @param u
+     * @return FRESH or STALE, or null if the server must be asked
+     * @throws UrlCacheException if the catalog cannot be read
+     */
+    private FetchStatus cachedStatus(ParsedUrl u) throws UrlCacheException {
+        catalog.poll();
+        if (isFresh(u)) {
+            freshHits.incrementAndGet();
+            metrics.recordOutcome(FetchStatus.FRESH);
+            return FetchStatus.FRESH;
+        }
+        if (staleWhileRevalidate) {
+            CatalogEntry entry = catalog.get(u.getCacheKey());
+            if (entry != null && !entry.isNoStore() && cachedFile(u, entry).isFile()) {
+                staleHits.incrementAndGet();
+                metrics.recordOutcome(FetchStatus.STALE);
+                scheduleRefresh(u, entry);
+                return FetchStatus.STALE;
+            }
         }
         return null;
     }
-    
+
     /**
-     * Method which helps the getLastModified method by taking a Last-Modified
-     * time string, and producing it's millisecond value
-     * @param dateString
-     * @return
-     * @throws UrlCacheException 
+     * Method to fetch a single object from the server. If another thread is
+     * already fetching the same object, this waits for that fetch and
+     * returns its result instead of making a second request; so it does if
+     * another process is, see fetchLocked.
+     *
+     * @author James MacIsaac
+     * @param u
+     * @return FetchStatus
+     * @throws UrlCacheException
      */
-    private long dateStringToLong(String dateString) throws UrlCacheException{
-        try {
-            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
-            Date d = format.parse(dateString);
-            return d.getTime();
-        } catch (ParseException p) {
-            throw new UrlCacheException("Error parsing Last-Modified time");
+    private FetchStatus fetchShared(ParsedUrl u) throws UrlCacheException {
+        NioEngine engine = nio;
+        if (engine != null) {
+            return awaitFetch(fetchSharedAsync(u, engine));
         }
+        return fetchShared(u, null);
     }
 
     /**
-     * Class which manages the contents of an HTTP Response.
-     * Contains several methods to get and set its fields, as well as provide 
-     * quick access to key parts of the response header. (Status Code and 
-     * Last-Modified Time)
+     * Method to fetch a single object from the server on a blocking socket,
+     * sharing a fetch already in progress. A 200 this fetch reads is teed
+     * into the stream, if there is one; a stream is not teed if the object
+     * is fetched by another request, or in segments.
+     *
+     * @author James MacIsaac
+     * @param u
+     * @param stream subscriber to hand the body on to as it arrives, or null
+     * @return FetchStatus
+     * @throws UrlCacheException
      */
-    private class Response {
+    private FetchStatus fetchShared(ParsedUrl u, BodyStream stream) throws UrlCacheException {
+        CompletableFuture<FetchStatus> mine = new CompletableFuture<FetchStatus>();
+        CompletableFuture<FetchStatus> leader = inFlight.putIfAbsent(u.getCacheKey(), mine);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            return awaitFetch(leader);
+        }
+        try {
+            // needs caching
+            FetchStatus status = fetchLocked(u, stream);
+            mine.complete(status);
+            return status;
+        } catch (UrlCacheException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(u.getCacheKey(), mine);
+        }
+    }
 
-        private String[] header;
-        private byte[] content;
-        public String status;
+    /**
+     * Method to fetch a single object holding its lock across processes.
+     * If another process, or another cache on the same directory in this
+     * JVM, holds the lock, this waits for it. If the holder has changed the
+     * object's catalog entry by the time the lock is held, its fetch is
+     * taken as this one's rather than asking the server again. The
+     * catalog is flushed before the lock is released, so the next process
+     * sees the outcome.
+     *
+     * @author James MacIsaac
+     * @param u
+     * @param stream subscriber to hand a 200 on to as it arrives, or null
+     * @return FetchStatus
+     * @throws UrlCacheException
+     */
+    private FetchStatus fetchLocked(ParsedUrl u, BodyStream stream) throws UrlCacheException {
+        String key = u.getCacheKey();
+        CatalogEntry before = catalog.get(key);
+        FileLock lock = catalog.lockObject(key, false);
+        if (lock == null) {
+            lock = catalog.lockObject(key, true);
+        }
+        try {
+            catalog.refresh();
+        } catch (UrlCacheException e) {
+            releaseObject(lock);
+            throw e;
+        }
+        CatalogEntry after = catalog.get(key);
+        if (after != null && !after.equals(before) && cachedFile(u, after).isFile()) {
+            releaseObject(lock);
+            remoteCoalesced.incrementAndGet();
+            boolean same = before != null && Objects.equals(before.getBlob(), after.getBlob());
+            return same ? FetchStatus.NOT_MODIFIED : FetchStatus.DOWNLOADED;
+        }
+        try {
+            return stream == null ? fetchTCPObject(u) : fetchTCPObject(u, false, stream);
+        } finally {
+            releaseObject(lock);
+        }
+    }
 
-        Response() {
-            header = null;
-            content = null;
+    /**
+     * Method to flush the catalog and release an object's lock across
+     * processes
+     *
+     * @author James MacIsaac
+     * @param lock may be null
+     * @throws UrlCacheException if the catalog cannot be written
+     */
+    private void releaseObject(FileLock lock) throws UrlCacheException {
+        if (lock == null) {
+            return;
         }
+        try {
+            catalog.flush();
+        } finally {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                // released when the lock file closes
+            }
+        }
+    }
 
-        public String getRespLM() {
-            String lm = null;
-            if (header != null) {
-                for (int i = 0; i < header.length; i++) {
-                    if (header[i].contains("Last-Modified: ")) {
-                        lm = header[i];
-                        break;
+    /**
+     * Method to fetch a single object from the server on the NIO engine,
+     * sharing a fetch already in progress like fetchShared does. If another
+     * process holds the object's lock, the wait for it and any fetch after
+     * it are done on a blocking socket off the event loop.
+     *
+     * @author James MacIsaac
+     * @param u
+     * @param engine
+     * @return the outcome, once known
+     */
+    private CompletableFuture<FetchStatus> fetchSharedAsync(ParsedUrl u, NioEngine engine) {
+        final CompletableFuture<FetchStatus> mine = new CompletableFuture<FetchStatus>();
+        CompletableFuture<FetchStatus> leader = inFlight.putIfAbsent(u.getCacheKey(), mine);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            return leader;
+        }
+        mine.whenComplete((status, e) -> inFlight.remove(u.getCacheKey(), mine));
+        FileLock lock;
+        try {
+            lock = catalog.lockObject(u.getCacheKey(), false);
+            if (lock == null) {
+                async.execute(() -> {
+                    try {
+                        mine.complete(fetchLocked(u, null));
+                    } catch (UrlCacheException | RuntimeException e) {
+                        mine.completeExceptionally(e);
                     }
-                }
-                lm = lm.substring(lm.indexOf(' ') + 1);
+                });
+                return mine;
             }
-            return lm;
+        } catch (UrlCacheException e) {
+            mine.completeExceptionally(e);
+            return mine;
+        } catch (RejectedExecutionException e) {
+            mine.completeExceptionally(new UrlCacheException("Cache is closed"));
+            return mine;
         }
-
-        public int checkStatus() {
-            int val;
-            if ((val = Integer.parseInt(status.substring(status.indexOf(' ') + 1, status.indexOf(' ') + 4))) >= 200) {
-                return val;
+        final CompletableFuture<FetchStatus> fetch = new CompletableFuture<FetchStatus>();
+        fetch.whenComplete((status, e) -> {
+            try {
+                releaseObject(lock);
+            } catch (UrlCacheException ex) {
+                if (e == null) {
+                    mine.completeExceptionally(ex);
+                    return;
+                }
+            }
+            if (e != null) {
+                mine.completeExceptionally(e);
             } else {
-                return -1;
+                mine.complete(status);
             }
-        }
-
-        public String[] getHeader() {
-            return header;
-        }
+        });
+        StringWriter request = new StringWriter();
+        PrintWriter oStream = new PrintWriter(request);
+        writeRequest(oStream, false, u);
+        oStream.flush();
+        engine.submit(u.getHost(), u.getPort(), request.toString().getBytes(StandardCharsets.ISO_8859_1),
+                new NioFetch(u, fetch));
+        return mine;
+    }
 
-        public void setHeader(String[] header) {
-            this.header = header; // full header set
-            status = header[0].substring(header[0].indexOf(' ')); // status set
-        }
+    /**
+     * Method to check whether the cached copy of an object may be used
+     * without asking the server: it is fresh, or it was prefetched for the
+     * caller and has not been used yet
+     *
+     * @author James MacIsaac
+     * @param url
+     * @return boolean
+     */
+    private boolean isFresh(ParsedUrl url) {
+        CatalogEntry entry = catalog.get(url.getCacheKey());
+        Prefetcher p = prefetcher;
+        return entry != null && (entry.isFresh(System.currentTimeMillis())
+                || (p != null && p.isFresh(url.getCacheKey()))) && cachedFile(url, entry).isFile();
+    }
 
-        public byte[] getContent() {
-            return content;
-        }
+    /**
+     * Method to queue a stale object for background revalidation. Objects
+     * used more often, and those stale for longer, go first: the priority
+     * grows linearly with the hit count and logarithmically with the time
+     * since the copy went stale.
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param entry
+     */
+    private void scheduleRefresh(ParsedUrl url, CatalogEntry entry) {
+        long stale = Math.max(0, System.currentTimeMillis() - Math.max(entry.getFreshUntil(), entry.getLastAccess()));
+        double priority = (entry.getHits() + 1) * (1 + Math.log1p(stale / 1000.0));
+        refresher.schedule(url.getCacheKey(), url.getHostKey(), priority);
+    }
 
-        public void setContent(byte[] content) {
-            this.content = content;
+    /**
+     * Method called by the refresher to revalidate an object in the
+     * background. The object is left alone if it became fresh since it was
+     * queued; a background revalidation does not count as a use.
+     *
+     * @author James MacIsaac
+     * @param key
+     * @throws UrlCacheException
+     */
+    private void refreshObject(String key) throws UrlCacheException {
+        ParsedUrl u = ParsedUrl.parse(key);
+        if (isFresh(u) || catalog.get(key) == null) {
+            return; // refreshed already, or evicted
+        }
+        fetchShared(u);
+        catalog.flush();
+    }
+
+    /**
+     * Turns the prefetch mode on or off. While it is on, each HTML page
+     * downloaded is scanned for src and href links as it arrives, and the
+     * objects they point to on the page's host that are not cached yet are
+     * fetched in the background, nearer links first, PREFETCH_CONCURRENCY
+     * at a time and at most maxPerHost at a time per host. Prefetched pages
+     * are scanned in turn down to maxDepth links from a page the caller
+     * asked for. Prefetching stops while the objects prefetched and not yet
+     * used add up to budget bytes; see Prefetcher. Turning the mode on
+     * again starts a new Prefetcher with its own counts.
+     *
+     * @author James MacIsaac
+     * @param maxDepth links followed from a requested page, 0 to turn
+     * prefetching off
+     * @param budget max bytes of prefetched objects not yet used
+     * @param maxPerHost max prefetches in progress against one host
+     */
+    public void setPrefetch(int maxDepth, long budget, int maxPerHost) {
+        Prefetcher next = maxDepth == 0 ? null
+                : new Prefetcher(prefetchLoader(), maxDepth, budget, PREFETCH_CONCURRENCY, maxPerHost);
+        Prefetcher old;
+        synchronized (this) {
+            old = prefetcher;
+            prefetcher = next;
+        }
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Returns the prefetcher, mainly for its hit rate and byte counts
+     *
+     * @author James MacIsaac
+     * @return Prefetcher, or null if the prefetch mode is off
+     */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Method to make the loader through which the prefetcher fetches
+     * objects. An object cached since it was queued is left alone, and a
+     * prefetch does not count as a use.
+     *
+     * @author James MacIsaac
+     * @return Prefetcher.Loader
+     */
+    private Prefetcher.Loader prefetchLoader() {
+        return new Prefetcher.Loader() {
+            @Override
+            public boolean isCached(String key) {
+                return catalog.get(key) != null;
+            }
+
+            @Override
+            public long fetch(String key) throws UrlCacheException {
+                if (catalog.get(key) != null) {
+                    return -1;
+                }
+                FetchStatus status = fetchShared(ParsedUrl.parse(key));
+                catalog.flush();
+                CatalogEntry entry = catalog.get(key);
+                return status == FetchStatus.DOWNLOADED && entry != null ? entry.getSize() : -1;
+            }
+
+            @Override
+            public void scan(String key, LinkScanner links) {
+                try {
+                    scanCachedCopy(ParsedUrl.parse(key), links);
+                } catch (UrlCacheException e) {
+                    // not a url we can map to a file
+                }
+            }
+        };
+    }
+
+    /**
+     * Method to make a scanner for the links of a response body in the
+     * prefetch mode
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param response
+     * @return LinkScanner, or null if prefetching is off, the body is not
+     * HTML, or its links are too deep to follow
+     */
+    private LinkScanner linkScanner(ParsedUrl url, Response response) {
+        Prefetcher p = prefetcher;
+        String type = response.getHeaderValue("Content-Type");
+        if (p == null || type == null) {
+            return null;
+        }
+        type = type.trim().toLowerCase();
+        if (!type.startsWith("text/html") && !type.startsWith("application/xhtml+xml")) {
+            return null;
+        }
+        return p.scanner(url);
+    }
+
+    /**
+     * Method to scan the cached copy of an object for links: a page the
+     * server sent compressed, which is stored that way and so could not be
+     * scanned as it arrived, or a prefetched page once it is used. A copy
+     * that cannot be read is skipped.
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param links
+     */
+    private void scanCachedCopy(ParsedUrl url, LinkScanner links) {
+        CatalogEntry entry = catalog.get(url.getCacheKey());
+        if (entry == null || !ContentCoding.isSupported(entry.getEncoding())) {
+            return;
+        }
+        try (InputStream in = links.scan(ContentCoding.decode(new FileInputStream(cachedFile(url, entry)),
+                entry.getEncoding()))) {
+            byte[] buf = new byte[COPY_BUFFER];
+            while (in.read(buf) != -1) {
+                // scanned on the way
+            }
+        } catch (IOException e) {
+            // no links from this copy
+        }
+    }
+
+    /**
+     * Turns the stale-while-revalidate mode on or off. While it is on,
+     * getObject and getObjects use a cached copy that is no longer fresh
+     * straight away (FetchStatus.STALE) and queue it for revalidation in
+     * the background, REFRESH_PER_HOST at a time per host. Objects with no
+     * cached copy, or that the server said not to store, are still fetched
+     * while the caller waits.
+     *
+     * Turning the mode on also queues every stale object in the catalog,
+     * so revalidation picks up where it left off before a restart.
+     *
+     * @author James MacIsaac
+     * @param enabled
+     */
+    public void setStaleWhileRevalidate(boolean enabled) {
+        staleWhileRevalidate = enabled;
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        catalog.forEach((url, entry) -> {
+            if (entry.isFresh(now) || entry.isNoStore()) {
+                return;
+            }
+            try {
+                scheduleRefresh(ParsedUrl.parse(url), entry);
+            } catch (UrlCacheException e) {
+                // not a url we can fetch
+            }
+        });
+    }
+
+    /**
+     * Returns the background refresher, mainly so its queue length and
+     * refresh counts can be inspected
+     *
+     * @author James MacIsaac
+     * @return Refresher
+     */
+    public Refresher getRefresher() {
+        return refresher;
+    }
+
+    /**
+     * Method to wait for a fetch started by another thread, rethrowing its
+     * failure as this caller's own exception
+     *
+     * @author James MacIsaac
+     * @param fetch
+     * @return FetchStatus
+     * @throws UrlCacheException
+     */
+    private FetchStatus awaitFetch(CompletableFuture<FetchStatus> fetch) throws UrlCacheException {
+        try {
+            return fetch.get();
+        } catch (ExecutionException e) {
+            throw new UrlCacheException(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UrlCacheException("Interrupted waiting for fetch");
+        }
+    }
+
+    /**
+     * Method to handle conditionally downloading the object after evaluating
+     * whether it has a stored version in the cache, then determining if the
+     * object has been changed
+     *
+     * @param url
+     * @return FetchStatus
+     * @throws UrlCacheException
+     */
+    private FetchStatus fetchTCPObject(ParsedUrl url) throws UrlCacheException {
+        if (segments > 1) {
+            FetchStatus status = resumeSegments(url);
+            if (status != null) {
+                return status;
+            }
+        }
+        return fetchTCPObject(url, segments > 1, null);
+    }
+
+    /**
+     * Method to fetch an object with a GET on one connection. A 200 for a
+     * large object that may be fetched in ranges has only its first segment
+     * read from that connection, and the rest fetched in parallel.
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param allowSegments false to read any 200 as a single stream
+     * @param stream subscriber to tee a 200 into, or null
+     * @return FetchStatus
+     * @throws UrlCacheException
+     */
+    private FetchStatus fetchTCPObject(ParsedUrl url, boolean allowSegments, BodyStream stream) throws UrlCacheException {
+        ConnectionPool.Connection conn = acquire(url);
+        boolean reusable = false;
+        FetchStatus status;
+        try {
+            Response response;
+            try {
+                response = sendRequest(conn, url);
+            } catch (UrlCacheException e) {
+                if (!conn.isReused()) {
+                    throw e;
+                }
+                // the server dropped the idle socket between our staleness
+                // check and the request - retry once on a fresh connection
+                pool.release(conn, false);
+                conn = null;
+                conn = acquire(url);
+                response = sendRequest(conn, url);
+            }
+            BodyInputStream body = response.openBody(conn.getInputStream());
+            DownloadProgress plan = allowSegments ? planSegments(response) : null;
+            try {
+                if (plan == null) {
+                    status = handleResponse(url, response, body, stream);
+                } else {
+                    ConnectionPool.Connection first = conn;
+                    conn = null; // closed by downloadSegments once the first segment is read
+                    status = downloadSegments(url, response, body, first, plan);
+                }
+            } finally {
+                recordResponse(url, response, body);
+            }
+            reusable = response.isReusable(body);
+        } catch (Exception e) {
+            throw new UrlCacheException(e.getMessage());
+        } finally {
+            pool.release(conn, reusable);
+        }
+        if (status == null) {
+            // a Range request was answered with something else, so the
+            // server cannot be relied on for ranges of this object
+            rangeFallbacks.incrementAndGet();
+            return fetchTCPObject(url, false, null);
+        }
+        return status;
+    }
+
+    /**
+     * Method to decide whether a response is worth downloading in segments:
+     * a 200 with a known length of at least two segments, sent as is, that
+     * the server accepts byte ranges for and that has a validator to send
+     * in If-Range
+     *
+     * @author James MacIsaac
+     * @param response
+     * @return the segments to download, or null to read the body as one
+     * stream
+     */
+    private DownloadProgress planSegments(Response response) {
+        int n = segments;
+        long min = segmentMin;
+        String cl = response.getHeaderValue("Content-Length");
+        if (n < 2 || response.checkStatus() != 200 || cl == null || response.getHeaderValue("Transfer-Encoding") != null
+                || ContentCoding.normalize(response.getHeaderValue("Content-Encoding")) != null
+                || !acceptsByteRanges(response.getHeaderValue("Accept-Ranges")) || shouldCompress(response)) {
+            return null;
+        }
+        long length;
+        try {
+            length = Long.parseLong(cl.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (length < 2 * min) {
+            return null;
+        }
+        DownloadProgress plan = DownloadProgress.plan(length, response.getHeaderValue("ETag"), response.getRespLM(), n, min);
+        return plan.getIfRange() == null ? null : plan;
+    }
+
+    /**
+     * @param acceptRanges Accept-Ranges header value, may be null
+     * @return true if it lists the bytes unit
+     */
+    private static boolean acceptsByteRanges(String acceptRanges) {
+        if (acceptRanges == null) {
+            return false;
+        }
+        for (String unit : acceptRanges.split(",")) {
+            if (unit.trim().equalsIgnoreCase("bytes")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method to carry on a segmented download that failed part way, if a
+     * DownloadProgress was saved for the object. A record that does not
+     * match its partial file is thrown away.
+     *
+     * @author James MacIsaac
+     * @param url
+     * @return FetchStatus, or null if there is nothing to resume or the
+     * server no longer serves the same version, so the object must be
+     * fetched in full
+     * @throws UrlCacheException if the download fails again; the progress
+     * made is saved for the next attempt
+     */
+    private FetchStatus resumeSegments(ParsedUrl url) throws UrlCacheException {
+        File file = objectFile(url);
+        File record = progressFile(file);
+        if (!record.exists()) {
+            return null;
+        }
+        DownloadProgress progress = DownloadProgress.load(record);
+        if (progress == null || progress.isComplete() || partFile(file).length() != progress.getLength()) {
+            discardSegments(file);
+            return null;
+        }
+        trace("Resuming download at byte " + progress.getDone() + " of " + progress.getLength() + "...");
+        FetchStatus status;
+        try {
+            status = downloadSegments(url, null, null, null, progress);
+        } catch (UrlCacheException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new UrlCacheException(e.getMessage());
+        }
+        if (status == null) {
+            rangeFallbacks.incrementAndGet();
+            return null;
+        }
+        resumed.incrementAndGet();
+        return status;
+    }
+
+    /**
+     * Method to download the segments of an object that are not done yet
+     * into its partial file, then hash it and add it to the blob store.
+     * Worker threads fetch segments with Range requests, but only on
+     * connections the pool can give them at once; the calling thread reads
+     * the first segment from the 200 it already has, closes that connection
+     * (the rest of the body is not wanted) and then fetches whatever
+     * segments are left, so no thread ever waits for a connection while
+     * holding another.
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param first the 200 the download started from, or null when resuming
+     * @param firstBody its body, or null
+     * @param firstConn its connection, or null
+     * @param progress the segments and how far each has got
+     * @return FetchStatus.DOWNLOADED, or null if the server answered a Range
+     * request with anything but the range asked for; the partial file is
+     * then thrown away
+     * @throws Exception if a segment failed; the progress made is saved so
+     * the next fetch resumes it
+     */
+    private FetchStatus downloadSegments(ParsedUrl url, Response first, InputStream firstBody,
+            ConnectionPool.Connection firstConn, DownloadProgress progress) throws Exception {
+        File file = objectFile(url);
+        File part = partFile(file);
+        File record = progressFile(file);
+        SegmentedDownload download;
+        try {
+            if (first != null) {
+                checkResponse(first);
+                file.getParentFile().mkdirs();
+                RandomAccessFile raf = new RandomAccessFile(part, "rw");
+                try {
+                    raf.setLength(progress.getLength());
+                } finally {
+                    raf.close();
+                }
+                progress.save(record);
+            }
+            download = new SegmentedDownload(url, progress, FileChannel.open(part.toPath(), StandardOpenOption.WRITE), record);
+        } catch (Exception e) {
+            pool.release(firstConn, false);
+            throw e;
+        }
+        trace("Downloading File in " + progress.getSegments() + " segments...");
+        int n = progress.getSegments();
+        ExecutorService workers = newBatchExecutor(n);
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        Exception failure = null;
+        try {
+            for (int i = first == null ? 0 : 1; i < n; i++) {
+                final int segment = i;
+                tasks.add(workers.submit(() -> {
+                    download.fetch(segment, false);
+                    return null;
+                }));
+            }
+            try {
+                if (first != null) {
+                    download.claim(0);
+                    try {
+                        download.write(firstBody, 0);
+                    } finally {
+                        pool.release(firstConn, false);
+                    }
+                }
+                for (int i = 0; i < n; i++) {
+                    download.fetch(i, true);
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (download.isIgnored()) {
+                download.close();
+                discardSegments(file);
+                return null;
+            }
+            if (failure == null && !progress.isComplete()) {
+                failure = new UrlCacheException("Segments missing");
+            }
+            if (failure != null) {
+                try {
+                    download.save();
+                } catch (IOException e) {
+                    // the last saved progress is still valid, just behind
+                }
+                throw new UrlCacheException("Download stopped at byte " + progress.getDone() + " of "
+                        + progress.getLength() + ", to be resumed: " + failure.getMessage());
+            }
+        } finally {
+            workers.shutdown();
+            download.close();
+        }
+        record.delete();
+        long length = progress.getLength();
+        commitFile(url, first != null ? first : download.getResponse(), part, BlobStore.hash(part), null,
+                length, length, length);
+        trace("Done.");
+        segmented.incrementAndGet();
+        misses.incrementAndGet();
+        metrics.recordOutcome(FetchStatus.DOWNLOADED);
+        return FetchStatus.DOWNLOADED;
+    }
+
+    /**
+     * Method to delete the partial file and progress record of a segmented
+     * download
+     *
+     * @author James MacIsaac
+     * @param file the object's file
+     */
+    private void discardSegments(File file) {
+        progressFile(file).delete();
+        partFile(file).delete();
+    }
+
+    /**
+     * @param file an object's file
+     * @return the file a segmented download of the object is written to; it
+     * starts with "%.", which no object's file does (see
+     * ParsedUrl.getFilePath)
+     */
+    private static File partFile(File file) {
+        return new File(file.getParentFile(), "%." + file.getName() + ".segments");
+    }
+
+    /**
+     * @param file an object's file
+     * @return the file the DownloadProgress of the object is saved in
+     */
+    private static File progressFile(File file) {
+        return new File(file.getParentFile(), "%." + file.getName() + ".progress");
+    }
+
+    /**
+     * Method to borrow a connection for an object from the pool, recording
+     * the connect time if a new one had to be opened
+     *
+     * @author James MacIsaac
+     * @param url
+     * @return ConnectionPool.Connection
+     * @throws UrlCacheException
+     */
+    private ConnectionPool.Connection acquire(ParsedUrl url) throws UrlCacheException {
+        return recordConnect(url, pool.acquire(url.getHost(), url.getPort()));
+    }
+
+    /**
+     * Method to borrow a connection for an object from the pool only if one
+     * is free at once
+     *
+     * @author James MacIsaac
+     * @param url
+     * @return ConnectionPool.Connection, or null if the host is at its limit
+     * @throws UrlCacheException
+     */
+    private ConnectionPool.Connection tryAcquire(ParsedUrl url) throws UrlCacheException {
+        ConnectionPool.Connection conn = pool.tryAcquire(url.getHost(), url.getPort());
+        return conn == null ? null : recordConnect(url, conn);
+    }
+
+    private ConnectionPool.Connection recordConnect(ParsedUrl url, ConnectionPool.Connection conn) {
+        if (!conn.isReused()) {
+            HostMetrics host = metrics.forHost(url.getHostKey());
+            host.recordResolve(conn.getResolveTime());
+            host.recordConnect(conn.getConnectTime());
+        }
+        return conn;
+    }
+
+    /**
+     * Method to record the timings, size and status of a response once its
+     * body has been read, or abandoned
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param r
+     * @param body
+     */
+    private void recordResponse(ParsedUrl url, Response r, BodyInputStream body) {
+        metrics.forHost(url.getHostKey()).recordResponse(r.header.getStatusCode(), r.firstByte - r.sent,
+                r.headerDone - r.firstByte, System.nanoTime() - r.headerDone, r.headerBytes + body.getBytesRead());
+    }
+
+    /**
+     * Method to act on a response header once it has been read: an error
+     * status is thrown before any of the body is read, a 304 leaves the
+     * cached copy alone and a 200 has its body streamed into the cache, and
+     * into the stream too if it is sent uncompressed
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param response
+     * @param body
+     * @param stream subscriber to hand the body on to as it arrives, or null
+     * @return FetchStatus
+     * @throws Exception
+     */
+    private FetchStatus handleResponse(ParsedUrl url, Response response, BodyInputStream body, BodyStream stream) throws Exception {
+        int rStatus = checkResponse(response);
+        if(rStatus == 304){
+            // 304 - Not Modified - don't download
+            // no body follows a 304 so the socket can be reused
+            trace("Cache version is up to date.");
+            refreshCatalogEntry(url, response);
+            revalidations.incrementAndGet();
+            metrics.recordOutcome(FetchStatus.NOT_MODIFIED);
+            return FetchStatus.NOT_MODIFIED;
+        }
+        // 200 - download file
+        // if here, need to update cache file and value!
+        trace("Downloading File...");
+        if (stream != null && ContentCoding.normalize(response.getHeaderValue("Content-Encoding")) == null) {
+            saveFile(url, response, stream.tee(body)); // to file and subscriber
+        } else {
+            saveFile(url, response, body); // stream body to file
+        }
+        trace("Done.");
+        misses.incrementAndGet();
+        metrics.recordOutcome(FetchStatus.DOWNLOADED);
+        return FetchStatus.DOWNLOADED;
+    }
+
+    /**
+     * Method to trace a response header and reject any status other than
+     * 200 and 304
+     *
+     * @author James MacIsaac
+     * @param response
+     * @return the status code, 200 or 304
+     * @throws UrlCacheException
+     */
+    private int checkResponse(Response response) throws UrlCacheException {
+        traceResponse(response);
+        int rStatus = response.checkStatus();
+        if (!(rStatus >= 200)) // response indicated a serious issue
+        {
+            throw new UrlCacheException("Uncommon Status Code! (< 200)");
+        }
+        if (rStatus >= 400) // fnf
+        {
+            throw new UrlCacheException("File Not Found or Server Error");
+        }
+        if(rStatus == 301){ // moved permanently - can't download
+            throw new UrlCacheException("File Moved Permanently - Cannot Download");
+        }
+        if (rStatus != 200 && rStatus != 304) { // unhandled status code
+            throw new UrlCacheException("Odd Status Code - Not Downloading");
+        }
+        return rStatus;
+    }
+
+    /**
+     * Method to echo a response header when tracing
+     *
+     * @author James MacIsaac
+     * @param response
+     */
+    private void traceResponse(Response response) {
+        if (trace) {
+            trace("RESPONSE HEADER:");
+            trace("**********************************");
+            String[] respH = response.getHeader();
+            for (int i = 0; i < respH.length; i++) {
+                trace(respH[i]);
+            }
+            trace("**********************************");
+            trace("%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%");
+            trace("");
+        }
+    }
+
+    /**
+     * Revalidates every object in urls, pipelining the requests to each host.
+     * Uses a window of PIPELINE_DEPTH requests per connection.
+     *
+     * @author James MacIsaac
+     * @param urls URLs of the objects to be revalidated or downloaded
+     * @return the status of each url fetched and the error of each that failed
+     * @throws UrlCacheException if the catalog cannot be written
+     */
+    public BatchResult revalidateObjects(Collection<String> urls) throws UrlCacheException {
+        return revalidateObjects(urls, PIPELINE_DEPTH);
+    }
+
+    /**
+     * Revalidates every object in urls that is not fresh using HTTP/1.1
+     * pipelining: for each host, up to depth conditional GETs are written down one connection
+     * before their responses are read, in order, so a window costs about
+     * one round trip instead of one per object. Hosts are handled in
+     * parallel. If the server closes the connection, stops keeping it alive
+     * or sends something that cannot be read, the requests it left
+     * unanswered are retried one at a time.
+     *
+     * @author James MacIsaac
+     * @param urls URLs of the objects to be revalidated or downloaded
+     * @param depth max requests outstanding on the connection
+     * @return the status of each url fetched and the error of each that failed
+     * @throws UrlCacheException if the catalog cannot be written
+     */
+    public BatchResult revalidateObjects(Collection<String> urls, final int depth) throws UrlCacheException {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        final BatchResult result = new BatchResult();
+        LinkedHashMap<String, ArrayList<String>> byHost = new LinkedHashMap<String, ArrayList<String>>();
+        for (String url : new LinkedHashSet<String>(urls)) { // skip duplicates
+            try {
+                byHost.computeIfAbsent(ParsedUrl.parse(url).getHostKey(), k -> new ArrayList<String>()).add(url);
+            } catch (UrlCacheException e) {
+                result.failed(url, e);
+            }
+        }
+        ExecutorService executor = newBatchExecutor(Math.max(1, byHost.size()));
+        try {
+            for (final ArrayList<String> hostUrls : byHost.values()) {
+                executor.execute(() -> {
+                    for (int i = 0; i < hostUrls.size(); i += depth) {
+                        pipelineWindow(hostUrls.subList(i, Math.min(i + depth, hostUrls.size())), result);
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting: every connect and read has a timeout (see ConnectionPool), so a
+                // stalled origin fails its own requests rather than holding up the batch forever
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new UrlCacheException("Interrupted while revalidating batch");
+        }
+        catalog.flush();
+        return result;
+    }
+
+    /**
+     * Method to send one window of requests to a host down a single
+     * connection and read the responses in order. Objects with a fresh copy
+     * are not requested, and objects another thread is already fetching are
+     * left to that fetch. Requests the connection did
+     * not answer are sent again one at a time, and so are those for objects
+     * another process holds the lock of, once it is released.
+     *
+     * @author James MacIsaac
+     * @param urls
+     * @param result
+     */
+    private void pipelineWindow(List<String> urls, BatchResult result) {
+        ArrayList<ParsedUrl> parsed = new ArrayList<ParsedUrl>();
+        ArrayList<CompletableFuture<FetchStatus>> claims = new ArrayList<CompletableFuture<FetchStatus>>();
+        ArrayList<FileLock> locks = new ArrayList<FileLock>();
+        ArrayList<ParsedUrl> waiting = new ArrayList<ParsedUrl>(); // locked by another process or cache
+        ArrayList<CompletableFuture<FetchStatus>> waitingClaims = new ArrayList<CompletableFuture<FetchStatus>>();
+        HashMap<String, CompletableFuture<FetchStatus>> others = new HashMap<String, CompletableFuture<FetchStatus>>();
+        try {
+            catalog.refresh();
+        } catch (UrlCacheException e) {
+            for (String url : urls) {
+                result.failed(url, e);
+            }
+            return;
+        }
+        for (String url : urls) {
+            try {
+                ParsedUrl u = ParsedUrl.parse(url);
+                if (isFresh(u)) {
+                    freshHits.incrementAndGet();
+                    result.succeeded(url, FetchStatus.FRESH);
+                    touch(u.getCacheKey());
+                    continue;
+                }
+                CompletableFuture<FetchStatus> claim = new CompletableFuture<FetchStatus>();
+                CompletableFuture<FetchStatus> leader = inFlight.putIfAbsent(u.getCacheKey(), claim);
+                if (leader != null) {
+                    coalesced.incrementAndGet();
+                    others.put(url, leader);
+                    continue;
+                }
+                FileLock lock;
+                try {
+                    lock = catalog.lockObject(u.getCacheKey(), false);
+                } catch (UrlCacheException e) {
+                    inFlight.remove(u.getCacheKey(), claim);
+                    claim.completeExceptionally(e);
+                    throw e;
+                }
+                others.put(url, claim);
+                if (lock == null) {
+                    waiting.add(u);
+                    waitingClaims.add(claim);
+                } else {
+                    parsed.add(u);
+                    claims.add(claim);
+                    locks.add(lock);
+                }
+            } catch (UrlCacheException e) {
+                result.failed(url, e);
+            }
+        }
+        int answered = 0;
+        try {
+            if (!parsed.isEmpty()) {
+                answered = pipelineRequests(parsed, claims);
+            }
+        } finally {
+            pipelined.addAndGet(answered);
+            pipelineFallbacks.addAndGet(parsed.size() - answered);
+            for (int i = answered; i < parsed.size(); i++) {
+                try {
+                    claims.get(i).complete(fetchTCPObject(parsed.get(i)));
+                } catch (UrlCacheException | RuntimeException e) {
+                    claims.get(i).completeExceptionally(e);
+                }
+            }
+            for (int i = 0; i < parsed.size(); i++) {
+                try {
+                    releaseObject(locks.get(i));
+                } catch (UrlCacheException e) {
+                    // reported by the batch's own flush
+                }
+                inFlight.remove(parsed.get(i).getCacheKey(), claims.get(i));
+            }
+            for (int i = 0; i < waiting.size(); i++) {
+                try {
+                    waitingClaims.get(i).complete(fetchLocked(waiting.get(i), null));
+                } catch (UrlCacheException | RuntimeException e) {
+                    waitingClaims.get(i).completeExceptionally(e);
+                } finally {
+                    inFlight.remove(waiting.get(i).getCacheKey(), waitingClaims.get(i));
+                }
+            }
+        }
+        for (Map.Entry<String, CompletableFuture<FetchStatus>> me : others.entrySet()) {
+            try {
+                result.succeeded(me.getKey(), awaitFetch(me.getValue()));
+                touch(ParsedUrl.parse(me.getKey()).getCacheKey());
+            } catch (UrlCacheException e) {
+                result.failed(me.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Method to write all the requests down one connection and then read
+     * and handle their responses in order. A response with an error status
+     * fails only its own request, as long as its body can be skipped.
+     *
+     * @author James MacIsaac
+     * @param urls all on the same host
+     * @param claims completed with the outcome of each answered request
+     * @return how many of the requests were answered
+     */
+    private int pipelineRequests(List<ParsedUrl> urls, List<CompletableFuture<FetchStatus>> claims) {
+        ParsedUrl first = urls.get(0);
+        ConnectionPool.Connection conn;
+        try {
+            conn = acquire(first);
+        } catch (UrlCacheException e) {
+            return 0;
+        }
+        int answered = 0;
+        boolean reusable = false;
+        try {
+            PrintWriter oStream = new PrintWriter(new DataOutputStream(conn.getOutputStream()));
+            for (ParsedUrl u : urls) {
+                writeRequest(oStream, conn.isReused(), u);
+            }
+            oStream.flush();
+            long sent = System.nanoTime();
+            if (oStream.checkError()) {
+                return 0;
+            }
+            trace("SENT " + urls.size() + " PIPELINED REQUESTS TO SERVER");
+            while (answered < urls.size()) {
+                Response response = readResponse(conn, sent);
+                BodyInputStream body = response.openBody(conn.getInputStream());
+                boolean failed = false;
+                try {
+                    claims.get(answered).complete(handleResponse(urls.get(answered), response, body, null));
+                } catch (Exception e) {
+                    claims.get(answered).completeExceptionally(
+                            e instanceof UrlCacheException ? e : new UrlCacheException(e.getMessage()));
+                    failed = true;
+                } finally {
+                    recordResponse(urls.get(answered), response, body);
+                }
+                answered++;
+                if (failed && !body.isCloseDelimited()) {
+                    body.drain(); // keep the connection in step with the requests
+                }
+                if (!response.isReusable(body)) {
+                    break;
+                }
+            }
+            reusable = answered == urls.size();
+        } catch (Exception e) {
+            // the server closed the connection or sent garbage: the requests
+            // after the last good response are retried one at a time
+        } finally {
+            pool.release(conn, reusable);
+        }
+        return answered;
+    }
+
+    /**
+     * Method to write the GET request for the object to an open connection
+     * and read back the response header
+     *
+     * @author James MacIsaac
+     * @param conn
+     * @param url
+     * @return Response
+     * @throws UrlCacheException
+     */
+    private Response sendRequest(ConnectionPool.Connection conn, ParsedUrl url) throws UrlCacheException {
+        return sendRequest(conn, url, null, null);
+    }
+
+    /**
+     * Method to send the GET request for the object, or for a byte range of
+     * it, and read the response header
+     *
+     * @author James MacIsaac
+     * @param conn
+     * @param url
+     * @param range Range header value, null for the whole object
+     * @param ifRange If-Range header value, sent with range
+     * @return Response
+     * @throws UrlCacheException
+     */
+    private Response sendRequest(ConnectionPool.Connection conn, ParsedUrl url, String range, String ifRange) throws UrlCacheException {
+        PrintWriter oStream = new PrintWriter(new DataOutputStream(conn.getOutputStream()));
+        //socket data writer
+        writeRequest(oStream, conn.isReused(), url, range, ifRange);
+        oStream.flush();
+        long sent = System.nanoTime();
+        if (oStream.checkError()) {
+            throw new UrlCacheException("Error writing request");
+        }
+        //make the request
+        trace("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@");
+        trace("SENT REQUEST TO SERVER");
+        trace("AWAITING RESPONSE FROM SERVER...");
+        return readResponse(conn, sent);
+    }
+
+    /**
+     * Method to write the GET request for the object, conditional on the
+     * cached copy's ETag and Last-Modified time if it has them and the
+     * server did not forbid storing it. The request is not
+     * flushed, so several can be sent together.
+     *
+     * @author James MacIsaac
+     * @param oStream
+     * @param reused true if the connection carried an earlier request
+     * @param url
+     */
+    private void writeRequest(PrintWriter oStream, boolean reused, ParsedUrl url) {
+        writeRequest(oStream, reused, url, null, null);
+    }
+
+    /**
+     * Method to write the GET request for the object or, given a range, for
+     * part of it. A range request is made conditional with If-Range instead,
+     * so a server whose copy has changed sends all of the new one, and asks
+     * for the bytes as stored so that the offsets mean the same in every
+     * segment.
+     *
+     * @author James MacIsaac
+     * @param oStream
+     * @param reused true if the connection carried an earlier request
+     * @param url
+     * @param range Range header value, null for the whole object
+     * @param ifRange If-Range header value, sent with range
+     */
+    private void writeRequest(PrintWriter oStream, boolean reused, ParsedUrl url, String range, String ifRange) {
+        if (trace) {
+            trace("");
+            trace("REQUESTING OBJECT [" + url.getRequestTarget() + "] AT HOST [" + url.getHost() + "] ON PORT [" + url.getPort() + "]"
+                    + (reused ? " (REUSED CONNECTION)" : ""));
+            trace("%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%");
+            trace("REQUEST HEADER:");
+            trace("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@");
+        }
+
+        requestLine(oStream, "GET " + url.getRequestTarget() + " HTTP/1.1");
+        requestLine(oStream, "Host: " + url.getHostHeader());
+
+        if (range != null) {
+            requestLine(oStream, "Range: " + range);
+            requestLine(oStream, "If-Range: " + ifRange);
+        } else {
+            // only revalidate if the file is still there (it may have been
+            // evicted or deleted since it was cataloged)
+            CatalogEntry entry = catalog.get(url.getCacheKey());
+            if (entry != null && !entry.isNoStore() && cachedFile(url, entry).isFile()) {
+                if (entry.getETag() != null) {
+                    requestLine(oStream, "If-None-Match: " + entry.getETag());
+                }
+                if (entry.getLastModified() >= 0) {
+                    requestLine(oStream, "If-Modified-Since: " + HttpDate.format(entry.getLastModified()));
+                }
+            }
+        }
+
+        requestLine(oStream, "Accept-Language: en-us");
+        requestLine(oStream, "Accept-Encoding: " + (range != null ? "identity" : "gzip, deflate"));
+        requestLine(oStream, "Connection: keep-alive");
+        oStream.println(); // empty line to terminate request
+    }
+
+    /**
+     * Method to write one line of a request, echoing it when tracing
+     *
+     * @author James MacIsaac
+     * @param oStream
+     * @param line
+     */
+    private void requestLine(PrintWriter oStream, String line) {
+        oStream.println(line);
+        trace(line);
+    }
+
+    /**
+     * Method to echo a line to the console when tracing is on
+     *
+     * @author James MacIsaac
+     * @param line
+     */
+    private void trace(String line) {
+        if (trace) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Method to read the next response header from a connection, noting
+     * when its first byte arrived and when the header was complete
+     *
+     * @author James MacIsaac
+     * @param conn
+     * @param sent nanoTime the request was sent
+     * @return Response
+     * @throws UrlCacheException
+     */
+    private Response readResponse(ConnectionPool.Connection conn, long sent) throws UrlCacheException {
+        Response response = new Response(); // object to hold response contents
+        InputStream in = conn.getInputStream();
+        try {
+            in.mark(1); // wait for the first byte without consuming it
+            in.read();
+            in.reset();
+        } catch (IOException e) {
+            throw new UrlCacheException("Error reading response header");
+        }
+        response.sent = sent;
+        response.firstByte = System.nanoTime();
+        response.setHeader(conn.getHeaderParser().parse(in));
+        response.headerDone = System.nanoTime();
+        response.headerBytes = conn.getHeaderParser().getLength();
+        if (!response.hasHeader()) {
+            throw new UrlCacheException("Response Header Error");
+        }
+        return response;
+    }
+
+    /**
+     * Method to save a downloaded file to the cache. The body is streamed
+     * from the connection into a BlobStore.Writer, which hashes it and
+     * writes it to a temporary file that is only added to the store once
+     * complete, so a failed download never leaves a truncated file behind.
+     * While the body matches the object's current copy nothing is written
+     * at all. A body the server compressed is stored as received; an
+     * uncompressed one of a compressible type is gzipped as it is written.
+     * In the prefetch mode an HTML body is scanned for links as it is read,
+     * or once stored if the server compressed it.
+     * 
+     * @author James MacIsaac
+     * @param url
+     * @param response
+     * @param body
+     * @throws UrlCacheException 
+     */
+    private void saveFile(ParsedUrl url, Response response, InputStream body) throws UrlCacheException {
+        String enc = ContentCoding.normalize(response.getHeaderValue("Content-Encoding"));
+        LinkScanner links = linkScanner(url, response);
+        if (links != null && enc == null) {
+            body = links.scan(body);
+            links = null; // scanned as it arrives
+        }
+        boolean compress = enc == null && shouldCompress(response);
+        if (compress) {
+            enc = ContentCoding.GZIP;
+        }
+        BlobStore.Writer out = blobs.newWriter(currentCopy(url, enc));
+        try {
+            long wire, length;
+            if (compress) {
+                wire = writeCompressedContent(body, out);
+                length = wire;
+            } else {
+                wire = writeResponseContent(body, out);
+                length = -1;
+            }
+            out.finish();
+            commitFile(url, response, out.getFile(), out.getHash(), enc, wire, out.getSize(), length);
+            out = null;
+        } catch (Exception e) {
+            throw new UrlCacheException("Error saving downloaded file");
+        } finally {
+            if (out != null) {
+                out.abort();
+            }
+        }
+        if (links != null) {
+            scanCachedCopy(url, links);
+        }
+    }
+
+    /**
+     * Method to find the copy a new body for an object is compared with: the
+     * current one, if it is stored in the coding the new one will be
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param enc content coding the new body will be stored in
+     * @return File, or null if there is none to compare with
+     */
+    private File currentCopy(ParsedUrl url, String enc) {
+        CatalogEntry entry = catalog.get(url.getCacheKey());
+        if (entry == null || !(enc == null ? entry.getEncoding() == null : enc.equals(entry.getEncoding()))) {
+            return null;
+        }
+        File file = cachedFile(url, entry);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Method to add a finished body to the blob store, point the object's
+     * catalog entry at it and release the blob it pointed at before, and
+     * record it in the disk quota and the compression stats. An object
+     * cached before the blob store has its own file deleted, or moved into
+     * the store if the new body matched it. The catalog and the blob counts
+     * change together under the store's lock, and under the catalog's main
+     * lock until the entry is flushed.
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param response
+     * @param tmp the finished body, or null if it matched the current copy
+     * and was not written
+     * @param hash the body's hash
+     * @param enc content coding of the body, null if none
+     * @param wire body bytes received
+     * @param size bytes in the body as stored
+     * @param length bytes of the object decoded, -1 to work it out from the
+     * stored body
+     * @throws IOException
+     * @throws UrlCacheException
+     */
+    private void commitFile(ParsedUrl url, Response response, File tmp, String hash, String enc,
+            long wire, long size, long length) throws IOException, UrlCacheException {
+        String key = url.getCacheKey();
+        synchronized (blobs) {
+            if (length < 0) {
+                File body = tmp != null ? tmp : blobs.file(hash).isFile() ? blobs.file(hash) : objectFile(url);
+                length = ContentCoding.decodedLength(body, enc);
+            }
+            catalog.lock();
+            try {
+                catalog.refresh();
+                CatalogEntry old = catalog.get(key);
+                File own = old != null && old.getBlob() == null ? objectFile(url) : null;
+                if (tmp != null) {
+                    blobs.add(tmp, hash);
+                } else {
+                    if (own != null) {
+                        blobs.add(own, hash);
+                        own = null;
+                    } else if (!blobs.file(hash).isFile()) {
+                        throw new IOException("Cached copy disappeared");
+                    }
+                    blobs.recordUnchanged(size);
+                }
+                memory.invalidate(key);
+
+                // make a catalog entry
+                updateCatalogEntry(url, response, size, enc, length, hash);
+                blobs.retain(hash);
+                if (old != null) {
+                    blobs.release(old.getBlob());
+                }
+                if (own != null) {
+                    own.delete();
+                }
+                catalog.flush(); // before another process can collect the blob
+            } finally {
+                catalog.unlock();
+            }
+        }
+        quota.record(key, size, hash);
+        if (length >= 0) {
+            compression.record(url.getHostKey(), wire, length, size);
+        }
+    }
+
+    /**
+     * Method which gives the location of an object's own file in the cache,
+     * where objects cataloged before the blob store are kept and next to
+     * which a segmented download keeps its partial file
+     *
+     * @author James MacIsaac
+     * @param url
+     * @return File
+     */
+    private File objectFile(ParsedUrl url) {
+        return new File(cacheDir, "Files/" + url.getFilePath());
+    }
+
+    /**
+     * Method which gives the file holding an object's body: its blob, or its
+     * own file if it was cataloged before the blob store
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param entry the object's catalog entry
+     * @return File
+     */
+    private File cachedFile(ParsedUrl url, CatalogEntry entry) {
+        return entry.getBlob() != null ? blobs.file(entry.getBlob()) : objectFile(url);
+    }
+
+    /**
+     * Method which copies the response content (file data) from the body
+     * stream on the open TCP connection into a blob writer. The copy goes
+     * through a fixed buffer, so memory use does not depend on the size of
+     * the object.
+     * 
+     * @author James MacIsaac
+     * @param body
+     * @param out
+     * @return number of bytes written
+     * @throws IOException 
+     */
+    private long writeResponseContent(InputStream body, OutputStream out) throws IOException {
+        byte[] buf = new byte[COPY_BUFFER];
+        long total = 0;
+        int n;
+        while ((n = body.read(buf)) != -1) {
+            out.write(buf, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Method which gzips the response content into a blob writer as it is
+     * read from the body stream
+     *
+     * @author James MacIsaac
+     * @param body
+     * @param out
+     * @return number of bytes read from the body
+     * @throws IOException
+     */
+    private long writeCompressedContent(InputStream body, OutputStream out) throws IOException {
+        GZIPOutputStream gz = new GZIPOutputStream(out, COPY_BUFFER);
+        byte[] buf = new byte[COPY_BUFFER];
+        long total = 0;
+        int n;
+        while ((n = body.read(buf)) != -1) {
+            gz.write(buf, 0, n);
+            total += n;
+        }
+        gz.finish();
+        return total;
+    }
+
+    /**
+     * Method to decide whether an uncompressed response is worth storing
+     * gzipped: it must be of a text-like type and not known to be tiny
+     *
+     * @author James MacIsaac
+     * @param response
+     * @return boolean
+     */
+    private boolean shouldCompress(Response response) {
+        if (!ContentCoding.isCompressible(response.getHeaderValue("Content-Type"))) {
+            return false;
+        }
+        String cl = response.getHeaderValue("Content-Length");
+        try {
+            return cl == null || Long.parseLong(cl.trim()) >= COMPRESS_MIN;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Method to update the catalog entry (last-modified time, size, content
+     * coding and freshness) for a mapping in the catalog. This is run when
+     * an updated version of the file is downloaded from the server
+     * 
+     * @author James MacIsaac
+     * @param url
+     * @param r 
+     * @param size bytes written to the cache file
+     * @param enc content coding of the cache file, null if none
+     * @param length bytes of the object decoded, -1 if unknown
+     * @param blob hash of the body in the blob store
+     */
+    private void updateCatalogEntry(ParsedUrl url, Response r, long size, String enc, long length, String blob) throws UrlCacheException {
+        // a no-op if the entry already has these values
+        long now = System.currentTimeMillis();
+        catalog.put(url.getCacheKey(), withFreshness(
+                new CatalogEntry(HttpDate.parse(r.getRespLM()), size, now, enc, length).withBlob(blob), r, now));
+    }
+
+    /**
+     * Method to update the freshness of a catalog entry from a 304 response,
+     * which carries the object's current caching headers
+     *
+     * @author James MacIsaac
+     * @param url
+     * @param r
+     * @throws UrlCacheException
+     */
+    private void refreshCatalogEntry(ParsedUrl url, Response r) throws UrlCacheException {
+        CatalogEntry entry = catalog.get(url.getCacheKey());
+        if (entry != null) {
+            catalog.put(url.getCacheKey(), withFreshness(entry, r, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Method to apply a response's ETag and Cache-Control, Expires, Date and
+     * Age headers to a catalog entry. The copy is fresh for max-age seconds,
+     * or else until Expires, less the age it already had when it arrived
+     * (RFC 7234 section 4.2). A response without either, or with no-cache or
+     * no-store, must be revalidated on every use.
+     *
+     * @author James MacIsaac
+     * @param entry
+     * @param r
+     * @param now time the response was received
+     * @return CatalogEntry
+     */
+    private CatalogEntry withFreshness(CatalogEntry entry, Response r, long now) {
+        CacheControl cc = CacheControl.parse(r.getHeaderList("Cache-Control"), r.getHeaderList("Pragma"));
+        String etag = r.getHeaderValue("ETag");
+        if (etag == null) {
+            etag = entry.getETag();
+        }
+        long freshUntil = 0;
+        if (!cc.isNoStore() && !cc.isNoCache()) {
+            long date = HttpDate.parse(r.getHeaderValue("Date"));
+            if (date < 0) {
+                date = now;
+            }
+            long lifetime = -1;
+            if (cc.getMaxAge() >= 0) {
+                lifetime = cc.getMaxAge() * 1000;
+            } else if (r.getHeaderValue("Expires") != null) {
+                long expires = HttpDate.parse(r.getHeaderValue("Expires"));
+                lifetime = expires < 0 ? 0 : expires - date; // an invalid date means already expired
+            }
+            long age = Math.max(0, now - date);
+            String ageHeader = r.getHeaderValue("Age");
+            if (ageHeader != null) {
+                try {
+                    age = Math.max(age, Long.parseLong(ageHeader.trim()) * 1000);
+                } catch (NumberFormatException e) {
+                    // ignore an invalid Age
+                }
+            }
+            if (lifetime > age) {
+                freshUntil = now + lifetime - age;
+            }
+        }
+        return entry.withFreshness(etag, freshUntil, !cc.isNoStore());
+    }
+
+    /**
+     * Method to record a use of a cached object, for the disk quota's LRU
+     * order and the prefetcher's hit count
+     *
+     * @author James MacIsaac
+     * @param key
+     */
+    private void touch(String key) {
+        catalog.touch(key, System.currentTimeMillis());
+        quota.touch(key);
+        Prefetcher p = prefetcher;
+        if (p != null) {
+            p.used(key);
+        }
+    }
+
+    /**
+     * Method called by the disk quota to evict an object: the catalog entry
+     * is removed and written out before its blob is released (and deleted
+     * if no other url has the same body), so a crash in between leaves an
+     * orphaned blob for collectGarbage rather than an entry without one.
+     * Objects being downloaded are skipped.
+     *
+     * @author James MacIsaac
+     * @param key
+     * @return false if the object is being downloaded
+     * @throws UrlCacheException
+     */
+    private boolean evictObject(String key) throws UrlCacheException {
+        if (inFlight.containsKey(key)) {
+            return false;
+        }
+        synchronized (blobs) {
+            catalog.lock();
+            try {
+                CatalogEntry entry = catalog.get(key);
+                catalog.remove(key);
+                catalog.flush();
+                memory.invalidate(key);
+                if (entry != null && entry.getBlob() != null) {
+                    try {
+                        blobs.release(entry.getBlob());
+                    } catch (IOException e) {
+                        throw new UrlCacheException(e.getMessage());
+                    }
+                } else {
+                    File file = objectFile(ParsedUrl.parse(key));
+                    if (file.exists() && !file.delete()) {
+                        throw new UrlCacheException("Could not delete " + file);
+                    }
+                }
+            } finally {
+                catalog.unlock();
+            }
+        }
+        Prefetcher p = prefetcher;
+        if (p != null) {
+            p.evicted(key);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the Last-Modified time associated with the object specified by
+     * the parameter url.
+     *
+     * @author James MacIsaac
+     * @param url URL of the object
+     * @return the Last-Modified time in millisecond as in Date.getTime()
+     * @throws UrlCacheException if the specified url is not in the cache, or
+     * there are other errors/exceptions
+     */
+    public long getLastModified(String url) throws UrlCacheException {
+        long time = catalog.getLastModified(ParsedUrl.parse(url).getCacheKey());
+        if (time >= 0) {
+            return time;
+        }
+        throw new UrlCacheException("Error getting last modified time");
+    }
+
+    /**
+     * Returns how many requests were answered from a fresh cached copy
+     * without contacting the server
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getFreshHits() {
+        return freshHits.get();
+    }
+
+    /**
+     * Returns how many requests were answered from a stale cached copy in
+     * stale-while-revalidate mode
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * Returns how many requests the server answered with 304 Not Modified
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * Returns how many requests the server answered with a new copy of the
+     * object
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Method to get ready for the first requests to the hosts the catalog
+     * holds the most objects from: WARM_HOSTS hosts with WARM_PER_HOST
+     * connections each
+     *
+     * @author James MacIsaac
+     * @return connections opened
+     * @throws UrlCacheException if interrupted
+     */
+    public int warmUp() throws UrlCacheException {
+        return warmUp(WARM_HOSTS, WARM_PER_HOST);
+    }
+
+    /**
+     * Method to get ready for the first requests to the hosts the catalog
+     * holds the most objects from, so they need neither a name lookup nor a
+     * TCP handshake. The hosts are warmed in parallel: each name is looked
+     * up into the DnsCache and, unless a NioEngine is in use, up to perHost
+     * connections are opened and left idle in the pool, where they last
+     * for its idle timeout. A host that cannot be reached is skipped. The
+     * resolve and connect times are recorded in the metrics as usual.
+     *
+     * @author James MacIsaac
+     * @param maxHosts most hosts to warm, those with more cataloged objects
+     * first
+     * @param perHost connections to open to each host
+     * @return connections opened
+     * @throws UrlCacheException if interrupted
+     */
+    public int warmUp(int maxHosts, final int perHost) throws UrlCacheException {
+        if (maxHosts < 1 || perHost < 1) {
+            throw new IllegalArgumentException("maxHosts and perHost must be at least 1");
+        }
+        // cache keys start with the host and any port: host[:port]/path
+        final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        catalog.forEach((key, e) -> {
+            int slash = key.indexOf('/');
+            counts.merge(slash == -1 ? key : key.substring(0, slash), 1, Integer::sum);
+        });
+        ArrayList<Map.Entry<String, Integer>> hosts = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+        if (hosts.isEmpty()) {
+            return 0;
+        }
+        hosts.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        if (hosts.size() > maxHosts) {
+            hosts.subList(maxHosts, hosts.size()).clear();
+        }
+        final boolean namesOnly = nio != null;
+        final AtomicInteger opened = new AtomicInteger();
+        ExecutorService executor = newBatchExecutor(Math.min(hosts.size(), BATCH_CONCURRENCY));
+        try {
+            for (final Map.Entry<String, Integer> me : hosts) {
+                executor.execute(() -> {
+                    try {
+                        ParsedUrl url = ParsedUrl.parse(me.getKey());
+                        if (namesOnly) {
+                            pool.getDnsCache().resolve(url.getHost());
+                        } else {
+                            opened.addAndGet(pool.warm(url.getHost(), url.getPort(), perHost,
+                                    metrics.forHost(url.getHostKey())));
+                        }
+                    } catch (UrlCacheException | IOException e) {
+                        trace("Could not warm " + me.getKey() + ": " + e.getMessage());
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting: every connect has a timeout (see ConnectionPool), and the system resolver its own
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new UrlCacheException("Interrupted while warming up");
+        }
+        return opened.get();
+    }
+
+    /**
+     * Replaces the resolver host names are looked up with, for both the
+     * blocking sockets and the NioEngine, and forgets the addresses cached
+     * so far
+     *
+     * @author James MacIsaac
+     * @param resolver
+     */
+    public void setHostResolver(HostResolver resolver) {
+        pool.getDnsCache().setResolver(resolver);
+    }
+
+    /**
+     * Returns the cache of host name lookups, mainly so its hit/miss counts
+     * can be inspected or its TTL changed
+     *
+     * @author James MacIsaac
+     * @return DnsCache
+     */
+    public DnsCache getDnsCache() {
+        return pool.getDnsCache();
+    }
+
+    /**
+     * Switches fetching to a NioEngine with the given number of event-loop
+     * threads, or back to blocking sockets with 0. Fetches already in
+     * progress on a previous engine fail.
+     *
+     * @author James MacIsaac
+     * @param eventLoops number of event-loop threads, 0 for none
+     * @throws UrlCacheException if the engine cannot be started
+     */
+    public synchronized void setNioEngine(int eventLoops) throws UrlCacheException {
+        NioEngine old = nio;
+        nio = eventLoops > 0 ? new NioEngine(eventLoops, metrics, pool.getDnsCache()) : null;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Returns the NIO engine, mainly so its connection counts can be
+     * inspected
+     *
+     * @author James MacIsaac
+     * @return NioEngine, or null if fetches use blocking sockets
+     */
+    public NioEngine getNioEngine() {
+        return nio;
+    }
+
+    /**
+     * Turns echoing of every request and response header to the console on
+     * or off. It is off by default, or on if the system property
+     * urlcache.trace is true.
+     *
+     * @author James MacIsaac
+     * @param enabled
+     */
+    public void setTrace(boolean enabled) {
+        trace = enabled;
+    }
+
+    /**
+     * Returns the live timings and counts of this cache's fetches; call
+     * snapshot() on it for a copy that stays still while it is read
+     *
+     * @author James MacIsaac
+     * @return FetchMetrics
+     */
+    public FetchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under
+     * UrlCache:type=FetchMetrics,dir="cache directory", until close()
+     *
+     * @author James MacIsaac
+     * @return the name registered
+     * @throws UrlCacheException if the MBean cannot be registered
+     */
+    public synchronized ObjectName registerMBean() throws UrlCacheException {
+        if (mbeanName == null) {
+            try {
+                ObjectName name = new ObjectName("UrlCache:type=FetchMetrics,dir="
+                        + ObjectName.quote(cacheDir.getAbsolutePath()));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+                mbeanName = name;
+            } catch (JMException e) {
+                throw new UrlCacheException("Could not register metrics MBean: " + e.getMessage());
+            }
+        }
+        return mbeanName;
+    }
+
+    /**
+     * Returns the pool of keep-alive connections used by this cache, mainly
+     * so its hit/miss counts can be inspected
+     *
+     * @author James MacIsaac
+     * @return ConnectionPool
+     */
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the in-memory tier used by readObject and openObject, mainly so
+     * its limits can be changed and its hit/miss/eviction counts inspected
+     *
+     * @author James MacIsaac
+     * @return MemoryTier
+     */
+    public MemoryTier getMemoryTier() {
+        return memory;
+    }
+
+    /**
+     * Returns how many requests were answered by waiting for an identical
+     * fetch already in progress on another thread rather than by a request
+     * of their own
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getCoalescedFetches() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns how many fetches waited for another process sharing the cache
+     * directory to fetch the same object and used its copy rather than
+     * asking the server
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getRemoteCoalescedFetches() {
+        return remoteCoalesced.get();
+    }
+
+    /**
+     * Returns how many responses revalidateObjects read from pipelined
+     * requests
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getPipelinedResponses() {
+        return pipelined.get();
+    }
+
+    /**
+     * Returns how many pipelined requests went unanswered and were sent
+     * again one at a time
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getPipelineFallbacks() {
+        return pipelineFallbacks.get();
+    }
+
+    /**
+     * Sets how large objects are downloaded: a 200 of at least two segments
+     * of minSegment bytes, from a server that accepts byte ranges, is
+     * fetched as up to segments Range requests over separate connections at
+     * once. Each connection has its own TCP window, so this helps most when
+     * a single stream cannot fill the link. The default is 4 segments of at
+     * least 4 MB.
+     *
+     * @author James MacIsaac
+     * @param segments max segments per object, 1 to always use one stream
+     * @param minSegment smallest segment in bytes
+     */
+    public void setSegmentedDownloads(int segments, long minSegment) {
+        if (segments < 1 || minSegment < 1) {
+            throw new IllegalArgumentException("segments and minSegment must be at least 1");
+        }
+        this.segmentMin = minSegment;
+        this.segments = segments;
+    }
+
+    /**
+     * Returns how many objects were downloaded in segments
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getSegmentedDownloads() {
+        return segmented.get();
+    }
+
+    /**
+     * Returns how many segmented downloads were finished from the progress
+     * saved by an earlier attempt
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getResumedDownloads() {
+        return resumed.get();
+    }
+
+    /**
+     * Returns how many segmented downloads were given up because the server
+     * did not answer a Range request with that range, and fetched as one
+     * stream instead
+     *
+     * @author James MacIsaac
+     * @return long
+     */
+    public long getRangeFallbacks() {
+        return rangeFallbacks.get();
+    }
+
+    /**
+     * Returns the per-host counts of bytes received, decoded and stored, from
+     * which the bandwidth and disk space saved by compression are reported
+     *
+     * @author James MacIsaac
+     * @return CompressionStats
+     */
+    public CompressionStats getCompressionStats() {
+        return compression;
+    }
+
+    /**
+     * Sets the most bytes the cached bodies may take up, counting a body
+     * stored once for several urls once. When the cache goes over it, the
+     * least recently used objects are evicted in the background until
+     * enough bodies have lost their last url. There is no limit by default.
+     * The first call reads the whole catalog to size the objects already
+     * cached.
+     *
+     * @author James MacIsaac
+     * @param bytes the budget, or Long.MAX_VALUE for no limit
+     */
+    public void setDiskQuota(long bytes) {
+        loadQuota();
+        quota.setLimit(bytes);
+    }
+
+    /**
+     * Returns the disk quota, mainly so its usage and eviction counts can be
+     * inspected
+     *
+     * @author James MacIsaac
+     * @return DiskQuota
+     */
+    public DiskQuota getDiskQuota() {
+        loadQuota();
+        return quota;
+    }
+
+    /**
+     * Returns the blob store the bodies are kept in, mainly so the bytes
+     * saved by storing each body once can be inspected
+     *
+     * @author James MacIsaac
+     * @return BlobStore
+     */
+    public BlobStore getBlobStore() {
+        return blobs;
+    }
+
+    /**
+     * Deletes blobs no catalog entry points at and temporary files of
+     * downloads that never finished, which a crash can leave behind. Blobs
+     * that stop being used are otherwise deleted straight away. The first
+     * call reads the whole catalog to count the urls of each blob.
+     *
+     * @author James MacIsaac
+     * @return files deleted
+     * @throws UrlCacheException if a file could not be deleted
+     */
+    public int collectGarbage() throws UrlCacheException {
+        try {
+            return blobs.collectGarbage();
+        } catch (IOException e) {
+            throw new UrlCacheException(e.getMessage());
+        }
+    }
+
+    /**
+     * Stops background revalidation, ends any streamObject still running
+     * with an error, closes any idle connections held by the cache,
+     * compacts the catalog journal into the catalog file and unregisters
+     * the metrics MBean
+     *
+     * @author James MacIsaac
+     * @throws UrlCacheException if the catalog cannot be written
+     */
+    public void close() throws UrlCacheException {
+        setPrefetch(0, 0, 0);
+        refresher.close();
+        async.shutdownNow();
+        quota.close();
+        pool.close();
+        NioEngine engine = nio;
+        if (engine != null) {
+            engine.close();
+        }
+        catalog.close();
+        synchronized (this) {
+            if (mbeanName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+                } catch (JMException e) {
+                    // already gone
+                }
+                mbeanName = null;
+            }
+        }
+    }
+
+    /**
+     * The segments of one download and the partial file they are written
+     * to. Each segment is claimed by one thread, which fetches it with a
+     * Range request and writes it at its offset; the progress is saved
+     * every PROGRESS_INTERVAL bytes of a segment, after the file has been
+     * forced to disk, so a saved record never counts bytes that are not
+     * there.
+     */
+    private class SegmentedDownload {
+
+        private final ParsedUrl url;
+        private final DownloadProgress progress;
+        private final FileChannel out;
+        private final File record;
+        private final AtomicIntegerArray claimed; // 1 once a thread has taken the segment
+        private volatile Response response; // a 206, for the catalog entry when resuming
+        private volatile boolean ignored; // a Range request got something else back
+
+        SegmentedDownload(ParsedUrl url, DownloadProgress progress, FileChannel out, File record) {
+            this.url = url;
+            this.progress = progress;
+            this.out = out;
+            this.record = record;
+            this.claimed = new AtomicIntegerArray(progress.getSegments());
+        }
+
+        /**
+         * @return true if the caller is the first to take segment i
+         */
+        boolean claim(int i) {
+            return claimed.compareAndSet(i, 0, 1);
+        }
+
+        /**
+         * Fetches segment i unless another thread has taken it, it is done,
+         * or the download has been given up
+         *
+         * @param wait false to leave the segment for another thread if the
+         * pool has no connection free
+         */
+        void fetch(int i, boolean wait) throws Exception {
+            if (ignored || progress.getRemaining(i) == 0 || claimed.get(i) != 0) {
+                return;
+            }
+            ConnectionPool.Connection conn = wait ? acquire(url) : tryAcquire(url);
+            if (conn == null) {
+                return;
+            }
+            if (!claim(i)) {
+                pool.release(conn, true); // unused
+                return;
+            }
+            boolean reusable = false;
+            try {
+                String range = "bytes=" + progress.getPosition(i) + "-" + progress.getEnd(i);
+                Response r;
+                try {
+                    r = sendRequest(conn, url, range, progress.getIfRange());
+                } catch (UrlCacheException e) {
+                    if (!conn.isReused()) {
+                        throw e;
+                    }
+                    // dropped while idle, as in fetchTCPObject
+                    pool.release(conn, false);
+                    conn = null;
+                    conn = acquire(url);
+                    r = sendRequest(conn, url, range, progress.getIfRange());
+                }
+                traceResponse(r);
+                BodyInputStream body = r.openBody(conn.getInputStream());
+                try {
+                    if (!matches(r, i)) {
+                        ignored = true;
+                        return;
+                    }
+                    write(body, i);
+                } finally {
+                    recordResponse(url, r, body);
+                }
+                reusable = r.isReusable(body);
+                if (response == null) {
+                    response = r;
+                }
+            } finally {
+                pool.release(conn, reusable);
+            }
+        }
+
+        /**
+         * @return true if r is a 206 holding exactly the rest of segment i,
+         * as stored
+         */
+        private boolean matches(Response r, int i) {
+            String cr = r.getHeaderValue("Content-Range");
+            if (r.checkStatus() != 206 || cr == null || ContentCoding.normalize(r.getHeaderValue("Content-Encoding")) != null) {
+                return false;
+            }
+            String prefix = "bytes " + progress.getPosition(i) + "-" + progress.getEnd(i) + "/";
+            cr = cr.trim();
+            return cr.startsWith(prefix)
+                    && (cr.endsWith("/*") || cr.substring(prefix.length()).equals(String.valueOf(progress.getLength())));
+        }
+
+        /**
+         * Copies the rest of segment i from in to its place in the file
+         */
+        void write(InputStream in, int i) throws IOException {
+            byte[] buf = new byte[COPY_BUFFER];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            long unsaved = 0;
+            long left;
+            while ((left = progress.getRemaining(i)) > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                if (n == -1) {
+                    throw new IOException("Connection closed " + left + " bytes short of the end of segment " + i);
+                }
+                bb.clear();
+                bb.limit(n);
+                long pos = progress.getPosition(i);
+                while (bb.hasRemaining()) {
+                    pos += out.write(bb, pos);
+                }
+                progress.advance(i, n);
+                unsaved += n;
+                if (unsaved >= PROGRESS_INTERVAL) {
+                    save();
+                    unsaved = 0;
+                }
+            }
+        }
+
+        /**
+         * Forces the partial file to disk and then saves the progress
+         */
+        void save() throws IOException {
+            out.force(false);
+            progress.save(record);
+        }
+
+        boolean isIgnored() {
+            return ignored;
+        }
+
+        Response getResponse() {
+            return response;
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Receives one response on the NIO engine. A 200 is passed to a
+     * BlobStore.Writer as it arrives, gzipped on the way and scanned for
+     * links if saveFile would have, and committed when the body is
+     * complete; a 304 refreshes the catalog entry. Committing takes the
+     * catalog's lock across processes and writes it, so it and the end of
+     * the fetch, including releasing the object's lock, are run on the
+     * async executor rather than the event loop, which must not block.
+     */
+    private class NioFetch implements NioEngine.Handler {
+
+        private final ParsedUrl url;
+        private final CompletableFuture<FetchStatus> future;
+        private Response response;
+        private int status;
+        private BlobStore.Writer out;
+        private GZIPOutputStream gz; // compresses into out, null if stored as received
+        private String enc;
+        private long wire; // body bytes received
+        private LinkScanner links; // scans an HTML body for prefetching, null if not
+        private boolean scanStored; // links are scanned from the stored copy, which the server compressed
+
+        NioFetch(ParsedUrl url, CompletableFuture<FetchStatus> future) {
+            this.url = url;
+            this.future = future;
+        }
+
+        @Override
+        public void onHeader(HttpHeader header) throws UrlCacheException {
+            response = new Response();
+            response.setHeader(header);
+            status = checkResponse(response);
+            if (status != 200) {
+                return;
+            }
+            enc = ContentCoding.normalize(response.getHeaderValue("Content-Encoding"));
+            links = linkScanner(url, response);
+            scanStored = enc != null;
+            boolean compress = enc == null && shouldCompress(response);
+            if (compress) {
+                enc = ContentCoding.GZIP;
+            }
+            out = blobs.newWriter(currentCopy(url, enc));
+            try {
+                if (compress) {
+                    gz = new GZIPOutputStream(out, COPY_BUFFER);
+                }
+            } catch (IOException e) {
+                throw new UrlCacheException("Error saving downloaded file");
+            }
+        }
+
+        @Override
+        public void onBody(ByteBuffer data) throws UrlCacheException {
+            if (out == null) {
+                return; // a 304 has no body
+            }
+            wire += data.remaining();
+            if (links != null && !scanStored) {
+                links.feed(data);
+            }
+            try {
+                if (gz == null) {
+                    out.write(data);
+                } else if (data.hasArray()) {
+                    gz.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                } else {
+                    byte[] buf = new byte[data.remaining()];
+                    data.get(buf);
+                    gz.write(buf);
+                }
+            } catch (IOException e) {
+                throw new UrlCacheException("Error saving downloaded file");
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            offLoop(() -> {
+                try {
+                    commit();
+                } catch (UrlCacheException | RuntimeException e) {
+                    fail(e instanceof UrlCacheException ? (UrlCacheException) e
+                            : new UrlCacheException(e.toString()));
+                }
+            });
+        }
+
+        @Override
+        public void onError(UrlCacheException e) {
+            offLoop(() -> fail(e));
+        }
+
+        /**
+         * Runs the end of the fetch on the async executor, or on this thread
+         * if the cache is closing
+         */
+        private void offLoop(Runnable r) {
+            try {
+                async.execute(r);
+            } catch (RejectedExecutionException e) {
+                r.run();
+            }
+        }
+
+        private void commit() throws UrlCacheException {
+            if (status == 304) {
+                trace("Cache version is up to date.");
+                refreshCatalogEntry(url, response);
+                revalidations.incrementAndGet();
+                metrics.recordOutcome(FetchStatus.NOT_MODIFIED);
+                future.complete(FetchStatus.NOT_MODIFIED);
+                return;
+            }
+            try {
+                long length = -1;
+                if (gz != null) {
+                    gz.finish();
+                    length = wire;
+                }
+                out.finish();
+                commitFile(url, response, out.getFile(), out.getHash(), enc, wire, out.getSize(), length);
+                out = null;
+            } catch (IOException e) {
+                throw new UrlCacheException("Error saving downloaded file");
+            }
+            if (links != null && scanStored) {
+                scanCachedCopy(url, links);
+            }
+            misses.incrementAndGet();
+            metrics.recordOutcome(FetchStatus.DOWNLOADED);
+            future.complete(FetchStatus.DOWNLOADED);
+        }
+
+        private void fail(UrlCacheException e) {
+            if (out != null) {
+                out.abort();
+            }
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A batch in progress on the NIO engine. Urls wait per host until both
+     * the host and the batch are below their limits; each finished request
+     * starts the next. Requests that complete straight away (fresh copies)
+     * finish inside pump(), which then loops instead of recursing.
+     */
+    private class NioBatch {
+
+        private final LinkedHashMap<String, ArrayDeque<String>> waiting; // host key -> urls not yet started
+        private final HashMap<String, String> hostOf; // url -> host key
+        private final HashMap<String, Integer> running; // host key -> requests in flight
+        private final int maxConcurrent;
+        private final int maxPerHost;
+        private final NioEngine engine;
+        private final BatchResult result;
+        private final AtomicInteger wip; // pump() calls outstanding
+        private final CountDownLatch done;
+        private int active; // requests in flight
+
+        NioBatch(Collection<String> urls, int maxConcurrent, int maxPerHost, NioEngine engine, BatchResult result) {
+            this.waiting = new LinkedHashMap<String, ArrayDeque<String>>();
+            this.hostOf = new HashMap<String, String>();
+            this.running = new HashMap<String, Integer>();
+            this.maxConcurrent = maxConcurrent;
+            this.maxPerHost = maxPerHost;
+            this.engine = engine;
+            this.result = result;
+            this.wip = new AtomicInteger();
+            for (String url : urls) {
+                try {
+                    String hostKey = ParsedUrl.parse(url).getHostKey();
+                    hostOf.put(url, hostKey);
+                    waiting.computeIfAbsent(hostKey, k -> new ArrayDeque<String>()).add(url);
+                } catch (UrlCacheException e) {
+                    result.failed(url, e);
+                }
+            }
+            this.done = new CountDownLatch(hostOf.size());
+        }
+
+        void pump() {
+            if (wip.getAndIncrement() != 0) {
+                return; // the thread already pumping will go round again
+            }
+            do {
+                String url;
+                while ((url = next()) != null) {
+                    final String u = url;
+                    fetchObjectAsync(u, engine).whenComplete((status, e) -> finish(u, status, e));
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+
+        /**
+         * Takes the next url whose host is below its limit, counting it as
+         * in flight, or returns null
+         */
+        private synchronized String next() {
+            if (active >= maxConcurrent) {
+                return null;
+            }
+            Iterator<Map.Entry<String, ArrayDeque<String>>> it = waiting.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, ArrayDeque<String>> me = it.next();
+                Integer n = running.get(me.getKey());
+                if (n != null && n >= maxPerHost) {
+                    continue;
+                }
+                String url = me.getValue().poll();
+                if (me.getValue().isEmpty()) {
+                    it.remove();
+                }
+                running.put(me.getKey(), n == null ? 1 : n + 1);
+                active++;
+                return url;
+            }
+            return null;
+        }
+
+        private void finish(String url, FetchStatus status, Throwable e) {
+            if (e == null) {
+                result.succeeded(url, status);
+                try {
+                    touch(ParsedUrl.parse(url).getCacheKey());
+                } catch (UrlCacheException e2) {
+                    // parsed before, cannot happen
+                }
+            } else {
+                result.failed(url, e instanceof UrlCacheException
+                        ? (UrlCacheException) e : new UrlCacheException(e.toString()));
+            }
+            synchronized (this) {
+                String hostKey = hostOf.get(url);
+                int n = running.get(hostKey) - 1;
+                if (n == 0) {
+                    running.remove(hostKey);
+                } else {
+                    running.put(hostKey, n);
+                }
+                active--;
+            }
+            done.countDown();
+            pump();
+        }
+    }
+
+    /**
+     * Class which manages the contents of an HTTP Response.
+     * Contains several methods to get and set its fields, as well as provide 
+     * quick access to key parts of the response header. (Status Code and 
+     * Last-Modified Time)
+     */
+    private class Response {
+
+        private HttpHeader header;
+        private long sent; // nanoTime the request was sent
+        private long firstByte; // nanoTime the first byte of the response arrived
+        private long headerDone; // nanoTime the header was read
+        private int headerBytes;
+
+        Response() {
+            header = null;
+        }
+
+        public String getRespLM() {
+            return header == null ? null : header.get("Last-Modified");
+        }
+
+        public int checkStatus() {
+            int val;
+            if ((val = header.getStatusCode()) >= 200) {
+                return val;
+            } else {
+                return -1;
+            }
+        }
+
+        public String[] getHeader() {
+            return header.getLines();
+        }
+
+        public void setHeader(HttpHeader header) {
+            this.header = header; // full header set, status included
         }
 
         public boolean hasHeader() {
             return header != null;
         }
 
-        public boolean hasContent() {
-            return content != null;
+        /**
+         * Returns the value of the named header field, ignoring case, or
+         * null if the response does not have it
+         */
+        public String getHeaderValue(String name) {
+            return header.get(name);
+        }
+
+        /**
+         * Returns the values of every header field with the name, ignoring
+         * case, joined with commas as one list (RFC 7230 section 3.2.2), or
+         * null if the response does not have it
+         */
+        public String getHeaderList(String name) {
+            String[] values = header.getAll(name);
+            return values.length == 0 ? null : String.join(", ", values);
+        }
+
+        /**
+         * Wraps the connection stream in a reader for this response's body,
+         * choosing the framing from the status code, Transfer-Encoding and
+         * Content-Length (RFC 7230 section 3.3.3)
+         */
+        public BodyInputStream openBody(InputStream in) throws UrlCacheException {
+            int code = checkStatus();
+            if (code < 200 || code == 204 || code == 304) {
+                return BodyInputStream.withLength(in, 0); // never has a body
+            }
+            String te = getHeaderValue("Transfer-Encoding");
+            if (te != null) {
+                if (te.toLowerCase().endsWith("chunked")) {
+                    return BodyInputStream.chunked(in);
+                }
+                return BodyInputStream.untilClose(in);
+            }
+            String cl = getHeaderValue("Content-Length");
+            if (cl != null) {
+                try {
+                    long n = Long.parseLong(cl.trim());
+                    if (n < 0) {
+                        throw new NumberFormatException();
+                    }
+                    return BodyInputStream.withLength(in, n);
+                } catch (NumberFormatException e) {
+                    throw new UrlCacheException("Invalid Content-Length: " + cl);
+                }
+            }
+            return BodyInputStream.untilClose(in);
+        }
+
+        /**
+         * The next response may be read from the connection if it is kept
+         * alive and this response's body has been read to its framed end
+         */
+        public boolean isReusable(BodyInputStream body) {
+            return isKeepAlive() && body.isComplete() && !body.isCloseDelimited();
+        }
+
+        /**
+         * The connection may be kept open unless the server sent
+         * "Connection: close" or answered with HTTP/1.0 without asking for
+         * keep-alive
+         */
+        public boolean isKeepAlive() {
+            String connection = getHeaderValue("Connection");
+            if (connection != null) {
+                connection = connection.toLowerCase();
+            }
+            if (header.getVersion().equals("HTTP/1.0")) {
+                return "keep-alive".equals(connection);
+            }
+            return !"close".equals(connection);
         }
 
     }